@@ -1,6 +1,7 @@
 package broad.core.annotation;
 
 import broad.core.error.ParseException;
+import broad.core.util.DelimitedLineParser;
 
 public class AnnotationFactoryFactory  {
 	
@@ -27,12 +28,42 @@ public class AnnotationFactoryFactory  {
 		}
 		
 	}
-	public static class BEDFactory implements AnnotationFactory<BED> {
+	
+	/**
+	 * Creates an annotation from the current line of the parser, using the factory's 
+	 * byte level path when it has one.
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T extends LightweightGenomicAnnotation> T create(AnnotationFactory<T> factory, DelimitedLineParser line) throws ParseException {
+		if(factory instanceof DelimitedAnnotationFactory) {
+			return ((DelimitedAnnotationFactory<T>) factory).create(line);
+		}
+		return factory.create(line.getFields());
+	}
+	
+	public static class BEDFactory implements DelimitedAnnotationFactory<BED> {
 
 		public BED create(String[] rawFields) throws ParseException {
 			return new BED(rawFields);
 		}
 		
+		public BED create(DelimitedLineParser line) throws ParseException {
+			if(line.getFieldCount() > 6) {
+				return create(line.getFields());
+			}
+			String chr = line.getInternedString(0);
+			int start = line.getInt(1);
+			int end   = line.getInt(2);
+			BED bed = new BED(line.getFieldCount() == 3 ? chr + ":" + start + "-" + end : line.getString(3), chr, start, end);
+			if(line.getFieldCount() > 4) {
+				bed.setScore(line.getDouble(4));
+			}
+			if(line.getFieldCount() > 5) {
+				bed.setOrientation(line.getInternedString(5));
+			}
+			return bed;
+		}
+		
 		public BED create(GenomicAnnotation a) {
 			return new BED(a);
 		}
@@ -68,12 +99,29 @@ public class AnnotationFactoryFactory  {
 		
 	}
 	
-	public static class ShortBEDFactory implements AnnotationFactory<ShortBED> {
+	public static class ShortBEDFactory implements DelimitedAnnotationFactory<ShortBED> {
 
 		public ShortBED create(String[] rawFields) throws ParseException {
 			return new ShortBED(rawFields);
 		}
 		
+		public ShortBED create(DelimitedLineParser line) throws ParseException {
+			String chr = line.getInternedString(0);
+			int start = line.getInt(1);
+			int end   = line.getInt(2);
+			ShortBED bed = new ShortBED(line.getFieldCount() == 3 ? chr + ":" + start + "-" + end : line.getString(3), chr, start, end);
+			if(line.getFieldCount() > 4) {
+				bed.setScore(line.getDouble(4));
+			}
+			if(line.getFieldCount() > 5) {
+				bed.setOrientation(line.getInternedString(5));
+			}
+			for(int i = 6; i < line.getFieldCount(); i++) {
+				bed.addExtraScore(line.getDouble(i));
+			}
+			return bed;
+		}
+		
 		public ShortBED create(GenomicAnnotation a) {
 			return new ShortBED(a);
 		}
@@ -83,12 +131,16 @@ public class AnnotationFactoryFactory  {
 		}
 	}
 	
-	public static class BEDGraphFactory implements AnnotationFactory<BEDGraph> {
+	public static class BEDGraphFactory implements DelimitedAnnotationFactory<BEDGraph> {
 
 		public BEDGraph create(String[] rawFields) throws ParseException {
 			return new BEDGraph(rawFields);
 		}
 		
+		public BEDGraph create(DelimitedLineParser line) throws ParseException {
+			return new BEDGraph(line.getInternedString(0), line.getInt(1), line.getInt(2), line.getDouble(3));
+		}
+		
 		public BEDGraph create(GenomicAnnotation a) {
 			return new BEDGraph(a);
 		}
@@ -16,12 +16,18 @@ import java.util.Random;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import broad.core.datastructures.IntervalTree;
 import broad.core.datastructures.IntervalTree.Node;
 import broad.core.error.ParseException;
+import broad.core.util.DelimitedLineParser;
 
 import broad.pda.datastructures.Alignments;
 import broad.pda.seq.alignment.AlignmentCollection;
@@ -67,7 +73,7 @@ public abstract class AnnotationReader <T extends GenomicAnnotation> implements
 	}
 	
 	public void load(File source, AnnotationFactory<? extends T> factory) throws IOException, ParseException{
-		load(new BufferedReader(new FileReader(source)), factory);
+		load(source, factory, null);
 	}
 	
 	public void load(BufferedReader br, AnnotationFactory<? extends T> factory) throws IOException, ParseException{
@@ -85,7 +91,132 @@ public abstract class AnnotationReader <T extends GenomicAnnotation> implements
 	}
 	
 	public void load(File source, AnnotationFactory<? extends T> factory, GenomicAnnotationFilter<T> filter) throws IOException, ParseException{
-		load(new BufferedReader(new FileReader(source)), factory, filter);
+		DelimitedLineParser line = new DelimitedLineParser(source, '\t');
+		try {
+			while(line.next()) {
+				if(line.isEmpty() || line.startsWithIgnoreCase("#")) {
+					continue;
+				}
+				if(line.startsWithIgnoreCase("browser") || line.startsWithIgnoreCase("track")) {
+					addHeaderLine(line.getLine());
+					continue;
+				}
+				T annotation = AnnotationFactoryFactory.create(factory, line);
+				if(filter != null && !filter.accept(annotation)) {
+					continue;
+				}
+				if(filter != null && filter.isEnough(annotation)) {
+					break;
+				}
+				addToCurrentSet(annotation);
+			}
+		} finally {
+			line.close();
+		}
+	}
+	
+	/**
+	 * Loads a large uncompressed file by parsing line aligned byte ranges of it concurrently. 
+	 * Annotations are filtered and added in file order, so the result is the same as that of 
+	 * load(File, AnnotationFactory, GenomicAnnotationFilter).
+	 * @param numThreads number of parsing threads
+	 */
+	public void load(File source, final AnnotationFactory<? extends T> factory, GenomicAnnotationFilter<T> filter, int numThreads) throws IOException, ParseException{
+		final File file = source;
+		final long [] boundaries = DelimitedLineParser.findLineBoundaries(source, numThreads * 4);
+		ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+		List<Future<ParsedChunk<T>>> chunks = new ArrayList<Future<ParsedChunk<T>>>(boundaries.length - 1);
+		try {
+			for(int i = 0; i < boundaries.length - 1; i++) {
+				final int chunkIdx = i;
+				chunks.add(executor.submit(new Callable<ParsedChunk<T>>() {
+					public ParsedChunk<T> call() throws Exception {
+						return parseChunk(file, boundaries[chunkIdx], boundaries[chunkIdx + 1], factory);
+					}
+				}));
+			}
+			
+			for(Future<ParsedChunk<T>> f : chunks) {
+				ParsedChunk<T> chunk = f.get();
+				int headerIdx = 0;
+				for(int i = 0; i < chunk.annotations.size(); i++) {
+					while(headerIdx < chunk.headerPositions.size() && chunk.headerPositions.get(headerIdx) == i) {
+						addHeaderLine(chunk.headerLines.get(headerIdx++));
+					}
+					T annotation = chunk.annotations.get(i);
+					if(filter != null && !filter.accept(annotation)) {
+						continue;
+					}
+					if(filter != null && filter.isEnough(annotation)) {
+						return;
+					}
+					addToCurrentSet(annotation);
+				}
+				while(headerIdx < chunk.headerLines.size()) {
+					addHeaderLine(chunk.headerLines.get(headerIdx++));
+				}
+			}
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted while loading " + source, e);
+		} catch (ExecutionException e) {
+			if(e.getCause() instanceof ParseException) {
+				throw (ParseException) e.getCause();
+			} else if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new RuntimeException(e.getCause());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+	
+	private static <A extends GenomicAnnotation> ParsedChunk<A> parseChunk(File file, long from, long to, AnnotationFactory<? extends A> factory) throws IOException, ParseException {
+		ParsedChunk<A> chunk = new ParsedChunk<A>();
+		DelimitedLineParser line = new DelimitedLineParser(file, '\t', from, to);
+		try {
+			while(line.next()) {
+				if(line.isEmpty() || line.startsWithIgnoreCase("#")) {
+					continue;
+				}
+				if(line.startsWithIgnoreCase("browser") || line.startsWithIgnoreCase("track")) {
+					chunk.headerPositions.add(chunk.annotations.size());
+					chunk.headerLines.add(line.getLine());
+				} else {
+					chunk.annotations.add(AnnotationFactoryFactory.create(factory, line));
+				}
+			}
+		} finally {
+			line.close();
+		}
+		return chunk;
+	}
+	
+	private static class ParsedChunk<A> {
+		List<A> annotations = new ArrayList<A>();
+		List<String> headerLines = new ArrayList<String>();
+		List<Integer> headerPositions = new ArrayList<Integer>();
+	}
+	
+	private void addHeaderLine(String line) {
+		if( line.toLowerCase().startsWith("browser")){
+			addBrowserLine(line);
+		} else if(annotationSetMap.size() == 1) {// This is a hack resulting from a bad choice made before to actually initialize the annotationSetMap in the constructor TODO: FIXIT
+			annotationSetMap.get(0).setInfoFromRawData(line);
+		} else  {
+			startTrack(line);
+		}
+	}
+	
+	private void addToCurrentSet(T annotation) {
+		AnnotationSet<T> currentSet = null;
+		if(annotationSetMap.isEmpty()) {
+			currentSet = new AnnotationSet<T>(); 
+			annotationSetMap.add(currentSet);
+		} else {
+			currentSet = annotationSetMap.get(annotationSetMap.size() - 1);
+		}
+		
+		currentSet.addAnnotation(annotation);
 	}
 	
 	public void load(BufferedReader br, AnnotationFactory<? extends T> factory, GenomicAnnotationFilter<T> filter) throws IOException, ParseException{
@@ -148,14 +279,28 @@ public abstract class AnnotationReader <T extends GenomicAnnotation> implements
 	
 	public abstract int parse (String file, GenomicAnnotationFilter<T> filter, AnnotationHandler handler ) throws ParseException, IOException;
 	protected int parse(String file, AnnotationFactory<? extends T> factory, GenomicAnnotationFilter<T> filter, AnnotationHandler handler) throws ParseException, IOException {
-		BufferedReader br = new BufferedReader(new FileReader(file));
+		DelimitedLineParser line = new DelimitedLineParser(new File(file), '\t');
+		handler.begin();
 		int numRead = 0;
 		try {
-			numRead = parse(br, factory, filter, handler);
-		} finally {
-			if(br != null) {
-				br.close();
+			while(line.next()) {
+				if(line.isEmpty() || line.startsWithIgnoreCase("#")) {
+					//comment
+				} else if(line.startsWithIgnoreCase("browser")) {
+					handler.track(line.getLine());
+				} else if(line.startsWithIgnoreCase("track")) {
+					handler.browserLine(line.getLine());
+				} else {
+					T annotation = AnnotationFactoryFactory.create(factory, line);
+					if(filter == null ||  (filter.accept(annotation) && !filter.isEnough(annotation))) {
+						handler.annotation(annotation);
+						numRead++;
+					}
+				}
 			}
+			handler.eof();
+		} finally {
+			line.close();
 		}
 		return numRead;
 	}
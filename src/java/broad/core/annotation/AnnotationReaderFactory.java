@@ -1,5 +1,6 @@
 package broad.core.annotation;
 
+import java.io.File;
 import java.io.IOException;
 
 import broad.core.error.ParseException;
@@ -21,6 +22,37 @@ public class AnnotationReaderFactory {
 		return r;
 	}
 	
+	/**
+	 * Loads a large uncompressed annotation file parsing it with several threads.
+	 * @see AnnotationReader#load(File, AnnotationFactory, GenomicAnnotationFilter, int)
+	 */
+	public static AnnotationReader<? extends GenomicAnnotation> createParallel(String sourceFile, String annotationType, int numThreads) throws ParseException, IOException {
+		if(numThreads <= 1) {
+			return create(sourceFile, annotationType);
+		}
+		File source = new File(sourceFile);
+		AnnotationReader<? extends GenomicAnnotation> r;
+		if("BED".equals(annotationType)) {
+			BEDReader bedR = new BEDReader();
+			bedR.load(source, AnnotationFactoryFactory.bedFactory, null, numThreads);
+			r = bedR;
+		} else if("GFF".equals(annotationType)) {
+			GFFReader gffR = new GFFReader();
+			gffR.load(source, AnnotationFactoryFactory.gffFactory, null, numThreads);
+			r = gffR;
+		} else if ("BEDGraph".equalsIgnoreCase(annotationType)) {
+			BEDGraphReader bedR = new BEDGraphReader();
+			bedR.load(source, AnnotationFactoryFactory.bedGraphFactory, null, numThreads);
+			r = bedR;
+		} else {
+			BasicAnnotationReader basicR = new BasicAnnotationReader();
+			basicR.load(source, AnnotationFactoryFactory.basicGenomicAnnotationfactory, null, numThreads);
+			r = basicR;
+		}
+		
+		return r;
+	}
+	
 	public static AnnotationReader<? extends GenomicAnnotation> create(String annotationType) throws ParseException, IOException {
 		AnnotationReader<? extends GenomicAnnotation> r;
 		if("BED".equals(annotationType)) {
@@ -56,6 +56,7 @@ public class AnnotationUtils {
 	"\n\t\t -window <windowSize> -overlap <overlapSize> -chr <chr> -start <start> -end <end>" +
 	"\n\tOverlapSignifiance. Calculate the significance of the overlap between two sets of annotations by permuting across the same chromosome." +
 	"\n\t\t -set1 <set1> -set2 <set2> -nperm <number of permutations> -sizeFile <file of chromosome sizes>" +
+	"\n\t\t [-threads <number of permutation threads, all available processors by default> -seed <random seed> -alpha <stop permuting once the p-value confidence interval excludes this significance level>]" +
 	"\n";
 	
 	public static void main (String [] args) throws IOException, ParseException {
@@ -433,52 +434,43 @@ public class AnnotationUtils {
 			AnnotationReader<? extends GenomicAnnotation> set2 = AnnotationReaderFactory.create(set2In, set2Format, chromosome);
 			System.out.println("Loaded " + set2.getAnnotationList().size() + " records for set2.");
 			
-			// Calculate distances and create an empirical distribution
-			List<Integer> distances = new ArrayList<Integer>(set1.getDistancesToClosest(set2).values());
-			int numOverlappers = countOverlappers(distances);
-			
-			// Permute many times and build empirical distribution of distances and overlappers
-			Integer[] permutedOverlappers = new Integer[n];
-			List<Integer> permutedDistances = new ArrayList<Integer>();
-			for (int i = 0; i < n; i++) {
-				set1.permuteAnnotationsOnChromosome(sizes);   // permute regions in place
-				
-				//BufferedWriter tmp = new BufferedWriter(new FileWriter(argMap.getOutput() + ".perm" + i));
-				//tmp.write(set1.toStringForWriting());
-				//tmp.close();
-				
-				Collection<Integer> currDistances = set1.getDistancesToClosest(set2).values();
-				permutedOverlappers[i] = countOverlappers(currDistances);
-				permutedDistances.addAll(currDistances);
+			int numThreads = argMap.containsKey("threads") ? argMap.getInteger("threads") : Runtime.getRuntime().availableProcessors();
+			long seed = argMap.containsKey("seed") ? Long.parseLong(argMap.get("seed")) : System.currentTimeMillis();
+			double alpha = argMap.containsKey("alpha") ? argMap.getDouble("alpha") : -1;
+			
+			// Calculate distances and permute many times to build the empirical distribution of overlappers and distances
+			OverlapPermutationTest test = new OverlapPermutationTest(set1, set2, sizes);
+			int numOverlappers = test.getObservedOverlappers();
+			OverlapPermutationTest.Result result = null;
+			try {
+				result = test.run(n, numThreads, seed, alpha, true);
+			} catch (Exception e) {
+				throw new RuntimeException("Permutation test failed", e);
 			}
 			
-			// Calculate approximate permutation p-value
-			int numMore = 0;
-			for (int i = 0; i < permutedOverlappers.length; i++)
-				if (permutedOverlappers[i].intValue() >= numOverlappers) numMore++;
-			double pvalue = (double) numMore / (double) n;
-			
 			// Write results
 			BufferedWriter bw = argMap.getOutputWriter();
 			bw.write("# Size of set1: " + set1.size() + "\n");
 			bw.write("# Size of set2: " + set2.size() + "\n");
 			bw.write("# Number of elements in set1 that overlap elements in set2: " + numOverlappers + "\n");
-			bw.write("# Permutations = " + n + "\n");
-			bw.write("# Permutation p-value = " + pvalue + "\n");
-			Collections.sort(Arrays.asList(permutedOverlappers));
-			for (Integer x : permutedOverlappers)
+			bw.write("# Permutations = " + result.getPermutations() + "\n");
+			bw.write("# Permutation p-value = " + result.getPValue() + "\n");
+			bw.write("# 95% confidence interval = [" + result.getLowerBound() + ", " + result.getUpperBound() + "]\n");
+			for (int x : result.getSortedPermutedOverlappers())
 				bw.write(x + "\n");
 			bw.close();
 			
 			// Write distance files for observed and permuted versions of set1
 			BufferedWriter ow = new BufferedWriter(new FileWriter(argMap.getOutput() + ".observed"));
+			List<Integer> distances = test.getObservedDistances();
 			Collections.sort(distances);
 			for (Integer i : distances) ow.write(i + "\n");
 			ow.close();
 			
 			BufferedWriter ew = new BufferedWriter(new FileWriter(argMap.getOutput() + ".permuted"));
-			Collections.sort(permutedDistances);
-			for (Integer i : permutedDistances) ew.write(i + "\n");
+			for (Map.Entry<Integer, Long> e : result.getPermutedDistanceCounts().entrySet()) {
+				for (long i = 0; i < e.getValue(); i++) ew.write(e.getKey() + "\n");
+			}
 			ew.close();
 		}
 		
@@ -528,15 +520,6 @@ public class AnnotationUtils {
 	}
 	
 	
-	private static int countOverlappers(Collection<Integer> distances) {
-		int overlappers = 0;
-		for (Integer d : distances)
-			if (d.intValue() == 0)
-				overlappers++;
-		return overlappers;
-	}
-
-	
 	private static int getBaseCoverage(List<? extends GenomicAnnotation> annotations) {
 		int cov = 0;
 		Iterator<? extends GenomicAnnotation> it = annotations.iterator();
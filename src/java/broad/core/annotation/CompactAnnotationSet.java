@@ -0,0 +1,459 @@
+package broad.core.annotation;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import broad.core.util.DelimitedLineParser;
+
+/**
+ * Memory compact, read only annotation set for million scale BED like files.
+ * Annotations are stored per chromosome as parallel primitive columns (start, end, score, strand and
+ * an optional dictionary encoded name) sorted by start, instead of one object per annotation.
+ * Overlap and closest element queries mirror those of AnnotationReader and take O(log n + k) for k overlappers,
+ * the sorted columns are searched as an implicit interval tree; BED objects are only built when a caller asks for them.
+ *
+ * Annotations must all be added before the set is queried, adding is not thread safe but
+ * queries on a fully built set are.
+ *
+ * @author mgarber
+ */
+public class CompactAnnotationSet implements Iterable<BED> {
+	private static final int NO_NAME = -1;
+	private Map<String, ChromosomeColumns> chromosomes;
+	private boolean keepNames;
+	private Map<String, Integer> nameIds;
+	private List<String> names;
+
+	/**
+	 * @param keepNames whether to store annotation names. When false, annotations get a name derived from their location
+	 */
+	public CompactAnnotationSet(boolean keepNames) {
+		chromosomes = new LinkedHashMap<String, ChromosomeColumns>();
+		this.keepNames = keepNames;
+		nameIds = new HashMap<String, Integer>();
+		names = new ArrayList<String>();
+	}
+
+	/**
+	 * Loads a BED file (only the chromosome, start, end, name, score and strand columns are kept)
+	 */
+	public static CompactAnnotationSet load(File bedFile, boolean keepNames) throws IOException {
+		CompactAnnotationSet set = new CompactAnnotationSet(keepNames);
+		DelimitedLineParser line = new DelimitedLineParser(bedFile, '\t');
+		try {
+			while(line.next()) {
+				if(line.isEmpty() || line.startsWithIgnoreCase("#") || line.startsWithIgnoreCase("track") || line.startsWithIgnoreCase("browser")) {
+					continue;
+				}
+				int fields = line.getFieldCount();
+				String strand = fields > 5 ? line.getInternedString(5) : "";
+				set.add(line.getInternedString(0),
+						line.getInt(1),
+						line.getInt(2),
+						fields > 4 ? (float) line.getDouble(4) : 0,
+						strand.length() > 0 ? strand.charAt(0) : '*',
+						keepNames && fields > 3 ? line.getString(3) : null);
+			}
+		} finally {
+			line.close();
+		}
+		return set;
+	}
+
+	public static CompactAnnotationSet create(AnnotationReader<? extends GenomicAnnotation> reader, boolean keepNames) {
+		CompactAnnotationSet set = new CompactAnnotationSet(keepNames);
+		for(GenomicAnnotation a : reader.getAnnotationList()) {
+			set.add(a);
+		}
+		return set;
+	}
+
+	public void add(LightweightGenomicAnnotation annotation) {
+		add(annotation.getChromosome(), annotation.getStart(), annotation.getEnd(), (float) annotation.getScore(), annotation.getOrientation().charAt(0), annotation.getName());
+	}
+
+	public void add(String chr, int start, int end, float score, char strand, String name) {
+		if(start > end) {
+			System.err.println("Annotation " + chr + ":" + start + "-" + end + " start is after end. Skipping");
+			return;
+		}
+		ChromosomeColumns columns = chromosomes.get(chr);
+		if(columns == null) {
+			columns = new ChromosomeColumns();
+			chromosomes.put(chr, columns);
+		}
+		int nameId = NO_NAME;
+		if(keepNames && name != null) {
+			Integer id = nameIds.get(name);
+			if(id == null) {
+				id = names.size();
+				names.add(name);
+				nameIds.put(name, id);
+			}
+			nameId = id;
+		}
+		columns.add(start, end, score, (byte) strand, nameId);
+	}
+
+	public Iterator<String> getChromosomeIterator() { return chromosomes.keySet().iterator(); }
+
+	public int size() {
+		int size = 0;
+		for(ChromosomeColumns columns : chromosomes.values()) {
+			size += columns.size;
+		}
+		return size;
+	}
+
+	public int size(String chr) {
+		ChromosomeColumns columns = chromosomes.get(chr);
+		return columns == null ? 0 : columns.size;
+	}
+
+	public long getBaseCoverage() {
+		long coverage = 0;
+		for(ChromosomeColumns columns : chromosomes.values()) {
+			for(int i = 0; i < columns.size; i++) {
+				coverage += columns.ends[i] - columns.starts[i];
+			}
+		}
+		return coverage;
+	}
+
+	public int getStart(String chr, int idx) { return getSortedColumns(chr).starts[idx]; }
+
+	public int getEnd(String chr, int idx) { return getSortedColumns(chr).ends[idx]; }
+
+	public float getScore(String chr, int idx) { return getSortedColumns(chr).scores[idx]; }
+
+	/**
+	 * Builds the idx-th annotation (in start order) of the given chromosome.
+	 */
+	public BED getAnnotation(String chr, int idx) {
+		ChromosomeColumns columns = getSortedColumns(chr);
+		int start = columns.starts[idx];
+		int end = columns.ends[idx];
+		int nameId = columns.nameIds[idx];
+		BED bed = new BED(nameId == NO_NAME ? chr + ":" + start + "-" + end : names.get(nameId), chr, start, end);
+		bed.setScore(columns.scores[idx]);
+		bed.setOrientation(String.valueOf((char) columns.strands[idx]));
+		return bed;
+	}
+
+	public List<BED> getChromosomeBEDs(String chr) {
+		List<BED> beds = new ArrayList<BED>(size(chr));
+		for(int i = 0; i < size(chr); i++) {
+			beds.add(getAnnotation(chr, i));
+		}
+		return beds;
+	}
+
+	public List<BED> getAnnotationList() {
+		List<BED> beds = new ArrayList<BED>(size());
+		for(String chr : chromosomes.keySet()) {
+			beds.addAll(getChromosomeBEDs(chr));
+		}
+		return beds;
+	}
+
+	public Iterator<BED> iterator() {
+		return new Iterator<BED>() {
+			Iterator<String> chrIt = chromosomes.keySet().iterator();
+			String chr = null;
+			int next = 0;
+
+			public boolean hasNext() {
+				while((chr == null || next >= size(chr)) && chrIt.hasNext()) {
+					chr = chrIt.next();
+					next = 0;
+				}
+				return chr != null && next < size(chr);
+			}
+
+			public BED next() {
+				if(!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				return getAnnotation(chr, next++);
+			}
+
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	/**
+	 * @return indices, in start order, of the annotations in the given chromosome overlapping [start, end)
+	 */
+	public int [] getOverlapperIndices(String chr, int start, int end) {
+		ChromosomeColumns columns = getSortedColumns(chr);
+		return columns == null ? new int[0] : columns.overlappers(start, end, Integer.MAX_VALUE);
+	}
+
+	public int countOverlappers(String chr, int start, int end) {
+		return getOverlapperIndices(chr, start, end).length;
+	}
+
+	public boolean overlaps(String chr, int start, int end) {
+		ChromosomeColumns columns = getSortedColumns(chr);
+		return columns != null && columns.overlappers(start, end, 1).length > 0;
+	}
+
+	public List<BED> getOverlappers(LightweightGenomicAnnotation annotation) {
+		int [] idx = getOverlapperIndices(annotation.getChromosome(), annotation.getStart(), annotation.getEnd());
+		List<BED> overlappers = new ArrayList<BED>(idx.length);
+		for(int i : idx) {
+			overlappers.add(getAnnotation(annotation.getChromosome(), i));
+		}
+		return overlappers;
+	}
+
+	public double getScoreSum(LightweightGenomicAnnotation region) {
+		ChromosomeColumns columns = getSortedColumns(region.getChromosome());
+		double sum = 0;
+		for(int i : getOverlapperIndices(region.getChromosome(), region.getStart(), region.getEnd())) {
+			sum += columns.scores[i];
+		}
+		return sum;
+	}
+
+	public double getAverageScore(LightweightGenomicAnnotation region) {
+		int [] idx = getOverlapperIndices(region.getChromosome(), region.getStart(), region.getEnd());
+		return idx.length == 0 ? Double.NaN : getScoreSum(region)/idx.length;
+	}
+
+	/**
+	 * Index of the closest annotation (the first overlapping one in start order if any) in the region's chromosome or -1 if there is none.
+	 */
+	public int findClosestIndex(String chr, int start, int end) {
+		ChromosomeColumns columns = getSortedColumns(chr);
+		if(columns == null || columns.size == 0) {
+			return -1;
+		}
+		int hi = columns.firstStartingAtOrAfter(end);
+		int before = -1;
+		if(hi > 0) {
+			int [] overlapper = columns.overlappers(start, end, 1);
+			if(overlapper.length > 0) {
+				return overlapper[0];
+			}
+			// No overlap: every annotation starting before end also ends before start, the closest is the one with the maximum end.
+			before = columns.maxEndIndices[hi - 1];
+		}
+		int distToBefore = before < 0 ? Integer.MAX_VALUE : start - columns.ends[before];
+		int distToAfter  = hi >= columns.size ? Integer.MAX_VALUE : columns.starts[hi] - end;
+		return hi < columns.size && distToAfter < distToBefore ? hi : before;
+	}
+
+	public BED findClosest(LightweightGenomicAnnotation annotation) {
+		int idx = findClosestIndex(annotation.getChromosome(), annotation.getStart(), annotation.getEnd());
+		return idx < 0 ? null : getAnnotation(annotation.getChromosome(), idx);
+	}
+
+	public int getDistanceToClosest(LightweightGenomicAnnotation annotation) {
+		int idx = findClosestIndex(annotation.getChromosome(), annotation.getStart(), annotation.getEnd());
+		if(idx < 0) {
+			return Integer.MAX_VALUE;
+		}
+		ChromosomeColumns columns = getSortedColumns(annotation.getChromosome());
+		if(columns.ends[idx] <= annotation.getStart()) {
+			return annotation.getStart() - columns.ends[idx];
+		} else if (columns.starts[idx] >= annotation.getEnd()) {
+			return columns.starts[idx] - annotation.getEnd();
+		}
+		return 0;
+	}
+
+	private ChromosomeColumns getSortedColumns(String chr) {
+		ChromosomeColumns columns = chromosomes.get(chr);
+		if(columns != null && !columns.sorted) {
+			synchronized (columns) {
+				columns.sort();
+			}
+		}
+		return columns;
+	}
+
+	private static class ChromosomeColumns {
+		// Subtrees of at most 2^(LINEAR_SCAN_LEVEL + 1) annotations are scanned rather than descended.
+		static final int LINEAR_SCAN_LEVEL = 3;
+		int size;
+		int [] starts  = new int[16];
+		int [] ends    = new int[16];
+		float [] scores = new float[16];
+		byte [] strands = new byte[16];
+		int [] nameIds  = new int[16];
+		int [] subtreeMaxEnds;
+		int [] maxEndIndices;
+		int rootLevel;
+		volatile boolean sorted;
+
+		void add(int start, int end, float score, byte strand, int nameId) {
+			if(size == starts.length) {
+				int newLength = size + (size >> 1);
+				starts  = Arrays.copyOf(starts, newLength);
+				ends    = Arrays.copyOf(ends, newLength);
+				scores  = Arrays.copyOf(scores, newLength);
+				strands = Arrays.copyOf(strands, newLength);
+				nameIds = Arrays.copyOf(nameIds, newLength);
+			}
+			starts[size]  = start;
+			ends[size]    = end;
+			scores[size]  = score;
+			strands[size] = strand;
+			nameIds[size] = nameId;
+			size++;
+			sorted = false;
+		}
+
+		/**
+		 * Sorts all columns by start (keeping insertion order for equal starts), trims them and
+		 * builds the interval tree maximum ends and the index of the maximum end of each prefix.
+		 */
+		void sort() {
+			if(sorted) {
+				return;
+			}
+			long [] keys = new long[size];
+			for(int i = 0; i < size; i++) {
+				keys[i] = ((long) starts[i] << 32) | i;
+			}
+			Arrays.sort(keys);
+			int [] sortedStarts = new int[size];
+			int [] sortedEnds = new int[size];
+			float [] sortedScores = new float[size];
+			byte [] sortedStrands = new byte[size];
+			int [] sortedNameIds = new int[size];
+			for(int i = 0; i < size; i++) {
+				int from = (int) (keys[i] & 0xffffffffL);
+				sortedStarts[i]  = starts[from];
+				sortedEnds[i]    = ends[from];
+				sortedScores[i]  = scores[from];
+				sortedStrands[i] = strands[from];
+				sortedNameIds[i] = nameIds[from];
+			}
+			starts  = sortedStarts;
+			ends    = sortedEnds;
+			scores  = sortedScores;
+			strands = sortedStrands;
+			nameIds = sortedNameIds;
+
+			maxEndIndices = new int[size];
+			for(int i = 0; i < size; i++) {
+				maxEndIndices[i] = i == 0 || ends[i] >= ends[maxEndIndices[i - 1]] ? i : maxEndIndices[i - 1];
+			}
+			buildTree();
+			sorted = true;
+		}
+
+		/**
+		 * The sorted columns are read as an implicit balanced binary search tree (as in cgranges): leaves are the even
+		 * indices, a node of level k has index i with its k lowest bits set and spans [i - 2^k + 1, i + 2^k - 1], its
+		 * children are i - 2^(k-1) and i + 2^(k-1). subtreeMaxEnds holds the maximum end of each node's span, nodes past
+		 * the last annotation take the maximum end of the last subtree that exists.
+		 */
+		private void buildTree() {
+			subtreeMaxEnds = new int[size];
+			rootLevel = 0;
+			if(size == 0) {
+				return;
+			}
+			int lastIndex = 0;
+			int last = 0;
+			for(int i = 0; i < size; i += 2) {
+				lastIndex = i;
+				last = subtreeMaxEnds[i] = ends[i];
+			}
+			int k;
+			for(k = 1; 1L << k <= size; k++) {
+				int x = 1 << (k - 1);
+				int step = x << 2;
+				for(int i = (x << 1) - 1; i < size; i += step) {
+					int maxEnd = Math.max(ends[i], subtreeMaxEnds[i - x]);
+					subtreeMaxEnds[i] = Math.max(maxEnd, i + x < size ? subtreeMaxEnds[i + x] : last);
+				}
+				lastIndex = ((lastIndex >> k) & 1) != 0 ? lastIndex - x : lastIndex + x;
+				if(lastIndex < size && subtreeMaxEnds[lastIndex] > last) {
+					last = subtreeMaxEnds[lastIndex];
+				}
+			}
+			rootLevel = k - 1;
+		}
+
+		/**
+		 * @return indices, in start order, of at most limit annotations overlapping [start, end), the first ones in start order.
+		 */
+		int [] overlappers(int start, int end, int limit) {
+			int [] found = new int[Math.min(limit, 8)];
+			int n = 0;
+			if(size > 0) {
+				// In order traversal, a node is pushed back once its left subtree has been pushed.
+				int [] nodes = new int[64];
+				int [] levels = new int[64];
+				boolean [] leftPushed = new boolean[64];
+				int t = 0;
+				nodes[t] = (1 << rootLevel) - 1;
+				levels[t] = rootLevel;
+				leftPushed[t++] = false;
+				while(t > 0 && n < limit) {
+					int node = nodes[--t];
+					int level = levels[t];
+					if(level <= LINEAR_SCAN_LEVEL) {
+						int from = node >> level << level;
+						int to = Math.min(size, from + (1 << (level + 1)) - 1);
+						for(int i = from; i < to && starts[i] < end && n < limit; i++) {
+							if(ends[i] > start) {
+								if(n == found.length) {
+									found = Arrays.copyOf(found, n * 2);
+								}
+								found[n++] = i;
+							}
+						}
+					} else if(!leftPushed[t]) {
+						int left = node - (1 << (level - 1));
+						leftPushed[t++] = true;
+						if(left >= size || subtreeMaxEnds[left] > start) {
+							nodes[t] = left;
+							levels[t] = level - 1;
+							leftPushed[t++] = false;
+						}
+					} else if(node < size && starts[node] < end) {
+						if(ends[node] > start) {
+							if(n == found.length) {
+								found = Arrays.copyOf(found, n * 2);
+							}
+							found[n++] = node;
+						}
+						nodes[t] = node + (1 << (level - 1));
+						levels[t] = level - 1;
+						leftPushed[t++] = false;
+					}
+				}
+			}
+			return n == found.length ? found : Arrays.copyOf(found, n);
+		}
+
+		int firstStartingAtOrAfter(int position) {
+			int lo = 0;
+			int hi = size;
+			while(lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if(starts[mid] < position) {
+					lo = mid + 1;
+				} else {
+					hi = mid;
+				}
+			}
+			return lo;
+		}
+	}
+}
@@ -0,0 +1,12 @@
+package broad.core.annotation;
+
+import broad.core.error.ParseException;
+import broad.core.util.DelimitedLineParser;
+
+/**
+ * Annotation factories that can build annotations straight from the current line of a 
+ * DelimitedLineParser, without first splitting the line into String fields.
+ */
+public interface DelimitedAnnotationFactory<T extends LightweightGenomicAnnotation> extends AnnotationFactory<T> {
+	T create(DelimitedLineParser line) throws ParseException;
+}
@@ -0,0 +1,317 @@
+package broad.core.annotation;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import broad.core.util.Seeds;
+
+/**
+ * Permutation test for the overlap between two annotation sets.
+ *
+ * Unlike AnnotationReader.permuteAnnotationsOnChromosome, which moves the annotations in place
+ * and rebuilds every interval tree for each permutation, this engine indexes set2 once in sorted
+ * primitive arrays and only draws new start coordinates for set1. Permutations are split in
+ * batches that run concurrently, each permutation with its own seeded random generator so results
+ * do not depend on the number of threads.
+ *
+ * @author mgarber
+ */
+public class OverlapPermutationTest {
+	static final int DEFAULT_BATCH_SIZE = 50;
+	static final double Z_95 = 1.959964;
+
+	private Map<String, IntervalIndex> set2Index;
+	private Map<String, int []> set1Lengths;
+	private Map<String, Integer> chrSizes;
+	private List<Integer> observedDistances;
+	private int observedOverlappers;
+	private int batchSize = DEFAULT_BATCH_SIZE;
+
+	/**
+	 * @param set1 annotations to permute
+	 * @param set2 fixed annotations to overlap against
+	 * @param chrSizes chromosome sizes, annotations in set1 on chromosomes not in this map are not permuted
+	 */
+	public OverlapPermutationTest(AnnotationReader<? extends GenomicAnnotation> set1, AnnotationReader<? extends GenomicAnnotation> set2, Map<String, Integer> chrSizes) {
+		this.chrSizes = chrSizes;
+		set2Index = new HashMap<String, IntervalIndex>();
+		Iterator<String> chrIt = set2.getChromosomeAnnotationMap().keySet().iterator();
+		while(chrIt.hasNext()) {
+			String chr = chrIt.next();
+			set2Index.put(chr, new IntervalIndex(set2.getChromosomeBEDs(chr)));
+		}
+
+		observedDistances = new ArrayList<Integer>();
+		set1Lengths = new HashMap<String, int[]>();
+		chrIt = set1.getChromosomeAnnotationMap().keySet().iterator();
+		while(chrIt.hasNext()) {
+			String chr = chrIt.next();
+			List<? extends GenomicAnnotation> chrAnnotations = set1.getChromosomeBEDs(chr);
+			IntervalIndex index = set2Index.get(chr);
+			int [] lengths = new int[chrAnnotations.size()];
+			int i = 0;
+			for(GenomicAnnotation annotation : chrAnnotations) {
+				lengths[i++] = annotation.length();
+				int distance = index == null ? Integer.MAX_VALUE : index.distanceTo(annotation.getStart(), annotation.getEnd());
+				observedDistances.add(distance);
+				if(distance == 0) {
+					observedOverlappers++;
+				}
+			}
+			if(chrSizes.containsKey(chr)) {
+				set1Lengths.put(chr, lengths);
+			}
+		}
+	}
+
+	public int getObservedOverlappers() { return observedOverlappers; }
+
+	public List<Integer> getObservedDistances() { return observedDistances; }
+
+	public void setBatchSize(int batchSize) { this.batchSize = batchSize; }
+
+	/**
+	 * Runs the permutations.
+	 * @param maxPermutations maximum number of permutations to run
+	 * @param numThreads number of worker threads
+	 * @param seed base seed, permutation i always uses the same generator for a given seed
+	 * @param alpha significance level used for early stopping: once the 95% confidence interval of the p-value
+	 *        lies entirely above or below alpha no more permutations are run. Use a non positive value to run all permutations.
+	 * @param keepDistances whether to keep the distribution of permuted distances to the closest set2 element.
+	 */
+	public Result run(int maxPermutations, int numThreads, long seed, double alpha, boolean keepDistances) throws InterruptedException, ExecutionException {
+		ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+		Result result = new Result(maxPermutations, keepDistances);
+		try {
+			int next = 0;
+			while(next < maxPermutations && !result.isResolved(alpha)) {
+				List<Future<Batch>> round = new ArrayList<Future<Batch>>(numThreads);
+				for(int t = 0; t < numThreads && next < maxPermutations; t++) {
+					int batchEnd = Math.min(maxPermutations, next + batchSize);
+					round.add(executor.submit(new PermutationBatch(next, batchEnd, seed, keepDistances)));
+					next = batchEnd;
+				}
+				for(Future<Batch> f : round) {
+					result.add(f.get());
+				}
+			}
+		} finally {
+			executor.shutdown();
+		}
+		return result;
+	}
+
+	private class PermutationBatch implements Callable<Batch> {
+		private int from;
+		private int to;
+		private long seed;
+		private boolean keepDistances;
+
+		PermutationBatch(int from, int to, long seed, boolean keepDistances) {
+			this.from = from;
+			this.to   = to;
+			this.seed = seed;
+			this.keepDistances = keepDistances;
+		}
+
+		public Batch call() {
+			Batch batch = new Batch(to - from, keepDistances);
+			Map<String, int[]> permutedStarts = new HashMap<String, int[]>(set1Lengths.size());
+			for(String chr : set1Lengths.keySet()) {
+				permutedStarts.put(chr, new int[set1Lengths.get(chr).length]);
+			}
+			for(int p = from; p < to; p++) {
+				Random r = new Random(Seeds.mix(seed + p));
+				int overlappers = 0;
+				for(String chr : set1Lengths.keySet()) {
+					int size = chrSizes.get(chr);
+					int [] lengths = set1Lengths.get(chr);
+					int [] starts  = permutedStarts.get(chr);
+					for(int i = 0; i < lengths.length; i++) {
+						starts[i] = (int) (r.nextDouble() * (size - lengths[i]));
+					}
+					IntervalIndex index = set2Index.get(chr);
+					for(int i = 0; i < lengths.length; i++) {
+						int distance = index == null ? Integer.MAX_VALUE : index.distanceTo(starts[i], starts[i] + lengths[i]);
+						if(distance == 0) {
+							overlappers++;
+						}
+						if(keepDistances) {
+							batch.addDistance(distance);
+						}
+					}
+				}
+				batch.overlappers[p - from] = overlappers;
+			}
+			return batch;
+		}
+	}
+
+	private static class Batch {
+		int [] overlappers;
+		TreeMap<Integer, Long> distanceCounts;
+
+		Batch(int size, boolean keepDistances) {
+			overlappers = new int[size];
+			if(keepDistances) {
+				distanceCounts = new TreeMap<Integer, Long>();
+			}
+		}
+
+		void addDistance(int distance) {
+			Long count = distanceCounts.get(distance);
+			distanceCounts.put(distance, count == null ? 1 : count + 1);
+		}
+	}
+
+	public class Result {
+		private int [] permutedOverlappers;
+		private int permutations;
+		private int numMore;
+		private TreeMap<Integer, Long> permutedDistanceCounts;
+
+		Result(int maxPermutations, boolean keepDistances) {
+			permutedOverlappers = new int[maxPermutations];
+			if(keepDistances) {
+				permutedDistanceCounts = new TreeMap<Integer, Long>();
+			}
+		}
+
+		void add(Batch batch) {
+			for(int overlappers : batch.overlappers) {
+				permutedOverlappers[permutations++] = overlappers;
+				if(overlappers >= observedOverlappers) {
+					numMore++;
+				}
+			}
+			if(permutedDistanceCounts != null) {
+				for(Map.Entry<Integer, Long> e : batch.distanceCounts.entrySet()) {
+					Long count = permutedDistanceCounts.get(e.getKey());
+					permutedDistanceCounts.put(e.getKey(), count == null ? e.getValue() : count + e.getValue());
+				}
+			}
+		}
+
+		boolean isResolved(double alpha) {
+			return alpha > 0 && permutations > 0 && (getLowerBound() > alpha || getUpperBound() < alpha);
+		}
+
+		public int getPermutations() { return permutations; }
+
+		public int getNumberAtLeastObserved() { return numMore; }
+
+		public double getPValue() { return permutations == 0 ? 1 : numMore/(double) permutations; }
+
+		/**
+		 * @return lower bound of the 95% Wilson score interval of the p-value
+		 */
+		public double getLowerBound() { return Math.max(0, wilsonCenter() - wilsonHalfWidth()); }
+
+		/**
+		 * @return upper bound of the 95% Wilson score interval of the p-value
+		 */
+		public double getUpperBound() { return Math.min(1, wilsonCenter() + wilsonHalfWidth()); }
+
+		private double wilsonCenter() {
+			double z2n = Z_95 * Z_95 / permutations;
+			return (getPValue() + z2n/2) / (1 + z2n);
+		}
+
+		private double wilsonHalfWidth() {
+			double p = getPValue();
+			double z2n = Z_95 * Z_95 / permutations;
+			return Z_95 * Math.sqrt(p * (1 - p)/permutations + z2n/(4 * permutations)) / (1 + z2n);
+		}
+
+		/**
+		 * @return the number of overlappers of each permutation run, sorted.
+		 */
+		public int [] getSortedPermutedOverlappers() {
+			int [] sorted = Arrays.copyOf(permutedOverlappers, permutations);
+			Arrays.sort(sorted);
+			return sorted;
+		}
+
+		/**
+		 * @return sorted map of distance to number of times it was observed across all permutations, null if distances were not kept.
+		 */
+		public TreeMap<Integer, Long> getPermutedDistanceCounts() { return permutedDistanceCounts; }
+	}
+
+	/**
+	 * Read only index of an annotation set in a chromosome: the annotations are merged into disjoint intervals
+	 * kept in sorted primitive arrays, overlap and distance queries are binary searches.
+	 */
+	static class IntervalIndex {
+		private int [] starts;
+		private int [] ends;
+
+		IntervalIndex(List<? extends LightweightGenomicAnnotation> annotations) {
+			int [][] intervals = new int[annotations.size()][2];
+			int i = 0;
+			for(LightweightGenomicAnnotation a : annotations) {
+				intervals[i][0] = a.getStart();
+				intervals[i][1] = a.getEnd();
+				i++;
+			}
+			Arrays.sort(intervals, new java.util.Comparator<int []>() {
+				public int compare(int[] o1, int[] o2) {
+					return o1[0] < o2[0] ? -1 : (o1[0] == o2[0] ? 0 : 1);
+				}
+			});
+			starts = new int[intervals.length];
+			ends   = new int[intervals.length];
+			int n = 0;
+			for(int [] interval : intervals) {
+				if(n > 0 && interval[0] < ends[n - 1]) {
+					ends[n - 1] = Math.max(ends[n - 1], interval[1]);
+				} else {
+					starts[n] = interval[0];
+					ends[n]   = interval[1];
+					n++;
+				}
+			}
+			starts = Arrays.copyOf(starts, n);
+			ends   = Arrays.copyOf(ends, n);
+		}
+
+		/**
+		 * @return 0 if [start, end) overlaps an indexed interval, the distance to the closest one otherwise
+		 * 			(Integer.MAX_VALUE if the index is empty).
+		 */
+		int distanceTo(int start, int end) {
+			int lo = 0;
+			int hi = ends.length;
+			while(lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if(ends[mid] > start) {
+					hi = mid;
+				} else {
+					lo = mid + 1;
+				}
+			}
+			if(lo < starts.length && starts[lo] < end) {
+				return 0;
+			}
+			int distance = Integer.MAX_VALUE;
+			if(lo < starts.length) {
+				distance = starts[lo] - end;
+			}
+			if(lo > 0) {
+				distance = Math.min(distance, start - ends[lo - 1]);
+			}
+			return distance;
+		}
+	}
+}
@@ -32,12 +32,14 @@ import broad.core.error.ParseException;
 import broad.core.sequence.SequenceRegion;
 import broad.core.util.CLUtil;
 import broad.core.util.CLUtil.ArgumentMap;
+import broad.core.util.Metrics;
 import broad.pda.annotation.BEDFileParser;
 import broad.pda.datastructures.Alignments;
 import broad.pda.gene.RefSeqGene;
 import broad.pda.gene.RefSeqGeneWithIsoforms;
 
 public class MAFAlignment extends MultipleAlignment {
+	private static final Metrics.Timer LOAD_TIMER = Metrics.timer("maf.load");
 	private IntervalTree<MAFMultipleAlignmentBlock> alignmentBlockTree;
 	private List<String> sequenceIds;
 
@@ -360,6 +362,15 @@ public class MAFAlignment extends MultipleAlignment {
 	}
 	
 	public void load(RandomAccessFile handle, int referenceStart, int referenceEnd, List<String> sequencesToLoad) throws IOException, ParseException {
+		long start = LOAD_TIMER.start();
+		try {
+			loadBlocks(handle, referenceStart, referenceEnd, sequencesToLoad);
+		} finally {
+			LOAD_TIMER.stop(start);
+		}
+	}
+
+	private void loadBlocks(RandomAccessFile handle, int referenceStart, int referenceEnd, List<String> sequencesToLoad) throws IOException, ParseException {
 		long offset = getClosestOffset(referenceStart);
 		//System.err.println("Starting to read file from " + offset + " from refstart " + referenceStart + " to refend " + referenceEnd);
 		alignmentBlockTree = new IntervalTree<MAFMultipleAlignmentBlock>();
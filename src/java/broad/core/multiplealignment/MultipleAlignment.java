@@ -18,8 +18,10 @@ import broad.core.annotation.BasicGenomicAnnotation;
 import broad.core.annotation.GenomicAnnotation;
 import broad.core.sequence.Sequence;
 import broad.core.sequence.SequenceRegion;
+import broad.core.util.Metrics;
 
 public class MultipleAlignment  {
+	private static final Metrics.Timer ENCODE_TIMER = Metrics.timer("alignment.encodeAsMatrix");
 	private float score;
 	private LinkedHashMap<String, AlignedSequence> alignments;
 
@@ -65,12 +67,14 @@ public class MultipleAlignment  {
 	}
 	
 	public void encodeAsMatrix() {
+		long start = ENCODE_TIMER.start();
 		Iterator<AlignedSequence> seqIt = alignments.values().iterator();
 		while(seqIt.hasNext()) {
 			AlignedSequence as = seqIt.next();
 			as.encodeSequenceAsVector();
 			as.unloadSequence();
 		}		
+		ENCODE_TIMER.stop(start);
 	}
 	
 	public void reverse() {
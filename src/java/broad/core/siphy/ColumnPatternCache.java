@@ -0,0 +1,215 @@
+package broad.core.siphy;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import Jama.Matrix;
+import broad.core.util.Metrics;
+
+/**
+ * Memoizes values computed from a single alignment column, typically Felsenstein likelihoods, by column pattern.
+ * Identical columns (same base for the same set of present species) recur very often along a genome, the pattern
+ * of a column packs the state of each leaf (A, C, G, T, gap or uninformative) in 3 bits so the likelihood of every
+ * distinct pattern is computed only once.
+ * The leaf order is fixed by the first column seen unless given, columns with species outside of it or with
+ * leaves that are not one hot, all zero or all one vectors (e.g. probabilistic leaves) can not be cached.
+ * The map is safe for concurrent use and bounded, it is emptied when it reaches its maximum size.
+ * The cached values are shared, callers must not modify them. Lookups are also counted by the patternCache.<name> metrics,
+ * shared by the caches of the same name.
+ *
+ * @author mgarber
+ */
+public class ColumnPatternCache<V> {
+	public static final int DEFAULT_MAX_ENTRIES = 500000;
+
+	static final int BITS_PER_LEAF = 3;
+	static final int LEAVES_PER_WORD = 64 / BITS_PER_LEAF;
+	static final long GAP = 4;
+	static final long UNINFORMATIVE = 5;
+
+	private String name;
+	private int maxEntries;
+	private volatile String [] leaves;
+	private ConcurrentHashMap<ColumnPattern, V> values = new ConcurrentHashMap<ColumnPattern, V>();
+
+	private AtomicLong hits = new AtomicLong();
+	private AtomicLong misses = new AtomicLong();
+	private AtomicLong uncacheable = new AtomicLong();
+	private AtomicLong evictions = new AtomicLong();
+	private Metrics.Counter hitCounter;
+	private Metrics.Counter missCounter;
+	private Metrics.Counter uncacheableCounter;
+	private Metrics.Counter evictionCounter;
+
+	/**
+	 * @param name used in the statistics report.
+	 */
+	public ColumnPatternCache(String name, int maxEntries) {
+		this.name = name;
+		this.maxEntries = maxEntries;
+		String metric = "patternCache." + name.toLowerCase().replaceAll("[^a-z]+", ".").replaceAll("^\\.|\\.$", "");
+		hitCounter = Metrics.counter(metric + ".hits");
+		missCounter = Metrics.counter(metric + ".misses");
+		uncacheableCounter = Metrics.counter(metric + ".uncacheable");
+		evictionCounter = Metrics.counter(metric + ".evictions");
+	}
+
+	/**
+	 * @param leafOrder all the species that may be found in the columns, usually the model tree leaves.
+	 */
+	public ColumnPatternCache(String name, int maxEntries, String [] leafOrder) {
+		this(name, maxEntries);
+		leaves = leafOrder.clone();
+	}
+
+	/**
+	 * @return the pattern of the given site of the column or null if the column can not be cached.
+	 */
+	public ColumnPattern pattern(Map<String, Matrix> column, int site) {
+		String [] order = leaves;
+		if(order == null) {
+			order = initLeaves(column);
+		}
+		long [] words = new long[(order.length + LEAVES_PER_WORD - 1) / LEAVES_PER_WORD];
+		int present = 0;
+		for(int l = 0; l < order.length; l++) {
+			Matrix leaf = column.get(order[l]);
+			long code = GAP;
+			if(leaf != null) {
+				present++;
+				code = encode(leaf, site);
+				if(code < 0) {
+					uncacheable.incrementAndGet();
+					uncacheableCounter.increment();
+					return null;
+				}
+			}
+			words[l / LEAVES_PER_WORD] |= code << (BITS_PER_LEAF * (l % LEAVES_PER_WORD));
+		}
+		if(present != column.size()) {
+			uncacheable.incrementAndGet();
+			uncacheableCounter.increment();
+			return null;
+		}
+		return new ColumnPattern(words);
+	}
+
+	private synchronized String [] initLeaves(Map<String, Matrix> column) {
+		if(leaves == null) {
+			leaves = column.keySet().toArray(new String[column.size()]);
+		}
+		return leaves;
+	}
+
+	static long encode(Matrix leaf, int site) {
+		int ones = 0;
+		int base = 0;
+		for(int i = 0; i < leaf.getRowDimension(); i++) {
+			double val = leaf.get(i, site);
+			if(val == 1) {
+				ones++;
+				base = i;
+			} else if (val != 0) {
+				return -1;
+			}
+		}
+		if(ones == 0) {
+			return GAP;
+		}
+		if(ones == 1 && base < GAP) {
+			return base;
+		}
+		return ones == leaf.getRowDimension() ? UNINFORMATIVE : -1;
+	}
+
+	/**
+	 * @param pattern may be null, in which case null is returned.
+	 * @return the cached value or null if the pattern has not been seen.
+	 */
+	public V get(ColumnPattern pattern) {
+		if(pattern == null) {
+			return null;
+		}
+		V value = values.get(pattern);
+		if(value == null) {
+			misses.incrementAndGet();
+			missCounter.increment();
+		} else {
+			hits.incrementAndGet();
+			hitCounter.increment();
+		}
+		return value;
+	}
+
+	/**
+	 * @param pattern ignored if null.
+	 */
+	public void put(ColumnPattern pattern, V value) {
+		if(pattern == null) {
+			return;
+		}
+		if(values.size() >= maxEntries) {
+			values.clear();
+			evictions.incrementAndGet();
+			evictionCounter.increment();
+		}
+		values.put(pattern, value);
+	}
+
+	public void clear() {
+		values.clear();
+	}
+
+	public int size() { return values.size(); }
+
+	public long getHits() { return hits.get(); }
+
+	public long getMisses() { return misses.get(); }
+
+	public long getUncacheable() { return uncacheable.get(); }
+
+	public long getEvictions() { return evictions.get(); }
+
+	/**
+	 * @return fraction of all the columns looked up, cacheable or not, that were found in the cache.
+	 */
+	public double getHitRate() {
+		long lookups = hits.get() + misses.get() + uncacheable.get();
+		return lookups == 0 ? 0 : hits.get() / (double) lookups;
+	}
+
+	public String toString() {
+		return name + " column pattern cache: " + size() + " patterns, " + hits.get() + " hits, " + misses.get() + " misses, " +
+			uncacheable.get() + " uncacheable columns, " + evictions.get() + " evictions, hit rate " + getHitRate();
+	}
+
+	/**
+	 * Packed leaf states of an alignment column.
+	 */
+	public static final class ColumnPattern {
+		private long [] words;
+		private int hash;
+
+		ColumnPattern(long [] words) {
+			this.words = words;
+			this.hash = Arrays.hashCode(words);
+		}
+
+		public int hashCode() {
+			return hash;
+		}
+
+		public boolean equals(Object o) {
+			if(this == o) {
+				return true;
+			}
+			if(!(o instanceof ColumnPattern)) {
+				return false;
+			}
+			ColumnPattern other = (ColumnPattern) o;
+			return hash == other.hash && Arrays.equals(words, other.words);
+		}
+	}
+}
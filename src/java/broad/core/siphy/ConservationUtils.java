@@ -20,8 +20,10 @@ import broad.core.multiplealignment.MultipleAlignment;
 import broad.core.multiplealignment.MultipleAlignmentFactory;
 import broad.core.multiplealignment.MultipleAlignment.AlignedSequence;
 import broad.core.util.CLUtil.ArgumentMap;
+import broad.core.util.Metrics;
 
 public class ConservationUtils {
+	private static final Metrics.Timer PRUNE_TIMER = Metrics.timer("tree.prune");
 	
 	public static void setUninformativeNodes(Map<String, Matrix> column, List<String> sequences) {
 		setUninformativeNodes(column, sequences, 0);
@@ -43,6 +45,7 @@ public class ConservationUtils {
 	}
 	
 	public static Phylogeny pruneTree(List<String> toPrune, Phylogeny tree) {
+		long start = PRUNE_TIMER.start();
 		Phylogeny prunned = tree.copy();
 		
 		//System.out.println("Original tree external nodes: " + tree.getAllExternalSeqNames() + "\nprunning...\n" + toPrune);
@@ -58,6 +61,7 @@ public class ConservationUtils {
 			}
 		}
 		//System.out.println("prunned external sequences " + prunned.toNewHampshire(false));
+		PRUNE_TIMER.stop(start);
 		return prunned;
 	}
 	
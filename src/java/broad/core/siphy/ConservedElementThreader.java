@@ -0,0 +1,294 @@
+package broad.core.siphy;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import broad.core.annotation.BED;
+
+/**
+ * Single pass threading of site scores into conserved elements (TreeScaler task 9).
+ * Sites whose score is in (minScore, maxScore) are joined into an element while they are no more than maxgap
+ * away from its end, an element is written as soon as a joined site falls beyond that gap, so only the element
+ * being built is kept in memory. Positions must be sorted, as produced by the estimation tasks.
+ * With a single character separator the position and score columns are parsed straight from the input bytes,
+ * any other separator is used as a regular expression on each line.
+ *
+ * @author mgarber
+ */
+public class ConservedElementThreader {
+	static final int BUFFER_SIZE = 1 << 16;
+	private static final double [] POW10 = new double[23];
+	static {
+		POW10[0] = 1;
+		for(int i = 1; i < POW10.length; i++) {
+			POW10[i] = POW10[i - 1] * 10;
+		}
+	}
+
+	private int positionCol;
+	private int scoreCol;
+	private String separator;
+	private double minScore;
+	private double maxScore;
+	private int maxgap;
+	private int window;
+
+	/**
+	 * @param positionCol 1 based column of the (window start) position
+	 * @param scoreCol 1 based column of the site score
+	 */
+	public ConservedElementThreader(int positionCol, int scoreCol, String separator, double minScore, double maxScore, int maxgap, int window) {
+		this.positionCol = positionCol;
+		this.scoreCol = scoreCol;
+		this.separator = separator;
+		this.minScore = minScore;
+		this.maxScore = maxScore;
+		this.maxgap = maxgap;
+		this.window = window;
+	}
+
+	/**
+	 * Threads the scores read from in and writes the elements, named e0, e1 ..., to out. Neither stream is closed.
+	 * @return number of elements written
+	 */
+	public int thread(InputStream in, String chr, BufferedWriter out) throws IOException {
+		ElementBuilder builder = new ElementBuilder(chr, out);
+		if(separator.length() == 1) {
+			parseBytes(in, (byte) separator.charAt(0), builder);
+		} else {
+			parseLines(in, builder);
+		}
+		builder.flush();
+		return builder.written;
+	}
+
+	/**
+	 * Threads each input on its own, numThreads at a time, the elements of an input are written to outDir/chr.elements.bed.
+	 * @param chrs chromosome of each input
+	 */
+	public void thread(final List<File> inputs, final List<String> chrs, final File outDir, int numThreads) throws InterruptedException, ExecutionException {
+		ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+		try {
+			List<Future<Integer>> tasks = new ArrayList<Future<Integer>>(inputs.size());
+			for(int i = 0; i < inputs.size(); i++) {
+				final File input = inputs.get(i);
+				final String chr = chrs.get(i);
+				tasks.add(executor.submit(new Callable<Integer>() {
+					public Integer call() throws IOException {
+						InputStream in = new FileInputStream(input);
+						BufferedWriter bw = new BufferedWriter(new FileWriter(new File(outDir, chr + ".elements.bed")));
+						try {
+							return thread(in, chr, bw);
+						} finally {
+							in.close();
+							bw.close();
+						}
+					}
+				}));
+			}
+			for(int i = 0; i < tasks.size(); i++) {
+				System.err.println(inputs.get(i) + ": " + tasks.get(i).get() + " elements");
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	private class ElementBuilder {
+		private String chr;
+		private BufferedWriter out;
+		private BED element;
+		private int written;
+
+		ElementBuilder(String chr, BufferedWriter out) {
+			this.chr = chr;
+			this.out = out;
+		}
+
+		void site(int pos, double score) throws IOException {
+			if(score < maxScore && score > minScore ) {
+				if(element == null || (pos - element.getEnd()) > maxgap) {
+					flush();
+					element = new BED("e" + written);
+					element.setStart(pos);
+					element.setEnd(pos + window);
+					element.setChromosome(chr);
+				} else {
+					element.setEnd(pos + window);
+				}
+			}
+		}
+
+		void flush() throws IOException {
+			if(element != null) {
+				out.write(element.toString());
+				out.newLine();
+				written++;
+				element = null;
+			}
+		}
+	}
+
+	private void parseLines(InputStream in, ElementBuilder builder) throws IOException {
+		BufferedReader br = new BufferedReader(new InputStreamReader(in));
+		String line = null;
+		while ( (line = br.readLine()) != null) {
+			if(line.trim().length() == 0 || line.startsWith("#")) {
+				continue;
+			}
+			String [] lineInfo = line.split(separator);
+			builder.site(Integer.parseInt(lineInfo[positionCol - 1]), Double.parseDouble(lineInfo[scoreCol - 1]));
+		}
+	}
+
+	/**
+	 * Scans the input a buffer at a time, only the bytes of the position and score fields of each line are decoded.
+	 */
+	private void parseBytes(InputStream in, byte separator, ElementBuilder builder) throws IOException {
+		byte [] buffer = new byte[BUFFER_SIZE];
+		int length = 0;
+		int read;
+		while((read = in.read(buffer, length, buffer.length - length)) > 0) {
+			int scanFrom = length;
+			length += read;
+			int lineStart = 0;
+			for(int i = scanFrom; i < length; i++) {
+				if(buffer[i] == '\n') {
+					parseLine(buffer, lineStart, i, separator, builder);
+					lineStart = i + 1;
+				}
+			}
+			length -= lineStart;
+			System.arraycopy(buffer, lineStart, buffer, 0, length);
+			if(length == buffer.length) {
+				byte [] larger = new byte[buffer.length * 2];
+				System.arraycopy(buffer, 0, larger, 0, length);
+				buffer = larger;
+			}
+		}
+		if(length > 0) {
+			parseLine(buffer, 0, length, separator, builder);
+		}
+	}
+
+	private void parseLine(byte [] buffer, int start, int end, byte separator, ElementBuilder builder) throws IOException {
+		if(end > start && buffer[end - 1] == '\r') {
+			end--;
+		}
+		if(end == start || buffer[start] == '#' || isBlank(buffer, start, end)) {
+			return;
+		}
+		int positionStart = -1, positionEnd = -1, scoreStart = -1, scoreEnd = -1;
+		int column = 1;
+		int fieldStart = start;
+		for(int i = start; i <= end; i++) {
+			if(i == end || buffer[i] == separator) {
+				if(column == positionCol) {
+					positionStart = fieldStart;
+					positionEnd = i;
+				}
+				if(column == scoreCol) {
+					scoreStart = fieldStart;
+					scoreEnd = i;
+				}
+				column++;
+				fieldStart = i + 1;
+				if(positionStart >= 0 && scoreStart >= 0) {
+					break;
+				}
+			}
+		}
+		if(positionStart < 0 || scoreStart < 0) {
+			throw new IllegalArgumentException("Line with fewer than " + Math.max(positionCol, scoreCol) + " columns: " + new String(buffer, start, end - start));
+		}
+		builder.site(parseInt(buffer, positionStart, positionEnd), parseDouble(buffer, scoreStart, scoreEnd));
+	}
+
+	private static boolean isBlank(byte [] buffer, int start, int end) {
+		for(int i = start; i < end; i++) {
+			if(buffer[i] > ' ') {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	static int parseInt(byte [] buffer, int start, int end) {
+		int i = start;
+		boolean negative = end > start && buffer[i] == '-';
+		if(negative || (end > start && buffer[i] == '+')) {
+			i++;
+		}
+		if(i == end) {
+			throw new NumberFormatException("Empty integer field");
+		}
+		long limit = negative ? -(long) Integer.MIN_VALUE : Integer.MAX_VALUE;
+		long value = 0;
+		for(; i < end; i++) {
+			int digit = buffer[i] - '0';
+			if(digit < 0 || digit > 9) {
+				return Integer.parseInt(new String(buffer, start, end - start).trim());
+			}
+			value = value * 10 + digit;
+			if(value > limit) {
+				// Integer.parseInt reports the overflow.
+				return Integer.parseInt(new String(buffer, start, end - start).trim());
+			}
+		}
+		return (int) (negative ? -value : value);
+	}
+
+	/**
+	 * Plain decimals with at most 15 significant digits are exact in a double and so is their division by a power of ten
+	 * up to 10^22, the result is the correctly rounded value Double.parseDouble would return. Anything else
+	 * (exponents, NaN, Infinity, longer mantissas) goes through Double.parseDouble.
+	 */
+	static double parseDouble(byte [] buffer, int start, int end) {
+		int i = start;
+		boolean negative = end > start && buffer[i] == '-';
+		if(negative || (end > start && buffer[i] == '+')) {
+			i++;
+		}
+		long mantissa = 0;
+		int digits = 0;
+		int fractionDigits = -1;
+		boolean sawDigit = false;
+		for(; i < end; i++) {
+			byte b = buffer[i];
+			if(b == '.' && fractionDigits < 0) {
+				fractionDigits = 0;
+				continue;
+			}
+			int digit = b - '0';
+			if(digit < 0 || digit > 9 || digits == 15) {
+				return Double.parseDouble(new String(buffer, start, end - start));
+			}
+			mantissa = mantissa * 10 + digit;
+			sawDigit = true;
+			if(mantissa > 0) {
+				digits++;
+			}
+			if(fractionDigits >= 0) {
+				fractionDigits++;
+			}
+		}
+		if(!sawDigit || fractionDigits >= POW10.length) {
+			return Double.parseDouble(new String(buffer, start, end - start));
+		}
+		double value = fractionDigits > 0 ? mantissa / POW10[fractionDigits] : mantissa;
+		return negative ? -value : value;
+	}
+}
@@ -35,6 +35,8 @@ public class ConservedPWMScanner {
 	private MultipleAlignment currentAlignmentChunk;
 	private double [] bgDistribution;
 	private EvolutionaryModel model;
+	private ColumnPatternCache<Double> pwmNeutralCache;
+	private EvolutionaryModel pwmNeutralCacheModel;
 	private int alignmentChunkSize =  TreeScaler.MAF_CHUNK_SIZE;
 	private List<String> ignoreList = new ArrayList<String>();
 	static Logger logger = Logger.getLogger(ConservedPWMScanner.class.getName());
@@ -84,8 +86,9 @@ public class ConservedPWMScanner {
 		permPWMs.add(bg);
 		reversedPermPWMs.add(bg);
 
-		PositionWeightMatrixModel pwmm = new PositionWeightMatrixModel(pwm, model);
-		PositionWeightMatrixModel rpwmm = new PositionWeightMatrixModel(rpwm, model);
+		ColumnPatternCache<Double> neutralCache = getPWMNeutralCache();
+		PositionWeightMatrixModel pwmm = new PositionWeightMatrixModel(pwm, model, neutralCache);
+		PositionWeightMatrixModel rpwmm = new PositionWeightMatrixModel(rpwm, model, neutralCache);
 		AlignedSequence reference = currentAlignmentChunk.getReference();
 		if(reference == null || reference.getLength() == 0) {
 			return scoredKmers;
@@ -97,8 +100,8 @@ public class ConservedPWMScanner {
 		for(int i = 0; i < numPermutations; i++) {
 			permPWMs.add(pwm.permuteColumns(false));
 			reversedPermPWMs.add(permPWMs.get(i+1).reverseComplement());
-			permPWMMs.add( new PositionWeightMatrixModel(permPWMs.get(i+1), model));
-			reversedPermPWMMs.add( new PositionWeightMatrixModel(reversedPermPWMs.get(i+1), model));
+			permPWMMs.add( new PositionWeightMatrixModel(permPWMs.get(i+1), model, neutralCache));
+			reversedPermPWMMs.add( new PositionWeightMatrixModel(reversedPermPWMs.get(i+1), model, neutralCache));
 		}
 		
 		
@@ -158,6 +161,17 @@ public class ConservedPWMScanner {
 		
 	}
 
+	/**
+	 * @return neutral column likelihood cache shared by all the PWM models built on the current model.
+	 */
+	private ColumnPatternCache<Double> getPWMNeutralCache() {
+		if(pwmNeutralCache == null || pwmNeutralCacheModel != model) {
+			pwmNeutralCache = PositionWeightMatrixModel.createNeutralCache(model);
+			pwmNeutralCacheModel = model;
+		}
+		return pwmNeutralCache;
+	}
+
 	public int getAlignmentChunkSize() {
 		return alignmentChunkSize;
 	}
@@ -0,0 +1,117 @@
+package broad.core.siphy;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.math.MathException;
+
+import broad.core.math.EmpiricalDistribution;
+
+/**
+ * Lookup table of the cumulative distribution function of an EmpiricalDistribution.
+ * A binned empirical CDF is a step function, its steps are located by bisection (a CDF is monotone so an interval whose
+ * ends have the same probability is flat) down to adjacent doubles, so lookups are exact and cost a binary search over
+ * a primitive array. Locating a step takes about as many evaluations as there are bits between the bracket and the
+ * step, so the search is given a budget of maxEvaluations CDF evaluations: a continuous (e.g. interpolated) CDF
+ * changes value over every interval and would otherwise be bisected down to adjacent doubles everywhere.
+ * If the distribution has more than maxSteps distinct values, can not be resolved within the evaluation budget or its
+ * support can not be bracketed the table is not built and lookups go to the distribution.
+ *
+ * @author mgarber
+ */
+public class CumulativeProbabilityTable {
+	public static final int DEFAULT_MAX_STEPS = 1 << 16;
+	public static final int DEFAULT_MAX_EVALUATIONS = 1 << 22;
+	static final double MAX_BRACKET = 1e300;
+
+	private EmpiricalDistribution distribution;
+	private double [] stepStarts;
+	private double [] probabilities;
+	private double belowFirstStep;
+	private int evaluationsLeft;
+
+	public CumulativeProbabilityTable(EmpiricalDistribution distribution) throws MathException {
+		this(distribution, DEFAULT_MAX_STEPS, DEFAULT_MAX_EVALUATIONS);
+	}
+
+	/**
+	 * @param maxSteps the table is not built if the CDF takes more distinct values.
+	 * @param maxEvaluations the table is not built if locating the steps takes more CDF evaluations.
+	 */
+	public CumulativeProbabilityTable(EmpiricalDistribution distribution, int maxSteps, int maxEvaluations) throws MathException {
+		this.distribution = distribution;
+		evaluationsLeft = maxEvaluations;
+		double lo = -1;
+		while(lo > -MAX_BRACKET && distribution.getCummulativeProbability(lo) > 0) {
+			lo *= 2;
+		}
+		double hi = 1;
+		while(hi < MAX_BRACKET && distribution.getCummulativeProbability(hi) < 1) {
+			hi *= 2;
+		}
+		if(distribution.getCummulativeProbability(lo) > 0 || distribution.getCummulativeProbability(hi) < 1) {
+			System.err.println("Could not bracket the distribution support, cumulative probabilities will not be tabulated");
+			return;
+		}
+		belowFirstStep = distribution.getCummulativeProbability(lo);
+		List<double []> steps = new ArrayList<double[]>();
+		if(!findSteps(lo, belowFirstStep, hi, distribution.getCummulativeProbability(hi), steps, maxSteps)) {
+			System.err.println("Distribution has more than " + maxSteps + " distinct cumulative probabilities or they could not be located in " + maxEvaluations + " evaluations, they will not be tabulated");
+			return;
+		}
+		stepStarts = new double[steps.size()];
+		probabilities = new double[steps.size()];
+		for(int i = 0; i < steps.size(); i++) {
+			stepStarts[i] = steps.get(i)[0];
+			probabilities[i] = steps.get(i)[1];
+		}
+	}
+
+	/**
+	 * Adds, in increasing order, the points in (lo, hi] where the CDF changes value along with the value from there on.
+	 * @return false if more than maxSteps steps were found or the evaluation budget ran out.
+	 */
+	private boolean findSteps(double lo, double pLo, double hi, double pHi, List<double []> steps, int maxSteps) throws MathException {
+		if(pLo == pHi) {
+			return true;
+		}
+		double mid = lo + (hi - lo) / 2;
+		if(mid <= lo || mid >= hi) {
+			steps.add(new double [] {hi, pHi});
+			return steps.size() <= maxSteps;
+		}
+		if(--evaluationsLeft < 0) {
+			return false;
+		}
+		double pMid = distribution.getCummulativeProbability(mid);
+		return findSteps(lo, pLo, mid, pMid, steps, maxSteps) && findSteps(mid, pMid, hi, pHi, steps, maxSteps);
+	}
+
+	public boolean isTabulated() { return stepStarts != null; }
+
+	public int getNumberOfSteps() { return stepStarts == null ? 0 : stepStarts.length; }
+
+	/**
+	 * Same value as the distribution's getCummulativeProbability.
+	 */
+	public double getCummulativeProbability(double value) throws MathException {
+		if(stepStarts == null || Double.isNaN(value)) {
+			synchronized (distribution) {
+				return distribution.getCummulativeProbability(value);
+			}
+		}
+		int low = 0;
+		int high = stepStarts.length - 1;
+		int last = -1; // last step starting at or before value
+		while(low <= high) {
+			int mid = (low + high) >>> 1;
+			if(stepStarts[mid] <= value) {
+				last = mid;
+				low = mid + 1;
+			} else {
+				high = mid - 1;
+			}
+		}
+		return last < 0 ? belowFirstStep : probabilities[last];
+	}
+}
@@ -0,0 +1,95 @@
+package broad.core.siphy;
+
+import broad.core.math.EmpiricalDistribution;
+
+/**
+ * Self check of CumulativeProbabilityTable on a continuous and on a step CDF, run with
+ * java broad.core.siphy.CumulativeProbabilityTableCheck, it prints OK or exits with an error.
+ * The continuous CDF must not be tabulated and must stay within the evaluation budget, the step CDF must be
+ * tabulated with lookups equal to the distribution's.
+ *
+ * @author mgarber
+ */
+public class CumulativeProbabilityTableCheck {
+	static final int EVALUATION_BUDGET = 10000;
+
+	/** Counts the evaluations of its CDF. */
+	static abstract class CountingDistribution extends EmpiricalDistribution {
+		int evaluations;
+
+		CountingDistribution() {
+			super(100, -50, 50);
+		}
+
+		public double getCummulativeProbability(double value) {
+			evaluations++;
+			return cdf(value);
+		}
+
+		abstract double cdf(double value);
+	}
+
+	/** Logistic CDF truncated to [-50, 50], it takes a different value at every double of its support. */
+	static class ContinuousDistribution extends CountingDistribution {
+		double cdf(double value) {
+			if(value <= -50) {
+				return 0;
+			}
+			if(value >= 50) {
+				return 1;
+			}
+			return 1 / (1 + Math.exp(-value));
+		}
+	}
+
+	/** Step CDF of 101 unit bins on [-50, 50]. */
+	static class BinnedDistribution extends CountingDistribution {
+		double cdf(double value) {
+			if(value < -50) {
+				return 0;
+			}
+			if(value >= 50) {
+				return 1;
+			}
+			return (Math.floor(value) + 51) / 101;
+		}
+	}
+
+	public static void main(String [] args) throws Exception {
+		checkContinuousDistribution();
+		checkStepDistribution();
+		System.out.println("OK");
+	}
+
+	static void checkContinuousDistribution() throws Exception {
+		ContinuousDistribution distribution = new ContinuousDistribution();
+		CumulativeProbabilityTable table = new CumulativeProbabilityTable(distribution, CumulativeProbabilityTable.DEFAULT_MAX_STEPS, EVALUATION_BUDGET);
+		check(!table.isTabulated(), "continuous CDF was tabulated");
+		// The budget plus the bracketing of the support.
+		check(distribution.evaluations < EVALUATION_BUDGET + 100, "continuous CDF took " + distribution.evaluations + " evaluations");
+		checkLookups(distribution, table);
+	}
+
+	static void checkStepDistribution() throws Exception {
+		BinnedDistribution distribution = new BinnedDistribution();
+		CumulativeProbabilityTable table = new CumulativeProbabilityTable(distribution);
+		check(table.isTabulated(), "step CDF was not tabulated");
+		check(table.getNumberOfSteps() == 101, "step CDF has " + table.getNumberOfSteps() + " steps instead of 101");
+		checkLookups(distribution, table);
+		double belowSupport = Math.nextAfter(-50, Double.NEGATIVE_INFINITY);
+		check(table.getCummulativeProbability(-50) == distribution.cdf(-50), "wrong probability at the first step");
+		check(table.getCummulativeProbability(belowSupport) == distribution.cdf(belowSupport), "wrong probability below the first step");
+	}
+
+	private static void checkLookups(CountingDistribution distribution, CumulativeProbabilityTable table) throws Exception {
+		for(double value = -60; value <= 60; value += 0.37) {
+			check(table.getCummulativeProbability(value) == distribution.cdf(value), "wrong probability at " + value);
+		}
+	}
+
+	private static void check(boolean condition, String message) {
+		if(!condition) {
+			throw new IllegalStateException(message);
+		}
+	}
+}
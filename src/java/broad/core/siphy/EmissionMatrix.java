@@ -0,0 +1,109 @@
+package broad.core.siphy;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.forester.phylogeny.Phylogeny;
+
+import Jama.Matrix;
+import broad.core.multiplealignment.MultipleAlignment;
+import broad.core.siphy.PiHMM.SiteTreeEmission;
+
+/**
+ * Emission log probabilities of every PiHMM state for every column of an alignment chunk.
+ * Columns are scored once, in blocks that can run concurrently (each block works on its own copy of the
+ * state models), and the forward, backward and Viterbi recursions read the emissions from here instead of
+ * evaluating the state models again. The pruned tree for a column gap pattern is built once and shared by all states
+ * and columns identical to one already scored take their emissions from the PiHMM column pattern cache.
+ *
+ * @author mgarber
+ */
+public class EmissionMatrix {
+	static final int COLUMNS_PER_TASK = 5000;
+
+	private double [][] logEmissions;
+	private int referenceStart;
+
+	EmissionMatrix(int numberOfStates, int numberOfColumns, int referenceStart) {
+		logEmissions = new double[numberOfStates][numberOfColumns];
+		this.referenceStart = referenceStart;
+	}
+
+	/**
+	 * @param alignment alignment chunk, must have been encoded as matrix.
+	 * @param executor if null all columns are scored in the calling thread.
+	 */
+	public static EmissionMatrix compute(PiHMM hmm, MultipleAlignment alignment, ExecutorService executor) throws InterruptedException, ExecutionException {
+		int n = alignment.length();
+		EmissionMatrix emissions = new EmissionMatrix(hmm.getTransitions().length, n, alignment.getReferenceStart());
+		if(executor == null) {
+			emissions.fill(hmm, hmm.copyStateEmissions(), alignment, 0, n);
+			return emissions;
+		}
+		List<Future<Object>> blocks = new ArrayList<Future<Object>>();
+		for(int from = 0; from < n; from += COLUMNS_PER_TASK) {
+			blocks.add(executor.submit(emissions.new BlockTask(hmm, alignment, from, Math.min(n, from + COLUMNS_PER_TASK))));
+		}
+		for(Future<Object> block : blocks) {
+			block.get();
+		}
+		return emissions;
+	}
+
+	private void fill(PiHMM hmm, List<SiteTreeEmission> states, MultipleAlignment alignment, int from, int to) {
+		ColumnPatternCache<double []> cache = hmm.getEmissionCache();
+		for(int col = from; col < to; col++) {
+			Map<String, Matrix> column = alignment.getColumnsAsVector(col + referenceStart, 1);
+			ColumnPatternCache.ColumnPattern pattern = cache.pattern(column, 0);
+			double [] columnEmissions = cache.get(pattern);
+			if(columnEmissions == null) {
+				Phylogeny siteTree = hmm.getSiteTree(column);
+				columnEmissions = new double[states.size()];
+				for(int s = 0; s < states.size(); s++) {
+					columnEmissions[s] = states.get(s).getEmissionLogProbability(column, siteTree);
+				}
+				cache.put(pattern, columnEmissions);
+			}
+			for(int s = 0; s < columnEmissions.length; s++) {
+				logEmissions[s][col] = columnEmissions[s];
+			}
+		}
+	}
+
+	private class BlockTask implements Callable<Object> {
+		private PiHMM hmm;
+		private MultipleAlignment alignment;
+		private int from;
+		private int to;
+
+		BlockTask(PiHMM hmm, MultipleAlignment alignment, int from, int to) {
+			this.hmm = hmm;
+			this.alignment = alignment;
+			this.from = from;
+			this.to = to;
+		}
+
+		public Object call() {
+			fill(hmm, hmm.copyStateEmissions(), alignment, from, to);
+			return null;
+		}
+	}
+
+	public int getNumberOfStates() { return logEmissions.length; }
+
+	public int getNumberOfColumns() { return logEmissions.length == 0 ? 0 : logEmissions[0].length; }
+
+	/**
+	 * @return reference coordinate of the first column
+	 */
+	public int getReferenceStart() { return referenceStart; }
+
+	public double getLogEmission(int state, int column) { return logEmissions[state][column]; }
+
+	double [][] getLogEmissions() { return logEmissions; }
+}
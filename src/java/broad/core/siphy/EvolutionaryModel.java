@@ -5,6 +5,7 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
@@ -20,18 +21,38 @@ import org.apache.commons.math.stat.Frequency;
 import org.forester.phylogeny.Phylogeny;
 import org.forester.phylogeny.PhylogenyNode;
 
-import Jama.EigenvalueDecomposition;
 import Jama.Matrix;
 import broad.core.annotation.LightweightGenomicAnnotation;
 import broad.core.math.MathUtil;
 import umms.core.sequence.Sequence;
+import broad.core.util.Metrics;
 
 public class EvolutionaryModel {
+	private static final Metrics.Counter LIKELIHOOD_EVALUATIONS = Metrics.counter("likelihood.evaluations");
+	private static final Metrics.Timer OMEGA_FIT_TIMER = Metrics.timer("fit.omega");
+	private static final Metrics.Histogram OMEGA_FIT_ITERATIONS = Metrics.histogram("fit.omega.emIterations");
+	private static final Metrics.Timer PI_FIT_TIMER = Metrics.timer("fit.pi");
+	private static final Metrics.Histogram PI_FIT_ITERATIONS = Metrics.histogram("fit.pi.emIterations");
+	private static final Metrics.Counter TRANSITION_CACHE_HITS = Metrics.counter("transitions.cache.hits");
+	private static final Metrics.Counter TRANSITION_CACHE_MISSES = Metrics.counter("transitions.cache.misses");
+	private static final Metrics.Counter DECOMPOSITION_CACHE_HITS = Metrics.counter("decompositions.cache.hits");
+	private static final Metrics.Counter DECOMPOSITION_CACHE_MISSES = Metrics.counter("decompositions.cache.misses");
 	private EvolutionaryModelParameters parameters;
 	private HashMap<Double, Matrix> transitionMatrixCache = new HashMap<Double, Matrix>();
+	static final int MAX_CACHED_DECOMPOSITIONS = 16;
+	// Eigen decompositions of recently used rate matrices, least recently used first.
+	private LinkedHashMap<RateMatrixKey, NucleotideSubstitutionKernel> decompositionCache = new LinkedHashMap<RateMatrixKey, NucleotideSubstitutionKernel>(MAX_CACHED_DECOMPOSITIONS, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		protected boolean removeEldestEntry(Map.Entry<RateMatrixKey, NucleotideSubstitutionKernel> eldest) {
+			return size() > MAX_CACHED_DECOMPOSITIONS;
+		}
+	};
 	static final int MAX_ITERATIONS = 10;
 	static final double SMALL_DIFF  = 0.0001;
 	static final double TINY_DIFF   = 0.00001;
+	// Partial likelihood vectors whose largest entry falls below this are rescaled to avoid underflow in large trees.
+	static final double SCALING_THRESHOLD = 1e-100;
 	private static DecimalFormat numberFormat = new  DecimalFormat("##0.####");
 	int alphabetSize;
 
@@ -41,6 +62,7 @@ public class EvolutionaryModel {
 	Matrix D;  //Eigenvalue diagonal matrix 
 	Matrix V;  //Eigenvector matrix
 	Matrix iV; //inverse eigenvector matrix
+	private NucleotideSubstitutionKernel substitutionKernel; // same decomposition, computes transitions on flat arrays
 	Matrix pi; // Fitted stationary distribution
 	private double omega; //Fitted proportionality constraint.
 	
@@ -105,19 +127,30 @@ public class EvolutionaryModel {
 	}
 	
 	public Map<String, Short> sample() {
+		return sample(new Random());
+	}
+
+	/**
+	 * Samples a column drawing every node state from the given generator, so columns are reproducible from its seed.
+	 */
+	public Map<String, Short> sample(Random r) {
 		double [] bgDistribution = parameters.getBackgroundNucleotideFreqs();
-		short rootState = sampleFromAlphabet(bgDistribution);
+		short rootState = sampleFromAlphabet(bgDistribution, r);
 		
 		Phylogeny tree = parameters.getTree();
 		Map<String, Short> column = new LinkedHashMap<String, Short>(parameters.getTree().getNumberOfExternalNodes());
-		column.putAll(sample(tree.getRoot().getChildNode1(), rootState));
-		column.putAll(sample(tree.getRoot().getChildNode2(), rootState));
+		column.putAll(sample(tree.getRoot().getChildNode1(), rootState, r));
+		column.putAll(sample(tree.getRoot().getChildNode2(), rootState, r));
 		return column;
 	}
 
 
 	
 	public Map<String,Short> sample(PhylogenyNode node, short parentState) {
+		return sample(node, parentState, new Random());
+	}
+
+	public Map<String,Short> sample(PhylogenyNode node, short parentState, Random r) {
 		Map<String, Short> column = new HashMap<String, Short>(parameters.getTree().getNumberOfExternalNodes());
 		
 		Matrix edgeTransitionMatrix = computeTransitions(node.getDistanceToParent());
@@ -126,12 +159,12 @@ public class EvolutionaryModel {
 			transitionProbs[i] = edgeTransitionMatrix.get(parentState, i);
 		}
 		
-		short nodeState = sampleFromAlphabet(transitionProbs);
+		short nodeState = sampleFromAlphabet(transitionProbs, r);
 		if(node.isExternal()) {
 			column.put(node.getSeqName(), nodeState);
 		} else {
-			column.putAll(sample(node.getChildNode1(), nodeState));
-			column.putAll(sample(node.getChildNode2(), nodeState));
+			column.putAll(sample(node.getChildNode1(), nodeState, r));
+			column.putAll(sample(node.getChildNode2(), nodeState, r));
 		}
 		
 		return column;
@@ -144,6 +177,7 @@ public class EvolutionaryModel {
 	 */
 	
 	public PiFit fitPI(Map<String, Matrix> alignmentColumn, Phylogeny tree)  {
+		long start = PI_FIT_TIMER.start();
 		PiFit fit = null;
 		PhylogenyNode root = tree.getRoot();
 		
@@ -153,7 +187,7 @@ public class EvolutionaryModel {
 		resetPI();
 		R = extractEquilibriumFromRateMatrix();
 		prepareRateMatrix();
-		double initialLogLikelihood = Math.log(pruneAndPeel(alignmentColumn, root, 0));
+		double initialLogLikelihood = pruneAndPeelLogLikelihood(alignmentColumn, root, 0);
 		
 		//System.out.println("\tNeutral likelihood: " + initialLogLikelihood);
 		
@@ -192,6 +226,8 @@ public class EvolutionaryModel {
 		}
 		nodeFittingParamMap = new HashMap<Integer, NodeLikelihoodParameters>(root.getNumberOfChildNodes());
 		clearCaches();
+		PI_FIT_ITERATIONS.record(iteration);
+		PI_FIT_TIMER.stop(start);
 		return fit;
 	}
 
@@ -203,6 +239,7 @@ public class EvolutionaryModel {
 	 * @throws MathException 
 	 */
 	public OmegaFit fitOmega(Map<String, Matrix> leafValues, Phylogeny tree, int window) throws MathException {
+		long start = OMEGA_FIT_TIMER.start();
 		PhylogenyNode root = tree.getRoot();
 		double originalOmega = omega;
 		ChiSquaredDistribution chiSq = new ChiSquaredDistributionImpl(1);
@@ -248,6 +285,8 @@ public class EvolutionaryModel {
 		nodeFittingParamMap = new HashMap<Integer, NodeLikelihoodParameters>(root.getNumberOfChildNodes());
 		clearCaches();
 		//System.out.println("Final omega for site: " + data[0] + " log odds " + (fit.fittedLogLikelihood - fit.initialLogLikelihood));
+		OMEGA_FIT_ITERATIONS.record(iteration);
+		OMEGA_FIT_TIMER.stop(start);
 		return fit;
 	}
 	
@@ -263,14 +302,13 @@ public class EvolutionaryModel {
 		
 		fit.fittedPi = newPI;
 		
-		double startLikelihood = pruneAndPeel(column, root, 0);
-		double initialLogLikelihood = Math.log(startLikelihood);
+		double initialLogLikelihood = pruneAndPeelLogLikelihood(column, root, 0);
 		//NodeLikelihoodParameters rootPrms = nodeFittingParamMap.get(root.getID());
 		//Matrix rootProbs = rootPrms.computeProbabilityOfLetterAtNode();
 		//System.out.println("\t\tStart Likelihood " + startLikelihood + ", precise logLikelihood " + initialLogLikelihood+ " root probs (" + rootProbs.get(0, 0) + "," + 
 		//		rootProbs.get(1, 0) + "," + rootProbs.get(2, 0) + "," + rootProbs.get(3, 0) + ")");
 		//fit.fittedLikelihood = initialLikelihood;
-		Matrix N = computeSufficientStatistics(root, startLikelihood);
+		Matrix N = computeSufficientStatistics(root);
 		
 		// Interim computations, the following quantities are repeatedly used in computing the coefficients for the Lagrange multipliers.
 		// 1 Compute T (total time matrix) from N (# of transition matrix).
@@ -407,10 +445,9 @@ public class EvolutionaryModel {
 			prepareRateMatrix();
 			//rootLikelihood = computeLogLikelihood(N, T, posteriorRoot);
 			
-			double rootLikelihood = pruneAndPeel(column, root, 0);
-			if(rootLikelihood > 0) {
-				rootLogLikelihood = Math.log(rootLikelihood);
-			} else {
+			rootLogLikelihood = pruneAndPeelLogLikelihood(column, root, 0);
+			boolean positiveLikelihood = rootLogLikelihood > Double.NEGATIVE_INFINITY;
+			if(!positiveLikelihood) {
 				//System.out.println("\t\troot likelihood was 0");
 				rootLogLikelihood = -100000;
 			}
@@ -419,7 +456,7 @@ public class EvolutionaryModel {
 
 			//System.out.println("\t\tLikelihood of previous "+lastRootsLikelihood+" new " + rootLogLikelihood);
 
-			if(rootLikelihood > 0 && lastRootsLikelihood< rootLogLikelihood) {
+			if(positiveLikelihood && lastRootsLikelihood< rootLogLikelihood) {
 				fit.fittedPi = resultingPI;
 				fit.fittedLikelihood = rootLogLikelihood;
 				lastRootsLikelihood = rootLogLikelihood;
@@ -459,10 +496,10 @@ public class EvolutionaryModel {
 		double totalTime = 0d; //it is close to expected time it stays on a transition
 		double logLikelihood = 0;
 		for(int site = 0; site < window; site++) {
-			double likelihood = pruneAndPeel(leafValues, root, site);
+			double siteLogLikelihood = pruneAndPeelLogLikelihood(leafValues, root, site);
 			//System.out.println("Likelihood " + likelihood);
 			// This matrix aids in the decomposition of the derivative of exp(Qt) w.r.t our parameters
-			Matrix N = computeSufficientStatistics(root, likelihood);		
+			Matrix N = computeSufficientStatistics(root);		
 
 			//System.out.println("N: ");
 			//N.print(alphabetSize, 10);
@@ -478,7 +515,7 @@ public class EvolutionaryModel {
 					}
 				}
 			}
-			logLikelihood += Math.log(likelihood);
+			logLikelihood += siteLogLikelihood;
 		}
 		//System.out.println("\ttransitions: " + numOfTransitions + ", totalTime: " + totalTime);
 		newOmega = numOfTransitions * omega / totalTime;  
@@ -487,8 +524,16 @@ public class EvolutionaryModel {
 		return data;
 	}
 
-	private Matrix computeSufficientStatistics(PhylogenyNode root, double likelihood) {
+	/**
+	 * Must be called right after pruneAndPeel, the tree likelihood is recomputed from the (scaled) root partial likelihoods.
+	 */
+	private Matrix computeSufficientStatistics(PhylogenyNode root) {
 		computeJMatrix(root);
+		NodeLikelihoodParameters rootFit = nodeFittingParamMap.get(root.getID());
+		double scaledLikelihood = 0;
+		for(int i = 0; i < rootFit.alpha.getRowDimension(); i++) {
+			scaledLikelihood += pi.get(i,i) * rootFit.alpha.get(i, 0);
+		}
 		Iterator<NodeLikelihoodParameters> fitIt = nodeFittingParamMap.values().iterator();
 		Matrix E = new Matrix(alphabetSize, alphabetSize, 0);
 		while(fitIt.hasNext()) {
@@ -511,10 +556,15 @@ public class EvolutionaryModel {
 			//System.out.println("J:");
 			//fit.J.print(6, 4);
 			nodeE.arrayTimesEquals(fit.J);
+			// bring alpha*beta of the node to the scale of the root likelihood.
+			double nodeLogScale = fit.logAlphaScale + fit.logBetaScale - rootFit.logAlphaScale;
+			if(nodeLogScale != 0) {
+				nodeE.timesEquals(Math.exp(nodeLogScale));
+			}
 			E.plusEquals(nodeE);
 		}
 
-		E = E.times(1d/likelihood);
+		E = E.times(1d/scaledLikelihood);
 		//System.out.println("E/L:" );
 		//E.print(alphabetSize, 12);
 
@@ -524,7 +574,28 @@ public class EvolutionaryModel {
 		return N;
 	}
 	
+	/**
+	 * @return the likelihood of the site, it may underflow to 0 for large trees, use computeLogLikelihood instead when possible.
+	 */
 	public double computeLikelihood(Map<String, Matrix> leafValues,  PhylogenyNode root, int site) {
+		double likelihood = computeScaledLikelihood(leafValues, root, site);
+		double logScale = nodeFittingParamMap.get(root.getID()).logAlphaScale;
+		return logScale == 0 ? likelihood : likelihood * Math.exp(logScale);
+	}
+	
+	/**
+	 * Underflow safe log likelihood of the site, partial likelihoods are rescaled as they are peeled.
+	 */
+	public double computeLogLikelihood(Map<String, Matrix> leafValues,  PhylogenyNode root, int site) {
+		double likelihood = computeScaledLikelihood(leafValues, root, site);
+		return Math.log(likelihood) + nodeFittingParamMap.get(root.getID()).logAlphaScale;
+	}
+	
+	/**
+	 * @return the likelihood of the site divided by exp of the root log scaling factor.
+	 */
+	private double computeScaledLikelihood(Map<String, Matrix> leafValues,  PhylogenyNode root, int site) {
+		LIKELIHOOD_EVALUATIONS.increment();
 		double likelihood = 0;
 		updateNodeTransition(root);
 		
@@ -545,6 +616,28 @@ public class EvolutionaryModel {
 		return likelihood;
 	}
 
+	public double pruneAndPeelLogLikelihood(Map<String, Matrix> leafValues, PhylogenyNode root, int site) {
+		double logLikelihood = computeLogLikelihood(leafValues, root, site);	
+		pruneModel(root);
+		return logLikelihood;
+	}
+	
+	/**
+	 * Divides the partial likelihood vector by its largest entry if that entry is below SCALING_THRESHOLD.
+	 * @return log of the factor the vector was divided by, 0 if it was not rescaled.
+	 */
+	private static double rescale(Matrix partialLikelihoods) {
+		double max = 0;
+		for(int i = 0; i < partialLikelihoods.getRowDimension(); i++) {
+			max = Math.max(max, partialLikelihoods.get(i, 0));
+		}
+		if(max <= 0 || max >= SCALING_THRESHOLD) {
+			return 0;
+		}
+		partialLikelihoods.timesEquals(1d/max);
+		return Math.log(max);
+	}
+
 	public void computeJMatrix(PhylogenyNode node) {
 		//System.out.println("Called computeJMatrix node " + node.getID() + "-" + node.getSeqName() +"(" + node.getDistanceToParent() +")" );
 		NodeLikelihoodParameters nodeFit = nodeFittingParamMap.get(node.getID());
@@ -594,6 +687,7 @@ public class EvolutionaryModel {
 			NodeLikelihoodParameters rootFit = nodeFittingParamMap.get(atNode.getID());
 			//rootFit.beta = beta.times(1d/likelihood); // avoid small numbers.
 			rootFit.beta = beta;
+			rootFit.logBetaScale = 0;
 		} else {
 			PhylogenyNode parent = atNode.getParent();
 			PhylogenyNode sybling = parent.getChildNode1().getID() == atNode.getID() 
@@ -611,6 +705,7 @@ public class EvolutionaryModel {
 			//parentFit.beta.print(alphabetSize, 5);
 			beta = syblingSubtreeLikelihoods.arrayTimes(parentComplementTreeLikelihoods);
 			NodeLikelihoodParameters atNodeFit = nodeFittingParamMap.get(atNode.getID());
+			atNodeFit.logBetaScale = syblingFit.logAlphaScale + parentFit.logBetaScale + rescale(beta);
 			atNodeFit.beta = beta;
 			
 		}
@@ -659,6 +754,7 @@ public class EvolutionaryModel {
 			}
 
 			// compute subtree likelihoods
+			double logScale = 0;
 			for(int child = 0; child < 2; child++) {
 				PhylogenyNode childNode = atNode.getChildNode(child);
 				peelModel(leafValues, childNode, site);
@@ -667,7 +763,9 @@ public class EvolutionaryModel {
 				for(int j = 0; j < alphabetSize; j++) {
 					alpha.set(j, 0, likelihoodsForChild.get(j, 0) * alpha.get(j,0)); 
 				}
+				logScale += childFit.logAlphaScale;
 			}			
+			fittingParams.logAlphaScale = logScale + rescale(alpha);
 		}	
 		//System.out.println("atNode " + atNode.getID() + "(" + atNode.getDistanceToParent() + ") alpha: ");
 		fittingParams.alpha = alpha;
@@ -688,17 +786,12 @@ public class EvolutionaryModel {
 		Matrix result = transitionMatrixCache.get(branchLength);
 		
 		if(result == null) {
-			Matrix DExp = D.copy();
-			for(int i = 0; i < DExp.getRowDimension(); i++) {
-				DExp.set(i, i, Math.exp(DExp.get(i, i) * omega * branchLength));
-			}
-		
-			result = V.times(DExp);
-		
-			result = result.times(iV);
-			
+			TRANSITION_CACHE_MISSES.increment();
+			result = substitutionKernel.transitionProbabilities(omega * branchLength);
 			transitionMatrixCache.put(branchLength, result);
-		} 
+		} else {
+			TRANSITION_CACHE_HITS.increment();
+		}
 		
 		return result;
 	}
@@ -737,58 +830,63 @@ public class EvolutionaryModel {
 	private void prepareRateMatrix() {
 		Q = getRateMatrix() ; // use temporary Q matrix if available
 		
-		EigenvalueDecomposition ed = Q.eig();
-		
-		if(!ed.getD().isDiagonal()) {
-			new IllegalArgumentException("rate matrix  has non real eigenvalues: " + ed.getD() + " this is not supported in this version");
-		}
-		
-		V = ed.getV();
-		D = ed.getD();
-		/*
-		ArrayList<Double> eigens = new ArrayList<Double>(4);
-		eigens.add(D.get(0,0));
-		eigens.add(D.get(1,1));
-		eigens.add(D.get(2,2));
-		eigens.add(D.get(3,3));
-		
-		Collections.sort(eigens);
-		Matrix nV = new Matrix(V.getRowDimension(), V.getColumnDimension());
-		for(int i = 0; i < V.getColumnDimension(); i++) {
-			for (int j = 0; j < V.getColumnDimension(); j++) {
-				if(eigens.get(i) == D.get(j,j)) {
-					int sign = V.get(0,j) < 0 ? -1 : 1;
-					for(int k = 0; k < V.getRowDimension(); k++) {
-						nV.set(k, i, V.get(k,j) * sign);
-					}
-				}
+		// PI fitting restarts every site from the same background rate matrix, avoid decomposing it again.
+		RateMatrixKey key = new RateMatrixKey(Q);
+		NucleotideSubstitutionKernel kernel = decompositionCache.get(key);
+		if(kernel == null) {
+			DECOMPOSITION_CACHE_MISSES.increment();
+			// Q = R*pi with R symmetric is reversible, decompose it with the symmetric solver when possible.
+			kernel = NucleotideSubstitutionKernel.reversible(Q, getStationaryDistribution());
+			if(kernel == null) {
+				kernel = NucleotideSubstitutionKernel.general(Q);
 			}
+			decompositionCache.put(key, kernel);
+		} else {
+			DECOMPOSITION_CACHE_HITS.increment();
 		}
-		V = nV;
-		D.set(0, 0,eigens.get(0));
-		D.set(1, 1,eigens.get(1));
-		D.set(2, 2,eigens.get(2));
-		D.set(3, 3,eigens.get(3));
-		*/
+		substitutionKernel = kernel;
+		V = kernel.getV();
+		D = kernel.getD();
+		iV = kernel.getInverseV();
+	}
+	
+	NucleotideSubstitutionKernel getSubstitutionKernel() {
+		return substitutionKernel;
+	}
 
+	/**
+	 * @return diagonal of pi or the background frequencies if pi is not set.
+	 */
+	double [] getStationaryDistribution() {
+		if(pi == null) {
+			return parameters.getBackgroundNucleotideFreqs();
+		}
+		double [] stationary = new double[pi.getRowDimension()];
+		for(int i = 0; i < stationary.length; i++) {
+			stationary[i] = pi.get(i, i);
+		}
+		return stationary;
+	}
+	
+	/**
+	 * Rate matrices are compared by value, they are small and the decomposition cache only holds a few of them.
+	 */
+	private static class RateMatrixKey {
+		private double [] values;
+		private int hash;
 		
-		iV = V.inverse();
-
+		RateMatrixKey(Matrix rateMatrix) {
+			values = rateMatrix.getRowPackedCopy();
+			hash = Arrays.hashCode(values);
+		}
 		
-		/*
-		System.out.println("Q or R");
-		Q.print(Q.getRowDimension(), 10);
-		System.out.println("V");
-		V.print(V.getRowDimension(), 10);
-		System.out.println("iV");
-		iV.print(iV.getRowDimension(), 10);
-		System.out.println("D");
-		D.print(D.getRowDimension(), 10);
-		
-		System.out.println("Should be the Q (V*D*iV):");
-		V.times(D).times(iV).print(iV.getRowDimension(), 7);
-		*/
+		public int hashCode() {
+			return hash;
+		}
 		
+		public boolean equals(Object o) {
+			return o instanceof RateMatrixKey && Arrays.equals(values, ((RateMatrixKey) o).values);
+		}
 	}
 	
 	public Phylogeny getTree() {
@@ -802,6 +900,8 @@ public class EvolutionaryModel {
 		Matrix alpha; // Stores probability of finding each letter at node given leaf values
 		Matrix beta;  // Stores probability of finding each base at given node given the complement of the subtree that this node roots.
 		Matrix J;     // The J matrix obtained to simplify derivative of exp(Qt) w.r.t model hidden parameters
+		double logAlphaScale; // alpha holds the subtree likelihoods divided by exp(logAlphaScale)
+		double logBetaScale;  // beta holds the complement tree likelihoods divided by exp(logBetaScale)
 		
 		public NodeLikelihoodParameters(PhylogenyNode node) {
 			this.node = node;
@@ -832,8 +932,7 @@ public class EvolutionaryModel {
 		}
 	}
 	
-	private short sampleFromAlphabet(double[] frequencies) {
-		Random r = new Random();
+	private short sampleFromAlphabet(double[] frequencies, Random r) {
 		double draw = r.nextDouble();
 		//System.out.println("draw " + draw);
 		short base = -1;
@@ -1172,6 +1271,23 @@ public class EvolutionaryModel {
 			return treeBit;
 		}
 		
+		/**
+		 * @return a copy sharing the fitted PI matrix, which is never modified after the fit.
+		 */
+		public PiFit copy() {
+			PiFit copy = new PiFit();
+			copy.position = position;
+			copy.fittedPi = fittedPi;
+			copy.numOfIterations = numOfIterations;
+			copy.fittedLikelihood = fittedLikelihood;
+			copy.unfittedLikelihood = unfittedLikelihood;
+			copy.logLikelihoodRatio = logLikelihoodRatio;
+			copy.pValue = pValue;
+			copy.treeLength = treeLength;
+			copy.treeBit = treeBit;
+			return copy;
+		}
+		
 		public String toString() {
 			StringBuilder sb = new StringBuilder();
 			
@@ -0,0 +1,11 @@
+package broad.core.siphy;
+
+import java.io.IOException;
+
+import org.apache.commons.math.MathException;
+
+public interface FitListener {
+	
+	public void newFit(Fit fit) throws IOException, MathException;
+
+}
@@ -0,0 +1,134 @@
+package broad.core.siphy;
+
+/**
+ * Single column steps of the forward, backward and Viterbi recursions over emission log probabilities
+ * stored as [state][column] arrays. Forward and backward vectors are kept normalized (each step rescales its
+ * result to sum to one) so long sequences do not underflow, emissions are shifted by their column maximum before
+ * exponentiation for the same reason. The returned log scale factors add up to the sequence log likelihood.
+ */
+final class HMMSteps {
+	
+	private HMMSteps() {}
+
+	/**
+	 * Fills emission with the probabilities of column t divided by the largest of them.
+	 * @return the log of the scaling factor (the largest log emission).
+	 */
+	static double scaledEmissions(double [][] logEmissions, int t, double [] emission) {
+		double max = Double.NEGATIVE_INFINITY;
+		for(int s = 0; s < emission.length; s++) {
+			max = Math.max(max, logEmissions[s][t]);
+		}
+		if(Double.isInfinite(max)) {
+			throw new IllegalStateException("No state can emit column " + t);
+		}
+		for(int s = 0; s < emission.length; s++) {
+			emission[s] = Math.exp(logEmissions[s][t] - max);
+		}
+		return max;
+	}
+
+	/**
+	 * @return log of the normalization factor
+	 */
+	static double initialStep(double [] initial, double [] emission, double [] forward) {
+		for(int s = 0; s < forward.length; s++) {
+			forward[s] = initial[s] * emission[s];
+		}
+		return normalize(forward);
+	}
+
+	/**
+	 * @return log of the normalization factor
+	 */
+	static double forwardStep(double [] previous, double [][] transitions, double [] emission, double [] forward) {
+		for(int s = 0; s < forward.length; s++) {
+			double sum = 0;
+			for(int r = 0; r < previous.length; r++) {
+				sum += previous[r] * transitions[r][s];
+			}
+			forward[s] = sum * emission[s];
+		}
+		return normalize(forward);
+	}
+
+	/**
+	 * Computes the backward vector of column t-1 from that of column t, emission being the emission of column t.
+	 * @return log of the normalization factor
+	 */
+	static double backwardStep(double [] backward, double [][] transitions, double [] emission, double [] previousBackward) {
+		for(int r = 0; r < previousBackward.length; r++) {
+			double sum = 0;
+			for(int s = 0; s < backward.length; s++) {
+				sum += transitions[r][s] * emission[s] * backward[s];
+			}
+			previousBackward[r] = sum;
+		}
+		return normalize(previousBackward);
+	}
+
+	static void posterior(double [] forward, double [] backward, double [][] posteriors, int t) {
+		double total = 0;
+		for(int s = 0; s < forward.length; s++) {
+			total += forward[s] * backward[s];
+		}
+		for(int s = 0; s < forward.length; s++) {
+			posteriors[s][t] = forward[s] * backward[s] / total;
+		}
+	}
+
+	static void viterbiStep(double [] score, double [][] logTransitions, double [][] logEmissions, int t, double [] nextScore, short [] backPointers) {
+		for(int s = 0; s < nextScore.length; s++) {
+			double best = Double.NEGATIVE_INFINITY;
+			int bestState = 0;
+			for(int r = 0; r < score.length; r++) {
+				double candidate = score[r] + logTransitions[r][s];
+				if(candidate > best) {
+					best = candidate;
+					bestState = r;
+				}
+			}
+			nextScore[s] = best + logEmissions[s][t];
+			backPointers[s] = (short) bestState;
+		}
+	}
+
+	/**
+	 * Adds the expected number of transitions between column t-1 and t to counts, previousForward is the forward vector
+	 * of t-1 and emission and backward those of column t.
+	 */
+	static void addExpectedTransitions(double [] previousForward, double [][] transitions, double [] emission, double [] backward, double [][] counts) {
+		double total = 0;
+		for(int r = 0; r < previousForward.length; r++) {
+			for(int s = 0; s < backward.length; s++) {
+				total += previousForward[r] * transitions[r][s] * emission[s] * backward[s];
+			}
+		}
+		for(int r = 0; r < previousForward.length; r++) {
+			for(int s = 0; s < backward.length; s++) {
+				counts[r][s] += previousForward[r] * transitions[r][s] * emission[s] * backward[s] / total;
+			}
+		}
+	}
+
+	static int argMax(double [] values) {
+		int best = 0;
+		for(int i = 1; i < values.length; i++) {
+			if(values[i] > values[best]) {
+				best = i;
+			}
+		}
+		return best;
+	}
+
+	private static double normalize(double [] vector) {
+		double total = 0;
+		for(double v : vector) {
+			total += v;
+		}
+		for(int i = 0; i < vector.length; i++) {
+			vector[i] = vector[i] / total;
+		}
+		return Math.log(total);
+	}
+}
@@ -0,0 +1,436 @@
+package broad.core.siphy;
+
+import java.util.Random;
+
+import Jama.EigenvalueDecomposition;
+import Jama.Matrix;
+
+/**
+ * Eigen decomposition Q = V D iV of a substitution rate matrix and the transition probabilities
+ * P(t) = V exp(D t) iV it defines, on flat row packed arrays.
+ * Rate matrices of time reversible models (pi_i Q_ij = pi_j Q_ji) are symmetrized as
+ * B = diag(sqrt(pi)) Q diag(1/sqrt(pi)) and decomposed with a Jacobi solver, which needs neither the general
+ * eigen solver nor a matrix inverse: V = diag(1/sqrt(pi)) U and iV = U' diag(sqrt(pi)).
+ * F81 and HKY rate matrices over A, C, G, T are recognized and their P(t) computed analytically.
+ *
+ * @author mgarber
+ */
+public class NucleotideSubstitutionKernel {
+	static final double REVERSIBILITY_TOLERANCE = 1e-9;
+	static final int MAX_SWEEPS = 50;
+
+	private int n;
+	private double [] eigenvalues;
+	private double [] eigenvectors;
+	private double [] inverseEigenvectors;
+
+	// HKY parameters (F81 when kappa is 1), only set for nucleotide HKY rate matrices.
+	private double [] hkyPi;
+	private double hkyKappa;
+	private double hkyMu;
+
+	private Matrix V;
+	private Matrix D;
+	private Matrix iV;
+
+	private NucleotideSubstitutionKernel(int n, double [] eigenvalues, double [] eigenvectors, double [] inverseEigenvectors) {
+		this.n = n;
+		this.eigenvalues = eigenvalues;
+		this.eigenvectors = eigenvectors;
+		this.inverseEigenvectors = inverseEigenvectors;
+		V = new Matrix(n, n);
+		D = new Matrix(n, n);
+		iV = new Matrix(n, n);
+		for(int i = 0; i < n; i++) {
+			D.set(i, i, eigenvalues[i]);
+			for(int j = 0; j < n; j++) {
+				V.set(i, j, eigenvectors[i * n + j]);
+				iV.set(i, j, inverseEigenvectors[i * n + j]);
+			}
+		}
+	}
+
+	/**
+	 * Decomposition of any diagonalizable rate matrix with Jama's general solver.
+	 */
+	public static NucleotideSubstitutionKernel general(Matrix rateMatrix) {
+		EigenvalueDecomposition ed = rateMatrix.eig();
+		Matrix V = ed.getV();
+		Matrix iV = V.inverse();
+		int n = rateMatrix.getRowDimension();
+		double [] eigenvalues = new double[n];
+		for(int i = 0; i < n; i++) {
+			eigenvalues[i] = ed.getD().get(i, i);
+		}
+		return new NucleotideSubstitutionKernel(n, eigenvalues, V.getRowPackedCopy(), iV.getRowPackedCopy());
+	}
+
+	/**
+	 * @param pi stationary distribution of the rate matrix, it does not need to be normalized.
+	 * @return the kernel or null if the rate matrix is not reversible with respect to pi.
+	 */
+	public static NucleotideSubstitutionKernel reversible(Matrix rateMatrix, double [] pi) {
+		int n = rateMatrix.getRowDimension();
+		if(n != rateMatrix.getColumnDimension() || pi == null || pi.length != n) {
+			return null;
+		}
+		double [] q = rateMatrix.getRowPackedCopy();
+		double [] sqrtPi = new double[n];
+		double scale = 0;
+		for(int i = 0; i < n; i++) {
+			if(!(pi[i] > 0)) {
+				return null;
+			}
+			sqrtPi[i] = Math.sqrt(pi[i]);
+			for(int j = 0; j < n; j++) {
+				scale = Math.max(scale, Math.abs(pi[i] * q[i * n + j]));
+			}
+		}
+		double [] b = new double[n * n];
+		for(int i = 0; i < n; i++) {
+			for(int j = 0; j < n; j++) {
+				if(j > i && Math.abs(pi[i] * q[i * n + j] - pi[j] * q[j * n + i]) > REVERSIBILITY_TOLERANCE * scale) {
+					return null;
+				}
+				b[i * n + j] = sqrtPi[i] * q[i * n + j] / sqrtPi[j];
+			}
+		}
+		// Average the round off asymmetry away.
+		for(int i = 0; i < n; i++) {
+			for(int j = i + 1; j < n; j++) {
+				double avg = (b[i * n + j] + b[j * n + i]) / 2;
+				b[i * n + j] = avg;
+				b[j * n + i] = avg;
+			}
+		}
+		double [] eigenvalues = new double[n];
+		double [] u = new double[n * n];
+		symmetricEigen(b, n, eigenvalues, u);
+
+		double [] v = new double[n * n];
+		double [] iv = new double[n * n];
+		for(int i = 0; i < n; i++) {
+			for(int k = 0; k < n; k++) {
+				v[i * n + k] = u[i * n + k] / sqrtPi[i];
+				iv[k * n + i] = u[i * n + k] * sqrtPi[i];
+			}
+		}
+		NucleotideSubstitutionKernel kernel = new NucleotideSubstitutionKernel(n, eigenvalues, v, iv);
+		kernel.detectHKY(q, pi);
+		return kernel;
+	}
+
+	/**
+	 * Cyclic Jacobi eigen solver for symmetric matrices.
+	 * @param a row packed symmetric matrix, destroyed.
+	 * @param eigenvalues filled with the eigenvalues.
+	 * @param eigenvectors filled with the row packed orthonormal matrix whose columns are the eigenvectors.
+	 */
+	static void symmetricEigen(double [] a, int n, double [] eigenvalues, double [] eigenvectors) {
+		for(int i = 0; i < n * n; i++) {
+			eigenvectors[i] = 0;
+		}
+		double norm = 0;
+		for(int i = 0; i < n; i++) {
+			eigenvectors[i * n + i] = 1;
+			for(int j = 0; j < n; j++) {
+				norm += a[i * n + j] * a[i * n + j];
+			}
+		}
+		for(int sweep = 0; sweep < MAX_SWEEPS; sweep++) {
+			double off = 0;
+			for(int p = 0; p < n; p++) {
+				for(int q = p + 1; q < n; q++) {
+					off += a[p * n + q] * a[p * n + q];
+				}
+			}
+			if(off <= 1e-30 * norm) {
+				break;
+			}
+			for(int p = 0; p < n; p++) {
+				for(int q = p + 1; q < n; q++) {
+					double apq = a[p * n + q];
+					if(apq == 0) {
+						continue;
+					}
+					double theta = (a[q * n + q] - a[p * n + p]) / (2 * apq);
+					double t = (theta >= 0 ? 1 : -1) / (Math.abs(theta) + Math.sqrt(theta * theta + 1));
+					double c = 1 / Math.sqrt(t * t + 1);
+					double s = t * c;
+					for(int k = 0; k < n; k++) {
+						double akp = a[k * n + p];
+						double akq = a[k * n + q];
+						a[k * n + p] = c * akp - s * akq;
+						a[k * n + q] = s * akp + c * akq;
+					}
+					for(int k = 0; k < n; k++) {
+						double apk = a[p * n + k];
+						double aqk = a[q * n + k];
+						a[p * n + k] = c * apk - s * aqk;
+						a[q * n + k] = s * apk + c * aqk;
+					}
+					for(int k = 0; k < n; k++) {
+						double vkp = eigenvectors[k * n + p];
+						double vkq = eigenvectors[k * n + q];
+						eigenvectors[k * n + p] = c * vkp - s * vkq;
+						eigenvectors[k * n + q] = s * vkp + c * vkq;
+					}
+				}
+			}
+		}
+		for(int i = 0; i < n; i++) {
+			eigenvalues[i] = a[i * n + i];
+		}
+	}
+
+	/**
+	 * HKY: Q_ij = mu * kappa * pi_j for transitions (A-G, C-T) and mu * pi_j for transversions.
+	 */
+	private void detectHKY(double [] q, double [] pi) {
+		if(n != 4) {
+			return;
+		}
+		double mu = q[0 * 4 + 1] / pi[1];
+		double transitionRate = q[0 * 4 + 2] / pi[2];
+		for(int i = 0; i < 4; i++) {
+			for(int j = 0; j < 4; j++) {
+				if(i == j) {
+					continue;
+				}
+				double expected = (i + j) % 2 == 0 ? transitionRate : mu;
+				if(Math.abs(q[i * 4 + j] / pi[j] - expected) > REVERSIBILITY_TOLERANCE * Math.abs(expected)) {
+					return;
+				}
+			}
+		}
+		double total = pi[0] + pi[1] + pi[2] + pi[3];
+		hkyPi = new double[4];
+		for(int i = 0; i < 4; i++) {
+			hkyPi[i] = pi[i] / total;
+		}
+		// rates are relative to the normalized distribution
+		hkyMu = mu * total;
+		hkyKappa = transitionRate / mu;
+	}
+
+	public boolean isHKY() { return hkyPi != null; }
+
+	public int getDimension() { return n; }
+
+	public double getEigenvalue(int i) { return eigenvalues[i]; }
+
+	/**
+	 * Jama views of the decomposition, shared, must not be modified.
+	 */
+	public Matrix getV() { return V; }
+
+	public Matrix getD() { return D; }
+
+	public Matrix getInverseV() { return iV; }
+
+	/**
+	 * @param out row packed n x n transition probabilities P(t).
+	 */
+	public void transitionProbabilities(double t, double [] out) {
+		if(hkyPi != null) {
+			hky(hkyPi, hkyKappa, hkyMu, t, out);
+			return;
+		}
+		double [] expD = new double[n];
+		for(int k = 0; k < n; k++) {
+			expD[k] = Math.exp(eigenvalues[k] * t);
+		}
+		for(int i = 0; i < n; i++) {
+			for(int j = 0; j < n; j++) {
+				double p = 0;
+				for(int k = 0; k < n; k++) {
+					p += eigenvectors[i * n + k] * expD[k] * inverseEigenvectors[k * n + j];
+				}
+				out[i * n + j] = p;
+			}
+		}
+	}
+
+	public Matrix transitionProbabilities(double t) {
+		double [] p = new double[n * n];
+		transitionProbabilities(t, p);
+		Matrix P = new Matrix(n, n);
+		for(int i = 0; i < n; i++) {
+			for(int j = 0; j < n; j++) {
+				P.set(i, j, p[i * n + j]);
+			}
+		}
+		return P;
+	}
+
+	/**
+	 * F81 transition probabilities, Q_ij = mu * pi_j: P_ij(t) = pi_j + (delta_ij - pi_j) exp(-mu t).
+	 * @param pi normalized A, C, G, T stationary distribution
+	 */
+	public static void f81(double [] pi, double mu, double t, double [] out) {
+		double e = Math.exp(-mu * t);
+		for(int i = 0; i < 4; i++) {
+			for(int j = 0; j < 4; j++) {
+				out[i * 4 + j] = pi[j] * (1 - e) + (i == j ? e : 0);
+			}
+		}
+	}
+
+	/**
+	 * HKY transition probabilities, Q_ij = mu * kappa * pi_j for transitions and mu * pi_j for transversions.
+	 * @param pi normalized A, C, G, T stationary distribution
+	 */
+	public static void hky(double [] pi, double kappa, double mu, double t, double [] out) {
+		double e = Math.exp(-mu * t);
+		double purines = pi[0] + pi[2];
+		double pyrimidines = pi[1] + pi[3];
+		double purineE = Math.exp(-mu * t * (1 + purines * (kappa - 1)));
+		double pyrimidineE = Math.exp(-mu * t * (1 + pyrimidines * (kappa - 1)));
+		for(int i = 0; i < 4; i++) {
+			for(int j = 0; j < 4; j++) {
+				double p;
+				if((i + j) % 2 != 0) {
+					p = pi[j] * (1 - e);
+				} else {
+					double classFreq = j % 2 == 0 ? purines : pyrimidines;
+					double classE = j % 2 == 0 ? purineE : pyrimidineE;
+					p = pi[j] + pi[j] * (1 / classFreq - 1) * e;
+					p += i == j ? ((classFreq - pi[j]) / classFreq) * classE : -(pi[j] / classFreq) * classE;
+				}
+				out[i * 4 + j] = p;
+			}
+		}
+	}
+
+	/**
+	 * Microbenchmark of the reversible kernel against the Jama path (eig, inverse and V*exp(D t)*iV) on random GTR
+	 * and HKY rate matrices. Usage: NucleotideSubstitutionKernel [number of rate matrices] [branch lengths per matrix]
+	 */
+	public static void main(String [] args) {
+		int numMatrices = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+		int numBranches = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+		Random random = new Random(1);
+		for(int model = 0; model < 2; model++) {
+			Matrix [] rateMatrices = new Matrix[numMatrices];
+			double [][] pis = new double[numMatrices][];
+			for(int m = 0; m < numMatrices; m++) {
+				pis[m] = randomDistribution(random);
+				rateMatrices[m] = model == 0 ? randomGTR(random, pis[m]) : randomHKY(random, pis[m]);
+			}
+			double [] branches = new double[numBranches];
+			for(int b = 0; b < numBranches; b++) {
+				branches[b] = random.nextDouble() * 2;
+			}
+			// warm up both paths before timing
+			runJama(rateMatrices, branches);
+			runKernel(rateMatrices, pis, branches);
+
+			long start = System.nanoTime();
+			double jamaChecksum = runJama(rateMatrices, branches);
+			long jamaTime = System.nanoTime() - start;
+			start = System.nanoTime();
+			double kernelChecksum = runKernel(rateMatrices, pis, branches);
+			long kernelTime = System.nanoTime() - start;
+
+			double maxDifference = 0;
+			double [] p = new double[16];
+			for(int m = 0; m < Math.min(1000, numMatrices); m++) {
+				NucleotideSubstitutionKernel general = general(rateMatrices[m]);
+				NucleotideSubstitutionKernel kernel = reversible(rateMatrices[m], pis[m]);
+				for(double t : branches) {
+					double [] expected = new double[16];
+					general.transitionProbabilities(t, expected);
+					kernel.transitionProbabilities(t, p);
+					for(int i = 0; i < 16; i++) {
+						maxDifference = Math.max(maxDifference, Math.abs(expected[i] - p[i]));
+					}
+				}
+			}
+			System.out.println((model == 0 ? "GTR" : "HKY") + ": " + numMatrices + " rate matrices x " + numBranches + " branch lengths");
+			System.out.println("\tJama:   " + (jamaTime / 1000000) + " ms (checksum " + jamaChecksum + ")");
+			System.out.println("\tKernel: " + (kernelTime / 1000000) + " ms (checksum " + kernelChecksum + ")");
+			System.out.println("\tspeed up " + (jamaTime / (double) kernelTime) + ", max |P difference| " + maxDifference);
+		}
+	}
+
+	private static double runJama(Matrix [] rateMatrices, double [] branches) {
+		double checksum = 0;
+		for(Matrix Q : rateMatrices) {
+			EigenvalueDecomposition ed = Q.eig();
+			Matrix V = ed.getV();
+			Matrix iV = V.inverse();
+			for(double t : branches) {
+				Matrix DExp = ed.getD().copy();
+				for(int i = 0; i < DExp.getRowDimension(); i++) {
+					DExp.set(i, i, Math.exp(DExp.get(i, i) * t));
+				}
+				checksum += V.times(DExp).times(iV).get(0, 0);
+			}
+		}
+		return checksum;
+	}
+
+	private static double runKernel(Matrix [] rateMatrices, double [][] pis, double [] branches) {
+		double checksum = 0;
+		double [] p = new double[16];
+		for(int m = 0; m < rateMatrices.length; m++) {
+			NucleotideSubstitutionKernel kernel = reversible(rateMatrices[m], pis[m]);
+			for(double t : branches) {
+				kernel.transitionProbabilities(t, p);
+				checksum += p[0];
+			}
+		}
+		return checksum;
+	}
+
+	private static double [] randomDistribution(Random random) {
+		double [] pi = new double[4];
+		double total = 0;
+		for(int i = 0; i < 4; i++) {
+			pi[i] = 0.1 + random.nextDouble();
+			total += pi[i];
+		}
+		for(int i = 0; i < 4; i++) {
+			pi[i] /= total;
+		}
+		return pi;
+	}
+
+	private static Matrix randomGTR(Random random, double [] pi) {
+		Matrix Q = new Matrix(4, 4);
+		for(int i = 0; i < 4; i++) {
+			for(int j = i + 1; j < 4; j++) {
+				double exchangeability = 0.2 + random.nextDouble();
+				Q.set(i, j, exchangeability * pi[j]);
+				Q.set(j, i, exchangeability * pi[i]);
+			}
+		}
+		return withDiagonal(Q);
+	}
+
+	private static Matrix randomHKY(Random random, double [] pi) {
+		double kappa = 1 + random.nextDouble() * 4;
+		Matrix Q = new Matrix(4, 4);
+		for(int i = 0; i < 4; i++) {
+			for(int j = 0; j < 4; j++) {
+				if(i != j) {
+					Q.set(i, j, ((i + j) % 2 == 0 ? kappa : 1) * pi[j]);
+				}
+			}
+		}
+		return withDiagonal(Q);
+	}
+
+	private static Matrix withDiagonal(Matrix Q) {
+		for(int i = 0; i < 4; i++) {
+			double rowSum = 0;
+			for(int j = 0; j < 4; j++) {
+				if(j != i) {
+					rowSum += Q.get(i, j);
+				}
+			}
+			Q.set(i, i, -rowSum);
+		}
+		return Q;
+	}
+}
@@ -0,0 +1,459 @@
+package broad.core.siphy;
+
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.apache.commons.math.MathException;
+import org.apache.commons.math.distribution.ContinuousDistribution;
+import org.forester.phylogeny.Phylogeny;
+import org.forester.phylogeny.PhylogenyNode;
+
+import Jama.Matrix;
+import broad.core.multiplealignment.MultipleAlignment;
+
+/**
+ * Posterior distribution of omega over a fixed grid for every window of an alignment.
+ * Everything that does not depend on the data is computed once: the prior mass of each grid point and the transition
+ * probabilities of every branch for every omega. A column is then evaluated for all the grid points in a single pruning
+ * pass over the tree, the partial likelihood vectors of a node hold one block per omega, and the column log likelihoods
+ * are memoized by column pattern. Sites are scored in parallel, window posteriors are reported in coordinate order.
+ *
+ * The full distribution is written as tab separated text, a header line with the grid omegas then a line per window with
+ * its reference position and the posterior of each omega. The compact binary form (DataOutputStream, big endian) is an
+ * int FULL_DISTRIBUTION_MAGIC, the int number of grid points followed by the grid omegas as doubles, then a record per
+ * window with its int reference position and the float posterior of each omega. printFullDistribution (TreeScaler task
+ * fullDistributionToText) converts it back to text.
+ *
+ * @author mgarber
+ */
+public class OmegaPosteriorEngine {
+	static final int FULL_DISTRIBUTION_MAGIC = 0x4f4d4731;
+	static final int DEFAULT_BLOCK_SIZE = 100000;
+	/** Approximate bytes a cached pattern takes besides its likelihoods: the packed key, the map entry and the array header. */
+	static final int SITE_CACHE_ENTRY_OVERHEAD = 96;
+
+	private double [] omegas;
+	private double [] logPriors;
+	private double minimumTreeLength;
+	private Phylogeny tree;
+	private int alphabetSize;
+	private double [] rootFrequencies;
+
+	// Tree in post order, children precede their parents and the root is last.
+	private int numNodes;
+	private String [] leafNames;
+	private String [] leafOrder;
+	private int [][] children;
+	private double [][] transitions; // [node][omega * alphabetSize^2 + i * alphabetSize + j] P_ij(omega * branch length)
+
+	private ColumnPatternCache<double []> siteCache;
+	private Map<BitSet, Double> treeLengthCache = new ConcurrentHashMap<BitSet, Double>();
+	private int blockSize = DEFAULT_BLOCK_SIZE;
+
+	public interface PosteriorListener {
+		/**
+		 * @param logPosteriors log P(omega | window data) of each grid omega, the array is reused between calls.
+		 */
+		void posterior(int referencePosition, double [] logPosteriors) throws IOException;
+	}
+
+	/**
+	 * @param model neutral model, omega is taken from the grid so the model omega is ignored.
+	 * @param tree the model tree with the ignored species pruned.
+	 * @param logPriors log prior mass of each grid omega, see priorLogMasses.
+	 * @param minimumTreeLength windows whose mean informative tree length is not greater than this get the prior as posterior.
+	 */
+	public OmegaPosteriorEngine(EvolutionaryModel model, Phylogeny tree, double [] omegas, double [] logPriors, double minimumTreeLength) {
+		if(omegas.length != logPriors.length) {
+			throw new IllegalArgumentException("There are " + omegas.length + " omegas but " + logPriors.length + " priors");
+		}
+		this.omegas = omegas.clone();
+		this.logPriors = logPriors.clone();
+		this.minimumTreeLength = minimumTreeLength;
+		this.tree = tree;
+		model.RPIDecomposition();
+		alphabetSize = model.getAlphabetSize();
+		rootFrequencies = model.getStationaryDistribution();
+
+		List<PhylogenyNode> postOrder = new ArrayList<PhylogenyNode>();
+		addPostOrder(tree.getRoot(), postOrder);
+		numNodes = postOrder.size();
+		leafNames = new String[numNodes];
+		children = new int[numNodes][];
+		transitions = new double[numNodes][];
+		Map<PhylogenyNode, Integer> index = new HashMap<PhylogenyNode, Integer>();
+		NucleotideSubstitutionKernel kernel = model.getSubstitutionKernel();
+		int matrixSize = alphabetSize * alphabetSize;
+		double [] p = new double[matrixSize];
+		List<String> leaves = new ArrayList<String>();
+		for(int n = 0; n < numNodes; n++) {
+			PhylogenyNode node = postOrder.get(n);
+			index.put(node, n);
+			if(node.isExternal()) {
+				leafNames[n] = node.getSeqName();
+				leaves.add(leafNames[n]);
+			} else {
+				children[n] = new int [] {index.get(node.getChildNode1()), index.get(node.getChildNode2())};
+			}
+			if(!node.isRoot()) {
+				transitions[n] = new double[omegas.length * matrixSize];
+				for(int o = 0; o < omegas.length; o++) {
+					kernel.transitionProbabilities(omegas[o] * node.getDistanceToParent(), p);
+					System.arraycopy(p, 0, transitions[n], o * matrixSize, matrixSize);
+				}
+			}
+		}
+		leafOrder = leaves.toArray(new String[leaves.size()]);
+		setSiteCacheSize(defaultSiteCacheSize(omegas.length));
+	}
+
+	/**
+	 * @return the number of column patterns whose likelihoods over a grid of the given size fit in an eighth of the
+	 * 	maximum heap, at most ColumnPatternCache.DEFAULT_MAX_ENTRIES.
+	 */
+	public static int defaultSiteCacheSize(int numOmegas) {
+		long entryBytes = 8L * numOmegas + SITE_CACHE_ENTRY_OVERHEAD;
+		return (int) Math.max(1, Math.min(ColumnPatternCache.DEFAULT_MAX_ENTRIES, Runtime.getRuntime().maxMemory() / 8 / entryBytes));
+	}
+
+	/**
+	 * @param maxPatterns maximum number of column patterns whose likelihoods are kept, the cache is emptied.
+	 */
+	public void setSiteCacheSize(int maxPatterns) {
+		siteCache = new ColumnPatternCache<double []>("omega posterior", maxPatterns, leafOrder);
+	}
+
+	private static void addPostOrder(PhylogenyNode node, List<PhylogenyNode> postOrder) {
+		if(!node.isExternal()) {
+			addPostOrder(node.getChildNode1(), postOrder);
+			addPostOrder(node.getChildNode2(), postOrder);
+		}
+		postOrder.add(node);
+	}
+
+	/**
+	 * @return log of the prior mass of the interval of width step centered at each omega.
+	 */
+	public static double [] priorLogMasses(ContinuousDistribution prior, double [] omegas, double step) throws MathException {
+		double [] logPriors = new double[omegas.length];
+		for(int j = 0; j < omegas.length; j++) {
+			double mass = prior.cumulativeProbability(omegas[j] - step/2.0, omegas[j] + step/2.0);
+			if(mass == 0) {
+				System.err.println("Ooops prior was 0 omega " + omegas[j]);
+			}
+			logPriors[j] = Math.log(mass);
+		}
+		return logPriors;
+	}
+
+	public double [] getOmegas() { return omegas; }
+
+	public ColumnPatternCache<double []> getSiteCache() { return siteCache; }
+
+	/**
+	 * @param blockSize number of windows whose sites are scored before reporting them.
+	 */
+	public void setBlockSize(int blockSize) {
+		this.blockSize = blockSize;
+	}
+
+	/**
+	 * Reports the posterior of every window starting in [start, end - window] in order.
+	 * @param start alignment coordinate, reference positions are start + alignment reference start.
+	 * @param executor used to score the sites of a block concurrently, may be null.
+	 */
+	public void computePosteriors(MultipleAlignment alignment, int start, int end, int window, ExecutorService executor, PosteriorListener listener) throws IOException, InterruptedException, ExecutionException {
+		double [] windowLogLikelihoods = new double[omegas.length];
+		double [] logPosteriors = new double[omegas.length];
+		for(int blockStart = start; blockStart < end - window + 1; blockStart += blockSize) {
+			int blockEnd = Math.min(end - window + 1, blockStart + blockSize);
+			SiteScores scores = scoreSites(alignment, blockStart, blockEnd + window - 1, executor);
+			for(int w = 0; w < blockEnd - blockStart; w++) {
+				double meanTreeLength = 0;
+				for(int i = 0; i < window; i++) {
+					meanTreeLength += scores.treeLengths[w + i];
+				}
+				meanTreeLength = meanTreeLength/(double)window;
+				for(int o = 0; o < omegas.length; o++) {
+					double logLikelihood = 0;
+					if(meanTreeLength > minimumTreeLength) {
+						for(int i = 0; i < window; i++) {
+							logLikelihood += scores.logLikelihoods[w + i][o];
+						}
+					}
+					windowLogLikelihoods[o] = logLikelihood + logPriors[o];
+				}
+				double logPX = logSumExp(windowLogLikelihoods);
+				for(int o = 0; o < omegas.length; o++) {
+					logPosteriors[o] = windowLogLikelihoods[o] - logPX;
+				}
+				listener.posterior(blockStart + w + alignment.getReferenceStart(), logPosteriors);
+			}
+		}
+	}
+
+	static double logSumExp(double [] values) {
+		double max = Double.NEGATIVE_INFINITY;
+		for(double v : values) {
+			max = Math.max(max, v);
+		}
+		if(Double.isInfinite(max)) {
+			return max;
+		}
+		double sum = 0;
+		for(double v : values) {
+			sum += Math.exp(v - max);
+		}
+		return max + Math.log(sum);
+	}
+
+	private static class SiteScores {
+		double [][] logLikelihoods;
+		double [] treeLengths;
+
+		SiteScores(int numSites) {
+			logLikelihoods = new double[numSites][];
+			treeLengths = new double[numSites];
+		}
+	}
+
+	private SiteScores scoreSites(final MultipleAlignment alignment, final int from, final int to, ExecutorService executor) throws InterruptedException, ExecutionException {
+		final SiteScores scores = new SiteScores(to - from);
+		if(executor == null) {
+			new SiteScorer(alignment, from, to, 0, 1, scores).call();
+			return scores;
+		}
+		int numTasks = Math.max(1, Math.min(to - from, 64));
+		List<Future<Object>> tasks = new ArrayList<Future<Object>>(numTasks);
+		for(int t = 0; t < numTasks; t++) {
+			tasks.add(executor.submit(new SiteScorer(alignment, from, to, t, numTasks, scores)));
+		}
+		for(Future<Object> task : tasks) {
+			task.get();
+		}
+		return scores;
+	}
+
+	/**
+	 * Scores sites from + offset, from + offset + stride ... with its own pruning work space.
+	 */
+	private class SiteScorer implements Callable<Object> {
+		private MultipleAlignment alignment;
+		private int from;
+		private int to;
+		private int offset;
+		private int stride;
+		private SiteScores scores;
+
+		SiteScorer(MultipleAlignment alignment, int from, int to, int offset, int stride, SiteScores scores) {
+			this.alignment = alignment;
+			this.from = from;
+			this.to = to;
+			this.offset = offset;
+			this.stride = stride;
+			this.scores = scores;
+		}
+
+		public Object call() {
+			double [][] partials = new double[numNodes][omegas.length * alphabetSize];
+			double [][] logScales = new double[numNodes][omegas.length];
+			for(int site = from + offset; site < to; site += stride) {
+				Map<String, Matrix> alignmentColumn = alignment.getColumnsAsVector(site + alignment.getReferenceStart(), 1);
+				Map<String, Matrix> column = new HashMap<String, Matrix>();
+				BitSet gapped = new BitSet(numNodes);
+				for(int n = 0; n < numNodes; n++) {
+					if(leafNames[n] != null) {
+						Matrix leaf = alignmentColumn.get(leafNames[n]);
+						if(leaf != null) {
+							column.put(leafNames[n], leaf);
+						}
+						if(leaf == null || isGap(leaf)) {
+							gapped.set(n);
+						}
+					}
+				}
+				ColumnPatternCache.ColumnPattern pattern = siteCache.pattern(column, 0);
+				double [] siteLogLikelihoods = siteCache.get(pattern);
+				if(siteLogLikelihoods == null) {
+					siteLogLikelihoods = computeSiteLogLikelihoods(column, partials, logScales);
+					siteCache.put(pattern, siteLogLikelihoods);
+				}
+				scores.logLikelihoods[site - from] = siteLogLikelihoods;
+				scores.treeLengths[site - from] = getInformativeTreeLength(gapped);
+			}
+			return null;
+		}
+	}
+
+	private static boolean isGap(Matrix leaf) {
+		for(int i = 0; i < leaf.getRowDimension(); i++) {
+			if(leaf.get(i, 0) > 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Felsenstein pruning for all the grid omegas at once, gapped and missing leaves are uninformative.
+	 * @return log likelihood of the column for each omega.
+	 */
+	double [] computeSiteLogLikelihoods(Map<String, Matrix> column, double [][] partials, double [][] logScales) {
+		int matrixSize = alphabetSize * alphabetSize;
+		for(int n = 0; n < numNodes; n++) {
+			double [] partial = partials[n];
+			double [] logScale = logScales[n];
+			if(leafNames[n] != null) {
+				Matrix leaf = column.get(leafNames[n]);
+				boolean uninformative = leaf == null || isGap(leaf);
+				for(int i = 0; i < alphabetSize; i++) {
+					partial[i] = uninformative ? 1 : leaf.get(i, 0);
+				}
+				for(int o = 1; o < omegas.length; o++) {
+					System.arraycopy(partial, 0, partial, o * alphabetSize, alphabetSize);
+				}
+				Arrays.fill(logScale, 0);
+				continue;
+			}
+			Arrays.fill(partial, 1);
+			for(int c = 0; c < 2; c++) {
+				int child = children[n][c];
+				double [] childPartial = partials[child];
+				double [] childTransitions = transitions[child];
+				for(int o = 0; o < omegas.length; o++) {
+					int pOffset = o * matrixSize;
+					int vOffset = o * alphabetSize;
+					for(int i = 0; i < alphabetSize; i++) {
+						double sum = 0;
+						for(int j = 0; j < alphabetSize; j++) {
+							sum += childTransitions[pOffset + i * alphabetSize + j] * childPartial[vOffset + j];
+						}
+						partial[vOffset + i] *= sum;
+					}
+				}
+			}
+			for(int o = 0; o < omegas.length; o++) {
+				logScale[o] = logScales[children[n][0]][o] + logScales[children[n][1]][o];
+				int vOffset = o * alphabetSize;
+				double max = 0;
+				for(int i = 0; i < alphabetSize; i++) {
+					max = Math.max(max, partial[vOffset + i]);
+				}
+				if(max > 0 && max < EvolutionaryModel.SCALING_THRESHOLD) {
+					for(int i = 0; i < alphabetSize; i++) {
+						partial[vOffset + i] /= max;
+					}
+					logScale[o] += Math.log(max);
+				}
+			}
+		}
+		double [] rootPartial = partials[numNodes - 1];
+		double [] rootLogScale = logScales[numNodes - 1];
+		double [] siteLogLikelihoods = new double[omegas.length];
+		for(int o = 0; o < omegas.length; o++) {
+			double likelihood = 0;
+			for(int i = 0; i < alphabetSize; i++) {
+				likelihood += rootFrequencies[i] * rootPartial[o * alphabetSize + i];
+			}
+			siteLogLikelihoods[o] = Math.log(likelihood) + rootLogScale[o];
+		}
+		return siteLogLikelihoods;
+	}
+
+	/**
+	 * Total branch length of the tree once the gapped leaves are pruned, computed once per gap pattern.
+	 */
+	private double getInformativeTreeLength(BitSet gapped) {
+		Double length = treeLengthCache.get(gapped);
+		if(length == null) {
+			List<String> toPrune = new ArrayList<String>();
+			for(int n = gapped.nextSetBit(0); n >= 0; n = gapped.nextSetBit(n + 1)) {
+				toPrune.add(leafNames[n]);
+			}
+			length = getTotalDistanceFromNode(ConservationUtils.pruneTree(toPrune, tree).getRoot());
+			treeLengthCache.put(gapped, length);
+		}
+		return length;
+	}
+
+	private static double getTotalDistanceFromNode(PhylogenyNode n) {
+		double dist = 0d;
+		if(n != null && !n.isExternal()) {
+			dist += n.getChildNode1().getDistanceToParent() + getTotalDistanceFromNode(n.getChildNode1());
+			dist += n.getChildNode2().getDistanceToParent() + getTotalDistanceFromNode(n.getChildNode2());
+		}
+		return dist;
+	}
+
+	public static void writeFullDistributionHeader(BufferedWriter out, double [] omegas) throws IOException {
+		for(int o = 0; o < omegas.length; o++) {
+			out.write(String.valueOf(omegas[o]));
+			if(o < omegas.length - 1) {out.write("\t");}
+		}
+		out.newLine();
+	}
+
+	public static void writeFullDistributionRecord(BufferedWriter out, int referencePosition, double [] logPosteriors) throws IOException {
+		out.write(String.valueOf(referencePosition));
+		for(double logPosterior : logPosteriors) {
+			out.write("\t" + Math.exp(logPosterior));
+		}
+		out.newLine();
+	}
+
+	public static void writeFullDistributionHeader(DataOutputStream out, double [] omegas) throws IOException {
+		out.writeInt(FULL_DISTRIBUTION_MAGIC);
+		out.writeInt(omegas.length);
+		for(double omega : omegas) {
+			out.writeDouble(omega);
+		}
+	}
+
+	public static void writeFullDistributionRecord(DataOutputStream out, int referencePosition, double [] logPosteriors) throws IOException {
+		out.writeInt(referencePosition);
+		for(double logPosterior : logPosteriors) {
+			out.writeFloat((float) Math.exp(logPosterior));
+		}
+	}
+
+	/**
+	 * Writes a binary full distribution as the tab separated table: a header line with the omegas then a line per window.
+	 */
+	public static void printFullDistribution(DataInputStream in, BufferedWriter out) throws IOException {
+		if(in.readInt() != FULL_DISTRIBUTION_MAGIC) {
+			throw new IOException("Not an omega posterior full distribution file");
+		}
+		double [] omegas = new double[in.readInt()];
+		for(int o = 0; o < omegas.length; o++) {
+			omegas[o] = in.readDouble();
+		}
+		writeFullDistributionHeader(out, omegas);
+		while(true) {
+			int referencePosition;
+			try {
+				referencePosition = in.readInt();
+			} catch (EOFException eof) {
+				break;
+			}
+			out.write(String.valueOf(referencePosition));
+			for(int o = 0; o < omegas.length; o++) {
+				out.write("\t" + in.readFloat());
+			}
+			out.newLine();
+		}
+	}
+}
@@ -0,0 +1,280 @@
+package broad.core.siphy;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.math.MathException;
+
+import broad.core.annotation.BED;
+import broad.core.error.ParseException;
+import broad.core.multiplealignment.MAFIO;
+import broad.core.multiplealignment.MultipleAlignment;
+import broad.core.siphy.EvolutionaryModel.OmegaFit;
+
+/**
+ * Long running region omega scoring (TreeScaler serve task). The neutral model, the MAF index of each chromosome and
+ * the pruned trees of the scorers stay loaded between requests, so scoring a small set of regions costs only their
+ * alignment parsing and fitting.
+ * Requests are read from standard input or from connections to a local port. A request is a batch of BED lines
+ * ended by a blank line or the end of the input, the regions are fitted concurrently and answered, in request order,
+ * with the task 10 line (chr, start, end, name, orientation, omega, log odds, p-value, tree length) followed by a blank
+ * line. Regions whose chromosome has no alignment, that are not aligned or whose fit failed get omega 1, log odds 0,
+ * p-value 1 and tree length 0. Lines starting with # are ignored except for the #stats command, which answers the
+ * request latency and throughput figures, and #shutdown, which stops the service.
+ *
+ * @author mgarber
+ */
+public class OmegaScoringService {
+	public static final String STATS_COMMAND = "#stats";
+	public static final String SHUTDOWN_COMMAND = "#shutdown";
+
+	private EvolutionaryModel model;
+	private File alignmentDir;
+	private String mafSuffix;
+	private List<String> ignoreList;
+	private ExecutorService executor;
+	private ThreadLocal<TreeScaler> scalers;
+	private Map<String, MAFIO> mafios = new HashMap<String, MAFIO>();
+	private volatile boolean shutdown;
+	private volatile ServerSocket server;
+
+	private long startTime = System.nanoTime();
+	private AtomicLong batches = new AtomicLong();
+	private AtomicLong regions = new AtomicLong();
+	private AtomicLong unscored = new AtomicLong();
+	private AtomicLong failures = new AtomicLong();
+	private AtomicLong totalBatchNanos = new AtomicLong();
+	private AtomicLong maxBatchNanos = new AtomicLong();
+
+	/**
+	 * @param model neutral model, each scoring thread fits with its own copy.
+	 * @param alignmentDir directory of the chromosome MAF alignments, named chromosome + mafSuffix (e.g. chr1.maf)
+	 */
+	public OmegaScoringService(final EvolutionaryModel model, File alignmentDir, String mafSuffix, List<String> ignoreList, int numThreads) {
+		this.model = model;
+		this.alignmentDir = alignmentDir;
+		this.mafSuffix = mafSuffix;
+		this.ignoreList = ignoreList;
+		executor = Executors.newFixedThreadPool(numThreads);
+		scalers = new ThreadLocal<TreeScaler>() {
+			protected TreeScaler initialValue() {
+				TreeScaler scaler = new TreeScaler();
+				scaler.model = model.copy();
+				return scaler;
+			}
+		};
+	}
+
+	/**
+	 * Serves the requests read from in until its end or a shutdown command.
+	 */
+	public void serve(BufferedReader in, BufferedWriter out) throws IOException, InterruptedException {
+		List<BED> batch = new ArrayList<BED>();
+		String line = null;
+		while(!shutdown && (line = in.readLine()) != null) {
+			line = line.trim();
+			if(line.length() == 0) {
+				if(!batch.isEmpty()) {
+					scoreBatch(batch, out);
+					batch = new ArrayList<BED>();
+				}
+			} else if(STATS_COMMAND.equals(line)) {
+				out.write("#" + toString());
+				out.newLine();
+				out.newLine();
+				out.flush();
+			} else if(SHUTDOWN_COMMAND.equals(line)) {
+				shutdown();
+			} else if(!line.startsWith("#") && !line.toLowerCase().startsWith("track") && !line.toLowerCase().startsWith("browser")) {
+				try {
+					batch.add(new BED(line.split("\t")));
+				} catch (ParseException pe) {
+					writeError(line, pe, out);
+				} catch (RuntimeException re) {
+					writeError(line, re, out);
+				}
+			}
+		}
+		if(!batch.isEmpty()) {
+			scoreBatch(batch, out);
+		}
+	}
+
+	/**
+	 * Serves the connections to the given port of the loopback interface, each in its own thread, until a
+	 * shutdown command is received.
+	 */
+	public void listen(int port) throws IOException, InterruptedException {
+		server = new ServerSocket(port, 50, InetAddress.getByName(null));
+		System.err.println("Scoring service listening on " + server.getLocalSocketAddress());
+		ExecutorService connections = Executors.newCachedThreadPool();
+		try {
+			while(!shutdown) {
+				final Socket client;
+				try {
+					client = server.accept();
+				} catch (SocketException se) {
+					if(shutdown) {
+						break;
+					}
+					throw se;
+				}
+				connections.submit(new Callable<Object>() {
+					public Object call() throws IOException, InterruptedException {
+						try {
+							serve(new BufferedReader(new InputStreamReader(client.getInputStream())),
+									new BufferedWriter(new OutputStreamWriter(client.getOutputStream())));
+						} finally {
+							client.close();
+						}
+						return null;
+					}
+				});
+			}
+		} finally {
+			server.close();
+			connections.shutdown();
+		}
+	}
+
+	/**
+	 * Stops serving, connections already accepted finish the batch they are scoring.
+	 */
+	public void shutdown() throws IOException {
+		shutdown = true;
+		if(server != null) {
+			server.close();
+		}
+	}
+
+	/**
+	 * Releases the scoring threads and the alignment file handles.
+	 */
+	public void close() throws IOException {
+		executor.shutdown();
+		synchronized (mafios) {
+			Iterator<MAFIO> it = mafios.values().iterator();
+			while(it.hasNext()) {
+				MAFIO mafio = it.next();
+				if(mafio != null) {
+					mafio.destroyFileHandle();
+				}
+			}
+			mafios.clear();
+		}
+	}
+
+	/**
+	 * Scores the regions of a batch concurrently and writes their lines in batch order followed by a blank line.
+	 */
+	void scoreBatch(List<BED> batch, BufferedWriter out) throws IOException, InterruptedException {
+		long start = System.nanoTime();
+		List<Future<OmegaFit>> fits = new ArrayList<Future<OmegaFit>>(batch.size());
+		for(final BED region : batch) {
+			fits.add(executor.submit(new Callable<OmegaFit>() {
+				public OmegaFit call() throws IOException, ParseException, MathException {
+					return score(region);
+				}
+			}));
+		}
+		for(int i = 0; i < batch.size(); i++) {
+			BED region = batch.get(i);
+			OmegaFit fit = null;
+			try {
+				fit = fits.get(i).get();
+			} catch (ExecutionException ee) {
+				failures.incrementAndGet();
+				System.err.println("Could not score region " + region.toString() + ": " + ee.getCause());
+			}
+			if(fit == null) {
+				unscored.incrementAndGet();
+			}
+			out.write(TreeScaler.regionFitLine(region, fit, 0));
+			out.newLine();
+		}
+		out.newLine();
+		out.flush();
+		long elapsed = System.nanoTime() - start;
+		batches.incrementAndGet();
+		regions.addAndGet(batch.size());
+		totalBatchNanos.addAndGet(elapsed);
+		long max = maxBatchNanos.get();
+		while(elapsed > max && !maxBatchNanos.compareAndSet(max, elapsed)) {
+			max = maxBatchNanos.get();
+		}
+	}
+
+	/**
+	 * @return the region fit, null if the region is not aligned.
+	 */
+	OmegaFit score(BED region) throws IOException, ParseException, MathException {
+		MAFIO mafio = getMAFIO(region.getChromosomeString());
+		if(mafio == null) {
+			return null;
+		}
+		MultipleAlignment regionAln = null;
+		// MAFIO loads into a single alignment, parsing is serialized by chromosome while fits run in parallel.
+		synchronized (mafio) {
+			regionAln = ConservationUtils.setUpMAF(mafio, ignoreList, model, region.getStart(), region.getEnd());
+			if(regionAln.isEmpty()) {
+				return null;
+			}
+		}
+		regionAln.encodeAsMatrix();
+		TreeScaler scaler = scalers.get();
+		scaler.setAlignment(regionAln);
+		return scaler.scaleRegion(ignoreList, region);
+	}
+
+	private MAFIO getMAFIO(String chr) throws IOException, ParseException {
+		synchronized (mafios) {
+			if(!mafios.containsKey(chr)) {
+				File alnFile = new File(alignmentDir, chr + mafSuffix);
+				MAFIO mafio = null;
+				if(alnFile.exists()) {
+					mafio = new MAFIO(alnFile.getAbsolutePath(), true);
+				} else {
+					System.err.println("No alignment " + alnFile + ", regions in " + chr + " will not be scored");
+				}
+				mafios.put(chr, mafio);
+			}
+			return mafios.get(chr);
+		}
+	}
+
+	private void writeError(String line, Exception e, BufferedWriter out) throws IOException {
+		out.write("#error could not parse region " + line + ": " + e.getMessage());
+		out.newLine();
+		out.flush();
+	}
+
+	public String toString() {
+		long numBatches = batches.get();
+		long numRegions = regions.get();
+		double uptime = (System.nanoTime() - startTime) / 1e9;
+		double busy = totalBatchNanos.get() / 1e9;
+		return "scoring service: " + numBatches + " requests, " + numRegions + " regions (" + unscored.get() + " unscored, " +
+			failures.get() + " failed), mean request latency " + (numBatches == 0 ? 0 : totalBatchNanos.get() / 1e6 / numBatches) +
+			" ms, max request latency " + maxBatchNanos.get() / 1e6 + " ms, " + (busy == 0 ? 0 : numRegions / busy) +
+			" regions/s while scoring, " + numRegions / uptime + " regions/s over " + uptime + " s up";
+	}
+}
@@ -0,0 +1,164 @@
+package broad.core.siphy;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.math.MathException;
+
+/**
+ * Appends an empirical p-value column to a delimited file (TreeScaler task 12).
+ * Comment (#) and track lines are copied, any other line gets the cumulative probability of the value in the given
+ * column, or its complement for right tail p-values. Files are cut in byte ranges at line boundaries that are annotated
+ * concurrently, each thread with its own formatter, and written back in order.
+ *
+ * @author mgarber
+ */
+public class PValueAnnotator {
+	public static final int DEFAULT_CHUNK_SIZE = 8 << 20;
+	private static final String LINE_SEPARATOR = System.getProperty("line.separator");
+
+	private CumulativeProbabilityTable cdf;
+	private int col;
+	private String separator;
+	private boolean rightTail;
+	private ThreadLocal<DecimalFormat> formats;
+
+	/**
+	 * @param col 0 based column holding the values
+	 * @param separator column separator regular expression, it is also used to separate the new column.
+	 * @param format pattern of the p-value DecimalFormat
+	 */
+	public PValueAnnotator(CumulativeProbabilityTable cdf, int col, String separator, boolean rightTail, final String format) {
+		this.cdf = cdf;
+		this.col = col;
+		this.separator = separator;
+		this.rightTail = rightTail;
+		formats = new ThreadLocal<DecimalFormat>() {
+			protected DecimalFormat initialValue() {
+				return new DecimalFormat(format);
+			}
+		};
+	}
+
+	public void annotate(BufferedReader br, BufferedWriter bw) throws IOException, MathException {
+		StringBuilder out = new StringBuilder();
+		String line = null;
+		while((line = br.readLine()) != null) {
+			annotateLine(line, out);
+			bw.write(out.toString());
+			out.setLength(0);
+		}
+	}
+
+	/**
+	 * Annotates the file in chunks of about chunkSize bytes, at most 2 * numThreads chunks are held in memory.
+	 */
+	public void annotate(File in, final BufferedWriter bw, int numThreads, int chunkSize) throws IOException, InterruptedException, ExecutionException {
+		List<long []> chunks = splitAtLines(in, chunkSize);
+		ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+		try {
+			LinkedList<Future<String>> pending = new LinkedList<Future<String>>();
+			for(long [] chunk : chunks) {
+				if(pending.size() == 2 * numThreads) {
+					bw.write(pending.removeFirst().get());
+				}
+				pending.add(executor.submit(new ChunkAnnotator(in, chunk[0], chunk[1])));
+			}
+			while(!pending.isEmpty()) {
+				bw.write(pending.removeFirst().get());
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * @return [start, end) byte ranges covering the file, each ending right after a new line or at the end of the file.
+	 */
+	static List<long []> splitAtLines(File in, int chunkSize) throws IOException {
+		List<long []> chunks = new ArrayList<long[]>();
+		RandomAccessFile raf = new RandomAccessFile(in, "r");
+		try {
+			long length = raf.length();
+			long start = 0;
+			while(start < length) {
+				long end = Math.min(length, start + chunkSize);
+				raf.seek(end);
+				int b;
+				while(end < length && (b = raf.read()) != -1) {
+					end++;
+					if(b == '\n') {
+						break;
+					}
+				}
+				chunks.add(new long [] {start, end});
+				start = end;
+			}
+		} finally {
+			raf.close();
+		}
+		return chunks;
+	}
+
+	private class ChunkAnnotator implements Callable<String> {
+		private File in;
+		private long start;
+		private long end;
+
+		ChunkAnnotator(File in, long start, long end) {
+			this.in = in;
+			this.start = start;
+			this.end = end;
+		}
+
+		public String call() throws IOException, MathException {
+			byte [] bytes = new byte[(int) (end - start)];
+			RandomAccessFile raf = new RandomAccessFile(in, "r");
+			try {
+				raf.seek(start);
+				raf.readFully(bytes);
+			} finally {
+				raf.close();
+			}
+			String text = new String(bytes);
+			StringBuilder out = new StringBuilder(text.length() + text.length() / 4);
+			int lineStart = 0;
+			while(lineStart < text.length()) {
+				int lineEnd = text.indexOf('\n', lineStart);
+				int next = lineEnd < 0 ? text.length() : lineEnd + 1;
+				if(lineEnd < 0) {
+					lineEnd = text.length();
+				}
+				if(lineEnd > lineStart && text.charAt(lineEnd - 1) == '\r') {
+					lineEnd--;
+				}
+				annotateLine(text.substring(lineStart, lineEnd), out);
+				lineStart = next;
+			}
+			return out.toString();
+		}
+	}
+
+	private void annotateLine(String line, StringBuilder out) throws MathException {
+		if(line.startsWith("#") || line.startsWith("track")) {
+			out.append(line).append(LINE_SEPARATOR);
+			return;
+		}
+		String [] lineInfo = line.split(separator);
+		double value = Double.parseDouble(lineInfo[col]);
+		double pVal = rightTail ? 1 - cdf.getCummulativeProbability(value) : cdf.getCummulativeProbability(value);
+		out.append(line.trim()).append(separator).append(formats.get().format(pVal)).append(LINE_SEPARATOR);
+	}
+}
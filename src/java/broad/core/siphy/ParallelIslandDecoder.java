@@ -0,0 +1,209 @@
+package broad.core.siphy;
+
+import java.io.IOException;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import broad.core.multiplealignment.MultipleAlignment;
+import broad.core.util.Metrics;
+
+/**
+ * Decodes ungapped reference islands concurrently. Islands are independent HMM runs (each starts from the
+ * initial distribution) so each is decoded with its own streaming decoder and state model copies. Results are handed
+ * to the listener in coordinate order from the calling thread.
+ * Memory is bounded: islands are submitted in coordinate order and at most islandsPerThread islands per thread are in
+ * flight, a decoded island is held until every island before it has been reported. Islands longer than
+ * maxBufferedColumns are not buffered, they are streamed to the listener from the calling thread once they are next in
+ * order (their columns are still scored by the emission executor). They are not split as the chain would restart at
+ * each piece and change the decoding. With a single thread every island is streamed.
+ * The decoding time of each island is recorded by the decode.island timer.
+ *
+ * @author mgarber
+ */
+public class ParallelIslandDecoder {
+	public static final int DEFAULT_ISLANDS_PER_THREAD = 4;
+	public static final int DEFAULT_MAX_BUFFERED_COLUMNS = 1 << 20;
+	private static final Metrics.Timer ISLAND_TIMER = Metrics.timer("decode.island");
+
+	private PiHMM hmm;
+	private MultipleAlignment alignment;
+	private int numThreads;
+	private ExecutorService emissionExecutor;
+	private int islandsPerThread = DEFAULT_ISLANDS_PER_THREAD;
+	private int maxBufferedColumns = DEFAULT_MAX_BUFFERED_COLUMNS;
+
+	/**
+	 * @param numThreads number of islands decoded at the same time.
+	 * @param emissionExecutor passed to each island decoder to score columns of large islands concurrently, may be null.
+	 */
+	public ParallelIslandDecoder(PiHMM hmm, MultipleAlignment alignment, int numThreads, ExecutorService emissionExecutor) {
+		this.hmm = hmm;
+		this.alignment = alignment;
+		this.numThreads = numThreads;
+		this.emissionExecutor = emissionExecutor;
+	}
+
+	/**
+	 * @param islandsPerThread number of islands per thread submitted ahead of the island being reported.
+	 */
+	public void setIslandsPerThread(int islandsPerThread) {
+		this.islandsPerThread = Math.max(1, islandsPerThread);
+	}
+
+	/**
+	 * @param maxBufferedColumns islands longer than this are streamed from the calling thread rather than buffered.
+	 */
+	public void setMaxBufferedColumns(int maxBufferedColumns) {
+		this.maxBufferedColumns = maxBufferedColumns;
+	}
+
+	/**
+	 * @param islands [start, end) reference coordinates of the islands, in coordinate order.
+	 */
+	public void viterbi(List<int []> islands, final StreamingPiHMMDecoder.PathListener listener) throws IOException, InterruptedException, ExecutionException {
+		List<IslandJob> jobs = new LinkedList<IslandJob>();
+		for(int [] island : islands) {
+			jobs.add(new IslandJob(island[0], island[1]) {
+				short [] path;
+
+				void stream(StreamingPiHMMDecoder decoder) throws IOException, InterruptedException, ExecutionException {
+					decoder.viterbi(start, end, listener);
+				}
+
+				void decode(StreamingPiHMMDecoder decoder) throws IOException, InterruptedException, ExecutionException {
+					path = new short[end - start];
+					decoder.viterbi(start, end, new StreamingPiHMMDecoder.PathListener() {
+						public void state(int referencePosition, short state) {
+							path[referencePosition - start] = state;
+						}
+					});
+				}
+
+				void report() throws IOException {
+					for(int i = 0; i < path.length; i++) {
+						listener.state(start + i, path[i]);
+					}
+					path = null;
+				}
+			});
+		}
+		run(jobs);
+	}
+
+	/**
+	 * @param islands [start, end) reference coordinates of the islands, in coordinate order.
+	 */
+	public void computePosteriors(List<int []> islands, final StreamingPiHMMDecoder.PosteriorListener listener) throws IOException, InterruptedException, ExecutionException {
+		final int numStates = hmm.getTransitions().length;
+		List<IslandJob> jobs = new LinkedList<IslandJob>();
+		for(int [] island : islands) {
+			jobs.add(new IslandJob(island[0], island[1]) {
+				double [][] posteriors;
+
+				void stream(StreamingPiHMMDecoder decoder) throws IOException, InterruptedException, ExecutionException {
+					decoder.computePosteriors(start, end, listener);
+				}
+
+				void decode(StreamingPiHMMDecoder decoder) throws IOException, InterruptedException, ExecutionException {
+					posteriors = new double[numStates][end - start];
+					decoder.computePosteriors(start, end, new StreamingPiHMMDecoder.PosteriorListener() {
+						public void posterior(int referencePosition, double[] statePosteriors) {
+							for(int s = 0; s < numStates; s++) {
+								posteriors[s][referencePosition - start] = statePosteriors[s];
+							}
+						}
+					});
+				}
+
+				void report() throws IOException {
+					double [] statePosteriors = new double[numStates];
+					for(int i = 0; i < end - start; i++) {
+						for(int s = 0; s < numStates; s++) {
+							statePosteriors[s] = posteriors[s][i];
+						}
+						listener.posterior(start + i, statePosteriors);
+					}
+					posteriors = null;
+				}
+			});
+		}
+		run(jobs);
+	}
+
+	private void run(List<IslandJob> jobs) throws IOException, InterruptedException, ExecutionException {
+		long wallStart = System.currentTimeMillis();
+		int numIslands = jobs.size();
+		int window = numThreads > 1 ? numThreads * islandsPerThread : 0;
+		ExecutorService executor = numThreads > 1 ? Executors.newFixedThreadPool(numThreads) : null;
+		StreamingPiHMMDecoder streamingDecoder = new StreamingPiHMMDecoder(hmm, alignment, emissionExecutor);
+		LinkedList<IslandJob> inFlight = new LinkedList<IslandJob>();
+		try {
+			long decodingTime = 0;
+			while(!jobs.isEmpty() || !inFlight.isEmpty()) {
+				while(!jobs.isEmpty() && inFlight.size() < window) {
+					IslandJob job = jobs.remove(0);
+					if(job.end - job.start <= maxBufferedColumns) {
+						job.future = executor.submit(job);
+					}
+					inFlight.add(job);
+				}
+				IslandJob job = inFlight.isEmpty() ? jobs.remove(0) : inFlight.removeFirst();
+				if(job.future == null) {
+					long jobStart = System.currentTimeMillis();
+					long timerStart = ISLAND_TIMER.start();
+					job.stream(streamingDecoder);
+					ISLAND_TIMER.stop(timerStart);
+					job.elapsed = System.currentTimeMillis() - jobStart;
+				} else {
+					job.future.get();
+					job.report();
+				}
+				decodingTime += job.elapsed;
+			}
+			long wallTime = System.currentTimeMillis() - wallStart;
+			System.err.println("Decoded " + numIslands + " islands in " + wallTime + " ms, " + decodingTime + " ms of island decoding time");
+		} finally {
+			if(executor != null) {
+				executor.shutdownNow();
+			}
+		}
+	}
+
+	private abstract class IslandJob implements Callable<Object> {
+		int start;
+		int end;
+		long elapsed;
+		Future<Object> future;
+
+		IslandJob(int start, int end) {
+			this.start = start;
+			this.end = end;
+		}
+
+		/**
+		 * Decodes the island straight to the listener.
+		 */
+		abstract void stream(StreamingPiHMMDecoder decoder) throws IOException, InterruptedException, ExecutionException;
+
+		/**
+		 * Decodes the island into a buffer reported by report.
+		 */
+		abstract void decode(StreamingPiHMMDecoder decoder) throws IOException, InterruptedException, ExecutionException;
+
+		abstract void report() throws IOException;
+
+		public Object call() throws Exception {
+			long jobStart = System.currentTimeMillis();
+			long timerStart = ISLAND_TIMER.start();
+			decode(new StreamingPiHMMDecoder(hmm, alignment, emissionExecutor));
+			ISLAND_TIMER.stop(timerStart);
+			elapsed = System.currentTimeMillis() - jobStart;
+			return null;
+		}
+	}
+}
@@ -5,6 +5,7 @@ import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Date;
 import java.util.Iterator;
@@ -13,6 +14,10 @@ import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.forester.phylogeny.Phylogeny;
 
@@ -25,12 +30,17 @@ import broad.core.multiplealignment.MultipleAlignmentFactory;
 import Jama.Matrix;
 import broad.core.util.CLUtil;
 import broad.core.util.CLUtil.ArgumentMap;
+import broad.core.util.Metrics;
 
 public class PiHMM extends MarkovModel<Map<String, Matrix>>{
 	
 	private EvolutionaryModel neutralModel;
 	private double nu;
 	private double mu;
+	private double [][] transitions;
+	private double [] initialProbabilities;
+	private ConcurrentHashMap<String, Phylogeny> siteTrees = new ConcurrentHashMap<String, Phylogeny>();
+	private ColumnPatternCache<double []> emissionCache;
 	
 	private static final double SMALL_PROB = 0.03;
 	private static final double SMALL_NUM = 0.0000001;
@@ -55,12 +65,18 @@ public class PiHMM extends MarkovModel<Map<String, Matrix>>{
 	public PiHMM(EvolutionaryModel neutral, int stateNumber) {
 		super(stateNumber);
 		this.neutralModel = neutral;
+		setEmissionCacheSize(ColumnPatternCache.DEFAULT_MAX_ENTRIES);
+		transitions = new double[stateNumber][stateNumber];
+		initialProbabilities = new double[stateNumber];
 		addState(new PiStateModel(neutralModel, "neutral"));
 	}
 	
 	public PiHMM(EvolutionaryModel neutral, double minExpectedElementLength, double expectedCoverage) {
 		super(conserved_pis.length + 1);
 		this.neutralModel = neutral;
+		setEmissionCacheSize(ColumnPatternCache.DEFAULT_MAX_ENTRIES);
+		transitions = new double[conserved_pis.length + 1][conserved_pis.length + 1];
+		initialProbabilities = new double[conserved_pis.length + 1];
 		addState(new PiStateModel(neutralModel, "neutral"));
 		setMuNuAndTransitions(minExpectedElementLength, expectedCoverage);
 	}
@@ -86,7 +102,171 @@ public class PiHMM extends MarkovModel<Map<String, Matrix>>{
 		return super.runBackwardAlgorithm(new AlignmentListWrapper(alignment) , forwardData);
 	}
 	
-	public static class PiStateModel implements MarkovState<Map<String, Matrix>> {
+	/**
+	 * Computes the emission log probabilities of every state for every column of the given (matrix encoded) alignment.
+	 * @param executor used to score column blocks concurrently, if null the columns are scored in the calling thread.
+	 */
+	public EmissionMatrix computeEmissions(MultipleAlignment alignment, ExecutorService executor) throws InterruptedException, ExecutionException {
+		return EmissionMatrix.compute(this, alignment, executor);
+	}
+	
+	/**
+	 * Viterbi path computed from precomputed emissions, equivalent to viterbiMostLikelyEstimation(MultipleAlignment)
+	 * without evaluating the state models again.
+	 */
+	public short[] viterbiMostLikelyEstimation(EmissionMatrix emissions) {
+		int numStates = emissions.getNumberOfStates();
+		int n = emissions.getNumberOfColumns();
+		short [] path = new short[n];
+		if(n == 0) {
+			return path;
+		}
+		double [][] logTransitions = getLogTransitions();
+		double [] score = new double[numStates];
+		double [] nextScore = new double[numStates];
+		short [][] backPointers = new short[n][];
+		double [] logInitial = getLogInitialProbabilities();
+		for(int s = 0; s < numStates; s++) {
+			score[s] = logInitial[s] + emissions.getLogEmission(s, 0);
+		}
+		for(int t = 1; t < n; t++) {
+			backPointers[t] = new short[numStates];
+			HMMSteps.viterbiStep(score, logTransitions, emissions.getLogEmissions(), t, nextScore, backPointers[t]);
+			double [] tmp = score;
+			score = nextScore;
+			nextScore = tmp;
+		}
+		path[n - 1] = (short) HMMSteps.argMax(score);
+		for(int t = n - 1; t > 0; t--) {
+			path[t - 1] = backPointers[t][path[t]];
+		}
+		return path;
+	}
+	
+	/**
+	 * Posterior probability of each state at each column computed from precomputed emissions with a scaled forward backward pass.
+	 * @return matrix indexed by [state][column]
+	 */
+	public double [][] computePosteriorProbabilities(EmissionMatrix emissions) {
+		int numStates = emissions.getNumberOfStates();
+		int n = emissions.getNumberOfColumns();
+		double [][] posteriors = new double[numStates][n];
+		if(n == 0) {
+			return posteriors;
+		}
+		double [][] forward = new double[n][numStates];
+		double [] scaledEmission = new double[numStates];
+		HMMSteps.scaledEmissions(emissions.getLogEmissions(), 0, scaledEmission);
+		HMMSteps.initialStep(initialProbabilities, scaledEmission, forward[0]);
+		for(int t = 1; t < n; t++) {
+			HMMSteps.scaledEmissions(emissions.getLogEmissions(), t, scaledEmission);
+			HMMSteps.forwardStep(forward[t-1], transitions, scaledEmission, forward[t]);
+		}
+		double [] backward = new double[numStates];
+		double [] previousBackward = new double[numStates];
+		Arrays.fill(backward, 1);
+		for(int t = n - 1; t >= 0; t--) {
+			HMMSteps.posterior(forward[t], backward, posteriors, t);
+			if(t > 0) {
+				HMMSteps.scaledEmissions(emissions.getLogEmissions(), t, scaledEmission);
+				HMMSteps.backwardStep(backward, transitions, scaledEmission, previousBackward);
+				double [] tmp = backward;
+				backward = previousBackward;
+				previousBackward = tmp;
+			}
+		}
+		return posteriors;
+	}
+	
+	double [][] getLogTransitions() {
+		double [][] logTransitions = new double[transitions.length][transitions.length];
+		for(int i = 0; i < transitions.length; i++) {
+			for(int j = 0; j < transitions.length; j++) {
+				logTransitions[i][j] = Math.log(transitions[i][j]);
+			}
+		}
+		return logTransitions;
+	}
+	
+	double [] getLogInitialProbabilities() {
+		double [] logInitial = new double[initialProbabilities.length];
+		for(int i = 0; i < initialProbabilities.length; i++) {
+			logInitial[i] = Math.log(initialProbabilities[i]);
+		}
+		return logInitial;
+	}
+	
+	double [][] getTransitions() { return transitions; }
+	
+	double [] getInitialProbabilities() { return initialProbabilities; }
+	
+	/**
+	 * @return the neutral tree pruned of the sequences gapped in the given column. Trees are shared by all
+	 * 	columns with the same gap pattern and by all states (they only differ in their stationary distribution).
+	 */
+	Phylogeny getSiteTree(Map<String, Matrix> alignmentColumn) {
+		List<String> gappedLeaves = ConservationUtils.getGappedSeqsInWindowMatrix(1, alignmentColumn, 0);
+		String gapPattern = gappedLeaves.toString();
+		Phylogeny siteTree = siteTrees.get(gapPattern);
+		if(siteTree == null) {
+			siteTree = ConservationUtils.pruneTree(gappedLeaves, neutralModel.getTree());
+			Phylogeny previous = siteTrees.putIfAbsent(gapPattern, siteTree);
+			if(previous != null) {
+				siteTree = previous;
+			}
+		}
+		return siteTree;
+	}
+	
+	/**
+	 * @return cache of the log emissions of all states by column pattern, shared by all threads scoring columns.
+	 */
+	public ColumnPatternCache<double []> getEmissionCache() {
+		return emissionCache;
+	}
+	
+	/**
+	 * @param maxPatterns maximum number of column patterns whose emissions are kept.
+	 */
+	public void setEmissionCacheSize(int maxPatterns) {
+		emissionCache = new ColumnPatternCache<double[]>("PiHMM emission", maxPatterns, neutralModel.getTree().getAllExternalSeqNames());
+	}
+	
+	/**
+	 * @return independent copies of the state emission models, state models keep likelihood computation
+	 * 	buffers so each thread scoring columns needs its own.
+	 */
+	List<SiteTreeEmission> copyStateEmissions() {
+		List<SiteTreeEmission> copies = new ArrayList<SiteTreeEmission>(getStates().size());
+		for(MarkovState<Map<String, Matrix>> state : getStates()) {
+			copies.add(((SiteTreeEmission) state).copy());
+		}
+		return copies;
+	}
+	
+	/**
+	 * States whose emission can be computed for a given, already pruned, site tree.
+	 */
+	public interface SiteTreeEmission {
+		double getEmissionLogProbability(Map<String, Matrix> alignmentColumn, Phylogeny siteTree);
+		SiteTreeEmission copy();
+		/**
+		 * Samples a column drawing from r only, so emitted columns are reproducible from its seed.
+		 */
+		Map<String, Matrix> emitObservation(Random r);
+	}
+	
+	private void setTransition(int from, int to, double probability) {
+		setStateTransitionProbability(from, to, probability);
+		transitions[from][to] = probability;
+	}
+	
+	private void setInitialProbability(int state, double probability) {
+		setInitialStateTransitionProbability(state, probability);
+		initialProbabilities[state] = probability;
+	}
+	
+	public static class PiStateModel implements MarkovState<Map<String, Matrix>>, SiteTreeEmission {
 		EvolutionaryModel model;
 		String name;
 		double emissionProbOfUnalignRegion = 1;
@@ -103,7 +283,9 @@ public class PiHMM extends MarkovModel<Map<String, Matrix>>{
 		}
 		
 		public double getEmissionLogProbability(Map<String, Matrix> alignmentColumn) {
-			return Math.log(getEmissionProbability(alignmentColumn));
+			List<String> gappedLeaves = ConservationUtils.getGappedSeqsInWindowMatrix(1, alignmentColumn, 0);
+			Phylogeny siteTree = ConservationUtils.pruneTree(gappedLeaves, model.getTree());
+			return getEmissionLogProbability(alignmentColumn, siteTree);
 		}
 
 		public double getEmissionProbability(Map<String, Matrix> alignmentColumn) {
@@ -113,9 +295,23 @@ public class PiHMM extends MarkovModel<Map<String, Matrix>>{
 			//}
 			Phylogeny siteTree = ConservationUtils.pruneTree(gappedLeaves, model.getTree());
 			//System.err.println("gapedLeaves: " + gappedLeaves);
+			return getEmissionProbability(alignmentColumn, siteTree);
+		}
+		
+		public double getEmissionProbability(Map<String, Matrix> alignmentColumn, Phylogeny siteTree) {
 			return model.computeLikelihood(alignmentColumn, siteTree.getRoot(), 0);
 		}
 
+		public double getEmissionLogProbability(Map<String, Matrix> alignmentColumn, Phylogeny siteTree) {
+			return model.computeLogLikelihood(alignmentColumn, siteTree.getRoot(), 0);
+		}
+		
+		public PiStateModel copy() {
+			PiStateModel copy = new PiStateModel(model, name);
+			copy.emissionProbOfUnalignRegion = emissionProbOfUnalignRegion;
+			return copy;
+		}
+
 		public String getName() {
 			return name;
 		}
@@ -125,7 +321,11 @@ public class PiHMM extends MarkovModel<Map<String, Matrix>>{
 		}
 
 		public Map<String, Matrix> emitObservation() {
-			Map<String, Short> column = model.sample();
+			return emitObservation(new Random());
+		}
+
+		public Map<String, Matrix> emitObservation(Random r) {
+			Map<String, Short> column = model.sample(r);
 			Map<String, Matrix> columnMatrix = new LinkedHashMap<String, Matrix>();
 			for (String key : column.keySet()) {
 				short val = column.get(key);
@@ -140,9 +340,14 @@ public class PiHMM extends MarkovModel<Map<String, Matrix>>{
 		
 	}
 	
-	public static class ConstrainedModel implements MarkovState<Map<String, Matrix>> {
+	public static class ConstrainedModel implements MarkovState<Map<String, Matrix>>, SiteTreeEmission {
 		List<PiStateModel> conservedStates;
 		String name;
+		
+		private ConstrainedModel(String name, List<PiStateModel> conservedStates) {
+			this.name = name;
+			this.conservedStates = conservedStates;
+		}
 
 		public ConstrainedModel( EvolutionaryModel neutralModel, String name) {
 			this.name = name;
@@ -159,7 +364,9 @@ public class PiHMM extends MarkovModel<Map<String, Matrix>>{
 		}
 		
 		public double getEmissionLogProbability(Map<String, Matrix> alignmentColumn) {
-			return Math.log(getEmissionProbability(alignmentColumn));
+			List<String> gappedLeaves = ConservationUtils.getGappedSeqsInWindowMatrix(1, alignmentColumn, 0);
+			Phylogeny siteTree = ConservationUtils.pruneTree(gappedLeaves, conservedStates.get(0).model.getTree());
+			return getEmissionLogProbability(alignmentColumn, siteTree);
 		}
 
 		public double getEmissionProbability(Map<String, Matrix> alignmentColumn) {
@@ -171,16 +378,58 @@ public class PiHMM extends MarkovModel<Map<String, Matrix>>{
 			}
 			return emissionProb/(double)conservedStates.size();
 		}
+		
+		/**
+		 * All conserved states share the neutral tree topology and branch lengths so the site tree is pruned only once.
+		 */
+		public double getEmissionProbability(Map<String, Matrix> alignmentColumn, Phylogeny siteTree) {
+			double emissionProb = 0;
+			for(PiStateModel state : conservedStates) {
+				emissionProb = emissionProb + state.getEmissionProbability(alignmentColumn, siteTree);
+			}
+			return emissionProb/(double)conservedStates.size();
+		}
+
+		/**
+		 * Log of the mean state likelihood, summed in log space so large trees do not underflow.
+		 */
+		public double getEmissionLogProbability(Map<String, Matrix> alignmentColumn, Phylogeny siteTree) {
+			double [] stateLogProbs = new double[conservedStates.size()];
+			double max = Double.NEGATIVE_INFINITY;
+			for(int i = 0; i < stateLogProbs.length; i++) {
+				stateLogProbs[i] = conservedStates.get(i).getEmissionLogProbability(alignmentColumn, siteTree);
+				max = Math.max(max, stateLogProbs[i]);
+			}
+			if(Double.isInfinite(max)) {
+				return max;
+			}
+			double sum = 0;
+			for(int i = 0; i < stateLogProbs.length; i++) {
+				sum += Math.exp(stateLogProbs[i] - max);
+			}
+			return max + Math.log(sum/(double)stateLogProbs.length);
+		}
+		
+		public ConstrainedModel copy() {
+			List<PiStateModel> copies = new ArrayList<PiStateModel>(conservedStates.size());
+			for(PiStateModel state : conservedStates) {
+				copies.add(state.copy());
+			}
+			return new ConstrainedModel(name, copies);
+		}
 
 		public String getName() {
 			return name;
 		}
 		
 		public Map<String, Matrix> emitObservation() {
+			return emitObservation(new Random());
+		}
+
+		public Map<String, Matrix> emitObservation(Random r) {
 			//First pick a state, then emit from it
-			Random r = new Random();
 			int sampledStateIdx = r.nextInt(conservedStates.size());
-			return conservedStates.get(sampledStateIdx).emitObservation();
+			return conservedStates.get(sampledStateIdx).emitObservation(r);
 		}
 	}
 	
@@ -305,11 +554,15 @@ public class PiHMM extends MarkovModel<Map<String, Matrix>>{
 	}
 	
 	public static final String USAGE = "Usage: PiHMM TASK=<task_num> <task_args>\n" +
+	"\tAny task: [-metrics <File where counters, including the emission pattern cache hits and misses, are written every -metricsInterval seconds (default 60) and on exit> -metricsJMX <Publish the same metrics as JMX attributes>]\n" +
 	"\tTasks:\n" +
 	"\t\t1. Segment genome into pi-conserved and noncoserved.  -in <multiple alignment file>  -mod <Neutral Evolutionary model consisting of aminoacid background distribution, mutation matrix and neutral phylogenetic tree>" +
 	"\n\t\t -l <The smoothness parameter, and should be the expected average conserved element length> and -gamma <The expected coverage parameter, how much of the genome is expected to be conserved>" +
 	"\n\t\t -format <Alignment format default is FASTA is default> -ignore <comma separated species to ignore> -ref <reference sequence id, necessary if the alignment is not in MAF format>" +
 	"\n\t\t  [-start <If MAF file, you may specify the reference start coordinate> -end <If MAF file, you may specify the reference end coordinate>]" +
+	"\n\t\t  [-threads <number of threads used to compute state emissions, default 1, also applies to task 2>]" +
+	"\n\t\t  [-islandThreads <number of ungapped islands decoded at the same time, default 1, also applies to task 2>]" +
+	"\n\t\t  [-patternCacheSize <maximum number of distinct column patterns whose emissions are cached, default 500000, also applies to task 2>]" +
 	"\n\t\t2. Compute posterior probabilities of each site of being pi-conserved.  -in <multiple alignment file>  -mod <Neutral Evolutionary model consisting of aminoacid background distribution, mutation matrix and neutral phylogenetic tree>" +
 	"\n\t\t -l <The smoothness parameter, and should be the expected minimum conserved element length> and -gamma <The expected coverage parameter, how much of the genome is expected to be conserved>" +
 	"\n\t\t -format <Alignment format default is FASTA is default> -ignore <comma separated species to ignore> -ref <reference sequence id, necessary if the alignment is not in MAF format>" +
@@ -318,16 +571,25 @@ public class PiHMM extends MarkovModel<Map<String, Matrix>>{
 	"\n\t\t -l <The smoothness parameter, and should be the expected minimum conserved element length> and -gamma <The expected coverage parameter, how much of the genome is expected to be conserved>" +
 	"\n\t\t -format <Alignment format default is FASTA is default> -ignore <comma separated species to ignore> -ref <reference sequence id, necessary if the alignment is not in MAF format>" +
 	"\n\t\t  [-start <If MAF file, you may specify the reference start coordinate> -end <If MAF file, you may specify the reference end coordinate>]" +
+	"\n\t\t5. Train the smoothness (l) and coverage (gamma) parameters by Baum-Welch. -in <multiple alignment file> -mod <Neutral Evolutionary model>" +
+	"\n\t\t -l <Initial l> -gamma <Initial gamma> -format <Alignment format default is FASTA is default> -ignore <comma separated species to ignore> -ref <reference sequence id, necessary if the alignment is not in MAF format>" +
+	"\n\t\t  [-start <If MAF file, you may specify the reference start coordinate> -end <If MAF file, you may specify the reference end coordinate>]" +
+	"\n\t\t  [-maxIterations <default 50> -tolerance <relative log likelihood change to stop, default 1e-6> -threads <default 1> -chunk <training chunk size, default 200000>]" +
+	"\n\t\t  [-checkpoint <file where parameters are saved after every iteration, training resumes from it if it exists>] -out <Trained parameters file or standard out>" +
+	"\n\t\t  Emissions of the training alignment are kept in memory (two doubles per column)." +
 	"\n\t\t4. Simulate an alignment with for given HMM parameters. \n\t\tParameters:\n\t\t-mod <Base m,odel to use> \n\t\t-ignore <optional -- comma separated species to ignore in the given model tree> \n\t\t-colNum <Number of columns to sample> -\n\t\t-otherPI <Conserved or alternative PI distribution, as a comma separated list of the A,C,G,T frequencies, add as many -otherPI as different PI states are desired. > " +
 	"\n\t\t -l <The smoothness parameter, how long in average should be the stretches of the generated alignment should be from the alternative PI model> and -gamma <The coverage parameter, how much of the sampled alignmnet should be made of the alternative PI model> \n\t\t-out <Generated alignment output file>" +
 	"\n"; 
 	
-	private static final int CHUNK_SIZE = 200000;
-	private static final int CHUNK_OVERLAP = 500;
-	
 	public static void main(String[] args) throws Exception {
 		
 		ArgumentMap argMap = CLUtil.getParameters(args, USAGE);
+		if(argMap.containsKey("metrics")) {
+			Metrics.reportTo(new File(argMap.getMandatory("metrics")), argMap.getInteger("metricsInterval", 60) * 1000L);
+		}
+		if(argMap.containsKey("metricsJMX")) {
+			Metrics.registerMBean();
+		}
 		
 		if ("1".equals(argMap.getTask())) {	
 			File modelFile = new File(argMap.getMandatory("mod"));
@@ -347,39 +609,25 @@ public class PiHMM extends MarkovModel<Map<String, Matrix>>{
 			}
 			EvolutionaryModel model = new EvolutionaryModel(modelParams);
 			PiHMM hmm = createDefaultTwoStateChain(l, gamma, model);
+			hmm.setEmissionCacheSize(argMap.getInteger("patternCacheSize", ColumnPatternCache.DEFAULT_MAX_ENTRIES));
 			
 			MultipleAlignment alignment = ConservationUtils.setUpAlignment(argMap, alnFile, alnFileFormat, ignoreList, model);
 			//System.out.println("Alignment Size: " + alignment.length() + " human seq: " + alignment.getReference().getSequenceBases());
+			ExecutorService executor = createEmissionExecutor(argMap);
 			
 			List<int[]> ungappedIslands = alignment.getUngappedSequenceReferenceIslands();
 			Iterator<int []> ungappedRegionIt = ungappedIslands.iterator();
 			
-			BufferedWriter bw = argMap. getOutputWriter();
-			while(ungappedRegionIt.hasNext()) {
-				int[] startEnd = ungappedRegionIt.next();
-				int islandStart = startEnd[0] + alignment.getReferenceStart();
-				int islandEnd   = startEnd[1] + alignment.getReferenceStart();
-	 			int chunkStart = islandStart;
-				//short [] path = new short [alignment.length()];
-				while(chunkStart < islandEnd) {
-					int chunkEnd = Math.min(chunkStart + CHUNK_SIZE, islandEnd);
-					System.err.println("Chunk Start: " + chunkStart + " end " + chunkEnd);
-					MultipleAlignment chunk = alignment.getSubAlignment(Math.max(islandStart, chunkStart - CHUNK_OVERLAP), chunkEnd, false);
-					chunk.encodeAsMatrix();
-					//System.out.println("Chunk Size: " + chunk.length() + " human seq: " + chunk.getReference().getSequenceBases());
-					short [] chunkPath = hmm.viterbiMostLikelyEstimation(chunk);
-					int shift = chunkStart == islandStart ? 0 : CHUNK_OVERLAP ;
-					for(int i = shift; i < chunkPath.length; i++) {
-						//path[chunkStart - alignment.getReferenceStart() + i] = chunkPath[i];
-						bw.write((chunkStart + i - shift) + "\t" + chunkPath[i] );
-						bw.newLine();
-					}
-					//System.out.println("chunk start " + chunkEnd + " alignment end " + alignment.getReferenceEnd());
-					chunkStart = chunkEnd;
-					
+			final BufferedWriter bw = argMap. getOutputWriter();
+			ParallelIslandDecoder decoder = new ParallelIslandDecoder(hmm, alignment, argMap.getInteger("islandThreads", 1), executor);
+			decoder.viterbi(toReferenceCoordinates(ungappedRegionIt, alignment), new StreamingPiHMMDecoder.PathListener() {
+				public void state(int referencePosition, short state) throws IOException {
+					bw.write(referencePosition + "\t" + state);
+					bw.newLine();
 				}
-			}
+			});
 			bw.close();
+			shutdown(executor);
 		} else if ("2".equals(argMap.getTask())) {	
 			File modelFile = new File(argMap.getMandatory("mod"));
 			String alnFile = argMap.getInput();
@@ -402,42 +650,53 @@ public class PiHMM extends MarkovModel<Map<String, Matrix>>{
 
 			//PiHMM hmm = new PiHMM(model,l, gamma);
 			PiHMM hmm = createDefaultTwoStateChain(l, gamma, model);
+			hmm.setEmissionCacheSize(argMap.getInteger("patternCacheSize", ColumnPatternCache.DEFAULT_MAX_ENTRIES));
 			
 			MultipleAlignment alignment = ConservationUtils.setUpAlignment(argMap, alnFile, alnFileFormat, ignoreList, model);
 			//alignment.encodeAsMatrix();
 			System.err.println("Alignment loaded: " + ((new Date()).getTime() - initialTime));
+			ExecutorService executor = createEmissionExecutor(argMap);
 			//System.out.println("Alignment Size: " + alignment.length() + " human seq: " + alignment.getReference().getSequenceBases());
 			List<int[]> ungappedIslands = alignment.getUngappedSequenceReferenceIslands();
 			Iterator<int []> ungappedRegionIt = ungappedIslands.iterator();
 			
-			BufferedWriter bw = argMap. getOutputWriter();
-			while(ungappedRegionIt.hasNext()) {
-				while(ungappedRegionIt.hasNext()) {
-					int[] startEnd = ungappedRegionIt.next();
-					int islandStart = startEnd[0] + alignment.getReferenceStart();
-					int islandEnd   = startEnd[1] + alignment.getReferenceStart();
-		 			int chunkStart = islandStart;
-		 			while(chunkStart < islandEnd ) {
-						int chunkEnd = Math.min(chunkStart + CHUNK_SIZE, islandEnd);
-						System.err.println("Chunk Start: " + chunkStart + " end " + chunkEnd);
-						MultipleAlignment chunk = alignment.getSubAlignment(Math.max(islandStart, chunkStart - CHUNK_OVERLAP), chunkEnd, false);
-						chunk.encodeAsMatrix();
-						System.err.println("Chunk encoded: " + ((new Date()).getTime() - initialTime));
-						//System.out.println("Chunk Size: " + chunk.length() + " human seq: " + chunk.getReference().getSequenceBases());
-						ForwardResult forward = hmm.runForwardAlgorithm(chunk);
-						System.err.println("Chunk forward: " + ((new Date()).getTime() - initialTime));
-						BackwardResult backward = forward.runBackwardAlgorithm();
-						System.err.println("Chunk backward: " + ((new Date()).getTime() - initialTime));
-						int shift = chunkStart == islandStart ? 0 : CHUNK_OVERLAP ;
-						for(int i = shift; i < chunk.length(); i++) {
-							bw.write((chunkStart + i - shift) + "\t" +(1 - backward.getPosteriorProbability(0,  i)));
-							bw.newLine();
-						}
-						System.err.println("Chunk posterior written: " + ((new Date()).getTime() - initialTime));
-						chunkStart = chunkEnd ;
-		 			}
+			final BufferedWriter bw = argMap. getOutputWriter();
+			ParallelIslandDecoder decoder = new ParallelIslandDecoder(hmm, alignment, argMap.getInteger("islandThreads", 1), executor);
+			decoder.computePosteriors(toReferenceCoordinates(ungappedRegionIt, alignment), new StreamingPiHMMDecoder.PosteriorListener() {
+				public void posterior(int referencePosition, double[] statePosteriors) throws IOException {
+					bw.write(referencePosition + "\t" +(1 - statePosteriors[0]));
+					bw.newLine();
 				}
+			});
+			System.err.println("Posteriors written: " + ((new Date()).getTime() - initialTime));
+			bw.close();
+			shutdown(executor);
+		} else if ("5".equals(argMap.getTask())) {	
+			File modelFile = new File(argMap.getMandatory("mod"));
+			String alnFile = argMap.getInput();
+			String alnFileFormat = argMap.containsKey("format") ? argMap.get("format") : "FASTA";
+			String ignoreListStr = argMap.get("ignore");
+			double l = argMap.getDouble("l");
+			double gamma = argMap.getDouble("gamma");
+			int numThreads = argMap.getInteger("threads", 1);
+			List<String> ignoreList = ConservationUtils.commaSeparatedStringToList(ignoreListStr);
+			
+			EvolutionaryModelParameters modelParams = new EvolutionaryModelParameters(modelFile);
+			if(!ignoreList.isEmpty()) {
+				Phylogeny tree = modelParams.getTree();
+				modelParams.setTree(ConservationUtils.pruneTree(ignoreList, tree));
 			}
+			EvolutionaryModel model = new EvolutionaryModel(modelParams);
+			MultipleAlignment alignment = ConservationUtils.setUpAlignment(argMap, alnFile, alnFileFormat, ignoreList, model);
+			List<int []> islands = toReferenceCoordinates(alignment.getUngappedSequenceReferenceIslands().iterator(), alignment);
+			
+			PiHMMTrainer trainer = new PiHMMTrainer(model, alignment, islands, argMap.getInteger("chunk", PiHMMTrainer.DEFAULT_CHUNK_SIZE), numThreads);
+			if(argMap.containsKey("checkpoint")) {
+				trainer.setCheckpoint(new File(argMap.get("checkpoint")));
+			}
+			trainer.train(l, gamma, argMap.getInteger("maxIterations", 50), argMap.getDouble("tolerance", 1e-6));
+			BufferedWriter bw = argMap.getOutputWriter();
+			trainer.write(bw);
 			bw.close();
 		}else if("4".equals(argMap.getTask())) {
 			File modelFile = new File(argMap.getMandatory("mod"));
@@ -497,6 +756,26 @@ public class PiHMM extends MarkovModel<Map<String, Matrix>>{
 		}
 	}
 
+	private static ExecutorService createEmissionExecutor(ArgumentMap argMap) {
+		int numThreads = argMap.getInteger("threads", 1);
+		return numThreads > 1 ? Executors.newFixedThreadPool(numThreads) : null;
+	}
+	
+	private static List<int []> toReferenceCoordinates(Iterator<int []> ungappedRegionIt, MultipleAlignment alignment) {
+		List<int []> islands = new ArrayList<int[]>();
+		while(ungappedRegionIt.hasNext()) {
+			int[] startEnd = ungappedRegionIt.next();
+			islands.add(new int [] {startEnd[0] + alignment.getReferenceStart(), startEnd[1] + alignment.getReferenceStart()});
+		}
+		return islands;
+	}
+	
+	private static void shutdown(ExecutorService executor) {
+		if(executor != null) {
+			executor.shutdown();
+		}
+	}
+
 	protected MultipleAlignment generateAlignment(List<Integer> emittedPath, String format) {
 		List<MarkovState<Map<String, Matrix>>> hmmStates = getStates();
 		MultipleAlignment ma = MultipleAlignmentFactory.create(format);
@@ -509,13 +788,52 @@ public class PiHMM extends MarkovModel<Map<String, Matrix>>{
 		return ma;
 	}
 
+	/**
+	 * Same as generateAlignment(emittedPath, format) with every column drawn from r.
+	 */
+	protected MultipleAlignment generateAlignment(List<Integer> emittedPath, String format, Random r) {
+		List<MarkovState<Map<String, Matrix>>> hmmStates = getStates();
+		MultipleAlignment ma = MultipleAlignmentFactory.create(format);
+		
+		for(int stateIdx : emittedPath) {
+			Map<String, Matrix> col = ((SiteTreeEmission) hmmStates.get(stateIdx)).emitObservation(r);
+			ma.addShortEncodedColumnMatrix(col);
+		}
+		return ma;
+	}
+
+	/**
+	 * Samples a state path from the initial and transition probabilities drawing from r only.
+	 */
+	public List<Integer> emitPath(int length, Random r) {
+		List<Integer> path = new ArrayList<Integer>(length);
+		int state = sampleState(initialProbabilities, r);
+		for(int i = 0; i < length; i++) {
+			path.add(state);
+			state = sampleState(transitions[state], r);
+		}
+		return path;
+	}
+
+	private static int sampleState(double [] probabilities, Random r) {
+		double draw = r.nextDouble();
+		double cummulativeProb = 0;
+		for(int i = 0; i < probabilities.length - 1; i++) {
+			cummulativeProb += probabilities[i];
+			if(draw < cummulativeProb) {
+				return i;
+			}
+		}
+		return probabilities.length - 1;
+	}
+
 	public static PiHMM createDefaultTwoStateChain(double l, double gamma,EvolutionaryModel model) {
 		PiHMM hmm = new PiHMM(model,2);
 		ConstrainedModel cm = new ConstrainedModel(model,"constrained");
 		hmm.addState(cm);
 		hmm.setMuNuAndTransitions(l, gamma);
-		hmm.setInitialStateTransitionProbability(0, 1-gamma);
-		hmm.setInitialStateTransitionProbability(1, gamma);
+		hmm.setInitialProbability(0, 1-gamma);
+		hmm.setInitialProbability(1, gamma);
 		return hmm;
 	}
 	
@@ -524,8 +842,8 @@ public class PiHMM extends MarkovModel<Map<String, Matrix>>{
 		PiStateModel newPiState = new PiStateModel(model, otherPi, "model2");
 		hmm.addState(newPiState);
 		hmm.setMuNuAndTransitions(l, gamma);
-		hmm.setInitialStateTransitionProbability(0, 1-gamma);
-		hmm.setInitialStateTransitionProbability(1, gamma);
+		hmm.setInitialProbability(0, 1-gamma);
+		hmm.setInitialProbability(1, gamma);
 		return hmm;
 	}
 	
@@ -543,12 +861,12 @@ public class PiHMM extends MarkovModel<Map<String, Matrix>>{
 		mu = 1/l;
 		nu = gamma*mu/((double)(getStates().size() - 1)*(1-gamma));
 		
-		setStateTransitionProbability(0, 0, 1 - (double)(getStates().size() - 1)*nu);
+		setTransition(0, 0, 1 - (double)(getStates().size() - 1)*nu);
 		for(int i = 1; i < getStates().size(); i++) {
-			setStateTransitionProbability(0, i, nu);
-			setStateTransitionProbability(i,0, mu);
+			setTransition(0, i, nu);
+			setTransition(i,0, mu);
 			for(int j = 1; j < getStates().size(); j++) {
-				setStateTransitionProbability(i,j,(1-mu)/(double)(getStates().size() - 1));
+				setTransition(i,j,(1-mu)/(double)(getStates().size() - 1));
 			}
 		}
 		
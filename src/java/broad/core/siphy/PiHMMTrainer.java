@@ -0,0 +1,268 @@
+package broad.core.siphy;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import broad.core.multiplealignment.MultipleAlignment;
+
+/**
+ * Baum-Welch training of the transition parameters of the default two state PiHMM: the expected conserved element
+ * length l and the expected coverage gamma.
+ * The training islands are cut in chunks that are treated as independent sequences. Emissions do not depend on the
+ * transitions so they are computed once and kept (states x columns doubles), each iteration then runs the forward
+ * backward E-step over groups of chunks in parallel and reduces their expected transition counts.
+ * After each iteration the current parameters are written to the checkpoint file, if any, and a training started with
+ * an existing checkpoint resumes from it.
+ *
+ * @author mgarber
+ */
+public class PiHMMTrainer {
+	static final int DEFAULT_CHUNK_SIZE = 200000;
+
+	private EvolutionaryModel model;
+	private List<EmissionMatrix> chunkEmissions;
+	private int numThreads;
+	private File checkpoint;
+
+	private double l;
+	private double gamma;
+	private int iteration;
+	private double logLikelihood = Double.NEGATIVE_INFINITY;
+
+	/**
+	 * @param islands [start, end) reference coordinates of the training regions
+	 */
+	public PiHMMTrainer(EvolutionaryModel model, MultipleAlignment alignment, List<int []> islands, int chunkSize, int numThreads) throws InterruptedException, ExecutionException {
+		this.model = model;
+		this.numThreads = numThreads;
+		// emissions do not depend on the transitions, any l and gamma will do.
+		PiHMM hmm = PiHMM.createDefaultTwoStateChain(100, 0.05, model);
+		ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+		try {
+			chunkEmissions = new ArrayList<EmissionMatrix>();
+			for(int [] island : islands) {
+				for(int chunkStart = island[0]; chunkStart < island[1]; chunkStart += chunkSize) {
+					MultipleAlignment chunk = alignment.getSubAlignment(chunkStart, Math.min(island[1], chunkStart + chunkSize), false);
+					chunk.encodeAsMatrix();
+					chunkEmissions.add(hmm.computeEmissions(chunk, executor));
+				}
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	public void setCheckpoint(File checkpoint) {
+		this.checkpoint = checkpoint;
+	}
+
+	public double getL() { return l; }
+
+	public double getGamma() { return gamma; }
+
+	public int getIteration() { return iteration; }
+
+	public double getLogLikelihood() { return logLikelihood; }
+
+	/**
+	 * Runs EM until the relative log likelihood improvement falls below tolerance or maxIterations are done.
+	 * If a checkpoint file exists the initial l and gamma are ignored and training resumes from the checkpoint.
+	 */
+	public void train(double initialL, double initialGamma, int maxIterations, double tolerance) throws IOException, InterruptedException, ExecutionException {
+		l = initialL;
+		gamma = initialGamma;
+		iteration = 0;
+		if(checkpoint != null && checkpoint.exists()) {
+			readCheckpoint();
+			System.err.println("Resuming training from " + checkpoint + " at iteration " + iteration + " l=" + l + " gamma=" + gamma);
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+		try {
+			while(iteration < maxIterations) {
+				long start = System.currentTimeMillis();
+				PiHMM hmm = PiHMM.createDefaultTwoStateChain(l, gamma, model);
+				TransitionStatistics stats = expectation(hmm, executor);
+				double previousLogLikelihood = logLikelihood;
+				logLikelihood = stats.logLikelihood;
+				maximize(stats);
+				iteration++;
+				System.err.println("Iteration " + iteration + ": log likelihood " + logLikelihood + " l=" + l + " gamma=" + gamma + " (" + (System.currentTimeMillis() - start) + " ms)");
+				if(checkpoint != null) {
+					writeCheckpoint();
+				}
+				if(!Double.isInfinite(previousLogLikelihood) && Math.abs(logLikelihood - previousLogLikelihood) <= tolerance * Math.abs(logLikelihood)) {
+					System.err.println("Converged after " + iteration + " iterations");
+					break;
+				}
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	TransitionStatistics expectation(PiHMM hmm, ExecutorService executor) throws InterruptedException, ExecutionException {
+		int numGroups = Math.min(chunkEmissions.size(), numThreads * 4);
+		List<Future<TransitionStatistics>> groups = new ArrayList<Future<TransitionStatistics>>(numGroups);
+		for(int g = 0; g < numGroups; g++) {
+			groups.add(executor.submit(new ExpectationTask(hmm, g, numGroups)));
+		}
+		TransitionStatistics total = new TransitionStatistics(hmm.getTransitions().length);
+		for(Future<TransitionStatistics> group : groups) {
+			total.add(group.get());
+		}
+		return total;
+	}
+
+	/**
+	 * Maximum likelihood mu and nu given the expected transitions, mapped back to l and gamma as in PiHMM.setMuNuAndTransitions.
+	 */
+	private void maximize(TransitionStatistics stats) {
+		double [][] counts = stats.transitionCounts;
+		int numStates = counts.length;
+		double fromNeutral = 0;
+		double neutralToConserved = 0;
+		for(int j = 0; j < numStates; j++) {
+			fromNeutral += counts[0][j];
+			if(j > 0) {
+				neutralToConserved += counts[0][j];
+			}
+		}
+		double fromConserved = 0;
+		double conservedToNeutral = 0;
+		for(int i = 1; i < numStates; i++) {
+			conservedToNeutral += counts[i][0];
+			for(int j = 0; j < numStates; j++) {
+				fromConserved += counts[i][j];
+			}
+		}
+		double mu = conservedToNeutral / fromConserved;
+		double nu = neutralToConserved / ((numStates - 1) * fromNeutral);
+		l = 1/mu;
+		gamma = nu * (numStates - 1) / (mu + nu * (numStates - 1));
+	}
+
+	private class ExpectationTask implements Callable<TransitionStatistics> {
+		private PiHMM hmm;
+		private int group;
+		private int numGroups;
+
+		ExpectationTask(PiHMM hmm, int group, int numGroups) {
+			this.hmm = hmm;
+			this.group = group;
+			this.numGroups = numGroups;
+		}
+
+		public TransitionStatistics call() {
+			double [][] transitions = hmm.getTransitions();
+			int numStates = transitions.length;
+			TransitionStatistics stats = new TransitionStatistics(numStates);
+			double [] emission = new double[numStates];
+			double [] backward = new double[numStates];
+			double [] previousBackward = new double[numStates];
+			for(int c = group; c < chunkEmissions.size(); c += numGroups) {
+				double [][] logEmissions = chunkEmissions.get(c).getLogEmissions();
+				int n = chunkEmissions.get(c).getNumberOfColumns();
+				if(n == 0) {
+					continue;
+				}
+				double [][] forward = new double[n][numStates];
+				stats.logLikelihood += HMMSteps.scaledEmissions(logEmissions, 0, emission);
+				stats.logLikelihood += HMMSteps.initialStep(hmm.getInitialProbabilities(), emission, forward[0]);
+				for(int t = 1; t < n; t++) {
+					stats.logLikelihood += HMMSteps.scaledEmissions(logEmissions, t, emission);
+					stats.logLikelihood += HMMSteps.forwardStep(forward[t - 1], transitions, emission, forward[t]);
+				}
+				for(int s = 0; s < numStates; s++) {
+					backward[s] = 1;
+				}
+				for(int t = n - 1; t > 0; t--) {
+					HMMSteps.scaledEmissions(logEmissions, t, emission);
+					HMMSteps.addExpectedTransitions(forward[t - 1], transitions, emission, backward, stats.transitionCounts);
+					HMMSteps.backwardStep(backward, transitions, emission, previousBackward);
+					double [] tmp = backward;
+					backward = previousBackward;
+					previousBackward = tmp;
+				}
+			}
+			return stats;
+		}
+	}
+
+	static class TransitionStatistics {
+		double [][] transitionCounts;
+		double logLikelihood;
+
+		TransitionStatistics(int numStates) {
+			transitionCounts = new double[numStates][numStates];
+		}
+
+		void add(TransitionStatistics other) {
+			for(int i = 0; i < transitionCounts.length; i++) {
+				for(int j = 0; j < transitionCounts.length; j++) {
+					transitionCounts[i][j] += other.transitionCounts[i][j];
+				}
+			}
+			logLikelihood += other.logLikelihood;
+		}
+	}
+
+	public void write(BufferedWriter bw) throws IOException {
+		bw.write("l\t" + l);
+		bw.newLine();
+		bw.write("gamma\t" + gamma);
+		bw.newLine();
+		bw.write("iteration\t" + iteration);
+		bw.newLine();
+		bw.write("logLikelihood\t" + logLikelihood);
+		bw.newLine();
+	}
+
+	private void writeCheckpoint() throws IOException {
+		File tmp = new File(checkpoint.getAbsolutePath() + ".tmp");
+		BufferedWriter bw = new BufferedWriter(new FileWriter(tmp));
+		write(bw);
+		bw.close();
+		if(!tmp.renameTo(checkpoint)) {
+			checkpoint.delete();
+			if(!tmp.renameTo(checkpoint)) {
+				throw new IOException("Could not write checkpoint " + checkpoint);
+			}
+		}
+	}
+
+	private void readCheckpoint() throws IOException {
+		BufferedReader br = new BufferedReader(new FileReader(checkpoint));
+		try {
+			String line = null;
+			while((line = br.readLine()) != null) {
+				String [] info = line.split("\t");
+				if(info.length != 2) {
+					continue;
+				}
+				if("l".equals(info[0])) {
+					l = Double.parseDouble(info[1]);
+				} else if ("gamma".equals(info[0])) {
+					gamma = Double.parseDouble(info[1]);
+				} else if ("iteration".equals(info[0])) {
+					iteration = Integer.parseInt(info[1]);
+				} else if ("logLikelihood".equals(info[0])) {
+					logLikelihood = Double.parseDouble(info[1]);
+				}
+			}
+		} finally {
+			br.close();
+		}
+	}
+}
@@ -8,12 +8,34 @@ import broad.core.motif.PositionWeightMatrix;
 
 import Jama.Matrix;
 
+/**
+ * Scores alignment windows by the log odds of a PWM induced evolutionary model over the neutral model.
+ * Column likelihoods are memoized by column pattern, the neutral likelihoods do not depend on the PWM so
+ * models built on the same base model may share their neutral cache.
+ *
+ * @author mgarber
+ */
 public class PositionWeightMatrixModel {
+	static final int MAX_CACHED_PATTERNS_PER_POSITION = 100000;
+	static final double LN10 = Math.log(10);
 	EvolutionaryModel [] inducedModel;
 	EvolutionaryModel baseModel;
+	private ColumnPatternCache<Double> neutralCache;
+	private ColumnPatternCache<Double> [] inducedCaches;
+	
 	public PositionWeightMatrixModel(PositionWeightMatrix pwm, EvolutionaryModel baseModel) {
+		this(pwm, baseModel, createNeutralCache(baseModel));
+	}
+	
+	/**
+	 * @param neutralCache neutral column likelihoods, must only be shared by models with the same base model.
+	 */
+	@SuppressWarnings("unchecked")
+	public PositionWeightMatrixModel(PositionWeightMatrix pwm, EvolutionaryModel baseModel, ColumnPatternCache<Double> neutralCache) {
 		this.baseModel = baseModel;
+		this.neutralCache = neutralCache;
 		inducedModel = new EvolutionaryModel[pwm.size()];
+		inducedCaches = new ColumnPatternCache[pwm.size()];
 		for(int k = 0; k < pwm.size(); k++) {
 			EvolutionaryModel mod = baseModel.copy();
 			Matrix pi = new Matrix(mod.getAlphabetSize(),1);
@@ -24,8 +46,18 @@ public class PositionWeightMatrixModel {
 			mod.RPIDecomposition();
 			mod.setPi(pi);
 			inducedModel[k] = mod;
+			inducedCaches[k] = new ColumnPatternCache<Double>("PWM position " + k, MAX_CACHED_PATTERNS_PER_POSITION, baseModel.getTree().getAllExternalSeqNames());
 		}
 	}
+	
+	public static ColumnPatternCache<Double> createNeutralCache(EvolutionaryModel baseModel) {
+		return new ColumnPatternCache<Double>("PWM neutral", ColumnPatternCache.DEFAULT_MAX_ENTRIES, baseModel.getTree().getAllExternalSeqNames());
+	}
+	
+	public ColumnPatternCache<Double> getNeutralCache() {
+		return neutralCache;
+	}
+	
 	public double score(Map<String, Matrix> alignmentWindow) {
 		double sumLODS = 0;
 		if(alignmentWindow == null || alignmentWindow.size() == 0) {
@@ -42,12 +74,23 @@ public class PositionWeightMatrixModel {
 			//Phylogeny columnTree = ConservationUtils.pruneTree(gappedSeqs, baseModel.);
 			//baseModel.clearComputedTransitionsCache();
 			//double neutralLikelihood = baseModel.pruneAndPeel(alignmentWindow, baseModel.getTree().getRoot(), i);
-			double neutralLikelihood = baseModel.computeLikelihood(alignmentWindow, baseModel.getTree().getRoot(), i);
+			ColumnPatternCache.ColumnPattern pattern = neutralCache.pattern(alignmentWindow, i);
+			Double neutralLogLikelihood = neutralCache.get(pattern);
+			if(neutralLogLikelihood == null) {
+				neutralLogLikelihood = baseModel.computeLogLikelihood(alignmentWindow, baseModel.getTree().getRoot(), i);
+				neutralCache.put(pattern, neutralLogLikelihood);
+			}
 			//inducedModel[i].clearComputedTransitionsCache();
 			//double colLikelihood     = inducedModel[i].pruneAndPeel(alignmentWindow, inducedModel[i].getTree().getRoot(), i);
-			double colLikelihood     = inducedModel[i].computeLikelihood(alignmentWindow, inducedModel[i].getTree().getRoot(), i);
-			//System.out.println("\tbase L " + neutralLikelihood + " pwm " + colLikelihood);			
-			sumLODS += Math.log10(colLikelihood/neutralLikelihood);// - Math.log10(neutralLikelihood);
+			ColumnPatternCache.ColumnPattern inducedPattern = inducedCaches[i].pattern(alignmentWindow, i);
+			Double colLogLikelihood = inducedCaches[i].get(inducedPattern);
+			if(colLogLikelihood == null) {
+				colLogLikelihood = inducedModel[i].computeLogLikelihood(alignmentWindow, inducedModel[i].getTree().getRoot(), i);
+				inducedCaches[i].put(inducedPattern, colLogLikelihood);
+			}
+			//System.out.println("\tbase L " + neutralLogLikelihood + " pwm " + colLogLikelihood);			
+			// computed in log space, the plain likelihoods of both models underflow for large trees.
+			sumLODS += (colLogLikelihood - neutralLogLikelihood) / LN10;
 		}
 		//System.out.println("Score: " + sumLODS);
 		return sumLODS;
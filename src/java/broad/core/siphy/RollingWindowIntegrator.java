@@ -0,0 +1,104 @@
+package broad.core.siphy;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+
+import org.apache.commons.math.MathException;
+
+import broad.core.annotation.BED;
+import broad.core.math.EmpiricalDistribution;
+
+/**
+ * Integrates the log likelihood ratios of consecutive site fits over sliding windows as the fits are read (tasks 8, 11 and 13).
+ * The current window is kept in a ring buffer of positions and ratios with a running sum, so each fit costs O(1) regardless
+ * of the window size, and windows are written as soon as they are complete. The sum is recomputed from the buffer every
+ * time the ring wraps around so rounding errors do not build up.
+ * A window is reported when the fit following it arrives, only if it overlaps the last reported window by at most overlap,
+ * and a gap in the positions restarts the window. Fits must come sorted by position.
+ *
+ * @author mgarber
+ */
+public class RollingWindowIntegrator implements FitListener {
+	private int windowSize;
+	private String chr;
+	private EmpiricalDistribution neutralDist;
+	private int overlap;
+	private BufferedWriter bw;
+
+	private int [] positions;
+	private double [] ratios;
+	private int head; // index of the first member
+	private int size;
+	private double sum;
+
+	private int num;
+	private boolean reported;
+	private int lastWindowEnd;
+
+	/**
+	 * @param neutralDist if not null window scores are reported as -log(1 - P(score)) under this distribution.
+	 */
+	public RollingWindowIntegrator(int windowSize, String chr, EmpiricalDistribution neutralDist, int overlap, BufferedWriter bw) {
+		this.windowSize = windowSize;
+		this.chr = chr;
+		this.neutralDist = neutralDist;
+		this.overlap = overlap;
+		this.bw = bw;
+		positions = new int[windowSize];
+		ratios = new double[windowSize];
+	}
+
+	public void newFit(Fit fit) throws IOException, MathException {
+		add(fit.getPosition(), fit.getLogLikelihoodRatio());
+	}
+
+	public void add(int position, double logLikelihoodRatio) throws IOException, MathException {
+		if(size > 0 && position - positions[(head + size - 1) % windowSize] > 1) {
+			head = 0;
+			size = 0;
+			sum = 0;
+		}
+
+		if(size == windowSize) {
+			int start = positions[head];
+			int end = positions[(head + windowSize - 1) % windowSize];
+			if(!reported || lastWindowEnd - start <= overlap) {
+				double score = sum;
+				if(neutralDist != null) {
+					score = - Math.log(1 - neutralDist.getCummulativeProbability(score));
+				}
+				BED window = new BED("w" + num);
+				window.setChromosome(chr);
+				window.setStart(start);
+				window.setEnd(end);
+				window.setScore(score);
+				bw.write(window.toString());
+				bw.newLine();
+				num++;
+				reported = true;
+				lastWindowEnd = end;
+			}
+			sum -= ratios[head];
+			head = (head + 1) % windowSize;
+			size--;
+			if(head == 0) {
+				resum();
+			}
+		}
+
+		int tail = (head + size) % windowSize;
+		positions[tail] = position;
+		ratios[tail] = logLikelihoodRatio;
+		sum += logLikelihoodRatio;
+		size++;
+	}
+
+	private void resum() {
+		sum = 0;
+		for(int i = 0; i < size; i++) {
+			sum += ratios[(head + i) % windowSize];
+		}
+	}
+
+	public int getNumberOfWindows() { return num; }
+}
@@ -0,0 +1,151 @@
+package broad.core.siphy;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Progress of a long run (TreeScaler tasks 1 and 16) so that it can be resumed after a crash.
+ * The run reports each completed unit of work with the position to restart from, at most every interval the output
+ * writers are flushed and the restart position is saved along with the length of each output file. Resuming truncates
+ * the outputs to the saved lengths, dropping whatever was written after the checkpoint, and hands back the restart position.
+ * The checkpoint file is replaced atomically so a crash while saving leaves the previous checkpoint.
+ *
+ * @author mgarber
+ */
+public class RunCheckpoint {
+	public static final long DEFAULT_INTERVAL = 5 * 60 * 1000;
+	private static final String PROGRESS = "progress";
+	private static final String OUTPUT = "output";
+
+	private File checkpointFile;
+	private long interval;
+	private long lastSave;
+	private Map<File, BufferedWriter> outputs = new LinkedHashMap<File, BufferedWriter>();
+	private String progress;
+
+	/**
+	 * @param interval minimum time in milliseconds between checkpoints.
+	 */
+	public RunCheckpoint(File checkpointFile, long interval) {
+		this.checkpointFile = checkpointFile;
+		this.interval = interval;
+		lastSave = System.currentTimeMillis();
+	}
+
+	/**
+	 * Registers an output file of the run.
+	 * @param writer writer to flush before recording the file length, null if the run closes the file after each unit.
+	 */
+	public void addOutput(File output, BufferedWriter writer) {
+		outputs.put(output.getAbsoluteFile(), writer);
+	}
+
+	/**
+	 * Loads the checkpoint and truncates the registered outputs to their checkpointed length, outputs that were not
+	 * checkpointed are emptied. Must be called before the outputs are opened.
+	 * @return true if there was a checkpoint to resume from.
+	 */
+	public boolean resume() throws IOException {
+		if(!checkpointFile.exists()) {
+			return false;
+		}
+		Map<File, Long> lengths = new LinkedHashMap<File, Long>();
+		BufferedReader br = new BufferedReader(new FileReader(checkpointFile));
+		try {
+			String line = null;
+			while((line = br.readLine()) != null) {
+				String [] lineInfo = line.split("\t", 2);
+				if(PROGRESS.equals(lineInfo[0])) {
+					progress = lineInfo[1];
+				} else if (OUTPUT.equals(lineInfo[0])) {
+					String [] outputInfo = lineInfo[1].split("\t", 2);
+					lengths.put(new File(outputInfo[1]).getAbsoluteFile(), Long.parseLong(outputInfo[0]));
+				}
+			}
+		} finally {
+			br.close();
+		}
+		for(File output : outputs.keySet()) {
+			Long length = lengths.get(output);
+			truncate(output, length == null ? 0 : length);
+		}
+		System.err.println("Resuming from " + progress + " as of checkpoint " + checkpointFile);
+		return true;
+	}
+
+	/**
+	 * @return restart position of the resumed run, null if it was not resumed or had not completed any unit.
+	 */
+	public String getProgress() {
+		return progress;
+	}
+
+	/**
+	 * Records that everything before the given restart position has been written, saving a checkpoint if the interval elapsed.
+	 */
+	public void completed(String restartPosition) throws IOException {
+		progress = restartPosition;
+		if(System.currentTimeMillis() - lastSave >= interval) {
+			save();
+		}
+	}
+
+	/**
+	 * Flushes the outputs and saves the current progress along with their lengths.
+	 */
+	public void save() throws IOException {
+		File tmp = new File(checkpointFile.getPath() + ".tmp");
+		BufferedWriter bw = new BufferedWriter(new FileWriter(tmp));
+		try {
+			if(progress != null) {
+				bw.write(PROGRESS + "\t" + progress);
+				bw.newLine();
+			}
+			for(File output : outputs.keySet()) {
+				BufferedWriter writer = outputs.get(output);
+				if(writer != null) {
+					writer.flush();
+				}
+				bw.write(OUTPUT + "\t" + output.length() + "\t" + output.getPath());
+				bw.newLine();
+			}
+		} finally {
+			bw.close();
+		}
+		if(!tmp.renameTo(checkpointFile)) {
+			checkpointFile.delete();
+			if(!tmp.renameTo(checkpointFile)) {
+				throw new IOException("Could not move checkpoint " + tmp + " to " + checkpointFile);
+			}
+		}
+		lastSave = System.currentTimeMillis();
+	}
+
+	/**
+	 * Removes the checkpoint of a run that completed.
+	 */
+	public void finish() {
+		checkpointFile.delete();
+	}
+
+	private static void truncate(File output, long length) throws IOException {
+		if(!output.exists()) {
+			return;
+		}
+		RandomAccessFile raf = new RandomAccessFile(output, "rw");
+		try {
+			if(raf.length() > length) {
+				raf.setLength(length);
+			}
+		} finally {
+			raf.close();
+		}
+	}
+}
@@ -0,0 +1,324 @@
+package broad.core.siphy;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.forester.phylogeny.Phylogeny;
+
+import Jama.Matrix;
+import broad.core.motif.PositionWeightMatrix;
+import broad.core.motif.PositionWeightMatrixIO;
+import broad.core.multiplealignment.MAFIO;
+import broad.core.multiplealignment.MultipleAlignment;
+import broad.core.util.CLUtil;
+import broad.core.util.CLUtil.ArgumentMap;
+
+/**
+ * Micro benchmarks of the numerical core of the conservation code: likelihood computation, omega and pi fits,
+ * PWM scoring, alignment column extraction and MAF block loading.
+ * Fixtures are synthetic: a neutral model on a random tree for each requested number of species (29 and 46 by default,
+ * written in the working directory, named by species count and seed, so they can be reused with TreeScaler) and an alignment sampled from it.
+ * Each benchmark runs warm up iterations followed by measured iterations of a fixed duration, the throughput of each
+ * iteration is recorded and the results are written as JSON so that runs can be compared.
+ *
+ * @author mgarber
+ */
+public class SiphyBenchmark {
+	public static final String USAGE = "Usage: SiphyBenchmark <args>" +
+	"\n\t\t-out <JSON result file, standard output if not specified> [-workDir <Directory for the synthetic models and alignments, default the temporary directory>" +
+	"\n\t\t -species <Comma separated numbers of species of the synthetic trees, default 29,46> -columns <Number of sampled alignment columns, default 20000>" +
+	"\n\t\t -warmup <Warm up iterations, default 3> -iterations <Measured iterations, default 5> -iterationTime <Duration of each iteration in ms, default 1000>" +
+	"\n\t\t -seed <Random seed of the synthetic trees and alignments, default 1> -pwm <PWM file, PWM scoring is only benchmarked if given>" +
+	"\n\t\t -only <Regular expression, only run the benchmarks whose name matches>]" +
+	"\n";
+
+	static final int [] OMEGA_WINDOWS = {1, 12, 50};
+	static final int COLUMN_WINDOW = 12;
+	static final int MAF_BLOCK_SIZE = 500;
+	static final int MAF_LOAD_SIZE = 5000;
+	private static final int MAX_FIXTURES = 1000;
+
+	private int warmup;
+	private int iterations;
+	private long iterationTime;
+	private String only;
+	private List<Result> results = new ArrayList<Result>();
+	private double sink;
+
+	public SiphyBenchmark(int warmup, int iterations, long iterationTime, String only) {
+		this.warmup = warmup;
+		this.iterations = iterations;
+		this.iterationTime = iterationTime;
+		this.only = only;
+	}
+
+	public static void main(String [] args) throws Exception {
+		ArgumentMap argMap = CLUtil.getParameters(args, USAGE);
+		File workDir = new File(argMap.get("workDir", System.getProperty("java.io.tmpdir")));
+		int numColumns = argMap.getInteger("columns", 20000);
+		if(numColumns <= MAF_LOAD_SIZE) {
+			throw new IllegalArgumentException("The alignments need more than " + MAF_LOAD_SIZE + " columns, got " + numColumns);
+		}
+		int seed = argMap.getInteger("seed", 1);
+		List<PositionWeightMatrix> pwms = new ArrayList<PositionWeightMatrix>();
+		if(argMap.containsKey("pwm")) {
+			PositionWeightMatrixIO pwmIO = new PositionWeightMatrixIO();
+			FileInputStream fis = new FileInputStream(argMap.getMandatory("pwm"));
+			try {
+				pwmIO.load(fis);
+			} finally {
+				fis.close();
+			}
+			pwms = pwmIO.getMatrices();
+		}
+
+		SiphyBenchmark benchmark = new SiphyBenchmark(argMap.getInteger("warmup", 3), argMap.getInteger("iterations", 5),
+				argMap.getInteger("iterationTime", 1000), argMap.get("only", null));
+		for(String species : argMap.get("species", "29,46").split(",")) {
+			int numSpecies = Integer.parseInt(species.trim());
+			File modelFile = new File(workDir, "synthetic_" + numSpecies + "_seed" + seed + ".mod");
+			// Each tree and alignment only depends on its species count and the seed, whichever fixtures already exist.
+			EvolutionaryModel model = SyntheticAlignments.neutralModel(modelFile, numSpecies, new Random(seed + 1000003L * numSpecies));
+			System.err.println("Sampling " + numColumns + " columns of the " + numSpecies + " species model " + modelFile);
+			MultipleAlignment alignment = SyntheticAlignments.sampleAlignment(model, numColumns, new Random(seed + 1000003L * numSpecies + 1));
+			File mafFile = new File(workDir, "synthetic_" + numSpecies + "_seed" + seed + ".maf");
+			SyntheticAlignments.writeMAF(mafFile, alignment, "chr1", MAF_BLOCK_SIZE);
+			alignment.encodeAsMatrix();
+			benchmark.runAll(model, alignment, mafFile, pwms);
+		}
+
+		BufferedWriter bw = argMap.isOutputSet() ? new BufferedWriter(new FileWriter(argMap.getOutput())) : new BufferedWriter(new OutputStreamWriter(System.out));
+		try {
+			benchmark.writeJSON(bw, argMap);
+		} finally {
+			bw.close();
+		}
+	}
+
+	/**
+	 * Runs every benchmark on the fixtures of a model.
+	 * @param alignment sampled alignment, already encoded
+	 */
+	public void runAll(final EvolutionaryModel model, final MultipleAlignment alignment, File mafFile, List<PositionWeightMatrix> pwms) throws Exception {
+		final int numSpecies = model.getTree().getNumberOfExternalNodes();
+		final Phylogeny tree = model.getTree();
+		final List<Map<String, Matrix>> columns = windows(alignment, 1);
+
+		run(new Benchmark("computeLikelihood", numSpecies, 1) {
+			EvolutionaryModel fittingModel = model.copy();
+			public double op(int i) {
+				return fittingModel.computeLikelihood(columns.get(i % columns.size()), tree.getRoot(), 0);
+			}
+		});
+
+		run(new Benchmark("computeLogLikelihood", numSpecies, 1) {
+			EvolutionaryModel fittingModel = model.copy();
+			public double op(int i) {
+				return fittingModel.computeLogLikelihood(columns.get(i % columns.size()), tree.getRoot(), 0);
+			}
+		});
+
+		for(final int window : OMEGA_WINDOWS) {
+			final List<Map<String, Matrix>> windows = window == 1 ? columns : windows(alignment, window);
+			run(new Benchmark("fitOmega", numSpecies, window) {
+				EvolutionaryModel fittingModel = model.copy();
+				public double op(int i) throws Exception {
+					return fittingModel.fitOmega(windows.get(i % windows.size()), tree, window).getOmega();
+				}
+			});
+		}
+
+		run(new Benchmark("fitPI", numSpecies, 1) {
+			EvolutionaryModel fittingModel = model.copy();
+			public double op(int i) {
+				return fittingModel.fitPI(columns.get(i % columns.size()), tree).getLogLikelihoodRatio();
+			}
+		});
+
+		for(final PositionWeightMatrix pwm : pwms) {
+			final List<Map<String, Matrix>> windows = windows(alignment, pwm.size());
+			run(new Benchmark("pwmScore." + pwm.getName(), numSpecies, pwm.size()) {
+				PositionWeightMatrixModel pwmModel = new PositionWeightMatrixModel(pwm, model.copy());
+				public double op(int i) {
+					return pwmModel.score(windows.get(i % windows.size()));
+				}
+			});
+		}
+
+		final int referenceStart = alignment.getReferenceStart();
+		final int lastStart = alignment.length() - COLUMN_WINDOW;
+		run(new Benchmark("getColumnsAsVector", numSpecies, COLUMN_WINDOW) {
+			public double op(int i) {
+				return alignment.getColumnsAsVector(referenceStart + i % lastStart, COLUMN_WINDOW).size();
+			}
+		});
+
+		final MAFIO mafio = new MAFIO(mafFile.getAbsolutePath(), true);
+		final List<String> species = SyntheticAlignments.getSpecies(numSpecies);
+		final int loadStarts = Math.max(1, alignment.length() - MAF_LOAD_SIZE);
+		try {
+			run(new Benchmark("mafLoad", numSpecies, MAF_LOAD_SIZE) {
+				public double op(int i) throws Exception {
+					int start = (int) ((i * 7919L * MAF_BLOCK_SIZE) % loadStarts);
+					return mafio.load(species, start, start + MAF_LOAD_SIZE).length();
+				}
+			});
+		} finally {
+			mafio.destroyFileHandle();
+		}
+	}
+
+	/**
+	 * Consecutive windows of the alignment, at most MAX_FIXTURES of them.
+	 */
+	static List<Map<String, Matrix>> windows(MultipleAlignment alignment, int window) {
+		int start = alignment.getReferenceStart();
+		int num = Math.min(MAX_FIXTURES, alignment.length() / window);
+		List<Map<String, Matrix>> windows = new ArrayList<Map<String, Matrix>>(num);
+		for(int i = 0; i < num; i++) {
+			windows.add(alignment.getColumnsAsVector(start + i * window, window));
+		}
+		return windows;
+	}
+
+	/**
+	 * Operation measured by a benchmark, each call works on the i-th fixture.
+	 */
+	static abstract class Benchmark {
+		String name;
+		int numSpecies;
+		int window;
+
+		Benchmark(String name, int numSpecies, int window) {
+			this.name = name;
+			this.numSpecies = numSpecies;
+			this.window = window;
+		}
+
+		/**
+		 * @return a value derived from the operation result, summed so that the operation can not be optimized away.
+		 */
+		abstract double op(int i) throws Exception;
+	}
+
+	public static class Result {
+		String name;
+		int numSpecies;
+		int window;
+		long ops;
+		List<Double> opsPerSecond = new ArrayList<Double>();
+
+		public double getMeanOpsPerSecond() {
+			double total = 0;
+			for(double score : opsPerSecond) {
+				total += score;
+			}
+			return opsPerSecond.isEmpty() ? 0 : total / opsPerSecond.size();
+		}
+
+		public double getStandardDeviation() {
+			double mean = getMeanOpsPerSecond();
+			double sumSq = 0;
+			for(double score : opsPerSecond) {
+				sumSq += (score - mean) * (score - mean);
+			}
+			return opsPerSecond.size() < 2 ? 0 : Math.sqrt(sumSq / (opsPerSecond.size() - 1));
+		}
+
+		public String toString() {
+			double mean = getMeanOpsPerSecond();
+			return name + "\tspecies " + numSpecies + "\twindow " + window + "\t" + mean + " ops/s\t+- " + getStandardDeviation() +
+				"\t" + (mean == 0 ? 0 : 1e6 / mean) + " us/op";
+		}
+	}
+
+	void run(Benchmark benchmark) throws Exception {
+		if(only != null && !benchmark.name.matches(only)) {
+			return;
+		}
+		Result result = new Result();
+		result.name = benchmark.name;
+		result.numSpecies = benchmark.numSpecies;
+		result.window = benchmark.window;
+		int i = 0;
+		for(int iteration = 0; iteration < warmup + iterations; iteration++) {
+			long start = System.nanoTime();
+			long end = start + iterationTime * 1000000;
+			long ops = 0;
+			long now = start;
+			do {
+				sink += benchmark.op(i++);
+				ops++;
+				now = System.nanoTime();
+			} while(now < end);
+			if(iteration >= warmup) {
+				result.ops += ops;
+				result.opsPerSecond.add(ops * 1e9 / (now - start));
+			}
+		}
+		results.add(result);
+		System.err.println(result);
+	}
+
+	public List<Result> getResults() {
+		return results;
+	}
+
+	public void writeJSON(BufferedWriter bw, ArgumentMap argMap) throws IOException {
+		Map<String, String> config = new LinkedHashMap<String, String>();
+		config.put("date", new Date().toString());
+		config.put("java.version", System.getProperty("java.version"));
+		config.put("java.vm.name", System.getProperty("java.vm.name"));
+		config.put("os.arch", System.getProperty("os.arch"));
+		config.put("processors", String.valueOf(Runtime.getRuntime().availableProcessors()));
+		config.put("warmup", String.valueOf(warmup));
+		config.put("iterations", String.valueOf(iterations));
+		config.put("iterationTime", String.valueOf(iterationTime));
+		config.put("species", argMap.get("species", "29,46"));
+		config.put("columns", String.valueOf(argMap.getInteger("columns", 20000)));
+		config.put("seed", String.valueOf(argMap.getInteger("seed", 1)));
+		if(argMap.containsKey("pwm")) {
+			config.put("pwm", argMap.get("pwm"));
+		}
+		bw.write("{");
+		bw.newLine();
+		bw.write("  \"config\": {");
+		int k = 0;
+		for(String key : config.keySet()) {
+			bw.write((k++ == 0 ? "" : ", ") + quote(key) + ": " + quote(config.get(key)));
+		}
+		bw.write("},");
+		bw.newLine();
+		bw.write("  \"results\": [");
+		bw.newLine();
+		for(int i = 0; i < results.size(); i++) {
+			Result result = results.get(i);
+			double mean = result.getMeanOpsPerSecond();
+			bw.write("    {\"benchmark\": " + quote(result.name) + ", \"species\": " + result.numSpecies + ", \"window\": " + result.window +
+					", \"ops\": " + result.ops + ", \"opsPerSecond\": " + mean + ", \"stdev\": " + result.getStandardDeviation() +
+					", \"microsPerOp\": " + (mean == 0 ? 0 : 1e6 / mean) + ", \"iterations\": " + result.opsPerSecond + "}");
+			bw.write(i < results.size() - 1 ? "," : "");
+			bw.newLine();
+		}
+		bw.write("  ],");
+		bw.newLine();
+		bw.write("  \"checksum\": " + (Double.isNaN(sink) || Double.isInfinite(sink) ? "0" : String.valueOf(sink)));
+		bw.newLine();
+		bw.write("}");
+		bw.newLine();
+	}
+
+	private static String quote(String value) {
+		return "\"" + value.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+	}
+}
@@ -0,0 +1,86 @@
+package broad.core.siphy;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import Jama.Matrix;
+import broad.core.multiplealignment.MultipleAlignment;
+
+/**
+ * Single site columns of an alignment region compressed into their unique patterns with multiplicities.
+ * Site by site fits (window of 1) only depend on the column pattern once the tree is fixed, so each unique
+ * pattern can be fitted once and its result expanded back to all the sites that share it.
+ * Columns that can not be encoded as a pattern are kept as their own pattern.
+ *
+ * @author mgarber
+ */
+public class SitePatterns {
+	static final int DEFAULT_CHUNK_SIZE = 100000;
+
+	private int referenceStart;
+	private int [] sitePatterns;
+	private List<Map<String, Matrix>> patternColumns = new ArrayList<Map<String,Matrix>>();
+	private List<Integer> patternSites = new ArrayList<Integer>();
+	private List<Integer> multiplicities = new ArrayList<Integer>();
+
+	/**
+	 * @param refStart first reference position of the region
+	 * @param refEnd reference position after the last site of the region
+	 * @param leafOrder all the species that may be found in the alignment, usually the model tree leaves.
+	 */
+	public SitePatterns(MultipleAlignment alignment, int refStart, int refEnd, String [] leafOrder) {
+		this.referenceStart = refStart;
+		sitePatterns = new int[refEnd - refStart];
+		ColumnPatternCache<Integer> patternIndex = new ColumnPatternCache<Integer>("site pattern", Integer.MAX_VALUE, leafOrder);
+		for(int site = refStart; site < refEnd; site++) {
+			Map<String, Matrix> column = alignment.getColumnsAsVector(site, 1);
+			ColumnPatternCache.ColumnPattern pattern = patternIndex.pattern(column, 0);
+			Integer index = patternIndex.get(pattern);
+			if(index == null) {
+				index = patternColumns.size();
+				patternColumns.add(column);
+				patternSites.add(site);
+				multiplicities.add(0);
+				patternIndex.put(pattern, index);
+			}
+			multiplicities.set(index, multiplicities.get(index) + 1);
+			sitePatterns[site - refStart] = index;
+		}
+	}
+
+	public int getNumberOfSites() { return sitePatterns.length; }
+
+	public int getNumberOfPatterns() { return patternColumns.size(); }
+
+	/**
+	 * @return the column of the first site with the given pattern.
+	 */
+	public Map<String, Matrix> getPatternColumn(int pattern) { return patternColumns.get(pattern); }
+
+	/**
+	 * @return reference position of the first site with the given pattern.
+	 */
+	public int getPatternSite(int pattern) { return patternSites.get(pattern); }
+
+	public int getMultiplicity(int pattern) { return multiplicities.get(pattern); }
+
+	/**
+	 * @param referencePosition a position of the compressed region.
+	 */
+	public int getPattern(int referencePosition) { return sitePatterns[referencePosition - referenceStart]; }
+
+	public int getReferenceStart() { return referenceStart; }
+
+	/**
+	 * @return number of sites per unique pattern.
+	 */
+	public double getCompressionRatio() {
+		return patternColumns.isEmpty() ? 1 : sitePatterns.length / (double) patternColumns.size();
+	}
+
+	public String toString() {
+		return "Sites " + referenceStart + "-" + (referenceStart + sitePatterns.length) + ": " + sitePatterns.length + " sites, " +
+			patternColumns.size() + " unique patterns, compression ratio " + getCompressionRatio();
+	}
+}
@@ -10,6 +10,7 @@ import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 
+import org.apache.commons.math.MathException;
 
 import broad.core.annotation.LightweightGenomicAnnotation;
 import broad.core.datastructures.IntervalTree;
@@ -47,6 +48,21 @@ public class StationaryDistributionIO {
 		}
 	}
 	
+	/**
+	 * Reads the fits one at a time handing each to the listener, nothing is kept.
+	 */
+	public void parse(InputStream is, FitListener listener) throws IOException, MathException {
+		BufferedReader br = new BufferedReader(new InputStreamReader(is));
+		String line = null;
+		while((line = br.readLine()) != null) {
+			if(line.startsWith("#") || line.trim().length() == 0) {
+					continue;
+			}
+			String [] lineInfo = line.trim().split("\t");
+			listener.newFit(new PiFit(lineInfo));
+		}
+	}
+	
 	public void load(String filePath) throws IOException {
 		FileInputStream fis = new FileInputStream(filePath);
 		load(fis);
@@ -0,0 +1,259 @@
+package broad.core.siphy;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+
+import broad.core.multiplealignment.MultipleAlignment;
+
+/**
+ * Decodes whole ungapped reference islands with a PiHMM without cutting them in overlapping chunks.
+ * The island is processed in segments of about sqrt(n) columns (at least MIN_SEGMENT_SIZE), each segment is extracted from the alignment,
+ * encoded and scored on its own so memory does not depend on the island length:
+ * <ul>
+ * <li> Posteriors: a scaled backward pass over the whole island keeps the backward vector at the end of every segment,
+ * 	then a forward pass rebuilds the backward vectors of one segment at a time from its checkpoint and reports exact
+ * 	posteriors in coordinate order. Segment emissions of the first pass are kept for the second one while they fit in
+ * 	the emission cache, otherwise they are computed again.</li>
+ * <li> Viterbi: runs on line, the traceback of every state is checked at the end of each segment and the part of the path
+ *  on which they all agree is reported and its back pointers released.</li>
+ * </ul>
+ *
+ * @author mgarber
+ */
+public class StreamingPiHMMDecoder {
+	// getSubAlignment scans the whole reference to map coordinates, segments should not be much smaller than the old chunks.
+	static final int MIN_SEGMENT_SIZE = 200000;
+	static final int DEFAULT_EMISSION_CACHE_COLUMNS = 2000000;
+
+	private PiHMM hmm;
+	private MultipleAlignment alignment;
+	private ExecutorService executor;
+	private int emissionCacheColumns = DEFAULT_EMISSION_CACHE_COLUMNS;
+
+	public interface PosteriorListener {
+		/**
+		 * @param statePosteriors posterior probability of each state, the array is reused between calls.
+		 */
+		void posterior(int referencePosition, double [] statePosteriors) throws IOException;
+	}
+
+	public interface PathListener {
+		void state(int referencePosition, short state) throws IOException;
+	}
+
+	/**
+	 * @param alignment full alignment, islands are extracted with getSubAlignment so it does not need to be encoded.
+	 * @param executor used to score segment columns concurrently, may be null.
+	 */
+	public StreamingPiHMMDecoder(PiHMM hmm, MultipleAlignment alignment, ExecutorService executor) {
+		this.hmm = hmm;
+		this.alignment = alignment;
+		this.executor = executor;
+	}
+
+	/**
+	 * @param columns maximum number of columns whose emissions are kept between the posterior passes.
+	 */
+	public void setEmissionCacheColumns(int columns) {
+		this.emissionCacheColumns = columns;
+	}
+
+	static int segmentSize(int length) {
+		return Math.max(MIN_SEGMENT_SIZE, (int) Math.ceil(Math.sqrt(length)));
+	}
+
+	private EmissionMatrix getEmissions(int refStart, int refEnd) throws InterruptedException, ExecutionException {
+		MultipleAlignment segment = alignment.getSubAlignment(refStart, refEnd, false);
+		segment.encodeAsMatrix();
+		return hmm.computeEmissions(segment, executor);
+	}
+
+	/**
+	 * Reports the posterior state probabilities of every position in [islandStart, islandEnd), in order.
+	 * @return the island log likelihood
+	 */
+	public double computePosteriors(int islandStart, int islandEnd, PosteriorListener listener) throws IOException, InterruptedException, ExecutionException {
+		int length = islandEnd - islandStart;
+		if(length <= 0) {
+			return 0;
+		}
+		int numStates = hmm.getTransitions().length;
+		double [][] transitions = hmm.getTransitions();
+		int segmentSize = segmentSize(length);
+		int numSegments = (length + segmentSize - 1) / segmentSize;
+
+		// Backward pass, right to left keeping the (normalized) backward vector of each segment's last column.
+		double [][] checkpoints = new double[numSegments][];
+		EmissionMatrix [] cachedEmissions = new EmissionMatrix[numSegments];
+		int cachedColumns = 0;
+		double [] backward = new double[numStates];
+		double [] previousBackward = new double[numStates];
+		double [] emission = new double[numStates];
+		Arrays.fill(backward, 1);
+		for(int seg = numSegments - 1; seg >= 0; seg--) {
+			int segStart = islandStart + seg * segmentSize;
+			int segEnd = Math.min(islandEnd, segStart + segmentSize);
+			checkpoints[seg] = backward.clone();
+			EmissionMatrix emissions = getEmissions(segStart, segEnd);
+			if(cachedColumns + emissions.getNumberOfColumns() <= emissionCacheColumns) {
+				cachedEmissions[seg] = emissions;
+				cachedColumns += emissions.getNumberOfColumns();
+			}
+			int firstColumn = seg == 0 ? 1 : 0;
+			for(int t = emissions.getNumberOfColumns() - 1; t >= firstColumn; t--) {
+				HMMSteps.scaledEmissions(emissions.getLogEmissions(), t, emission);
+				HMMSteps.backwardStep(backward, transitions, emission, previousBackward);
+				double [] tmp = backward;
+				backward = previousBackward;
+				previousBackward = tmp;
+			}
+		}
+
+		// Forward pass, rebuilding one segment of backward vectors at a time.
+		double logLikelihood = 0;
+		double [] forward = null;
+		double [] nextForward = new double[numStates];
+		double [] posterior = new double[numStates];
+		double [][] columnPosterior = new double[numStates][1];
+		for(int seg = 0; seg < numSegments; seg++) {
+			int segStart = islandStart + seg * segmentSize;
+			int segEnd = Math.min(islandEnd, segStart + segmentSize);
+			EmissionMatrix emissions = cachedEmissions[seg] != null ? cachedEmissions[seg] : getEmissions(segStart, segEnd);
+			cachedEmissions[seg] = null;
+			double [][] logEmissions = emissions.getLogEmissions();
+			int n = emissions.getNumberOfColumns();
+
+			double [][] segmentBackward = new double[n][];
+			segmentBackward[n - 1] = checkpoints[seg];
+			for(int t = n - 1; t > 0; t--) {
+				segmentBackward[t - 1] = new double[numStates];
+				HMMSteps.scaledEmissions(logEmissions, t, emission);
+				HMMSteps.backwardStep(segmentBackward[t], transitions, emission, segmentBackward[t - 1]);
+			}
+
+			for(int t = 0; t < n; t++) {
+				logLikelihood += HMMSteps.scaledEmissions(logEmissions, t, emission);
+				if(forward == null) {
+					forward = new double[numStates];
+					logLikelihood += HMMSteps.initialStep(hmm.getInitialProbabilities(), emission, forward);
+				} else {
+					logLikelihood += HMMSteps.forwardStep(forward, transitions, emission, nextForward);
+					double [] tmp = forward;
+					forward = nextForward;
+					nextForward = tmp;
+				}
+				HMMSteps.posterior(forward, segmentBackward[t], columnPosterior, 0);
+				for(int s = 0; s < numStates; s++) {
+					posterior[s] = columnPosterior[s][0];
+				}
+				listener.posterior(segStart + t, posterior);
+			}
+		}
+		return logLikelihood;
+	}
+
+	/**
+	 * Reports the most likely state path of [islandStart, islandEnd) in order. Only the back pointers of the
+	 * columns whose best state is not yet determined are kept.
+	 */
+	public void viterbi(int islandStart, int islandEnd, PathListener listener) throws IOException, InterruptedException, ExecutionException {
+		int length = islandEnd - islandStart;
+		if(length <= 0) {
+			return;
+		}
+		int numStates = hmm.getTransitions().length;
+		double [][] logTransitions = hmm.getLogTransitions();
+		double [] logInitial = hmm.getLogInitialProbabilities();
+		int segmentSize = segmentSize(length);
+
+		List<short []> backPointers = new ArrayList<short[]>();
+		int windowStart = islandStart;
+		double [] score = null;
+		double [] nextScore = new double[numStates];
+		for(int segStart = islandStart; segStart < islandEnd; segStart += segmentSize) {
+			int segEnd = Math.min(islandEnd, segStart + segmentSize);
+			EmissionMatrix emissions = getEmissions(segStart, segEnd);
+			double [][] logEmissions = emissions.getLogEmissions();
+			for(int t = 0; t < emissions.getNumberOfColumns(); t++) {
+				if(score == null) {
+					score = new double[numStates];
+					for(int s = 0; s < numStates; s++) {
+						score[s] = logInitial[s] + logEmissions[s][t];
+					}
+					backPointers.add(null);
+				} else {
+					short [] columnBackPointers = new short[numStates];
+					HMMSteps.viterbiStep(score, logTransitions, logEmissions, t, nextScore, columnBackPointers);
+					backPointers.add(columnBackPointers);
+					double [] tmp = score;
+					score = nextScore;
+					nextScore = tmp;
+				}
+				// keep scores close to 0, only their differences matter.
+				double max = score[HMMSteps.argMax(score)];
+				for(int s = 0; s < numStates; s++) {
+					score[s] -= max;
+				}
+			}
+			windowStart = reportConvergedPath(backPointers, windowStart, numStates, listener);
+		}
+		short [] tail = traceback(backPointers, backPointers.size() - 1, (short) HMMSteps.argMax(score));
+		for(int i = 0; i < tail.length; i++) {
+			listener.state(windowStart + i, tail[i]);
+		}
+	}
+
+	/**
+	 * Looks for the last column where the tracebacks of all current states meet, reports the path up to
+	 * that column and drops its back pointers.
+	 * @return reference position of the first column still undetermined.
+	 */
+	private int reportConvergedPath(List<short []> backPointers, int windowStart, int numStates, PathListener listener) throws IOException {
+		boolean [] alive = new boolean[numStates];
+		boolean [] previousAlive = new boolean[numStates];
+		Arrays.fill(alive, true);
+		for(int c = backPointers.size() - 1; c > 0; c--) {
+			Arrays.fill(previousAlive, false);
+			short [] columnBackPointers = backPointers.get(c);
+			int numAlive = 0;
+			short survivor = 0;
+			for(int s = 0; s < numStates; s++) {
+				if(alive[s] && !previousAlive[columnBackPointers[s]]) {
+					previousAlive[columnBackPointers[s]] = true;
+					numAlive++;
+					survivor = columnBackPointers[s];
+				}
+			}
+			if(numAlive == 1) {
+				short [] converged = traceback(backPointers, c - 1, survivor);
+				for(int i = 0; i < converged.length; i++) {
+					listener.state(windowStart + i, converged[i]);
+				}
+				List<short []> remaining = new ArrayList<short[]>(backPointers.subList(c, backPointers.size()));
+				backPointers.clear();
+				backPointers.addAll(remaining);
+				return windowStart + c;
+			}
+			boolean [] tmp = alive;
+			alive = previousAlive;
+			previousAlive = tmp;
+		}
+		return windowStart;
+	}
+
+	/**
+	 * @return path for window columns 0 to lastColumn ending in lastState.
+	 */
+	private static short [] traceback(List<short []> backPointers, int lastColumn, short lastState) {
+		short [] path = new short[lastColumn + 1];
+		path[lastColumn] = lastState;
+		for(int c = lastColumn; c > 0; c--) {
+			path[c - 1] = backPointers.get(c)[path[c]];
+		}
+		return path;
+	}
+}
@@ -0,0 +1,149 @@
+package broad.core.siphy;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import broad.core.error.ParseException;
+import broad.core.multiplealignment.MultipleAlignment;
+import broad.core.multiplealignment.MultipleAlignmentFactory;
+
+/**
+ * Synthetic but realistically sized fixtures for benchmarking the conservation code: random binary species trees,
+ * neutral models in the EvolutionaryModelParameters file format and alignments sampled from them (as TreeScaler task 5 does).
+ * Species are named sp0, sp1 ..., sp0 is used as the reference.
+ *
+ * @author mgarber
+ */
+public class SyntheticAlignments {
+	public static final String SPECIES_PREFIX = "sp";
+	public static final String REFERENCE = SPECIES_PREFIX + "0";
+	public static final double [] BACKGROUND = {0.295, 0.205, 0.205, 0.295};
+	public static final double KAPPA = 4.0;
+	/** Mean branch length, a 29 species tree is about 4 substitutions per site long as the mammalian trees are */
+	public static final double MEAN_BRANCH_LENGTH = 0.075;
+
+	private SyntheticAlignments() {
+		super();
+	}
+
+	/**
+	 * @return species names of a tree with the given number of leaves.
+	 */
+	public static List<String> getSpecies(int numSpecies) {
+		List<String> species = new ArrayList<String>(numSpecies);
+		for(int i = 0; i < numSpecies; i++) {
+			species.add(SPECIES_PREFIX + i);
+		}
+		return species;
+	}
+
+	/**
+	 * Builds a random rooted binary tree by joining random pairs of subtrees, branch lengths are exponentially distributed.
+	 * @return the tree in New Hampshire format.
+	 */
+	public static String randomTree(int numSpecies, Random r) {
+		if(numSpecies < 2) {
+			throw new IllegalArgumentException("A tree needs at least 2 species, got " + numSpecies);
+		}
+		List<String> subtrees = new ArrayList<String>(getSpecies(numSpecies));
+		while(subtrees.size() > 2) {
+			String first = subtrees.remove(r.nextInt(subtrees.size()));
+			String second = subtrees.remove(r.nextInt(subtrees.size()));
+			subtrees.add("(" + first + ":" + branchLength(r) + "," + second + ":" + branchLength(r) + ")");
+		}
+		return "(" + subtrees.get(0) + ":" + branchLength(r) + "," + subtrees.get(1) + ":" + branchLength(r) + ");";
+	}
+
+	private static String branchLength(Random r) {
+		double length = Math.max(0.001, -Math.log(1 - r.nextDouble()) * MEAN_BRANCH_LENGTH);
+		return String.valueOf(Math.round(length * 1e6) / 1e6);
+	}
+
+	/**
+	 * Writes an HKY neutral model on a random tree (BACKGROUND, KAPPA and TREE records).
+	 */
+	public static void writeNeutralModel(File modelFile, int numSpecies, Random r) throws IOException {
+		BufferedWriter bw = new BufferedWriter(new FileWriter(modelFile));
+		try {
+			bw.write("# Synthetic " + numSpecies + " species neutral model");
+			bw.newLine();
+			bw.write("BACKGROUND:");
+			for(double freq : BACKGROUND) {
+				bw.write(" " + freq);
+			}
+			bw.newLine();
+			bw.write("KAPPA: " + KAPPA);
+			bw.newLine();
+			bw.write("TREE: " + randomTree(numSpecies, r));
+			bw.newLine();
+		} finally {
+			bw.close();
+		}
+	}
+
+	/**
+	 * Writes a random neutral model to the file, unless it already exists, and loads it. An existing file is reused
+	 * whatever the generator, callers should name the file after the species count and seed it is generated from.
+	 */
+	public static EvolutionaryModel neutralModel(File modelFile, int numSpecies, Random r) throws IOException, ParseException {
+		if(!modelFile.exists()) {
+			writeNeutralModel(modelFile, numSpecies, r);
+		}
+		return new EvolutionaryModel(new EvolutionaryModelParameters(modelFile));
+	}
+
+	/**
+	 * @return an alignment of neutrally evolved columns sampled from the model with REFERENCE as its reference, it is not encoded.
+	 */
+	public static MultipleAlignment sampleAlignment(EvolutionaryModel model, int numColumns) {
+		return sampleAlignment(model, numColumns, new Random());
+	}
+
+	/**
+	 * Same as sampleAlignment(model, numColumns) with every column drawn from r, the alignment only depends on its seed.
+	 */
+	public static MultipleAlignment sampleAlignment(EvolutionaryModel model, int numColumns, Random r) {
+		MultipleAlignment ma = MultipleAlignmentFactory.create("FASTA");
+		for(int i = 0; i < numColumns; i++) {
+			Map<String, Short> col = model.sample(r);
+			ma.addShortEncodedColumn(col);
+		}
+		ma.setReferenceId(REFERENCE);
+		return ma;
+	}
+
+	/**
+	 * Writes an ungapped, not yet encoded, alignment as a MAF of consecutive blocks of the given size on the given chromosome.
+	 */
+	public static void writeMAF(File mafFile, MultipleAlignment ma, String chr, int blockSize) throws IOException {
+		List<String> species = new ArrayList<String>(ma.getAlignedSequenceIds());
+		species.remove(REFERENCE);
+		species.add(0, REFERENCE);
+		int length = ma.length();
+		BufferedWriter bw = new BufferedWriter(new FileWriter(mafFile));
+		try {
+			bw.write("##maf version=1 scoring=none");
+			bw.newLine();
+			bw.newLine();
+			for(int start = 0; start < length; start += blockSize) {
+				int end = Math.min(length, start + blockSize);
+				bw.write("a score=0.0");
+				bw.newLine();
+				for(String seqId : species) {
+					String bases = ma.getAlignedSequence(seqId).getSequenceBases();
+					bw.write("s " + seqId + "." + chr + " " + start + " " + (end - start) + " + " + length + " " + bases.substring(start, end));
+					bw.newLine();
+				}
+				bw.newLine();
+			}
+		} finally {
+			bw.close();
+		}
+	}
+}
@@ -0,0 +1,274 @@
+package broad.core.siphy;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import broad.core.multiplealignment.MultipleAlignment;
+import broad.core.util.CLUtil;
+import broad.core.util.CLUtil.ArgumentMap;
+
+/**
+ * Writes genome scale synthetic MAF alignments for throughput testing.
+ * Columns are emitted by the default two state PiHMM (neutral and pi-conserved, see PiHMM.generateAlignment) on the given
+ * neutral model, so the alignment has conserved elements of about -l bases covering about -gamma of the reference.
+ * The columns are then cut in blocks of geometrically distributed length separated by unaligned reference stretches,
+ * each species is missing from a block with a fixed species probability, and the species other than the reference get
+ * deletions and insertions (reference gap columns) of geometrically distributed length. The conserved stretches are
+ * written to a BED file next to the alignment.
+ * Columns are generated in segments so the memory used does not depend on the alignment length.
+ * Every draw, state paths and columns included, comes from the generator given so an alignment is reproducible from its seed.
+ *
+ * @author mgarber
+ */
+public class SyntheticMAFGenerator {
+	public static final String USAGE = "Usage: SyntheticMAFGenerator <args>" +
+	"\n\t\t-out <MAF file to write, the conserved elements are written to the same name with a .conserved.bed extension> -length <Number of reference bases>" +
+	"\n\t\t-mod <Neutral model> or -species <Number of species of a synthetic random model, written to the -out name with a .mod extension>" +
+	"\n\t\t[-chr <Reference chromosome, default chr1> -ref <Reference species, default the first species of the MAF rows (sp0 for synthetic models)> -seed <Random seed, default 1>" +
+	"\n\t\t -l <Expected conserved element length, default 12> -gamma <Expected conserved coverage, default 0.05>" +
+	"\n\t\t -meanBlockLength <default 200> -unalignedRate <Probability that a block is preceded by unaligned reference bases, default 0.1> -meanUnalignedLength <default 100>" +
+	"\n\t\t -minCoverage <Species other than the reference are present in a block with a probability drawn uniformly between this and 1, default 0.4>" +
+	"\n\t\t -gapRate <Per base probability of a deletion or insertion in a species other than the reference, default 0.01> -meanGapLength <default 4>]" +
+	"\n";
+
+	static final int SEGMENT_LENGTH = 100000;
+	static final int MIN_BLOCK_LENGTH = 10;
+	static final String [] BASES = {"A", "C", "G", "T"};
+
+	private EvolutionaryModel model;
+	private String reference;
+	private Random r;
+	private double l = 12;
+	private double gamma = 0.05;
+	private double meanBlockLength = 200;
+	private double unalignedRate = 0.1;
+	private double meanUnalignedLength = 100;
+	private double minCoverage = 0.4;
+	private double gapRate = 0.01;
+	private double meanGapLength = 4;
+
+	private List<String> species;
+	private Map<String, Double> coverage;
+	private Map<String, Long> speciesPositions;
+	private long speciesSize;
+
+	public SyntheticMAFGenerator(EvolutionaryModel model, String reference, Random r) {
+		this.model = model;
+		this.reference = reference;
+		this.r = r;
+	}
+
+	public static void main(String [] args) throws Exception {
+		ArgumentMap argMap = CLUtil.getParameters(args, USAGE);
+		File out = new File(argMap.getOutput());
+		int seed = argMap.getInteger("seed", 1);
+		EvolutionaryModel model = null;
+		String reference = argMap.get("ref", null);
+		if(argMap.containsKey("mod")) {
+			model = new EvolutionaryModel(new EvolutionaryModelParameters(new File(argMap.getMandatory("mod"))));
+		} else {
+			File modelFile = new File(out.getPath().replaceFirst("\\.maf$", "") + ".mod");
+			model = SyntheticAlignments.neutralModel(modelFile, argMap.getInteger("species"), new Random(seed));
+			reference = reference == null ? SyntheticAlignments.REFERENCE : reference;
+			System.err.println("Using synthetic model " + modelFile);
+		}
+		if(reference == null) {
+			reference = model.getTree().getAllExternalSeqNames()[0];
+		}
+		// Its own generator so the alignment does not depend on whether the model was reused.
+		SyntheticMAFGenerator generator = new SyntheticMAFGenerator(model, reference, new Random(seed + 1));
+		generator.setConservation(argMap.getDouble("l", 12), argMap.getDouble("gamma", 0.05));
+		generator.setBlocks(argMap.getDouble("meanBlockLength", 200), argMap.getDouble("unalignedRate", 0.1), argMap.getDouble("meanUnalignedLength", 100));
+		generator.setMissingData(argMap.getDouble("minCoverage", 0.4), argMap.getDouble("gapRate", 0.01), argMap.getDouble("meanGapLength", 4));
+		generator.write(out, argMap.get("chr", "chr1"), argMap.getInteger("length"));
+	}
+
+	/**
+	 * @param l expected conserved element length
+	 * @param gamma expected fraction of conserved columns
+	 */
+	public void setConservation(double l, double gamma) {
+		this.l = l;
+		this.gamma = gamma;
+	}
+
+	/**
+	 * @param unalignedRate probability that a block is preceded by an unaligned reference stretch.
+	 */
+	public void setBlocks(double meanBlockLength, double unalignedRate, double meanUnalignedLength) {
+		this.meanBlockLength = meanBlockLength;
+		this.unalignedRate = unalignedRate;
+		this.meanUnalignedLength = meanUnalignedLength;
+	}
+
+	/**
+	 * @param minCoverage each species but the reference is present in a block with a probability between minCoverage and 1.
+	 * @param gapRate per base probability of opening a gap in a species other than the reference.
+	 */
+	public void setMissingData(double minCoverage, double gapRate, double meanGapLength) {
+		this.minCoverage = minCoverage;
+		this.gapRate = gapRate;
+		this.meanGapLength = meanGapLength;
+	}
+
+	/**
+	 * Writes an alignment of the given number of reference bases, and its conserved elements to a .conserved.bed file.
+	 */
+	public void write(File mafFile, String chr, int length) throws IOException {
+		String [] names = model.getTree().getAllExternalSeqNames();
+		species = new ArrayList<String>(names.length);
+		species.add(reference);
+		coverage = new LinkedHashMap<String, Double>();
+		speciesPositions = new LinkedHashMap<String, Long>();
+		for(String name : names) {
+			if(!name.equals(reference)) {
+				species.add(name);
+			}
+			coverage.put(name, name.equals(reference) ? 1 : minCoverage + (1 - minCoverage) * r.nextDouble());
+			speciesPositions.put(name, (long) r.nextInt(1000000));
+		}
+		if(!coverage.containsKey(reference)) {
+			throw new IllegalArgumentException("Reference " + reference + " is not a species of the model tree");
+		}
+		speciesSize = 2L * length + 2000000;
+
+		PiHMM hmm = PiHMM.createDefaultTwoStateChain(l, gamma, model);
+		File bedFile = new File(mafFile.getPath().replaceFirst("\\.maf$", "") + ".conserved.bed");
+		BufferedWriter bw = new BufferedWriter(new FileWriter(mafFile));
+		BufferedWriter bedBW = new BufferedWriter(new FileWriter(bedFile));
+		try {
+			bw.write("##maf version=1 scoring=synthetic");
+			bw.newLine();
+			bw.write("# " + length + " bases of " + chr + ", " + species.size() + " species, l " + l + " gamma " + gamma);
+			bw.newLine();
+			bw.newLine();
+			for(int segmentStart = 0; segmentStart < length; segmentStart += SEGMENT_LENGTH) {
+				int segmentLength = Math.min(SEGMENT_LENGTH, length - segmentStart);
+				List<Integer> path = hmm.emitPath(segmentLength, r);
+				MultipleAlignment segment = hmm.generateAlignment(path, "FASTA", r);
+				writeConservedElements(bedBW, path, chr, segmentStart);
+				writeBlocks(bw, segment, chr, segmentStart, length);
+				System.err.println("Wrote " + (segmentStart + segmentLength) + " of " + length + " bases");
+			}
+		} finally {
+			bw.close();
+			bedBW.close();
+		}
+	}
+
+	private void writeConservedElements(BufferedWriter bedBW, List<Integer> path, String chr, int offset) throws IOException {
+		int elementStart = -1;
+		for(int i = 0; i <= path.size(); i++) {
+			boolean conserved = i < path.size() && path.get(i) != 0;
+			if(conserved && elementStart < 0) {
+				elementStart = i;
+			} else if(!conserved && elementStart >= 0) {
+				bedBW.write(chr + "\t" + (offset + elementStart) + "\t" + (offset + i));
+				bedBW.newLine();
+				elementStart = -1;
+			}
+		}
+	}
+
+	private void writeBlocks(BufferedWriter bw, MultipleAlignment segment, String chr, int offset, int length) throws IOException {
+		Map<String, String> rows = new LinkedHashMap<String, String>();
+		for(String name : species) {
+			rows.put(name, segment.getAlignedSequence(name).getSequenceBases());
+		}
+		int segmentLength = rows.get(reference).length();
+		int pos = 0;
+		while(pos < segmentLength) {
+			if(r.nextDouble() < unalignedRate) {
+				pos += geometric(meanUnalignedLength);
+				for(String name : species) {
+					speciesPositions.put(name, speciesPositions.get(name) + geometric(meanUnalignedLength));
+				}
+				continue;
+			}
+			int blockLength = Math.min(segmentLength - pos, Math.max(MIN_BLOCK_LENGTH, geometric(meanBlockLength)));
+			List<String> present = new ArrayList<String>();
+			for(String name : species) {
+				if(r.nextDouble() < coverage.get(name)) {
+					present.add(name);
+				}
+			}
+			if(present.size() == 1) {
+				present.add(species.get(1 + r.nextInt(species.size() - 1)));
+			}
+			writeBlock(bw, rows, present, chr, offset + pos, pos, blockLength, length);
+			pos += blockLength;
+		}
+	}
+
+	private void writeBlock(BufferedWriter bw, Map<String, String> rows, List<String> present, String chr, int refStart, int pos, int blockLength, int length) throws IOException {
+		Map<String, StringBuilder> blockRows = new LinkedHashMap<String, StringBuilder>();
+		for(String name : present) {
+			blockRows.put(name, new StringBuilder(blockLength + blockLength / 10));
+		}
+		for(int i = pos; i < pos + blockLength; i++) {
+			for(String name : present) {
+				blockRows.get(name).append(rows.get(name).charAt(i));
+			}
+			if(r.nextDouble() < gapRate) {
+				int insertionLength = geometric(meanGapLength);
+				for(String name : present) {
+					boolean inserted = !name.equals(reference) && r.nextBoolean();
+					for(int j = 0; j < insertionLength; j++) {
+						blockRows.get(name).append(inserted ? BASES[r.nextInt(BASES.length)] : "-");
+					}
+				}
+			}
+		}
+		for(String name : present) {
+			if(name.equals(reference)) {
+				continue;
+			}
+			StringBuilder row = blockRows.get(name);
+			for(int i = 0; i < row.length(); i++) {
+				if(r.nextDouble() < gapRate) {
+					int end = Math.min(row.length(), i + geometric(meanGapLength));
+					for(; i < end; i++) {
+						row.setCharAt(i, '-');
+					}
+				}
+			}
+		}
+
+		bw.write("a score=" + (blockLength * (present.size() - 1)) + ".0");
+		bw.newLine();
+		for(String name : present) {
+			StringBuilder row = blockRows.get(name);
+			int size = 0;
+			for(int i = 0; i < row.length(); i++) {
+				if(row.charAt(i) != '-') {
+					size++;
+				}
+			}
+			long start = name.equals(reference) ? refStart : speciesPositions.get(name);
+			long srcSize = name.equals(reference) ? length : speciesSize;
+			bw.write("s " + name + "." + chr + " " + start + " " + size + " + " + srcSize + " " + row);
+			bw.newLine();
+			if(!name.equals(reference)) {
+				speciesPositions.put(name, start + size);
+			}
+		}
+		bw.newLine();
+	}
+
+	/**
+	 * @return a geometrically distributed length, at least 1, with the given mean.
+	 */
+	private int geometric(double mean) {
+		if(mean <= 1) {
+			return 1;
+		}
+		return 1 + (int) (Math.log(1 - r.nextDouble()) / Math.log(1 - 1 / mean));
+	}
+}
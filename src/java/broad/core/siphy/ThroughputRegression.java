@@ -0,0 +1,363 @@
+package broad.core.siphy;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import broad.core.util.CLUtil;
+import broad.core.util.GenomeShardRunner;
+import broad.core.util.CLUtil.ArgumentMap;
+
+/**
+ * End to end throughput runs of the TreeScaler (1, 2, 7 and 16) and PiHMM (1, 2 and 5) tasks over a synthetic genome
+ * scale MAF alignment (see SyntheticMAFGenerator), to catch performance regressions of the alignment loading, fitting
+ * and decoding code without real genomes.
+ * The model, alignment and region files are generated in the working directory unless already there, so successive runs
+ * with the same number of species, length and seed use the same inputs. Each task runs in its own JVM, started through the Probe main, which reports the task wall time,
+ * the peak resident memory of the JVM (VmHWM, Linux only) and the garbage collection time and count. The report gives
+ * the reference bases processed per second by each task and is written as JSON.
+ *
+ * @author mgarber
+ */
+public class ThroughputRegression {
+	static final String [] DEFAULT_TASKS = {"TreeScaler1", "TreeScaler2", "TreeScaler7", "TreeScaler16", "PiHMM1", "PiHMM2", "PiHMM5"};
+	public static final String USAGE = "Usage: ThroughputRegression <args>" +
+	"\n\t\t-workDir <Directory of the synthetic inputs, kept by number of species, length and seed and reused by later runs, and of the task outputs and logs> -out <JSON report, standard output if not specified>" +
+	"\n\t\t[-length <Reference bases of the synthetic alignment, default 2000000> -species <Species of the synthetic model, default 29> -seed <Random seed, default 1> -regenerate <Write new inputs>" +
+	"\n\t\t -tasks <Comma separated tasks to run, default " + join(DEFAULT_TASKS) + ">" +
+	"\n\t\t -pwm <PWM file, TreeScaler16 only runs if given> -memory <Maximum heap of each task JVM in MB> -trainingIterations <PiHMM5 Baum-Welch iterations, default 3>]" +
+	"\n";
+
+	static final String CHR = "chr1";
+	static final int REGION_LENGTH = 1000;
+	static final int REGION_SPACING = 10000;
+	static final double L = 12;
+	static final double GAMMA = 0.05;
+
+	private File inputDir;
+	private File outDir;
+	private File modelFile;
+	private File mafFile;
+	private File regionFile;
+	private String pwmFile;
+	private int numSpecies;
+	private int length;
+	private int seed;
+	private int memory;
+	private int trainingIterations;
+
+	public ThroughputRegression(File workDir, int numSpecies, int length, int seed, String pwmFile, int memory, int trainingIterations) {
+		this.numSpecies = numSpecies;
+		this.length = length;
+		this.seed = seed;
+		this.pwmFile = pwmFile;
+		this.memory = memory;
+		this.trainingIterations = trainingIterations;
+		inputDir = new File(workDir, "synthetic_" + numSpecies + "species_" + length + "_seed" + seed);
+		outDir = new File(workDir, "runs");
+		modelFile = new File(inputDir, "neutral.mod");
+		mafFile = new File(inputDir, CHR + ".maf");
+		regionFile = new File(inputDir, "regions.bed");
+	}
+
+	public static void main(String [] args) throws Exception {
+		ArgumentMap argMap = CLUtil.getParameters(args, USAGE);
+		File workDir = new File(argMap.getMandatory("workDir"));
+		ThroughputRegression harness = new ThroughputRegression(workDir, argMap.getInteger("species", 29), argMap.getInteger("length", 2000000),
+				argMap.getInteger("seed", 1), argMap.get("pwm", null), argMap.getInteger("memory", 0), argMap.getInteger("trainingIterations", 3));
+		harness.setUp(argMap.containsKey("regenerate"));
+
+		List<Result> results = new ArrayList<Result>();
+		for(String task : argMap.get("tasks", join(DEFAULT_TASKS)).split(",")) {
+			Result result = harness.run(task.trim());
+			if(result != null) {
+				results.add(result);
+				System.err.println(result);
+			}
+		}
+
+		BufferedWriter bw = argMap.isOutputSet() ? new BufferedWriter(new FileWriter(argMap.getOutput())) : new BufferedWriter(new OutputStreamWriter(System.out));
+		try {
+			harness.writeJSON(bw, results);
+		} finally {
+			bw.close();
+		}
+	}
+
+	/**
+	 * Generates the model, the alignment and the task 2 regions if they are not in the input directory.
+	 */
+	public void setUp(boolean regenerate) throws Exception {
+		for(File dir : new File [] {inputDir, outDir}) {
+			if(!dir.exists() && !dir.mkdirs()) {
+				throw new IOException("Could not create " + dir);
+			}
+		}
+		if(regenerate) {
+			modelFile.delete();
+			mafFile.delete();
+			regionFile.delete();
+		}
+		EvolutionaryModel model = SyntheticAlignments.neutralModel(modelFile, numSpecies, new Random(seed));
+		if(!mafFile.exists()) {
+			System.err.println("Generating " + length + " bases synthetic alignment " + mafFile);
+			long start = System.currentTimeMillis();
+			File tmpFile = new File(inputDir, CHR + ".maf.tmp");
+			// Its own generator so the alignment does not depend on whether the model was reused.
+			SyntheticMAFGenerator generator = new SyntheticMAFGenerator(model, SyntheticAlignments.REFERENCE, new Random(seed + 1));
+			generator.setConservation(L, GAMMA);
+			generator.write(tmpFile, CHR, length);
+			if(!tmpFile.renameTo(mafFile)) {
+				throw new IOException("Could not move " + tmpFile + " to " + mafFile);
+			}
+			System.err.println("Alignment generated in " + (System.currentTimeMillis() - start) / 1000 + " s");
+		}
+		if(!regionFile.exists()) {
+			BufferedWriter bw = new BufferedWriter(new FileWriter(regionFile));
+			try {
+				for(int start = 0; start + REGION_LENGTH <= length; start += REGION_SPACING) {
+					bw.write(CHR + "\t" + start + "\t" + (start + REGION_LENGTH) + "\tregion_" + start);
+					bw.newLine();
+				}
+			} finally {
+				bw.close();
+			}
+		}
+	}
+
+	/**
+	 * @return the task measurements, null if the task is skipped.
+	 */
+	public Result run(String task) throws IOException, InterruptedException {
+		String mainClass = TreeScaler.class.getName();
+		String out = new File(outDir, task + ".out").getPath();
+		long bases = length;
+		List<String> args = new ArrayList<String>();
+		if("TreeScaler1".equals(task) || "TreeScaler7".equals(task)) {
+			args.addAll(Arrays.asList("TASK=" + task.substring("TreeScaler".length()), "-in", mafFile.getPath(), "-format", "MAF",
+					"-mod", modelFile.getPath(), "-start", "0", "-end", String.valueOf(length), "-out", out));
+		} else if ("TreeScaler2".equals(task)) {
+			args.addAll(Arrays.asList("TASK=2", "-in", mafFile.getPath(), "-mod", modelFile.getPath(), "-annotations", regionFile.getPath(),
+					"-chr", CHR, "-out", out));
+			bases = length < REGION_LENGTH ? 0 : ((long) (length - REGION_LENGTH) / REGION_SPACING + 1) * REGION_LENGTH;
+		} else if ("TreeScaler16".equals(task)) {
+			if(pwmFile == null) {
+				System.err.println("Skipping " + task + ", it needs a -pwm file");
+				return null;
+			}
+			File taskOutDir = new File(outDir, task);
+			taskOutDir.mkdirs();
+			args.addAll(Arrays.asList("TASK=16", "-indir", inputDir.getPath(), "-pwm", pwmFile, "-mod", modelFile.getPath(),
+					"-chr", CHR, "-start", "0", "-end", String.valueOf(length), "-outdir", taskOutDir.getPath()));
+		} else if ("PiHMM1".equals(task) || "PiHMM2".equals(task) || "PiHMM5".equals(task)) {
+			mainClass = PiHMM.class.getName();
+			args.addAll(Arrays.asList("TASK=" + task.substring("PiHMM".length()), "-in", mafFile.getPath(), "-format", "MAF",
+					"-mod", modelFile.getPath(), "-l", String.valueOf(L), "-gamma", String.valueOf(GAMMA),
+					"-start", "0", "-end", String.valueOf(length), "-out", out));
+			if("PiHMM5".equals(task)) {
+				args.addAll(Arrays.asList("-maxIterations", String.valueOf(trainingIterations)));
+			}
+		} else {
+			throw new IllegalArgumentException("Unknown task " + task + ", tasks are " + join(DEFAULT_TASKS));
+		}
+
+		File statsFile = new File(outDir, task + ".stats");
+		statsFile.delete();
+		List<String> probeArgs = new ArrayList<String>();
+		probeArgs.add(statsFile.getPath());
+		probeArgs.add(mainClass);
+		probeArgs.addAll(args);
+		System.err.println("Running " + task + ": " + args);
+		long start = System.currentTimeMillis();
+		int exitStatus = GenomeShardRunner.runJava(Probe.class.getName(), probeArgs.toArray(new String[probeArgs.size()]), memory,
+				new File(outDir, task + ".log"));
+		Result result = new Result(task, bases, exitStatus, System.currentTimeMillis() - start);
+		if(statsFile.exists()) {
+			result.stats = readStats(statsFile);
+		}
+		return result;
+	}
+
+	/**
+	 * Measurements of a task run.
+	 */
+	public static class Result {
+		String task;
+		long bases;
+		int exitStatus;
+		long elapsedMillis;
+		Map<String, Long> stats = new LinkedHashMap<String, Long>();
+
+		Result(String task, long bases, int exitStatus, long elapsedMillis) {
+			this.task = task;
+			this.bases = bases;
+			this.exitStatus = exitStatus;
+			this.elapsedMillis = elapsedMillis;
+		}
+
+		/**
+		 * @return the task wall time, JVM start up excluded when known.
+		 */
+		public long getWallMillis() {
+			return stats.containsKey(Probe.WALL_MILLIS) ? stats.get(Probe.WALL_MILLIS) : elapsedMillis;
+		}
+
+		public double getBasesPerSecond() {
+			return getWallMillis() == 0 ? 0 : bases * 1000.0 / getWallMillis();
+		}
+
+		public long getStat(String name) {
+			return stats.containsKey(name) ? stats.get(name) : -1;
+		}
+
+		public String toString() {
+			return task + "\t" + (exitStatus == 0 ? "ok" : "FAILED (" + exitStatus + ")") + "\t" + bases + " bases\t" + getWallMillis() + " ms\t" +
+				getBasesPerSecond() + " bases/s\tpeak RSS " + getStat(Probe.PEAK_RSS_KB) + " kB\tGC " + getStat(Probe.GC_MILLIS) + " ms in " +
+				getStat(Probe.GC_COUNT) + " collections";
+		}
+	}
+
+	public void writeJSON(BufferedWriter bw, List<Result> results) throws IOException {
+		bw.write("{");
+		bw.newLine();
+		bw.write("  \"config\": {\"date\": \"" + new Date() + "\", \"java.version\": \"" + System.getProperty("java.version") +
+				"\", \"processors\": " + Runtime.getRuntime().availableProcessors() + ", \"length\": " + length + ", \"species\": " + numSpecies + ", \"seed\": " + seed +
+				", \"memory\": " + memory + "},");
+		bw.newLine();
+		bw.write("  \"results\": [");
+		bw.newLine();
+		for(int i = 0; i < results.size(); i++) {
+			Result result = results.get(i);
+			bw.write("    {\"task\": \"" + result.task + "\", \"exitStatus\": " + result.exitStatus + ", \"bases\": " + result.bases +
+					", \"wallMillis\": " + result.getWallMillis() + ", \"elapsedMillis\": " + result.elapsedMillis +
+					", \"basesPerSecond\": " + result.getBasesPerSecond() + ", \"peakRSSKB\": " + result.getStat(Probe.PEAK_RSS_KB) +
+					", \"gcMillis\": " + result.getStat(Probe.GC_MILLIS) + ", \"gcCount\": " + result.getStat(Probe.GC_COUNT) + "}");
+			bw.write(i < results.size() - 1 ? "," : "");
+			bw.newLine();
+		}
+		bw.write("  ]");
+		bw.newLine();
+		bw.write("}");
+		bw.newLine();
+	}
+
+	static Map<String, Long> readStats(File statsFile) throws IOException {
+		Map<String, Long> stats = new LinkedHashMap<String, Long>();
+		BufferedReader br = new BufferedReader(new FileReader(statsFile));
+		try {
+			String line = null;
+			while((line = br.readLine()) != null) {
+				String [] lineInfo = line.split("\t");
+				if(lineInfo.length == 2) {
+					stats.put(lineInfo[0], Long.parseLong(lineInfo[1]));
+				}
+			}
+		} finally {
+			br.close();
+		}
+		return stats;
+	}
+
+	private static String join(String [] values) {
+		StringBuilder sb = new StringBuilder();
+		for(String value : values) {
+			sb.append(sb.length() == 0 ? "" : ",").append(value);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Runs a main class and, when the JVM exits, writes its wall time, peak resident memory and garbage collection
+	 * figures to a file. Arguments: stats file, main class and the main class arguments.
+	 */
+	public static class Probe {
+		public static final String WALL_MILLIS = "wallMillis";
+		public static final String PEAK_RSS_KB = "peakRSSKB";
+		public static final String GC_MILLIS = "gcMillis";
+		public static final String GC_COUNT = "gcCount";
+
+		public static void main(String [] args) throws Throwable {
+			final File statsFile = new File(args[0]);
+			final long start = System.currentTimeMillis();
+			// The stats are written from a shutdown hook so that they are also recorded when the task calls System.exit.
+			Runtime.getRuntime().addShutdownHook(new Thread("probe-stats") {
+				public void run() {
+					try {
+						writeStats(statsFile, System.currentTimeMillis() - start);
+					} catch (IOException e) {
+						System.err.println("Could not write stats to " + statsFile + ": " + e.getMessage());
+					}
+				}
+			});
+			try {
+				Class.forName(args[1]).getMethod("main", String[].class).invoke(null, new Object [] {Arrays.copyOfRange(args, 2, args.length)});
+			} catch (InvocationTargetException ite) {
+				throw ite.getCause();
+			}
+		}
+
+		static void writeStats(File statsFile, long wallMillis) throws IOException {
+			long gcMillis = 0;
+			long gcCount = 0;
+			for(GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+				gcMillis += Math.max(0, gc.getCollectionTime());
+				gcCount += Math.max(0, gc.getCollectionCount());
+			}
+			BufferedWriter bw = new BufferedWriter(new FileWriter(statsFile));
+			try {
+				bw.write(WALL_MILLIS + "\t" + wallMillis);
+				bw.newLine();
+				bw.write(PEAK_RSS_KB + "\t" + readPeakRSS());
+				bw.newLine();
+				bw.write(GC_MILLIS + "\t" + gcMillis);
+				bw.newLine();
+				bw.write(GC_COUNT + "\t" + gcCount);
+				bw.newLine();
+			} finally {
+				bw.close();
+			}
+		}
+
+		/**
+		 * @return the VmHWM of /proc/self/status in kB, -1 if it is not available.
+		 */
+		static long readPeakRSS() {
+			File status = new File("/proc/self/status");
+			if(!status.exists()) {
+				return -1;
+			}
+			try {
+				BufferedReader br = new BufferedReader(new FileReader(status));
+				try {
+					String line = null;
+					while((line = br.readLine()) != null) {
+						if(line.startsWith("VmHWM:")) {
+							return Long.parseLong(line.substring("VmHWM:".length()).replace("kB", "").trim());
+						}
+					}
+				} finally {
+					br.close();
+				}
+			} catch (IOException e) {
+				System.err.println("Could not read " + status + ": " + e.getMessage());
+			} catch (NumberFormatException e) {
+				System.err.println("Unexpected VmHWM format in " + status + ": " + e.getMessage());
+			}
+			return -1;
+		}
+	}
+}
@@ -1,7 +1,11 @@
 package broad.core.siphy;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -9,6 +13,7 @@ import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.io.RandomAccessFile;
@@ -18,6 +23,7 @@ import java.text.NumberFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
@@ -26,6 +32,11 @@ import java.util.Map;
 import java.util.Random;
 import java.util.Stack;
 import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.commons.math.MathException;
 import org.apache.commons.math.distribution.ContinuousDistribution;
@@ -50,6 +61,7 @@ import broad.core.motif.PWMUtils;
 import broad.core.motif.PositionWeightMatrix;
 import broad.core.motif.PositionWeightMatrixIO;
 import broad.core.multiplealignment.MAFAlignment;
+import broad.core.multiplealignment.MAFAlignment.MAFMultipleAlignmentBlock;
 import broad.core.multiplealignment.MAFIO;
 import broad.core.multiplealignment.MultipleAlignment;
 import broad.core.multiplealignment.MultipleAlignmentFactory;
@@ -61,9 +73,11 @@ import broad.core.siphy.EvolutionaryModel.OmegaFit;
 import broad.core.siphy.EvolutionaryModel.PiFit;
 import broad.core.util.CLUtil;
 import broad.core.util.CLUtil.ArgumentMap;
+import broad.core.util.Metrics;
 
 public class TreeScaler {
 	public static final String USAGE = "Usage: TreeScaler TASK=<task_num> <task_args>\n" +
+	"\tAny task: [-metrics <File where timings and counters of the alignment loading, tree pruning, likelihood and fitting code are written every -metricsInterval seconds (default 60) and on exit> -metricsJMX <Publish the same metrics as JMX attributes>]\n" +
 	"\tTasks:\n" +
 	"\t\t1. Compute scaling of tree for each site in a multiple alignment. \n\t\tParameters:\n\t\t  -in <multiple alignment file> "+
 		"\n\t\t  -mod <Neutral Evolutionary model consisting of aminoacid background distribution, mutation matrix and neutral phylogenetic tree>" +
@@ -89,6 +103,7 @@ public class TreeScaler {
 		"\n\t\t  TREE: ((((mm8:0.085233,rn4:0.098462):0.262242,hg18:0.128359):0.025266,canFam2:0.171487):0.308235,monDom4:0.308235);" +
 		"\n\t\t  [-withSampling <Sample missing data from neutral model> -numSamplings <Number of times to run estimation to use in averaging omega. More than 10 iterations are redundant>" +
 		"\n\t\t  [-start <If MAF file, you may specify the reference start coordinate> -end <If MAF file, you may specify the reference end coordinate>]" +
+		"\n\t\t  [-checkpointInterval <Seconds between checkpoints of the scan progress, default 300> -resume <Continue a run that did not finish from its last checkpoint, output written after it is dropped> -checkpointFile <default is the output file name with a .checkpoint extension>]" +
 	"\n\t\t2. Similar to task 1 but input file is in MAF format rather than one full multiple alignment. You may filter for a region by specifying:" +
 		"\n\t\t  -start <Reference start position>" +
 		"\n\t\t  -end <reference end position>" +
@@ -110,6 +125,7 @@ public class TreeScaler {
 	"\n\t\t [-informat <input alignment format, default is FASTA> -ignore <comma separated species to ignore> -outformat <output format default is FASTA]" +
 	"\n\t\t7. Fit base frequency pi. Parameters are the same as task 1 except for:" +
 	"\n\t\t one off -priorOmega <a prior omega to use when fitting rhow> "+ 
+	"\n\t\t [-threads <number of threads fitting unique site patterns, default 1>] "+ 
 	"\n\t\t\t -siteOmegas <An output of the task 1 or 2 for the same region omega will then be avaraged in windows> -omegaWindow <windo in which to fit omega, default is 1kb> " +
 	"\n\t\t8. Integrate omegas over windows, this assumes that the omegas provided have been computed on the same tree length (e.g. via sampling) " +
 	"\n\t\t\t -in <A site by site omega calculation output file> -out <output file> -shift <A coordinate shift in case the original omega file is not in genomic coordinates> " +
@@ -118,12 +134,15 @@ public class TreeScaler {
 	"\n\t\t\t -in <estimation file (any file generated from running tasks 1,2,7,8 or similar), default is standard input> -out <output file name defalut is standard out> [-separator <Column separator character, default is tab>]" +
 	"\n\t\t\t -pvalcol <column of site p-value (first column is 1)> -positioncol <column of position, position is assumed to be the start of the window(first column is 1)> -minscore <Minimum score used to join a site> -maxscore <Maximum score to join> -maxgap <maximum gap of sites with less than pval to paste through>" +
 	"\n\t\t\t [-chr <chromosome default is 'C'> -window <window size default is 1> " +
+	"\n\t\t\t  -indir <directory of per chromosome score files named <chr><suffix>, each is threaded to <outdir>/<chr>.elements.bed instead of -in/-out> -suffix <score file suffix, default .txt> -outdir <output directory> -threads <number of files threaded at once, default 1>]" +
 	"\n\t\t10. Score regions -alignment <alignment including regions, regions should be in coordinates that are consistent with the alignment> -mod <model file> -ref <reference sequence id default is the first sequence in the alignment> [-window <If you want to tile each region with a fixed window rather than fitting omega to the full region> -overlap <By default a scan of windows with window size - 1 overlap is done> -minTreeLength <If no omega should be computed if the minimum branch length of the kmer is below this threshold>]" +
 	"\n\t\t\t -in <Input file BED annotation file, default is standard input> -out <Output file, default is standard output> [-shift <amount to shift position> -bedIsOneBased <Add this flad is the positions in BED file start at 1 rather than 0 ]" +
+	"\n\t\t\t [-threads <number of threads fitting regions, default 1> -batchSpan <regions are sorted and the alignment is loaded once per span of at most this many bases, default 1000000>]" +
 	"\n\t\t11. Integrate Stationary distribution in windows -window <window size> [-windowOverlap <sliding window overlap, default is window length - 1> -dist <Neutral distribution in empirical format see??? if pvalues are desired>]" +
 	"\n\t\t\t -in <estimation file (any file generated from running tasks 1,2,7,8 or similar), default is standard input> -out <output file name defalut is standard out>" +
 	"\n\t\t12. Add an empirical pvalue to computation based on the spcified column value -col <column number with values to use, first column is 0> -dist <Neutral distribution of same values to use in empirical pValue computations> " +
 	"\n\t\t\t-in <File (standard input is default)> -out <new file with the extra column of > [-separator <character used to separate columns, default is tab '\\t>' -rightTail <add this flag if the pvalue should be 1- p(X>=x) rather than p(X<= x)>]" +
+	"\n\t\t\t[-threads <number of threads annotating chunks of the input file, default 1> -chunkSize <bytes per chunk, default 8MB>]" +
 	"\n\t\t13. Integrate Omega log odds score distribution in windows -window <window size> [-dist <Neutral distribution in empirical format see??? if pvalues are desired>]" +
 	"\n\t\t14. Given a PWM, an alignment and a neutral model slide PWM and compute log odds likelihood (of the window being generated by the neutral or PWM models " +
 	"\n\t\t\t-in <Alignment file (or standard input) if MAF this is required> -pwm <File with PWM description> -mod <Neutral model> [-seedMinScore <Minimum affinity score in order to incurr in the expense of the phylogenetic computation> -outprefix <If a prefix to the automatically generated output file is desired>]" +
@@ -134,11 +153,18 @@ public class TreeScaler {
 	"\n\t\t\t-indir <Alignment directory of chromosome  MAF alignments> -pwm <File with PWM description> -mod <Neutral model> [-seedMinScore <Minimum affinity score in order to incurr in the expense of the phylogenetic computation> -ignore <comma separated species to ignore>]" +
 	"\n\t\t\t-start <start of region > -end <end of region > -chr <chromosome region> -regions <alternatively you can specify an annotation file > -regionFormat <[BED], GFF or generic> " +
 	"\n\t\t\t[-mafSuffix <A suffix for maf alignment files default is .maf> -outdir <Output directory if other than current dir> -outprefix <If a prefix to the automatically generated output file is desired> -minScoreToReport <Do not report scores less than this> -shuffles <Number of shuffles to do if suffling then a pvalue is reported>>]" +
+	"\n\t\t\t[-checkpointInterval <Seconds between checkpoints of the scan progress, default 300> -resume <Continue a run that did not finish from its last checkpoint, hits written after it are dropped> -checkpointFile <default is <outdir>/<outprefix>pwmscan.checkpoint>]" +
 	"\n\t\t17. Change equilibrium distribution in model. -mod <Model file to change (see task 1 for a description> -pA <new equilibrium probability for A>  -pC <new equilibrium probability for C>  -pG <new equilibrium probability for G>  -pT <new equilibrium probability for T> -out <Output file or standard out if none is specified>"+
 	"\n\t\t18. Evolve sequence according to tree -ancestralSequence <A nucleotide sequence to evolve> -mod <Model to use> -ignore <optional -- comma separated species to ignore in the given model tree> -numColumns <Number of columns to sample> -bg <Optional -- new background distribution, as a comma separated list of the A,C,G,T frequencies> -" +
+	"\n\t\tserve. Keep the model and alignment indices loaded and score batches of regions as task 10 does, requests are BED lines ended by a blank line and are answered with a task 10 line per region and a blank line. #stats returns latency and throughput figures, #shutdown stops the service." +
+	"\n\t\t\t-indir <Alignment directory of chromosome MAF alignments> -mod <Neutral model> [-mafSuffix <A suffix for maf alignment files default is .maf> -ignore <comma separated species to ignore> -threads <number of regions scored at once, default 1> -port <Serve connections to this local port rather than standard input and output>]" +
 	"\n\t\tbayesian. Estimate posterior P(omega | Data). Basic data (Alignment and model should be specified per in task 1) specific parameters: " +
 	"\n\t\t\t-out <Name of output file containig P(0.25 | data) and P(1 | data) for each window, another file will also be created with the aggregated empiric distribution of P(W | Data)> " +
-	"\n\t\t\t-printFullDistribution <If set the program will print the posterior probability for the sampled values of omega for each position of the alignment. THIS GENERATES A HUGE FILE>" +
+	"\n\t\t\t-printFullDistribution <If set the program will print the posterior probability for the sampled values of omega for each position of the alignment to <out>.dist.full. THIS GENERATES A HUGE FILE>" +
+	"\n\t\t\t-binaryFullDistribution <Write the full distribution in a compact binary format instead, see the fullDistributionToText task>" +
+	"\n\t\t\t-threads <number of threads scoring alignment columns, default 1>" +
+	"\n\t\t\t-patternCacheSize <maximum number of distinct column patterns whose likelihoods are cached, default what fits in an eighth of the heap, at most 500000>" +
+	"\n\t\tfullDistributionToText. Convert a binary full distribution written by the bayesian task with -binaryFullDistribution to the text format. -in <Binary full distribution> -out <Output file or standard out if none is specified>" +
 	"\n\t\t\t-likelihood  Computed the probability of an alignment given a model.\n\t\t -mod <Neutral model as defined in task 1> \n\t\t -in <Alignment file> \n\n\t -ref <reference sequence id, necessary if the alignment is not in MAF format> \n\t\t -ignore <comma separated species to ignore>"+
 	"\n\t\tmaximalPWM Given a PWM, an MAF alignment and a neutral model slide PWM and compute the maximum log odds likelihood (of the window being generated by the neutral or PWM models " +
 	"\n\t\t\t-indir <Alignment directory of chromosome  MAF alignments> -pwm <File with PWM description> -mod <Neutral model> [-seedMinScore <Minimum affinity score in order to incurr in the expense of the phylogenetic computation> -ignore <comma separated species to ignore>]" +
@@ -146,17 +172,34 @@ public class TreeScaler {
 	"\n\t\t\t[-mafSuffix <A suffix for maf alignment files default is .maf> -out <Output file or standard out if non is specified>  -shuffles <Number of shuffles to do if suffling then a pvalue is reported>>]" +
 	"\n";	
 
+	private static final Metrics.Counter SITES_WRITTEN = Metrics.counter("output.sites");
+	private static final Metrics.Counter REGIONS_WRITTEN = Metrics.counter("output.regions");
+	private static final Metrics.Counter PWM_HITS_WRITTEN = Metrics.counter("output.pwmHits");
+	private static final Metrics.Timer PWM_SCAN_TIMER = Metrics.timer("pwm.scan");
+	// Sites per unique column pattern of each scored chunk, times 100 as histograms hold integers.
+	private static final Metrics.Histogram CHUNK_COMPRESSION = Metrics.histogram("sitePatterns.compressionRatioX100");
+
 	EvolutionaryModel model;
 	private MultipleAlignment alignment;
 	private double minimumTreeLength;
 	private HashMap<String, Phylogeny> prunnedTrees = new HashMap<String, Phylogeny>();
+	private HashMap<String, Phylogeny> regionTrees = new HashMap<String, Phylogeny>();
+	private HashMap<String, Double> prunedTreeLengths = new HashMap<String, Double>();
+	private EvolutionaryModel regionTreeCacheModel;
+	private RunCheckpoint checkpoint;
 	private List<String> ignoreSequences;
+	private ColumnPatternCache<PiFit> piFitCache;
+	private Phylogeny piFitCacheTree;
+	private ColumnPatternCache<Double> pwmNeutralCache;
+	private EvolutionaryModel pwmNeutralCacheModel;
 	
 	private static final double MIN_TREE_LENGTH = 1;
 	private static final int INF = 1000000000;
 	private static final int DEFAULT_OMEGA_WIN_FOR_RHO = 2000;
 	private static final int DEFAULT_SAMPLINGS = 8;
 	private static final double MIN_INTERESTING_OMEGA = 0.4;
+	static final int REGION_BATCH_SPAN = 1000000; // largest alignment span loaded at once when batch scoring regions
+	static final int MAX_CACHED_TREE_LENGTHS = 1 << 16;
 	private static DecimalFormat numberFormat = new  DecimalFormat("##0.####");
 	private static DecimalFormat tinnyNumberFormat = new  DecimalFormat("##0.#########");
 	static int MAF_CHUNK_SIZE = 100000;
@@ -190,6 +233,12 @@ public class TreeScaler {
 	public static void main(String[] args) throws Exception {
 		
 		ArgumentMap argMap = CLUtil.getParameters(args, USAGE);
+		if(argMap.containsKey("metrics")) {
+			Metrics.reportTo(new File(argMap.getMandatory("metrics")), argMap.getInteger("metricsInterval", 60) * 1000L);
+		}
+		if(argMap.containsKey("metricsJMX")) {
+			Metrics.registerMBean();
+		}
 		
 		TreeScaler scaler = new TreeScaler();
 		if ("1".equals(argMap.getTask())) {	
@@ -236,7 +285,17 @@ public class TreeScaler {
 				out = outdir + "/" + alnFilePath[alnFilePath.length - 1].replaceFirst("\\..+$", ".omegas");
 			}
 			
-			BufferedWriter bw = new BufferedWriter(new FileWriter(out));
+			boolean resumed = false;
+			if(argMap.containsKey("resume") || argMap.containsKey("checkpointInterval")) {
+				scaler.checkpoint = new RunCheckpoint(new File(argMap.get("checkpointFile", out + ".checkpoint")), getCheckpointInterval(argMap));
+				scaler.checkpoint.addOutput(new File(out), null);
+				resumed = argMap.containsKey("resume") && scaler.checkpoint.resume();
+			}
+			BufferedWriter bw = new BufferedWriter(new FileWriter(out, resumed));
+			if(scaler.checkpoint != null) {
+				scaler.checkpoint.addOutput(new File(out), bw);
+				scaler.checkpoint.save();
+			}
 			if(sample) {
 				System.out.println("Doing " + numSamplings + " omega samplings per window");
 				scaler.scaleTreeWithSampling(window, bw, ignoreList, numSamplings);
@@ -244,6 +303,9 @@ public class TreeScaler {
 				scaler.scaleTree(window, bw, ignoreList, overlap);
 			}
 			bw.close();
+			if(scaler.checkpoint != null) {
+				scaler.checkpoint.finish();
+			}
 			/*
 			scaler.alignment.setIOHelper(MultipleAlignmentIOFactory.create("PHYLIP"));
 			bw = new BufferedWriter(new FileWriter(alnFile + ".sampled"));
@@ -504,7 +566,7 @@ public class TreeScaler {
 			}
 			
 			BufferedWriter bw = new BufferedWriter(new FileWriter(out));
-			scaler.fitPI(bw, ignoreList);
+			scaler.fitPI(bw, ignoreList, argMap.getInteger("threads", 1));
 			bw.close();
 			/*
 			scaler.alignment.setIOHelper(MultipleAlignmentIOFactory.create("PHYLIP"));
@@ -526,16 +588,9 @@ public class TreeScaler {
 			TreeScalerIO omegaio = new TreeScalerIO();
 			
 			InputStream is = argMap.getInputStream();
-			omegaio.load(is);
-			is.close();
-			
-			List<BED> windows = integrateStationaryDistributions(omegaio.getScaledWindows(), window, chr, neutralDist, overlap);
-			Iterator<BED> windowIt = windows.iterator();
 			BufferedWriter bw = argMap.getOutputWriter();
-			while(windowIt.hasNext()) {
-				bw.write(windowIt.next().toString());
-				bw.newLine();
-			}
+			omegaio.parse(is, 0, "C", new RollingWindowIntegrator(window, chr, neutralDist, overlap, bw));
+			is.close();
 			bw.close();
 			
 		} else if ("9".equals(argMap.getTask())) {
@@ -550,29 +605,28 @@ public class TreeScaler {
 			//int shift        = argMap.containsKey("shift") ? argMap.getInteger("shift") : 0;
 			int window       = argMap.containsKey("window") ? argMap.getInteger("window") : 1;
  			
-			BufferedReader br = argMap.getInputReader();
-			LinkedHashMap<Integer, Double> siteScoreMap = new LinkedHashMap<Integer, Double>();
-			String line = null;
-			while ( (line = br.readLine()) != null) {
-				if(line.trim().length() == 0 || line.startsWith("#")) {
-					continue;
+			ConservedElementThreader threader = new ConservedElementThreader(positioncol, scorecol, separator, minScore, maxScore, maxgap, window);
+			if(argMap.containsKey("indir")) {
+				// one score file per chromosome, named <chr><suffix>, threaded in parallel.
+				String suffix = argMap.containsKey("suffix") ? argMap.get("suffix") : ".txt";
+				File [] scoreFiles = new File(argMap.getInputDir()).listFiles();
+				Arrays.sort(scoreFiles);
+				List<File> inputs = new ArrayList<File>();
+				List<String> chrs = new ArrayList<String>();
+				for(File scoreFile : scoreFiles) {
+					if(scoreFile.isFile() && scoreFile.getName().endsWith(suffix)) {
+						inputs.add(scoreFile);
+						chrs.add(scoreFile.getName().substring(0, scoreFile.getName().length() - suffix.length()));
+					}
 				}
-				
-				String [] lineInfo = line.split(separator);
-				int position = Integer.parseInt(lineInfo[positioncol - 1]);
-				double score  = Double.parseDouble(lineInfo[scorecol - 1]);
-				siteScoreMap.put(position, score);
-			}
-			br.close();
-			
-			List<BED> elements = threadElements(siteScoreMap, maxScore, minScore, maxgap, chr, window);  
-			BufferedWriter bw = argMap.getOutputWriter();
-			Iterator<BED> elementIt = elements.iterator();
-			while(elementIt.hasNext()) {
-				bw.write(elementIt.next().toString());
-				bw.newLine();
+				threader.thread(inputs, chrs, new File(argMap.getOutputDir()), argMap.getInteger("threads", 1));
+			} else {
+				InputStream in = argMap.getInputStream();
+				BufferedWriter bw = argMap.getOutputWriter();
+				threader.thread(in, chr, bw);
+				in.close();
+				bw.close();
 			}
-			bw.close();
 			
 		} else if ("10".equals(argMap.getTask()) ){
 			String alnFile = argMap.getMandatory("alignment");
@@ -613,6 +667,25 @@ public class TreeScaler {
 				refSequence = scaler.alignment.getReference();
 			}
 			//System.err.println("Reference: " + refSequence.getId() + " "  + refSequence.getStart() + "-" + refSequence.getEnd());
+			if(!argMap.containsKey("window")) {
+				// Fit each region: regions are sorted and scored in batches sharing the alignment span they fall in.
+				List<BED> regions = new ArrayList<BED>(regionNum);
+				while(regionIt.hasNext()) {
+					BED region = regionIt.next();
+					if(oneBased) {
+						region.setStart(region.getStart() - 1);
+						region.setEnd(region.getEnd() - 1);
+					}
+					if(intervalsClosedClosed) {
+						region.setEnd(region.getEnd() + 1);
+					}
+					regions.add(region);
+				}
+				int maxSpan = argMap.containsKey("batchSpan") ? argMap.getInteger("batchSpan") : REGION_BATCH_SPAN;
+				scaler.scaleRegions(regions, ignoreList, chrMafIO, shift, maxSpan, argMap.getInteger("threads", 1), bw);
+				bw.close();
+				return;
+			}
 			while(regionIt.hasNext()) {
 				BED region = regionIt.next();
 				//System.err.print("Region " + region.getName() + " chr" + region.getChromosome() + ":" + region.getStart() + "-" + region.getEnd() );
@@ -637,19 +710,11 @@ public class TreeScaler {
 				
 				}
 				
-				if( argMap.containsKey("window")) {
-					int window = argMap.getInteger("window");
-					double minTreeLength = argMap.containsKey("minTreeLength") ? argMap.getDouble("minTreeLength") : MIN_TREE_LENGTH;
-					scaler.setMinimumTreeLength(minTreeLength);
-					int overlap = argMap.containsKey("overlap") ? argMap.getInteger("overlap") : window - 1;
-					scaler.scaleTree(window, bw, ignoreList, overlap);
-				} else {
-					OmegaFit regionFit = scaler.scaleRegion(ignoreList, region);
-					
-					bw.write(region.getChromosomeString() + "\t" + (region.getStart() + shift) + "\t" + (region.getEnd() + shift) + "\t" + region.getName() + "\t" + region.getOrientation() + "\t" + (regionFit == null ? 1 : regionFit.getOmega() )+ "\t" + (regionFit == null ? 0 : regionFit.getLogOddsScore() )+ "\t" + (regionFit == null ? 1 :regionFit.getPVal() )+ "\t" + (regionFit == null ? 0 :regionFit.getTreeLength()));
-					bw.newLine();
-					//System.err.print(" wrote fit");
-				}
+				int window = argMap.getInteger("window");
+				double minTreeLength = argMap.containsKey("minTreeLength") ? argMap.getDouble("minTreeLength") : MIN_TREE_LENGTH;
+				scaler.setMinimumTreeLength(minTreeLength);
+				int overlap = argMap.containsKey("overlap") ? argMap.getInteger("overlap") : window - 1;
+				scaler.scaleTree(window, bw, ignoreList, overlap);
 				//System.err.println("");
 				//scaler.writeSiteOmegaInfo(bw, region.getStart(), regionFit);
 			}
@@ -668,19 +733,9 @@ public class TreeScaler {
 			StationaryDistributionIO sdio = new StationaryDistributionIO();
 			
 			InputStream is = argMap.getInputStream();
-			sdio.load(is);
-			is.close();
-			
-			BufferedWriter bw = argMap.getOutputWriter();
-			//List<BED> windows = integrateStationaryDistributions(sdio.getFits(), window, chr, neutralDist, overlap);
-			integrateStationaryDistributions(sdio.getFits(), window, chr, neutralDist, overlap, bw);
-			/*Iterator<BED> windowIt = windows.iterator();
 			BufferedWriter bw = argMap.getOutputWriter();
-			while(windowIt.hasNext()) {
-				bw.write(windowIt.next().toString());
-				bw.newLine();
-			}
-			*/
+			sdio.parse(is, new RollingWindowIntegrator(window, chr, neutralDist, overlap, bw));
+			is.close();
 			bw.close();
 		} else if ("12".equals(argMap.getTask())) {
 			String distFile = argMap.getMandatory("dist");
@@ -690,27 +745,19 @@ public class TreeScaler {
 			
 			
 			EmpiricalDistribution dist = new EmpiricalDistribution(new File(distFile));
+			CumulativeProbabilityTable cdf = new CumulativeProbabilityTable(dist);
+			System.err.println("Tabulated " + cdf.getNumberOfSteps() + " cumulative probability steps");
+			PValueAnnotator annotator = new PValueAnnotator(cdf, col, separator, rightTail, tinnyNumberFormat.toPattern());
 			
-			BufferedReader br = argMap.getInputReader();
 			BufferedWriter bw = argMap.getOutputWriter();
-			
-			String line = null;
-			while((line = br.readLine()) != null) {
-				if(line.startsWith("#") || line.startsWith("track")) {
-					bw.write(line);
-					bw.newLine();
-					continue;
-				}
-				
-				String [] lineInfo = line.split(separator);
-				double value = Double.parseDouble(lineInfo[col]);
-				double pVal = rightTail ? 1 - dist.getCummulativeProbability(value) : dist.getCummulativeProbability(value);
-				bw.write(line.trim());
-				bw.write(separator);
-				bw.write(tinnyNumberFormat.format(pVal));
-				bw.newLine();
+			if(argMap.hasInputFile()) {
+				int chunkSize = argMap.containsKey("chunkSize") ? argMap.getInteger("chunkSize") : PValueAnnotator.DEFAULT_CHUNK_SIZE;
+				annotator.annotate(new File(argMap.getInput()), bw, argMap.getInteger("threads", 1), chunkSize);
+			} else {
+				BufferedReader br = argMap.getInputReader();
+				annotator.annotate(br, bw);
+				br.close();
 			}
-			br.close();
 			bw.close();
 		} else if ("13".equals(argMap.getTask())) {
 			int window = argMap.getInteger("window");
@@ -725,16 +772,9 @@ public class TreeScaler {
 			TreeScalerIO tsio = new TreeScalerIO();
 			
 			InputStream is = argMap.getInputStream();
-			tsio.load(is);
-			is.close();
-			
-			List<BED> windows = integrateStationaryDistributions(tsio.getScaledWindows(), window, chr, neutralDist, overlap);
-			Iterator<BED> windowIt = windows.iterator();
 			BufferedWriter bw = argMap.getOutputWriter();
-			while(windowIt.hasNext()) {
-				bw.write(windowIt.next().toString());
-				bw.newLine();
-			}
+			tsio.parse(is, 0, "C", new RollingWindowIntegrator(window, chr, neutralDist, overlap, bw));
+			is.close();
 			bw.close();
 		} else if ("14".equals(argMap.getTask())) {
 			File modelFile = new File(argMap.getMandatory("mod"));
@@ -807,8 +847,8 @@ public class TreeScaler {
 				writerMap.put(pwm, new BufferedWriter(new FileWriter(argMap.getOutputDir() + "/" + pwm.getName() + "_samples.bed")));
 				PositionWeightMatrix rpwm = pwm.reverseComplement();
 				rpwms.add(rpwm);
-				PositionWeightMatrixModel pwmm = new PositionWeightMatrixModel(pwm, scaler.getModel());
-				PositionWeightMatrixModel rpwmm = new PositionWeightMatrixModel(rpwm, scaler.getModel());
+				PositionWeightMatrixModel pwmm = new PositionWeightMatrixModel(pwm, scaler.getModel(), scaler.getPWMNeutralCache());
+				PositionWeightMatrixModel rpwmm = new PositionWeightMatrixModel(rpwm, scaler.getModel(), scaler.getPWMNeutralCache());
 				pwmms.add(pwmm);
 				rpwmms.add(rpwmm);
 			}
@@ -913,17 +953,44 @@ public class TreeScaler {
 			}
 
 			
+			// A checkpoint unit is a chunk: chromosome, index of the region in the chromosome and chunk start.
+			RunCheckpoint checkpoint = null;
+			String [] resumeUnit = null;
+			if(argMap.containsKey("resume") || argMap.containsKey("checkpointInterval")) {
+				checkpoint = new RunCheckpoint(new File(argMap.get("checkpointFile", outdir + "/" + prefix + "pwmscan.checkpoint")), getCheckpointInterval(argMap));
+				for(PositionWeightMatrix pwm : pwms) {
+					checkpoint.addOutput(new File(outdir + "/" + prefix + pwm.getName() + ".bed"), null);
+					if(shuffles > 0) {
+						checkpoint.addOutput(new File(outdir + "/" + prefix + pwm.getName() + ".pvals"), null);
+					}
+				}
+				if(argMap.containsKey("resume") && checkpoint.resume() && checkpoint.getProgress() != null) {
+					resumeUnit = checkpoint.getProgress().split("\t");
+				}
+				checkpoint.save();
+			}
+			
 			Map<String, List<? extends GenomicAnnotation>> regionChrMap = getRegionMapFromParameters(argMap);
 			
 			Iterator<String> chrIt = regionChrMap.keySet().iterator();
 			while(chrIt.hasNext()) {
 				String chr = chrIt.next();
+				if(resumeUnit != null && !resumeUnit[0].equals(chr)) {
+					continue; // Chromosome done before the checkpoint
+				}
 				Iterator<? extends GenomicAnnotation> annotIt = regionChrMap.get(chr).iterator();
 				String mafAlnName = "chr" + chr + mafSuffix;
 				MAFIO  chrMafIO = new MAFIO(alnDir+"/"+mafAlnName, true);
-				while(annotIt.hasNext()) {
+				for(int annotIdx = 0; annotIt.hasNext(); annotIdx++) {
 					LightweightGenomicAnnotation annot = annotIt.next();
 					int chunkStart = annot.getStart();
+					if(resumeUnit != null) {
+						if(annotIdx < Integer.parseInt(resumeUnit[1])) {
+							continue;
+						}
+						chunkStart = Integer.parseInt(resumeUnit[2]);
+						resumeUnit = null;
+					}
 					while(chunkStart < annot.getEnd()) {
 						
 						int chunkEnd =  shuffles == 0 ? 
@@ -954,7 +1021,9 @@ public class TreeScaler {
 								System.err.println("Sorting took: " + ((now - last)/1000.0) + " #items: " + maxPermutationVals.size());
 								last = now;
 								//System.out.println("pwm " + pwm.getName() + " cutoff " + pwmCutoffs.get(pwm.getName()));
+								long scanStart = PWM_SCAN_TIMER.start();
 								List<BED> hits = scaler.slidePWM(pwm, pwmCutoffs.get(pwm.getName()), encodedReference, ungappedChunks, shuffles);
+								PWM_SCAN_TIMER.stop(scanStart);
 								//Add to permutated distributions
 								shuffledScoreDistArray[0] = new EmpiricalDistribution(500, -50,20);
 								for(BED hit : hits) {
@@ -994,6 +1063,7 @@ public class TreeScaler {
 											} 
 											bw.write(hit.toString(false));										
 											bw.newLine();
+											PWM_HITS_WRITTEN.increment();
 										}
 									}
 									now = System.currentTimeMillis();
@@ -1005,10 +1075,18 @@ public class TreeScaler {
 							}
 						}
 						chunkStart = chunkStart + MAF_CHUNK_SIZE;
+						if(checkpoint != null) {
+							checkpoint.completed(chr + "\t" + annotIdx + "\t" + chunkStart);
+						}
 					}
 				}
 				chrMafIO.destroyFileHandle();
 			}
+			if(resumeUnit != null) {
+				System.err.println("WARN: checkpointed chunk " + Arrays.toString(resumeUnit) + " is not in the regions to scan, nothing was done");
+			} else if(checkpoint != null) {
+				checkpoint.finish();
+			}
 			
 		} else if ("17".equals(argMap.getTask())) {
 			File modelFile = new File(argMap.getMandatory("mod"));
@@ -1053,9 +1131,26 @@ public class TreeScaler {
 			System.out.println(evolvedSequenceTree.toNewHampshire(true));
 
 			
+		} else if ("serve".equalsIgnoreCase(argMap.getTask())) {
+			File modelFile = new File(argMap.getMandatory("mod"));
+			String mafSuffix  = argMap.containsKey("mafSuffix") ? argMap.getMandatory("mafSuffix") : ".maf";
+			List<String> ignoreList = processIgnoreListString(argMap.get("ignore"));
+			scaler.setNeutralModel(modelFile);
+			OmegaScoringService service = new OmegaScoringService(scaler.getModel(), new File(argMap.getInputDir()), mafSuffix, ignoreList, argMap.getInteger("threads", 1));
+			try {
+				if(argMap.containsKey("port")) {
+					service.listen(argMap.getInteger("port"));
+				} else {
+					service.serve(new BufferedReader(new InputStreamReader(System.in)), new BufferedWriter(new OutputStreamWriter(System.out)));
+				}
+			} finally {
+				service.close();
+				System.err.println(service);
+			}
 		} else if ("bayesian".equalsIgnoreCase(argMap.getTask())) {
 			int samplingNumber = 100;
-			boolean printFullDist = argMap.containsKey("printFullDistribution") || argMap.containsKey("printFullDist");
+			boolean binaryFullDist = argMap.containsKey("binaryFullDistribution");
+			boolean printFullDist = binaryFullDist || argMap.containsKey("printFullDistribution") || argMap.containsKey("printFullDist");
 			if(printFullDist) {System.err.println("WARNING: Printing full distribution data, this can take a huge amount of space");}
 			File modelFile = new File(argMap.getMandatory("mod"));
 			String alnFile = argMap.getInput();
@@ -1076,9 +1171,19 @@ public class TreeScaler {
 			scaler.alignment.encodeAsMatrix();
 
 			ContinuousDistribution priorOmega = new NormalDistributionImpl(1,0.5);
-			scaler.estimatePosterior(out, outdist, ignoreList, samplingNumber, priorOmega, window, printFullDist);
+			int patternCacheSize = argMap.containsKey("patternCacheSize") ? argMap.getInteger("patternCacheSize") : -1;
+			scaler.estimatePosterior(out, outdist, ignoreList, samplingNumber, priorOmega, window, printFullDist, binaryFullDist, patternCacheSize, argMap.getInteger("threads", 1));
 		
 		
+		} else if ("fullDistributionToText".equalsIgnoreCase(argMap.getTask())) {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(argMap.getInput())));
+			BufferedWriter bw = argMap.getOutputWriter();
+			try {
+				OmegaPosteriorEngine.printFullDistribution(in, bw);
+			} finally {
+				in.close();
+				bw.close();
+			}
 		}else if ("likelihood".equalsIgnoreCase(argMap.getTask())) {
 			File modelFile = new File(argMap.getMandatory("mod"));
 			String ignoreListStr = argMap.get("ignore");
@@ -1160,13 +1265,13 @@ public class TreeScaler {
 	
 
 
-	private void estimatePosterior(String outFile, String outDistFile, List<String> ignoreList, int samplingNumber, ContinuousDistribution priorOmega, int window, boolean printFullDist) throws MathException, IOException {
-		double minOmega = 0.05;
+	private void estimatePosterior(String outFile, String outDistFile, List<String> ignoreList, int samplingNumber, ContinuousDistribution priorOmega, int window, boolean printFullDist, boolean binaryFullDist, int patternCacheSize, int numThreads) throws MathException, IOException, InterruptedException, ExecutionException {
+		final double minOmega = 0.05;
 		double maxOmega = 2.5;
 		
-		double samplingStep = (maxOmega - minOmega)/(double)samplingNumber;
+		final double samplingStep = (maxOmega - minOmega)/(double)samplingNumber;
 		
-		double [] samplingOmegas = new double[samplingNumber ]; // The first 2 are the putative conserved and neutral omegas.
+		final double [] samplingOmegas = new double[samplingNumber ]; // The first 2 are the putative conserved and neutral omegas.
 		for(int i = 0; i < samplingNumber; i++) {
 			samplingOmegas[i] = i*samplingStep + minOmega;
 		}
@@ -1183,63 +1288,66 @@ public class TreeScaler {
 		Iterator<int []> ungappedRegionIt = ungappedIslands.iterator();
 
 		System.out.println("Alignment starts at " + alignment.getReferenceStart() + " alignment length " + alignment.length());
-		model.RPIDecomposition();
+		// Prior masses and the per omega branch transitions do not depend on the position, computed once.
+		OmegaPosteriorEngine engine = new OmegaPosteriorEngine(model, alnTree, samplingOmegas, 
+				OmegaPosteriorEngine.priorLogMasses(priorOmega, samplingOmegas, samplingStep), minimumTreeLength);
+		if(patternCacheSize >= 0) {
+			engine.setSiteCacheSize(patternCacheSize);
+		}
 		//System.out.println("R: ");
 		model.R.print(7, 5);
 		
 		
-		BufferedWriter bw = new BufferedWriter(new FileWriter(outFile));
-		BufferedWriter fullDistBW = null;
-		if(printFullDist) {
-			fullDistBW = new BufferedWriter(new FileWriter(outDistFile+".full"));
-		}
-		TreeMap<Double, Double> distribution = new TreeMap<Double, Double>();
-		for(int i = 0; i < samplingOmegas.length; i++) {
-			distribution.put(samplingOmegas[i], 0.0);
-			if(printFullDist) {
-				fullDistBW.write(String.valueOf(samplingOmegas[i]));
-				if(i < samplingOmegas.length - 1) {fullDistBW.write("\t");}
-			}
+		final BufferedWriter bw = new BufferedWriter(new FileWriter(outFile));
+		DataOutputStream fullDist = null;
+		BufferedWriter fullDistText = null;
+		if(binaryFullDist) {
+			fullDist = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(outDistFile+".full")));
+			OmegaPosteriorEngine.writeFullDistributionHeader(fullDist, samplingOmegas);
+		} else if(printFullDist) {
+			fullDistText = new BufferedWriter(new FileWriter(outDistFile+".full"));
+			OmegaPosteriorEngine.writeFullDistributionHeader(fullDistText, samplingOmegas);
 		}
+		final DataOutputStream fullDistOut = fullDist;
+		final BufferedWriter fullDistTextOut = fullDistText;
+		final double [] distribution = new double[samplingOmegas.length];
+		final int conservedIdx = (int)((0.25 - minOmega)/samplingStep);
+		final int neutralIdx = (int)((1 - minOmega)/samplingStep);
 		
-		if(printFullDist){fullDistBW.newLine();}
-		
-		while(ungappedRegionIt.hasNext()) {
-			int [] region = ungappedRegionIt.next();
-				//System.out.println("\tgood ungapped island " + region[0]+"-"+region[1]);
-			for(int i = region[0]; i < region[1] - window + 1; i++) { //Go through the sites within ungapped ref
-				int refPosition = i + alignment.getReferenceStart();
-				double [] weightedlogLikelihoods = new double[samplingOmegas.length]; 
-				double PX = 0; //The denumerator (probability of data P(X)
-				for(int j = 0; j < samplingOmegas.length; j++) {
-					double prior = priorOmega.cumulativeProbability(samplingOmegas[j]-samplingStep/2.0, samplingOmegas[j]+samplingStep/2.0);
-					if(prior == 0) {
-						System.err.println("Ooops prior was 0 omega " + samplingOmegas[j]);
+		ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+		try {
+			while(ungappedRegionIt.hasNext()) {
+				int [] region = ungappedRegionIt.next();
+					//System.out.println("\tgood ungapped island " + region[0]+"-"+region[1]);
+				engine.computePosteriors(alignment, region[0], region[1], window, executor, new OmegaPosteriorEngine.PosteriorListener() {
+					public void posterior(int refPosition, double[] logPosteriors) throws IOException {
+						bw.write(refPosition+"\t" +logPosteriors[conservedIdx] + "\t"+ logPosteriors[neutralIdx]);
+						bw.newLine();
+						if(fullDistOut != null) {
+							OmegaPosteriorEngine.writeFullDistributionRecord(fullDistOut, refPosition, logPosteriors);
+						} else if(fullDistTextOut != null) {
+							OmegaPosteriorEngine.writeFullDistributionRecord(fullDistTextOut, refPosition, logPosteriors);
+						}
+						for(int j = 0; j < samplingOmegas.length; j++) {
+							distribution[j] += Math.exp(logPosteriors[j]);
+						}
 					}
-					weightedlogLikelihoods[j] = getLogLikelihood(samplingOmegas[j], alnTree, refPosition, window) + Math.log(prior);
-					PX += Math.exp(weightedlogLikelihoods[j]);
-				}	
-				if(Math.log(PX) == Double.NaN) {System.err.println(":-( PX was NAN at " + refPosition + " PX=" + PX);}
-				double logPX = Math.log(PX);
-				bw.write(refPosition+"\t" +(weightedlogLikelihoods[(int)((0.25 - minOmega)/samplingStep)] - logPX ) + "\t"+ (weightedlogLikelihoods[(int)((1 - minOmega)/samplingStep)] - logPX));
-				bw.newLine();
-				if(printFullDist) {fullDistBW.write(String.valueOf(refPosition));}
-				for(int j = 0; j < samplingOmegas.length; j++) {
-					double omegaPosterior = Math.exp(weightedlogLikelihoods[j] - logPX) ;
-					if(printFullDist) {fullDistBW.write("\t"+omegaPosterior);}
-					distribution.put(samplingOmegas[j], omegaPosterior + distribution.get(samplingOmegas[j]));
-				}
-				if(printFullDist) {fullDistBW.newLine();}
+				});
+			}
+		} finally {
+			executor.shutdown();
+			bw.close();
+			if(fullDistOut != null) {
+				fullDistOut.close();
+			}
+			if(fullDistTextOut != null) {
+				fullDistTextOut.close();
 			}
-		}
-		bw.close();
-		if(printFullDist) {
-			fullDistBW.close();
 		}
 		
 		BufferedWriter distBW = new BufferedWriter(new FileWriter(outDistFile));
-		for(double omega : distribution.keySet()) {
-			distBW.write(omega+"\t"+distribution.get(omega));
+		for(int j = 0; j < samplingOmegas.length; j++) {
+			distBW.write(samplingOmegas[j]+"\t"+distribution[j]);
 			distBW.newLine();
 		}
 		distBW.close();
@@ -1266,9 +1374,9 @@ public class TreeScaler {
 		double logLikelihood = 0;
 		if(meanTreeLength  > minimumTreeLength) {
 			for(int i = 0; i < window; i++){
-				double likelihood = changedModel.computeLikelihood(alignmentWindow, alnTree.getRoot(), i);
-				if(likelihood == 0){System.err.println("Ups 0 likelihood ... omega " + omega + " iteration " + i +" start position " + startPosition);}
-				logLikelihood += Math.log(likelihood);
+				double siteLogLikelihood = changedModel.computeLogLikelihood(alignmentWindow, alnTree.getRoot(), i);
+				if(Double.isInfinite(siteLogLikelihood)){System.err.println("Ups 0 likelihood ... omega " + omega + " iteration " + i +" start position " + startPosition);}
+				logLikelihood += siteLogLikelihood;
 			}
 		}
 		
@@ -1288,124 +1396,11 @@ public class TreeScaler {
 		ignoreSequences = ignoreList;
 	}
 	
-	private static List<BED> integrateStationaryDistributions(List<? extends Fit> fits, int windowSize, String chr, EmpiricalDistribution neutralDist, int overlap) throws MathException {
-		Stack<BED> windows = new Stack<BED>();
-		List<Fit> windowMembers = new ArrayList<Fit>(windowSize);
-		Iterator<? extends Fit> fitIt = fits.iterator();
-		int num = 0;
-		BED lastWindow = null;
-		while(fitIt.hasNext()) {
-			Fit fit = fitIt.next();
-		
-			if(windowMembers.size() > 0 &&  fit.getPosition() - windowMembers.get(windowMembers.size() - 1).getPosition() > 1) {
-					windowMembers.clear();
-			}
-			
-			if(windowMembers.size() == windowSize) {
-				BED window = new BED("w" + num);
-				window.setChromosome(chr);
-				window.setStart(windowMembers.get(0).getPosition());
-				window.setEnd(windowMembers.get(windowSize - 1).getPosition() );
-				double score = 0;
-				if(lastWindow == null || (lastWindow.getEnd() - window.getStart() <= overlap)) {
-					Iterator<Fit> windowMemberIt = windowMembers.iterator();
-					while(windowMemberIt.hasNext()) {
-						Fit member = windowMemberIt.next();
-						score += member.getLogLikelihoodRatio();
-					}
-					if(neutralDist != null) {
-						score = - Math.log(1 - neutralDist.getCummulativeProbability(score));
-					}
-					window.setScore(score);
-
-					windows.add(window);
-					num++;
-					lastWindow = window;
-				}
-
-				windowMembers.remove(0);
-			}
-			
-			windowMembers.add(fit);
-			
-			if(windowMembers.size() > windowSize) {
-				throw new RuntimeException("ERROR: bug handling windows, window memebers exceed window size");
-			}
-		}
-		
-		return windows;
-	}
-
-	private static void integrateStationaryDistributions(List<? extends Fit> fits, int windowSize, String chr, EmpiricalDistribution neutralDist, int overlap, BufferedWriter bw) throws MathException, IOException {
-		List<Fit> windowMembers = new ArrayList<Fit>(windowSize);
-		Iterator<? extends Fit> fitIt = fits.iterator();
-		int num = 0;
-		BED lastWindow = null;
-		while(fitIt.hasNext()) {
-			Fit fit = fitIt.next();
-		
-			if(windowMembers.size() > 0 &&  fit.getPosition() - windowMembers.get(windowMembers.size() - 1).getPosition() > 1) {
-					windowMembers.clear();
-			}
-			
-			if(windowMembers.size() == windowSize) {
-				BED window = new BED("w" + num);
-				window.setChromosome(chr);
-				window.setStart(windowMembers.get(0).getPosition());
-				window.setEnd(windowMembers.get(windowSize - 1).getPosition() );
-				double score = 0;
-				if(lastWindow == null || (lastWindow.getEnd() - window.getStart() <= overlap)) {
-					Iterator<Fit> windowMemberIt = windowMembers.iterator();
-					while(windowMemberIt.hasNext()) {
-						Fit member = windowMemberIt.next();
-						score += member.getLogLikelihoodRatio();
-					}
-					if(neutralDist != null) {
-						score = - Math.log(1 - neutralDist.getCummulativeProbability(score));
-					}
-					window.setScore(score);
-					
-					num++;
-					lastWindow = window;
-				}
-
-				windowMembers.remove(0);
-				bw.write(window.toString());
-				bw.newLine();
-			}
-			windowMembers.add(fit);
-			
-			if(windowMembers.size() > windowSize) {
-				throw new RuntimeException("ERROR: bug handling windows, window memebers exceed window size");
-			}
-		}
-		
-	}
-
-	private static List<BED> threadElements(LinkedHashMap<Integer, Double> siteScoreMap, double maxScore, double minScore, int maxgap, String chr, int window) {
-		Stack<BED> elements = new Stack<BED>();
-		
-		Iterator<Integer> posIt = siteScoreMap.keySet().iterator();
-		while(posIt.hasNext()) {
-			int pos = posIt.next();
-			double score = siteScoreMap.get(pos);
-			if(score < maxScore && score > minScore ) {
-				if(elements.empty() || (pos - elements.peek().getEnd()) > maxgap) {
-					//System.out.println("pos " + pos + " element end " + (elements.size() > 0 ? elements.peek().getEnd() : "null") );
-					BED newElement = new BED("e" + elements.size());
-					newElement.setStart(pos);
-					newElement.setEnd(pos + window);
-					newElement.setChromosome(chr);
-					elements.push(newElement);
-				} else {
-					elements.peek().setEnd(pos + window);
-				}
-			}
-		}
-		return elements;
-	}
-
-	private void fitPI(BufferedWriter bw, List<String> ignoreList) throws IOException{
+	/**
+	 * Fits PI for every site of the ungapped reference islands. Unique column patterns of each chunk are fitted by
+	 * numThreads tasks, each with its own copy of the model, and fits are written in reference order.
+	 */
+	private void fitPI(BufferedWriter bw, List<String> ignoreList, int numThreads) throws IOException, InterruptedException, ExecutionException {
 		Phylogeny alnTree = ConservationUtils.pruneTree(ignoreList, model.getTree());
 		System.out.println(alnTree.toNewHampshire(false));
 
@@ -1424,31 +1419,99 @@ public class TreeScaler {
 		model.RPIDecomposition();
 		//System.out.println("R: ");
 		model.R.print(7, 5);
-		while(ungappedRegionIt.hasNext()) {
-			int [] region = ungappedRegionIt.next();
-				//System.out.println("\tgood ungapped island " + region[0]+"-"+region[1]);
-			for(int i = region[0]; i < region[1]; i++) { //Go through the sites within ungapped ref
-				int refPosition = i + alignment.getReferenceStart();
-				PiFit fit = fitPI(alnTree, refPosition);
-				if(fit != null) {
-					writePIFitInfo(bw, refPosition, fit);
+		String [] leaves = model.getTree().getAllExternalSeqNames();
+		piFitCache = new ColumnPatternCache<PiFit>("PI fit", ColumnPatternCache.DEFAULT_MAX_ENTRIES, leaves);
+		piFitCacheTree = alnTree;
+		List<EvolutionaryModel> threadModels = new ArrayList<EvolutionaryModel>(numThreads);
+		for(int t = 0; t < numThreads; t++) {
+			threadModels.add(model.copy());
+		}
+		ExecutorService executor = numThreads > 1 ? Executors.newFixedThreadPool(numThreads) : null;
+		try {
+			while(ungappedRegionIt.hasNext()) {
+				int [] region = ungappedRegionIt.next();
+					//System.out.println("\tgood ungapped island " + region[0]+"-"+region[1]);
+				for(int chunkStart = region[0]; chunkStart < region[1]; chunkStart += SitePatterns.DEFAULT_CHUNK_SIZE) {
+					// Sites with the same column pattern get the same fit, fit each unique pattern once.
+					int refStart = chunkStart + alignment.getReferenceStart();
+					int refEnd = Math.min(region[1], chunkStart + SitePatterns.DEFAULT_CHUNK_SIZE) + alignment.getReferenceStart();
+					SitePatterns patterns = new SitePatterns(alignment, refStart, refEnd, leaves);
+					CHUNK_COMPRESSION.record(Math.round(100 * patterns.getCompressionRatio()));
+					PiFit [] fits = fitPatterns(alnTree, patterns, threadModels, executor);
+					for(int refPosition = refStart; refPosition < refEnd; refPosition++) {
+						PiFit fit = fits[patterns.getPattern(refPosition)];
+						if(fit != null) {
+							writePIFitInfo(bw, refPosition, fit);
+						}
+					}
 				}
 			}
+		} finally {
+			if(executor != null) {
+				executor.shutdownNow();
+			}
 		}
-		
+		piFitCache = null;
+		piFitCacheTree = null;
+	}
+
+	private PiFit [] fitPatterns(final Phylogeny alnTree, final SitePatterns patterns, List<EvolutionaryModel> threadModels, ExecutorService executor) throws InterruptedException, ExecutionException {
+		final PiFit [] fits = new PiFit[patterns.getNumberOfPatterns()];
+		if(executor == null) {
+			for(int p = 0; p < fits.length; p++) {
+				fits[p] = fitPI(threadModels.get(0), alnTree, patterns.getPatternSite(p));
+			}
+			return fits;
+		}
+		final int numTasks = threadModels.size();
+		List<Future<Object>> tasks = new ArrayList<Future<Object>>(numTasks);
+		for(int t = 0; t < numTasks; t++) {
+			final int firstPattern = t;
+			final EvolutionaryModel taskModel = threadModels.get(t);
+			tasks.add(executor.submit(new Callable<Object>() {
+				public Object call() {
+					for(int p = firstPattern; p < fits.length; p += numTasks) {
+						fits[p] = fitPI(taskModel, alnTree, patterns.getPatternSite(p));
+					}
+					return null;
+				}
+			}));
+		}
+		for(Future<Object> task : tasks) {
+			task.get();
+		}
+		return fits;
 	}
 
 	public PiFit fitPI(Phylogeny alnTree,  int i) {
+		return fitPI(model, alnTree, i);
+	}
+
+	/**
+	 * @param fittingModel model used for the fit, it is modified by the fit so each thread needs its own.
+	 */
+	private PiFit fitPI(EvolutionaryModel fittingModel, Phylogeny alnTree,  int i) {
 		PiFit fit = null;
 		//System.out.println("\tref start  " + refPosition + " num gaps so far " + refGaps);
 		//Map<String, short[]> column = alignment.getColumns(i, window);
 		//TODO: Update to encode alignment as Matrix and avoid the getColumnsAsVector call.
 		Map<String, Matrix> column = alignment.getColumnsAsVector(i, 1);
+		// Fits only depend on the column pattern once the alignment tree is fixed.
+		ColumnPatternCache.ColumnPattern pattern = null;
+		if(piFitCache != null && piFitCacheTree == alnTree) {
+			pattern = piFitCache.pattern(column, 0);
+			PiFit cached = piFitCache.get(pattern);
+			if(cached != null) {
+				fit = cached.copy();
+				fit.setPosition(i);
+				return fit;
+			}
+		}
 
 		Phylogeny siteTree = removeGappedSequences(1, alnTree, column);
 
 		String [] siteLeaves = siteTree.getAllExternalSeqNames();
-		String [] originalLeaves = model.getTree().getAllExternalSeqNames();
+		String [] originalLeaves = fittingModel.getTree().getAllExternalSeqNames();
 		int treeBitVal = 0;
 		for(int j = 0; j < originalLeaves.length; j++) {
 			String leaf = originalLeaves[j];
@@ -1468,12 +1531,15 @@ public class TreeScaler {
 			//TODO: update fitParameters to avoid 
 			//System.out.println("Start of fit\n");
 			//try {
-			fit = model.fitPI(column, siteTree);
+			fit = fittingModel.fitPI(column, siteTree);
 			if(fit == null) {
 				System.err.println("Could not fit column " + i);
 			} else {
 				fit.setTreeLength(treeDist);
 				fit.setTreeBit(treeBitVal);
+				if(pattern != null) {
+					piFitCache.put(pattern, fit.copy());
+				}
 			}
 		
 			//} catch (UnableToFitException e) {
@@ -1500,8 +1566,9 @@ public class TreeScaler {
 		permPWMs.add(bg);
 		reversedPermPWMs.add(bg);
 
-		PositionWeightMatrixModel pwmm = new PositionWeightMatrixModel(pwm, model);
-		PositionWeightMatrixModel rpwmm = new PositionWeightMatrixModel(rpwm, model);
+		ColumnPatternCache<Double> neutralCache = getPWMNeutralCache();
+		PositionWeightMatrixModel pwmm = new PositionWeightMatrixModel(pwm, model, neutralCache);
+		PositionWeightMatrixModel rpwmm = new PositionWeightMatrixModel(rpwm, model, neutralCache);
 		AlignedSequence reference = alignment.getReference();
 		if(reference == null || reference.getLength() == 0) {
 			return scoredKmers;
@@ -1513,8 +1580,8 @@ public class TreeScaler {
 		for(int i = 0; i < numPermutations; i++) {
 			permPWMs.add(pwm.permuteColumns(false));
 			reversedPermPWMs.add(permPWMs.get(i+1).reverseComplement());
-			permPWMMs.add( new PositionWeightMatrixModel(permPWMs.get(i+1), model));
-			reversedPermPWMMs.add( new PositionWeightMatrixModel(reversedPermPWMs.get(i+1), model));
+			permPWMMs.add( new PositionWeightMatrixModel(permPWMs.get(i+1), model, neutralCache));
+			reversedPermPWMMs.add( new PositionWeightMatrixModel(reversedPermPWMs.get(i+1), model, neutralCache));
 		}
 		
 		
@@ -1849,7 +1916,7 @@ public class TreeScaler {
 	}
 	
 	public OmegaFit scaleRegion(List<String> ignoreList,   GenomicAnnotation region) throws MathException {
-		Phylogeny alnTree = ConservationUtils.pruneTree(ignoreList, model.getTree());
+		Phylogeny alnTree = getRegionTree(ignoreList);
 		double alnTreeLength = getTotalDistanceFromNode(alnTree.getRoot());
 		Map<String, Matrix> encodedAlignment = null;
 		try {
@@ -1879,8 +1946,7 @@ public class TreeScaler {
 			List<String> gappedSeqs = ConservationUtils.getGappedSeqsInWindowMatrix(1, encodedAlignment, j);
 			//System.out.println("gapped seqs " + gappedSeqs);
 			ConservationUtils.setUninformativeNodes(encodedAlignment, gappedSeqs, j);
-			Phylogeny columnTree = ConservationUtils.pruneTree(gappedSeqs, alnTree);
-			minTreeLength = Math.min(alnTreeLength, getTotalDistanceFromNode(columnTree.getRoot()));
+			minTreeLength = Math.min(alnTreeLength, getPrunedTreeLength(ignoreList, gappedSeqs, alnTree));
 		}
 		OmegaFit fit =  model.fitOmega(encodedAlignment, alnTree, region.getLength()  );
 		//System.err.print("Aln tree dist " + alnTreeLength);
@@ -1889,6 +1955,225 @@ public class TreeScaler {
 		return fit ;
 	}
 	
+
+	/**
+	 * Model tree pruned of the ignored sequences, kept per ignore list until the model changes.
+	 */
+	private Phylogeny getRegionTree(List<String> ignoreList) {
+		if(regionTreeCacheModel != model) {
+			regionTrees.clear();
+			prunedTreeLengths.clear();
+			regionTreeCacheModel = model;
+		}
+		String key = ignoreList.toString();
+		Phylogeny tree = regionTrees.get(key);
+		if(tree == null) {
+			tree = ConservationUtils.pruneTree(ignoreList, model.getTree());
+			regionTrees.put(key, tree);
+		}
+		return tree;
+	}
+
+	/**
+	 * Total branch length of the region tree once the gapped sequences are pruned, cached by gapped sequence set.
+	 */
+	private double getPrunedTreeLength(List<String> ignoreList, List<String> gappedSeqs, Phylogeny alnTree) {
+		List<String> sortedGappedSeqs = new ArrayList<String>(gappedSeqs);
+		Collections.sort(sortedGappedSeqs);
+		String key = ignoreList.toString() + sortedGappedSeqs.toString();
+		Double length = prunedTreeLengths.get(key);
+		if(length == null) {
+			length = getTotalDistanceFromNode(ConservationUtils.pruneTree(gappedSeqs, alnTree).getRoot());
+			if(prunedTreeLengths.size() < MAX_CACHED_TREE_LENGTHS) {
+				prunedTreeLengths.put(key, length);
+			}
+		}
+		return length;
+	}
+
+	/**
+	 * Fits omega for each region (task 10) writing a line per region in input order.
+	 * Regions are sorted and grouped into spans of at most maxSpan bases, the alignment of a span is loaded and
+	 * encoded once, the next span is loaded in the background while the regions of the current one are fitted by
+	 * numThreads scalers, each with its own copy of the model.
+	 * @param mafio if null the already loaded alignment is used and regions are intersected with its reference.
+	 */
+	private void scaleRegions(final List<BED> regions, final List<String> ignoreList, final MAFIO mafio, final int shift, int maxSpan, int numThreads, BufferedWriter bw) 
+	throws IOException, InterruptedException, ExecutionException {
+		final Integer [] order = new Integer[regions.size()];
+		for(int i = 0; i < order.length; i++) {
+			order[i] = i;
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer o1, Integer o2) {
+				return regions.get(o1).getStart() - regions.get(o2).getStart();
+			}
+		});
+		// spans as {first sorted region, last sorted region + 1, start, end}
+		List<int []> spans = new ArrayList<int[]>();
+		for(int i = 0; i < order.length; i++) {
+			BED region = regions.get(order[i]);
+			int [] span = spans.isEmpty() ? null : spans.get(spans.size() - 1);
+			if(span == null || Math.max(span[3], region.getEnd()) - span[2] > maxSpan) {
+				spans.add(new int [] {i, i + 1, region.getStart(), region.getEnd()});
+			} else {
+				span[1] = i + 1;
+				span[3] = Math.max(span[3], region.getEnd());
+			}
+		}
+		System.err.println(regions.size() + " regions in " + spans.size() + " alignment spans");
+		if(spans.isEmpty()) {
+			return;
+		}
+
+		final String [] lines = new String[regions.size()];
+		int nextToWrite = 0;
+		List<TreeScaler> threadScalers = new ArrayList<TreeScaler>(numThreads);
+		for(int t = 0; t < numThreads; t++) {
+			TreeScaler threadScaler = new TreeScaler();
+			threadScaler.model = model.copy();
+			threadScaler.minimumTreeLength = minimumTreeLength;
+			threadScalers.add(threadScaler);
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+		ExecutorService loader = Executors.newSingleThreadExecutor();
+		try {
+			Future<AlignmentSpan> nextSpan = mafio == null ? null : loader.submit(new AlignmentSpanLoader(mafio, ignoreList, spans.get(0)));
+			for(int s = 0; s < spans.size(); s++) {
+				final int [] span = spans.get(s);
+				final AlignmentSpan spanAlignment = mafio == null ? new AlignmentSpan(alignment) : nextSpan.get();
+				if(mafio != null && s + 1 < spans.size()) {
+					nextSpan = loader.submit(new AlignmentSpanLoader(mafio, ignoreList, spans.get(s + 1)));
+				}
+				List<Future<Object>> tasks = new ArrayList<Future<Object>>(numThreads);
+				for(int t = 0; t < numThreads; t++) {
+					final TreeScaler threadScaler = threadScalers.get(t);
+					final int offset = t;
+					final int stride = numThreads;
+					threadScaler.alignment = spanAlignment.alignment;
+					tasks.add(executor.submit(new Callable<Object>() {
+						public Object call() throws MathException {
+							for(int i = span[0] + offset; i < span[1]; i += stride) {
+								int regionIdx = order[i];
+								BED region = regions.get(regionIdx);
+								if(!spanAlignment.prepare(region)) {
+									lines[regionIdx] = "";
+									continue;
+								}
+								OmegaFit regionFit = spanAlignment.covers(region) ? threadScaler.scaleRegion(ignoreList, region) : null;
+								lines[regionIdx] = regionFitLine(region, regionFit, shift);
+							}
+							return null;
+						}
+					}));
+				}
+				for(Future<Object> task : tasks) {
+					task.get();
+				}
+				while(nextToWrite < lines.length && lines[nextToWrite] != null) {
+					if(lines[nextToWrite].length() > 0) {
+						bw.write(lines[nextToWrite]);
+						bw.newLine();
+						REGIONS_WRITTEN.increment();
+					}
+					lines[nextToWrite++] = "";
+				}
+			}
+		} finally {
+			loader.shutdownNow();
+			executor.shutdown();
+		}
+	}
+
+	static String regionFitLine(BED region, OmegaFit regionFit, int shift) {
+		return region.getChromosomeString() + "\t" + (region.getStart() + shift) + "\t" + (region.getEnd() + shift) + "\t" + region.getName() + "\t" + region.getOrientation() + "\t" + (regionFit == null ? 1 : regionFit.getOmega() )+ "\t" + (regionFit == null ? 0 : regionFit.getLogOddsScore() )+ "\t" + (regionFit == null ? 1 :regionFit.getPVal() )+ "\t" + (regionFit == null ? 0 :regionFit.getTreeLength());
+	}
+
+	/**
+	 * Encoded alignment of a span of regions. For MAF spans the reference extent of the loaded blocks is kept so that
+	 * regions whose first or last base is not aligned are reported without a fit, as when each region was loaded on its own.
+	 */
+	private static class AlignmentSpan {
+		MultipleAlignment alignment;
+		AlignedSequence reference;
+		int [] blockStarts;
+		int [] blockEnds;
+
+		AlignmentSpan(MultipleAlignment alignment) {
+			this.alignment = alignment;
+			reference = alignment.getReference();
+		}
+
+		AlignmentSpan(MultipleAlignment alignment, int [] blockStarts, int [] blockEnds) {
+			this.alignment = alignment;
+			this.blockStarts = blockStarts;
+			this.blockEnds = blockEnds;
+		}
+
+		/**
+		 * Regions of a whole loaded alignment are clipped to its reference.
+		 * @return false if the region should be skipped.
+		 */
+		boolean prepare(BED region) {
+			if(blockStarts == null && !(reference.getStart() <= region.getStart() && reference.getEnd() > region.getEnd())) {
+				region.takeIntersection(reference);
+				return region.getLength() > 0;
+			}
+			return true;
+		}
+
+		boolean covers(BED region) {
+			return blockStarts == null || (isAligned(region.getStart()) && isAligned(region.getEnd() - 1));
+		}
+
+		private boolean isAligned(int position) {
+			int idx = Arrays.binarySearch(blockStarts, position);
+			if(idx < 0) {
+				idx = -idx - 2;
+			}
+			return idx >= 0 && blockEnds[idx] > position;
+		}
+	}
+
+	private class AlignmentSpanLoader implements Callable<AlignmentSpan> {
+		private MAFIO mafio;
+		private List<String> ignoreList;
+		private int [] span;
+
+		AlignmentSpanLoader(MAFIO mafio, List<String> ignoreList, int [] span) {
+			this.mafio = mafio;
+			this.ignoreList = ignoreList;
+			this.span = span;
+		}
+
+		public AlignmentSpan call() throws IOException, ParseException {
+			List<String> seqsToLoad = new ArrayList<String>();
+			for(String seq : model.getTree().getAllExternalSeqNames()) {
+				if(!ignoreList.contains(seq)) {
+					seqsToLoad.add(seq);
+				}
+			}
+			MAFAlignment mafAln = mafio.load(seqsToLoad, span[2], span[3]);
+			mafAln.compress();
+			List<MAFMultipleAlignmentBlock> blocks = new ArrayList<MAFMultipleAlignmentBlock>();
+			Iterator<MAFMultipleAlignmentBlock> blockIt = mafAln.getBlockIterator();
+			while(blockIt.hasNext()) {
+				blocks.add(blockIt.next());
+			}
+			int [] blockStarts = new int[blocks.size()];
+			int [] blockEnds = new int[blocks.size()];
+			for(int i = 0; i < blocks.size(); i++) {
+				blockStarts[i] = blocks.get(i).getReferenceStart();
+				blockEnds[i] = blocks.get(i).getReferenceEnd();
+			}
+			if(mafAln.isEmpty()) {
+				return new AlignmentSpan(mafAln, blockStarts, blockEnds);
+			}
+			MultipleAlignment spanAlignment = mafAln.toMultipleAlignment();
+			spanAlignment.encodeAsMatrix();
+			return new AlignmentSpan(spanAlignment, blockStarts, blockEnds);
+		}
+	}
 	
 	public OmegaFit scaleRegion(LightweightGenomicAnnotation region) throws MathException {
 		Phylogeny alnTree = model.getTree();
@@ -1931,6 +2216,12 @@ public class TreeScaler {
 			return;
 		}
 		
+		if(window == 1 && overlap == 0) {
+			scaleSites(bw, alnTree, alignmentTreeLength);
+			return;
+		}
+		
+		int resumePosition = getResumePosition();
 		List<int[]> ungappedIslands = alignment.getUngappedReferenceIslands();
 		Iterator<int []> ungappedRegionIt = ungappedIslands.iterator();
 		//System.out.println("Alignment starts at " + alignment.getReferenceStart());
@@ -1943,6 +2234,9 @@ public class TreeScaler {
 				for(int i = region[0]; i < region[1] - window + 1; i = i + window - overlap) { //Go through the sites within ungapped ref
 				//for(int i = region[0]; i < region[1] - window; i = i + window - overlap) {
 					int refPosition = i + alignment.getReferenceStart();
+					if(refPosition < resumePosition) {
+						continue;
+					}
 					//System.out.println("\tref start  " + refPosition );
 					//System.out.println("\tColumn " + i + " ");
 					Map<String, Matrix> column = alignment.getColumnsAsVector(refPosition, window);
@@ -1971,13 +2265,52 @@ public class TreeScaler {
 					} else {
 						//System.out.println("total site tree branch length is too short " + treeDist + " skipping....");
 					}
-		
+					checkpoint(refPosition + window - overlap);
 				}
 			}
 		}
 			
 	}
 	
+	/**
+	 * Site by site (window of 1) scaling. Ungapped islands are compressed in chunks into their unique column patterns,
+	 * each pattern is fitted once and its fit written for all the sites that share it.
+	 */
+	private void scaleSites(BufferedWriter bw, Phylogeny alnTree, double alignmentTreeLength) throws IOException, MathException {
+		String [] leaves = model.getTree().getAllExternalSeqNames();
+		int resumePosition = getResumePosition();
+		for(int [] region : alignment.getUngappedReferenceIslands()) {
+			for(int chunkStart = region[0]; chunkStart < region[1]; chunkStart += SitePatterns.DEFAULT_CHUNK_SIZE) {
+				int refStart = chunkStart + alignment.getReferenceStart();
+				int refEnd = Math.min(region[1], chunkStart + SitePatterns.DEFAULT_CHUNK_SIZE) + alignment.getReferenceStart();
+				if(refEnd <= resumePosition) {
+					continue;
+				}
+				SitePatterns patterns = new SitePatterns(alignment, refStart, refEnd, leaves);
+				CHUNK_COMPRESSION.record(Math.round(100 * patterns.getCompressionRatio()));
+				OmegaFit [] fits = new OmegaFit[patterns.getNumberOfPatterns()];
+				for(int p = 0; p < fits.length; p++) {
+					Map<String, Matrix> column = patterns.getPatternColumn(p);
+					List<String> gappedSeqs = ConservationUtils.getGappedSeqsInWindowMatrix(1, column, 0);
+					ConservationUtils.setUninformativeNodes(column, gappedSeqs, 0);
+					Phylogeny columnTree = ConservationUtils.pruneTree(gappedSeqs, alnTree);
+					double minTreeLength = Math.min(alignmentTreeLength, getTotalDistanceFromNode(columnTree.getRoot()));
+					if(minTreeLength  > minimumTreeLength) {
+						fits[p] = model.fitOmega(column, alnTree, 1);
+						fits[p].setTreeLength(minTreeLength);
+					}
+				}
+				for(int refPosition = refStart; refPosition < refEnd; refPosition++) {
+					OmegaFit fit = fits[patterns.getPattern(refPosition)];
+					if(fit != null) {
+						writeSiteOmegaInfo(bw, refPosition, fit);
+					}
+				}
+				checkpoint(refEnd);
+			}
+		}
+	}
+	
 	public ArrayList<OmegaFit> scaleTree(int window, List<String> ignoreList, int overlap) throws IOException, MathException {
 		//System.out.println("Alignment length : " + alignment.getAlignedSequenceIds().size() + 
 		//		" Alignment start " + alignment.getReferenceStart() + " species aligned " + alignment.getAlignedSequenceIds() );
@@ -2061,6 +2394,7 @@ public class TreeScaler {
 		//int lastRegionEnd = 0;
 		List<String> gappedLeaves = null;
 		Map<String, Matrix> column = null;
+		int resumePosition = getResumePosition();
 		//System.out.println("Alignment starts at " + alignment.getReferenceStart());
 		while(ungappedRegionIt.hasNext()) {
 			int [] region = ungappedRegionIt.next();
@@ -2074,6 +2408,9 @@ public class TreeScaler {
 				//System.out.println("\tgood ungapped island " + region[0]+"-"+region[1]);
 				for(int i = region[0]; i < region[1] - window + 1; i++) { //Go through the sites within ungapped ref
 					int refPosition = i + alignment.getReferenceStart();
+					if(refPosition < resumePosition) {
+						continue;
+					}
 					//System.out.println("\tref start  " + refPosition + " num gaps so far " + refGaps);
 					//System.out.println("Column " + i + " ");
 					//Map<String, short[]> column = alignment.getColumns(i, window);
@@ -2130,7 +2467,7 @@ public class TreeScaler {
 					} else {
 						//System.out.println("total site tree branch length is too short " + treeDist + " skipping....");
 					}
-		
+					checkpoint(refPosition + 1);
 				}
 			}
 		}
@@ -2141,6 +2478,26 @@ public class TreeScaler {
 		this.alignment = alignment;
 	}
 
+	/**
+	 * @return reference position the scan of a resumed run restarts from.
+	 */
+	private int getResumePosition() {
+		return checkpoint == null || checkpoint.getProgress() == null ? Integer.MIN_VALUE : Integer.parseInt(checkpoint.getProgress());
+	}
+
+	/**
+	 * Records that the scan wrote everything for positions before restartPosition.
+	 */
+	private void checkpoint(int restartPosition) throws IOException {
+		if(checkpoint != null) {
+			checkpoint.completed(String.valueOf(restartPosition));
+		}
+	}
+
+	private static long getCheckpointInterval(ArgumentMap argMap) {
+		return argMap.containsKey("checkpointInterval") ? argMap.getInteger("checkpointInterval") * 1000L : RunCheckpoint.DEFAULT_INTERVAL;
+	}
+
 	private Phylogeny removeGappedSequences(int window, Phylogeny alnTree, Map<String, Matrix> column) {
 		List<String> toPrune = ConservationUtils.getGappedSeqsInWindowMatrix(window, column, 0);
 		Phylogeny siteTree = removeSequences(alnTree, column, toPrune);
@@ -2157,6 +2514,7 @@ public class TreeScaler {
 	}
 
 	private void writeSiteOmegaInfo(BufferedWriter bw, int refPosition, OmegaFit fit) throws IOException {
+		SITES_WRITTEN.increment();
 		bw.write(String.valueOf((refPosition)));//bw.write(String.valueOf((alignment.getReferenceStart() + i - refGaps)));
 		bw.write("\t");
 		//bw.write(numberFormat.format(fit.getOmega()));
@@ -2299,4 +2657,15 @@ public class TreeScaler {
 	public void setModel(EvolutionaryModel model) {
 		this.model = model;
 	}
+
+	/**
+	 * @return neutral column likelihood cache shared by all the PWM models built on the current model.
+	 */
+	private ColumnPatternCache<Double> getPWMNeutralCache() {
+		if(pwmNeutralCache == null || pwmNeutralCacheModel != model) {
+			pwmNeutralCache = PositionWeightMatrixModel.createNeutralCache(model);
+			pwmNeutralCacheModel = model;
+		}
+		return pwmNeutralCache;
+	}
 }
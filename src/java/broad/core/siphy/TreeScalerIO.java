@@ -16,6 +16,8 @@ import java.util.List;
 import java.util.ListIterator;
 import java.util.Random;
 
+import org.apache.commons.math.MathException;
+
 import broad.core.annotation.BasicGenomicAnnotation;
 import broad.core.math.EmpiricalDistribution;
 
@@ -88,6 +90,28 @@ public class TreeScalerIO {
 		}
 	}		
 	
+	/**
+	 * Reads the scaled windows one at a time handing each to the listener, nothing is kept.
+	 */
+	public void parse(InputStream is, int shift, String chr, FitListener listener) throws IOException, MathException {
+		BufferedReader br = new BufferedReader(new InputStreamReader(is));
+		String line = null;
+		while((line = br.readLine()) != null) {
+			if(line.startsWith("#") || line.trim().length() == 0) {
+				continue;
+			}
+			String [] lineInfo = line.trim().split("\t");
+			ScaledWindow w = null;
+			try {
+				w = new ScaledWindow(lineInfo, chr,  estimationWindow, shift);
+			} catch (IllegalArgumentException iae) {
+				System.err.println("ERROR: line " + line + " error: " + iae.getMessage() );
+				continue;
+			}
+			listener.newFit(w);
+		}
+	}
+	
 	public void load(InputStream is, int shift, String chr) throws IOException {
 		BufferedReader br = new BufferedReader(new InputStreamReader(is));
 		try {
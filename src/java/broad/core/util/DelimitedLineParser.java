@@ -0,0 +1,377 @@
+package broad.core.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Allocation light parser for delimited text files.
+ * Lines are read as raw bytes into a reusable buffer, field boundaries are kept in a reusable offset array
+ * and numeric fields are parsed directly from the bytes. Strings are only built when a caller asks for them,
+ * repeated values (chromosome names, strand) can be obtained as canonical instances with getInternedString.
+ *
+ * Lines are trimmed of leading and trailing white space (as String.trim() would) before they are split.
+ * Only single byte separators and ASCII/UTF-8 compatible files are supported.
+ *
+ * @author mgarber
+ */
+public class DelimitedLineParser {
+	private static final int DEFAULT_BUFFER_SIZE = 1 << 20;
+	private static final int MAX_INTERNED = 1 << 16;
+	private static final double [] POWERS_OF_TEN = {1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+		1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22};
+
+	private InputStream in;
+	private byte separator;
+	private long remaining;
+
+	private byte [] buffer;
+	private int bufferStart;
+	private int bufferEnd;
+	private boolean eof;
+
+	private int lineStart;
+	private int lineEnd;
+	private int [] fieldStarts = new int[16];
+	private int [] fieldEnds   = new int[16];
+	private int fieldCount;
+	private long lineNumber;
+
+	private byte [][] internKeys = new byte[64][];
+	private String [] internValues = new String[64];
+	private int internedCount;
+
+	public DelimitedLineParser(InputStream in, char separator) {
+		this(in, separator, Long.MAX_VALUE);
+	}
+
+	public DelimitedLineParser(File file, char separator) throws IOException {
+		this(new FileInputStream(file), separator);
+	}
+
+	/**
+	 * Parses the lines in the byte range [from, to) of the given file, the range should start and end at line boundaries.
+	 * @see #findLineBoundaries(File, int) to build ranges that start at line boundaries.
+	 */
+	public DelimitedLineParser(File file, char separator, long from, long to) throws IOException {
+		this(openAt(file, from), separator, to - from);
+	}
+
+	private DelimitedLineParser(InputStream in, char separator, long maxBytes) {
+		this.in = in;
+		this.separator = (byte) separator;
+		this.remaining = maxBytes;
+		buffer = new byte[DEFAULT_BUFFER_SIZE];
+	}
+
+	private static InputStream openAt(File file, long from) throws IOException {
+		FileInputStream fis = new FileInputStream(file);
+		FileChannel channel = fis.getChannel();
+		channel.position(from);
+		return Channels.newInputStream(channel);
+	}
+
+	/**
+	 * Splits a file in at most <code>chunks</code> byte ranges, each starting at the beginning of a line.
+	 * @return boundaries b such that range i is [b[i], b[i+1]).
+	 */
+	public static long [] findLineBoundaries(File file, int chunks) throws IOException {
+		long length = file.length();
+		long [] boundaries = new long[chunks + 1];
+		int n = 1;
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			for(int i = 1; i < chunks; i++) {
+				long pos = i * (length/chunks);
+				if(pos <= boundaries[n - 1]) {
+					continue;
+				}
+				raf.seek(pos - 1);
+				int b;
+				do {
+					b = raf.read();
+				} while (b != -1 && b != '\n');
+				long lineStart = raf.getFilePointer();
+				if(lineStart > boundaries[n - 1] && lineStart < length) {
+					boundaries[n++] = lineStart;
+				}
+			}
+		} finally {
+			raf.close();
+		}
+		boundaries[n++] = length;
+		return Arrays.copyOf(boundaries, n);
+	}
+
+	/**
+	 * Advances to the next line
+	 * @return false if there are no more lines.
+	 */
+	public boolean next() throws IOException {
+		int newLine = -1;
+		int scanFrom = bufferStart;
+		while(newLine < 0) {
+			for(int i = scanFrom; i < bufferEnd; i++) {
+				if(buffer[i] == '\n') {
+					newLine = i;
+					break;
+				}
+			}
+			if(newLine < 0) {
+				if(eof) {
+					if(bufferStart == bufferEnd) {
+						return false;
+					}
+					newLine = bufferEnd;
+				} else {
+					scanFrom = bufferEnd - bufferStart;
+					fill();
+				}
+			}
+		}
+		lineStart = bufferStart;
+		lineEnd = newLine;
+		bufferStart = Math.min(bufferEnd, newLine + 1);
+		lineNumber++;
+
+		while(lineStart < lineEnd && (buffer[lineStart] & 0xff) <= ' ') {
+			lineStart++;
+		}
+		while(lineEnd > lineStart && (buffer[lineEnd - 1] & 0xff) <= ' ') {
+			lineEnd--;
+		}
+		split();
+		return true;
+	}
+
+	private void fill() throws IOException {
+		if(bufferStart > 0) {
+			System.arraycopy(buffer, bufferStart, buffer, 0, bufferEnd - bufferStart);
+			bufferEnd -= bufferStart;
+			bufferStart = 0;
+		}
+		if(bufferEnd == buffer.length) {
+			buffer = Arrays.copyOf(buffer, buffer.length * 2);
+		}
+		int toRead = (int) Math.min(buffer.length - bufferEnd, remaining);
+		int read = toRead > 0 ? in.read(buffer, bufferEnd, toRead) : -1;
+		if(read < 0) {
+			eof = true;
+		} else {
+			bufferEnd += read;
+			remaining -= read;
+		}
+	}
+
+	private void split() {
+		fieldCount = 0;
+		if(lineStart == lineEnd) {
+			return;
+		}
+		int start = lineStart;
+		for(int i = lineStart; i <= lineEnd; i++) {
+			if(i == lineEnd || buffer[i] == separator) {
+				if(fieldCount == fieldStarts.length) {
+					fieldStarts = Arrays.copyOf(fieldStarts, fieldCount * 2);
+					fieldEnds   = Arrays.copyOf(fieldEnds, fieldCount * 2);
+				}
+				fieldStarts[fieldCount] = start;
+				fieldEnds[fieldCount]   = i;
+				fieldCount++;
+				start = i + 1;
+			}
+		}
+	}
+
+	public void close() throws IOException {
+		in.close();
+	}
+
+	public long getLineNumber() { return lineNumber; }
+
+	public int getFieldCount() { return fieldCount; }
+
+	public boolean isEmpty() { return lineStart == lineEnd; }
+
+	/**
+	 * @return true if the (trimmed) line starts with the given ASCII prefix, ignoring case.
+	 */
+	public boolean startsWithIgnoreCase(String prefix) {
+		if(lineEnd - lineStart < prefix.length()) {
+			return false;
+		}
+		for(int i = 0; i < prefix.length(); i++) {
+			if(Character.toLowerCase((char) buffer[lineStart + i]) != Character.toLowerCase(prefix.charAt(i))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public String getLine() {
+		return new String(buffer, lineStart, lineEnd - lineStart);
+	}
+
+	public String getString(int field) {
+		checkField(field);
+		return new String(buffer, fieldStarts[field], fieldEnds[field] - fieldStarts[field]);
+	}
+
+	/**
+	 * @return the field value as a canonical String, repeated values return the same instance
+	 * without creating a new one.
+	 */
+	public String getInternedString(int field) {
+		checkField(field);
+		int start = fieldStarts[field];
+		int length = fieldEnds[field] - start;
+		int hash = 0;
+		for(int i = start; i < start + length; i++) {
+			hash = 31 * hash + buffer[i];
+		}
+		int mask = internKeys.length - 1;
+		int slot = (hash ^ (hash >>> 16)) & mask;
+		while(internKeys[slot] != null) {
+			if(sameBytes(internKeys[slot], start, length)) {
+				return internValues[slot];
+			}
+			slot = (slot + 1) & mask;
+		}
+		String value = new String(buffer, start, length).intern();
+		if(internedCount < MAX_INTERNED) {
+			internKeys[slot] = Arrays.copyOfRange(buffer, start, start + length);
+			internValues[slot] = value;
+			internedCount++;
+			if(internedCount * 2 > internKeys.length) {
+				rehash();
+			}
+		}
+		return value;
+	}
+
+	private boolean sameBytes(byte [] key, int start, int length) {
+		if(key.length != length) {
+			return false;
+		}
+		for(int i = 0; i < length; i++) {
+			if(key[i] != buffer[start + i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void rehash() {
+		byte [][] oldKeys = internKeys;
+		String [] oldValues = internValues;
+		internKeys = new byte[oldKeys.length * 2][];
+		internValues = new String[oldKeys.length * 2];
+		int mask = internKeys.length - 1;
+		for(int i = 0; i < oldKeys.length; i++) {
+			if(oldKeys[i] != null) {
+				int hash = 0;
+				for(byte b : oldKeys[i]) {
+					hash = 31 * hash + b;
+				}
+				int slot = (hash ^ (hash >>> 16)) & mask;
+				while(internKeys[slot] != null) {
+					slot = (slot + 1) & mask;
+				}
+				internKeys[slot] = oldKeys[i];
+				internValues[slot] = oldValues[i];
+			}
+		}
+	}
+
+	public String [] getFields() {
+		String [] fields = new String[fieldCount];
+		for(int i = 0; i < fieldCount; i++) {
+			fields[i] = getString(i);
+		}
+		return fields;
+	}
+
+	public int getInt(int field) {
+		long value = getLong(field);
+		if(value > Integer.MAX_VALUE || value < Integer.MIN_VALUE) {
+			throw new NumberFormatException("Value out of int range " + getString(field) + " at line " + lineNumber);
+		}
+		return (int) value;
+	}
+
+	public long getLong(int field) {
+		checkField(field);
+		int i = fieldStarts[field];
+		int end = fieldEnds[field];
+		boolean negative = false;
+		if(i < end && (buffer[i] == '-' || buffer[i] == '+')) {
+			negative = buffer[i] == '-';
+			i++;
+		}
+		if(i == end || end - i > 18) {
+			return Long.parseLong(getString(field));
+		}
+		long value = 0;
+		for(; i < end; i++) {
+			int digit = buffer[i] - '0';
+			if(digit < 0 || digit > 9) {
+				throw new NumberFormatException("Bad integer " + getString(field) + " at line " + lineNumber);
+			}
+			value = value * 10 + digit;
+		}
+		return negative ? -value : value;
+	}
+
+	/**
+	 * Parses plain decimal numbers directly from the bytes when the result is exact
+	 * (at most 15 significant digits), other forms (exponents, NaN, Infinity, long mantissas) are delegated to Double.parseDouble.
+	 */
+	public double getDouble(int field) {
+		checkField(field);
+		int i = fieldStarts[field];
+		int end = fieldEnds[field];
+		boolean negative = false;
+		if(i < end && (buffer[i] == '-' || buffer[i] == '+')) {
+			negative = buffer[i] == '-';
+			i++;
+		}
+		long mantissa = 0;
+		boolean sawDigit = false;
+		int digits = 0;
+		int decimals = -1;
+		for(; i < end; i++) {
+			byte b = buffer[i];
+			if(b >= '0' && b <= '9') {
+				mantissa = mantissa * 10 + (b - '0');
+				sawDigit = true;
+				if(mantissa > 0) {
+					digits++;
+				}
+				if(decimals >= 0) {
+					decimals++;
+				}
+			} else if (b == '.' && decimals < 0) {
+				decimals = 0;
+			} else {
+				break;
+			}
+		}
+		if(i < end || !sawDigit || digits > 15 || decimals >= POWERS_OF_TEN.length) {
+			return Double.parseDouble(getString(field));
+		}
+		double value = decimals > 0 ? mantissa / POWERS_OF_TEN[decimals] : mantissa;
+		return negative ? -value : value;
+	}
+
+	private void checkField(int field) {
+		if(field >= fieldCount) {
+			throw new ArrayIndexOutOfBoundsException("Line " + lineNumber + " has only " + fieldCount + " fields, field " + field + " requested");
+		}
+	}
+
+}
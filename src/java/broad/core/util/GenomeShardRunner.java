@@ -0,0 +1,360 @@
+package broad.core.util;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import broad.core.util.CLUtil.ArgumentMap;
+
+/**
+ * Local alternative to the LSF submission in PipelineUtils for genome wide runs.
+ * A run is cut into chromosome or chromosome chunk shards, each shard runs the main class of a program (TreeScaler by
+ * default) with arguments made from a template, in a pool of at most a given number of child JVMs or threads of this one.
+ * A shard writes to a temporary file that is renamed once it succeeds, so running again over the same shard directory
+ * only runs the shards that did not complete. When every shard is done their outputs are concatenated in coordinate order.
+ *
+ * @author mgarber
+ */
+public class GenomeShardRunner {
+	public static final String USAGE = "Usage: GenomeShardRunner <args>" +
+	"\n\t\t-chrSizes <Tab separated chromosome and size file (e.g. UCSC chrom.sizes), one shard per chromosome listed>" +
+	"\n\t\t-template <File with the arguments of the program for a shard, the placeholders {chr}, {start}, {end}, {shard} and {out} are replaced by " +
+	"\n\t\t\t the shard chromosome, start, end, name and the file the shard should write to. For example: TASK=1 -in alignments/{chr}.maf -format MAF -mod neutral.mod -start {start} -end {end} -out {out}>" +
+	"\n\t\t-outdir <Directory holding the shard outputs and logs, rerunning with the same directory resumes the run> -out <Merged output file>" +
+	"\n\t\t[-chunk <Cut chromosomes in shards of this many bases, by default each chromosome is a shard> -chrs <comma separated chromosomes to run, default all in the sizes file>" +
+	"\n\t\t -workers <Number of shards running at once, default 1> -class <Main class to run, default broad.core.siphy.TreeScaler>" +
+	"\n\t\t -inProcess <Run shards as threads of this JVM rather than child JVMs, only for programs that are safe to run concurrently> -memory <Maximum heap of each child JVM in MB>]" +
+	"\n";
+
+	static final String DEFAULT_MAIN_CLASS = "broad.core.siphy.TreeScaler";
+
+	private String mainClass;
+	private List<String> template;
+	private File shardDir;
+	private int workers;
+	private boolean inProcess;
+	private int memory;
+
+	/**
+	 * @param template program arguments with shard placeholders
+	 * @param memory maximum heap in MB of each child JVM, 0 to use the JVM default
+	 */
+	public GenomeShardRunner(String mainClass, List<String> template, File shardDir, int workers, boolean inProcess, int memory) {
+		this.mainClass = mainClass;
+		this.template = template;
+		this.shardDir = shardDir;
+		this.workers = workers;
+		this.inProcess = inProcess;
+		this.memory = memory;
+	}
+
+	public static void main(String [] args) throws Exception {
+		ArgumentMap argMap = CLUtil.getParameters(args, USAGE, "run");
+		Map<String, Integer> chrSizes = readChromosomeSizes(new File(argMap.getMandatory("chrSizes")));
+		if(argMap.containsKey("chrs")) {
+			Map<String, Integer> selected = new TreeMap<String, Integer>(new ChromosomeStringComparator());
+			for(String chr : argMap.getMandatory("chrs").split(",")) {
+				if(!chrSizes.containsKey(chr.trim())) {
+					throw new IllegalArgumentException("Chromosome " + chr + " is not in " + argMap.getMandatory("chrSizes"));
+				}
+				selected.put(chr.trim(), chrSizes.get(chr.trim()));
+			}
+			chrSizes = selected;
+		}
+		List<Shard> shards = shard(chrSizes, argMap.getInteger("chunk", 0));
+		File shardDir = new File(argMap.getOutputDir());
+		if(!shardDir.exists() && !shardDir.mkdirs()) {
+			throw new IOException("Could not create shard directory " + shardDir);
+		}
+		GenomeShardRunner runner = new GenomeShardRunner(argMap.get("class", DEFAULT_MAIN_CLASS), readTemplate(new File(argMap.getMandatory("template"))),
+				shardDir, argMap.getInteger("workers", 1), argMap.containsKey("inProcess"), argMap.getInteger("memory", 0));
+		List<Shard> failed = runner.run(shards);
+		if(!failed.isEmpty()) {
+			throw new IllegalArgumentException(failed.size() + " shards failed (" + failed + "), see their logs in " + shardDir + " and rerun to resume.");
+		}
+		runner.merge(shards, new File(argMap.getOutput()));
+	}
+
+	/**
+	 * Chromosome region run by one program invocation.
+	 */
+	public static class Shard {
+		private String chr;
+		private int start;
+		private int end;
+
+		public Shard(String chr, int start, int end) {
+			this.chr = chr;
+			this.start = start;
+			this.end = end;
+		}
+
+		public String getChromosome() { return chr; }
+		public int getStart() { return start; }
+		public int getEnd() { return end; }
+		public int getLength() { return end - start; }
+
+		public String getName() {
+			return chr + "_" + start + "_" + end;
+		}
+
+		public String toString() {
+			return chr + ":" + start + "-" + end;
+		}
+	}
+
+	/**
+	 * @return chromosome sizes ordered by chromosome.
+	 */
+	public static Map<String, Integer> readChromosomeSizes(File sizeFile) throws IOException {
+		Map<String, Integer> sizes = new TreeMap<String, Integer>(new ChromosomeStringComparator());
+		BufferedReader br = new BufferedReader(new FileReader(sizeFile));
+		try {
+			String line = null;
+			while((line = br.readLine()) != null) {
+				line = line.trim();
+				if(line.length() == 0 || line.startsWith("#")) {
+					continue;
+				}
+				String [] lineInfo = line.split("\\s+");
+				sizes.put(lineInfo[0], Integer.parseInt(lineInfo[1]));
+			}
+		} finally {
+			br.close();
+		}
+		return sizes;
+	}
+
+	/**
+	 * @return the whitespace separated arguments of the template file.
+	 */
+	public static List<String> readTemplate(File templateFile) throws IOException {
+		List<String> template = new ArrayList<String>();
+		BufferedReader br = new BufferedReader(new FileReader(templateFile));
+		try {
+			String line = null;
+			while((line = br.readLine()) != null) {
+				for(String arg : line.trim().split("\\s+")) {
+					if(arg.length() > 0) {
+						template.add(arg);
+					}
+				}
+			}
+		} finally {
+			br.close();
+		}
+		return template;
+	}
+
+	/**
+	 * @param chunk shard size, 0 or less for whole chromosome shards.
+	 * @return shards in coordinate order.
+	 */
+	public static List<Shard> shard(Map<String, Integer> chrSizes, int chunk) {
+		List<Shard> shards = new ArrayList<Shard>();
+		for(String chr : chrSizes.keySet()) {
+			int size = chrSizes.get(chr);
+			int step = chunk > 0 ? chunk : size;
+			for(int start = 0; start < size; start += step) {
+				shards.add(new Shard(chr, start, (int) Math.min(size, (long) start + step)));
+			}
+		}
+		return shards;
+	}
+
+	public File getOutputFile(Shard shard) {
+		return new File(shardDir, shard.getName() + ".out");
+	}
+
+	public boolean isComplete(Shard shard) {
+		return getOutputFile(shard).exists();
+	}
+
+	/**
+	 * Runs the shards that are not yet complete, largest first, in at most workers concurrent runs.
+	 * @return the shards that failed.
+	 */
+	public List<Shard> run(List<Shard> shards) throws InterruptedException, ExecutionException {
+		List<Shard> pending = new ArrayList<Shard>();
+		for(Shard shard : shards) {
+			if(!isComplete(shard)) {
+				pending.add(shard);
+			}
+		}
+		System.err.println(shards.size() + " shards, " + (shards.size() - pending.size()) + " already complete, running " + pending.size() + " with " + workers + " workers");
+		Collections.sort(pending, new Comparator<Shard>() {
+			public int compare(Shard o1, Shard o2) {
+				return o2.getLength() - o1.getLength();
+			}
+		});
+		List<Shard> failed = new ArrayList<Shard>();
+		ExecutorService executor = Executors.newFixedThreadPool(workers);
+		try {
+			List<Future<Boolean>> runs = new ArrayList<Future<Boolean>>(pending.size());
+			for(final Shard shard : pending) {
+				runs.add(executor.submit(new Callable<Boolean>() {
+					public Boolean call() throws Exception {
+						return runShard(shard);
+					}
+				}));
+			}
+			for(int i = 0; i < runs.size(); i++) {
+				Shard shard = pending.get(i);
+				if(runs.get(i).get()) {
+					System.err.println("Shard " + shard + " done");
+				} else {
+					System.err.println("WARN: Shard " + shard + " FAILED");
+					failed.add(shard);
+				}
+			}
+		} finally {
+			executor.shutdown();
+		}
+		return failed;
+	}
+
+	/**
+	 * Concatenates the shard outputs in the given order, header (# or track) lines are only taken from the first
+	 * shard that has them.
+	 */
+	public void merge(List<Shard> shards, File merged) throws IOException {
+		BufferedWriter bw = new BufferedWriter(new FileWriter(merged));
+		try {
+			boolean headerWritten = false;
+			for(Shard shard : shards) {
+				boolean shardHasHeader = false;
+				BufferedReader br = new BufferedReader(new FileReader(getOutputFile(shard)));
+				try {
+					String line = null;
+					while((line = br.readLine()) != null) {
+						boolean isHeader = line.startsWith("#") || line.startsWith("track");
+						if(isHeader && headerWritten) {
+							continue;
+						}
+						shardHasHeader = shardHasHeader || isHeader;
+						bw.write(line);
+						bw.newLine();
+					}
+				} finally {
+					br.close();
+				}
+				headerWritten = headerWritten || shardHasHeader;
+			}
+		} finally {
+			bw.close();
+		}
+		System.err.println("Merged " + shards.size() + " shards into " + merged);
+	}
+
+	/**
+	 * @return true if the program ended normally, its output is then moved to the shard output file.
+	 */
+	boolean runShard(Shard shard) throws IOException, InterruptedException {
+		File partFile = new File(shardDir, shard.getName() + ".part");
+		File logFile = new File(shardDir, shard.getName() + ".log");
+		String [] args = shardArguments(shard, partFile);
+		boolean succeeded = inProcess ? runInProcess(args, logFile) : runInChildJVM(args, logFile);
+		if(!succeeded) {
+			return false;
+		}
+		if(!partFile.exists() && !partFile.createNewFile()) {
+			throw new IOException("Could not create empty output for shard " + shard);
+		}
+		if(!partFile.renameTo(getOutputFile(shard))) {
+			throw new IOException("Could not move " + partFile + " to " + getOutputFile(shard));
+		}
+		return true;
+	}
+
+	String [] shardArguments(Shard shard, File out) {
+		String [] args = new String[template.size()];
+		for(int i = 0; i < args.length; i++) {
+			args[i] = template.get(i).replace("{chr}", shard.getChromosome())
+				.replace("{start}", String.valueOf(shard.getStart()))
+				.replace("{end}", String.valueOf(shard.getEnd()))
+				.replace("{shard}", shard.getName())
+				.replace("{out}", out.getPath());
+		}
+		return args;
+	}
+
+	private boolean runInProcess(String [] args, File logFile) throws IOException {
+		try {
+			Class.forName(mainClass).getMethod("main", String[].class).invoke(null, new Object [] {args});
+			return true;
+		} catch (InvocationTargetException ite) {
+			writeFailure(logFile, ite.getCause());
+		} catch (Exception e) {
+			writeFailure(logFile, e);
+		}
+		return false;
+	}
+
+	private boolean runInChildJVM(String [] args, File logFile) throws IOException, InterruptedException {
+		return runJava(mainClass, args, memory, logFile) == 0;
+	}
+
+	/**
+	 * Runs the main class in a child JVM with the class path of this one, its standard output and error go to the log file.
+	 * @param memory maximum heap in MB, 0 to use the JVM default
+	 * @return the exit status of the child JVM.
+	 */
+	public static int runJava(String mainClass, String [] args, int memory, File logFile) throws IOException, InterruptedException {
+		List<String> command = new ArrayList<String>();
+		command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+		if(memory > 0) {
+			command.add("-Xmx" + memory + "m");
+		}
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+		command.add(mainClass);
+		for(String arg : args) {
+			command.add(arg);
+		}
+		ProcessBuilder pb = new ProcessBuilder(command);
+		pb.redirectErrorStream(true);
+		Process p = pb.start();
+		p.getOutputStream().close();
+		InputStream is = p.getInputStream();
+		OutputStream log = new FileOutputStream(logFile);
+		try {
+			byte [] buffer = new byte[8192];
+			int read;
+			while((read = is.read(buffer)) > 0) {
+				log.write(buffer, 0, read);
+			}
+		} finally {
+			is.close();
+			log.close();
+		}
+		return p.waitFor();
+	}
+
+	private void writeFailure(File logFile, Throwable t) throws IOException {
+		PrintWriter pw = new PrintWriter(new FileWriter(logFile));
+		try {
+			t.printStackTrace(pw);
+		} finally {
+			pw.close();
+		}
+	}
+}
@@ -0,0 +1,368 @@
+package broad.core.util;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.ObjectName;
+
+/**
+ * Process wide counters, timers and histograms for instrumenting hot code paths.
+ * Metrics are created once, usually as static fields of the instrumented class, and recording is a single volatile
+ * read while metrics are disabled (the default unless the broad.metrics system property is true). Enabled metrics are
+ * lock free. Values can be written periodically to a file, and on exit, or published as the attributes of a JMX bean.
+ *
+ * @author mgarber
+ */
+public final class Metrics {
+	public static final String MBEAN_NAME = "broad.core:type=Metrics";
+
+	private static volatile boolean enabled = Boolean.getBoolean("broad.metrics");
+	private static final Map<String, Metric> registry = new TreeMap<String, Metric>();
+	private static ScheduledExecutorService reporter;
+
+	private Metrics() {
+		super();
+	}
+
+	public static boolean isEnabled() { return enabled; }
+
+	public static void setEnabled(boolean enable) {
+		enabled = enable;
+	}
+
+	public static Counter counter(String name) {
+		return (Counter) register(new Counter(name));
+	}
+
+	public static Timer timer(String name) {
+		return (Timer) register(new Timer(name));
+	}
+
+	public static Histogram histogram(String name) {
+		return (Histogram) register(new Histogram(name));
+	}
+
+	private static Metric register(Metric metric) {
+		synchronized (registry) {
+			Metric registered = registry.get(metric.name);
+			if(registered == null) {
+				registry.put(metric.name, metric);
+				registered = metric;
+			} else if (registered.getClass() != metric.getClass()) {
+				throw new IllegalArgumentException("Metric " + metric.name + " is already registered as a " + registered.getClass().getSimpleName());
+			}
+			return registered;
+		}
+	}
+
+	private static List<Metric> getMetrics() {
+		synchronized (registry) {
+			return new ArrayList<Metric>(registry.values());
+		}
+	}
+
+	/**
+	 * @return every value of every metric, keyed by metric name and value name (e.g. maf.load.count).
+	 */
+	public static Map<String, Long> snapshot() {
+		Map<String, Long> values = new LinkedHashMap<String, Long>();
+		for(Metric metric : getMetrics()) {
+			metric.addValues(values);
+		}
+		return values;
+	}
+
+	/**
+	 * @return a line per metric.
+	 */
+	public static String report() {
+		StringBuilder sb = new StringBuilder();
+		for(Metric metric : getMetrics()) {
+			sb.append(metric.toString()).append(System.getProperty("line.separator"));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Replaces the file with the current report.
+	 */
+	public static void write(File file) throws IOException {
+		File tmp = new File(file.getPath() + ".tmp");
+		BufferedWriter bw = new BufferedWriter(new FileWriter(tmp));
+		try {
+			bw.write("# " + new Date());
+			bw.newLine();
+			bw.write(report());
+		} finally {
+			bw.close();
+		}
+		if(!tmp.renameTo(file)) {
+			file.delete();
+			if(!tmp.renameTo(file)) {
+				throw new IOException("Could not move " + tmp + " to " + file);
+			}
+		}
+	}
+
+	/**
+	 * Enables the metrics and writes their report to the file every interval and when the JVM exits.
+	 * @param interval milliseconds between reports, 0 or less to only report on exit.
+	 */
+	public static synchronized void reportTo(final File file, long interval) {
+		setEnabled(true);
+		Runnable writeReport = new Runnable() {
+			public void run() {
+				try {
+					write(file);
+				} catch (IOException e) {
+					System.err.println("Could not write metrics to " + file + ": " + e.getMessage());
+				}
+			}
+		};
+		if(interval > 0) {
+			if(reporter != null) {
+				reporter.shutdownNow();
+			}
+			reporter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "metrics-reporter");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			reporter.scheduleAtFixedRate(writeReport, interval, interval, TimeUnit.MILLISECONDS);
+		}
+		Runtime.getRuntime().addShutdownHook(new Thread(writeReport, "metrics-final-report"));
+	}
+
+	/**
+	 * Enables the metrics and publishes their values as read only attributes of the MBEAN_NAME bean.
+	 */
+	public static void registerMBean() throws JMException {
+		setEnabled(true);
+		ObjectName name = new ObjectName(MBEAN_NAME);
+		if(!ManagementFactory.getPlatformMBeanServer().isRegistered(name)) {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsMBean(), name);
+		}
+	}
+
+	public static abstract class Metric {
+		final String name;
+
+		Metric(String name) {
+			this.name = name;
+		}
+
+		public String getName() { return name; }
+
+		abstract void addValues(Map<String, Long> values);
+	}
+
+	public static final class Counter extends Metric {
+		private AtomicLong count = new AtomicLong();
+
+		Counter(String name) {
+			super(name);
+		}
+
+		public void increment() {
+			if(enabled) {
+				count.incrementAndGet();
+			}
+		}
+
+		public void add(long value) {
+			if(enabled) {
+				count.addAndGet(value);
+			}
+		}
+
+		public long getCount() { return count.get(); }
+
+		void addValues(Map<String, Long> values) {
+			values.put(name + ".count", getCount());
+		}
+
+		public String toString() {
+			return name + "\tcount " + getCount();
+		}
+	}
+
+	/**
+	 * Elapsed time of a code section: long start = timer.start(); ... timer.stop(start);
+	 */
+	public static final class Timer extends Metric {
+		private AtomicLong count = new AtomicLong();
+		private AtomicLong totalNanos = new AtomicLong();
+		private AtomicLong maxNanos = new AtomicLong();
+
+		Timer(String name) {
+			super(name);
+		}
+
+		/**
+		 * @return the start time, 0 if metrics are disabled.
+		 */
+		public long start() {
+			return enabled ? System.nanoTime() : 0;
+		}
+
+		public void stop(long start) {
+			if(start != 0) {
+				record(System.nanoTime() - start);
+			}
+		}
+
+		public void record(long nanos) {
+			count.incrementAndGet();
+			totalNanos.addAndGet(nanos);
+			updateMax(maxNanos, nanos);
+		}
+
+		public long getCount() { return count.get(); }
+		public long getTotalNanos() { return totalNanos.get(); }
+		public long getMaxNanos() { return maxNanos.get(); }
+
+		void addValues(Map<String, Long> values) {
+			values.put(name + ".count", getCount());
+			values.put(name + ".totalMillis", getTotalNanos() / 1000000);
+			values.put(name + ".maxMicros", getMaxNanos() / 1000);
+		}
+
+		public String toString() {
+			long n = getCount();
+			return name + "\tcount " + n + "\ttotal " + getTotalNanos() / 1e6 + " ms\tmean " + (n == 0 ? 0 : getTotalNanos() / 1e3 / n) +
+				" us\tmax " + getMaxNanos() / 1e3 + " us";
+		}
+	}
+
+	/**
+	 * Distribution of non negative values in power of two buckets: 0, 1, 2-3, 4-7 ...
+	 */
+	public static final class Histogram extends Metric {
+		private AtomicLongArray buckets = new AtomicLongArray(64);
+		private AtomicLong count = new AtomicLong();
+		private AtomicLong sum = new AtomicLong();
+		private AtomicLong max = new AtomicLong();
+
+		Histogram(String name) {
+			super(name);
+		}
+
+		public void record(long value) {
+			if(!enabled) {
+				return;
+			}
+			value = Math.max(0, value);
+			buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(value));
+			count.incrementAndGet();
+			sum.addAndGet(value);
+			updateMax(max, value);
+		}
+
+		public long getCount() { return count.get(); }
+		public long getMax() { return max.get(); }
+
+		public double getMean() {
+			long n = count.get();
+			return n == 0 ? 0 : sum.get() / (double) n;
+		}
+
+		/**
+		 * @return number of recorded values in [2^(bucket-1), 2^bucket), bucket 0 holds the zeros.
+		 */
+		public long getBucketCount(int bucket) {
+			return buckets.get(bucket);
+		}
+
+		void addValues(Map<String, Long> values) {
+			values.put(name + ".count", getCount());
+			values.put(name + ".sum", sum.get());
+			values.put(name + ".max", getMax());
+		}
+
+		public String toString() {
+			StringBuilder sb = new StringBuilder(name).append("\tcount ").append(getCount()).append("\tmean ").append(getMean()).append("\tmax ").append(getMax());
+			for(int i = 0; i < buckets.length(); i++) {
+				long n = buckets.get(i);
+				if(n > 0) {
+					sb.append("\t").append(i == 0 ? 0 : 1L << (i - 1)).append("-: ").append(n);
+				}
+			}
+			return sb.toString();
+		}
+	}
+
+	private static void updateMax(AtomicLong max, long value) {
+		long current = max.get();
+		while(value > current && !max.compareAndSet(current, value)) {
+			current = max.get();
+		}
+	}
+
+	private static class MetricsMBean implements DynamicMBean {
+		public Object getAttribute(String attribute) throws AttributeNotFoundException {
+			Long value = snapshot().get(attribute);
+			if(value == null) {
+				throw new AttributeNotFoundException(attribute);
+			}
+			return value;
+		}
+
+		public AttributeList getAttributes(String[] attributes) {
+			Map<String, Long> values = snapshot();
+			AttributeList list = new AttributeList();
+			for(String attribute : attributes) {
+				if(values.containsKey(attribute)) {
+					list.add(new Attribute(attribute, values.get(attribute)));
+				}
+			}
+			return list;
+		}
+
+		public MBeanInfo getMBeanInfo() {
+			Map<String, Long> values = snapshot();
+			MBeanAttributeInfo [] attributes = new MBeanAttributeInfo[values.size()];
+			int i = 0;
+			for(String attribute : values.keySet()) {
+				attributes[i++] = new MBeanAttributeInfo(attribute, Long.class.getName(), attribute, true, false, false);
+			}
+			return new MBeanInfo(Metrics.class.getName(), "Process metrics", attributes, null, new MBeanOperationInfo[0], null);
+		}
+
+		public Object invoke(String actionName, Object[] params, String[] signature) {
+			throw new UnsupportedOperationException("Metrics have no operations");
+		}
+
+		public void setAttribute(Attribute attribute) {
+			throw new UnsupportedOperationException("Metrics are read only");
+		}
+
+		public AttributeList setAttributes(AttributeList attributes) {
+			return new AttributeList();
+		}
+	}
+}
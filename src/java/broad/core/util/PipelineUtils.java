@@ -6,6 +6,9 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.util.ArrayList;
 
+/**
+ * LSF job submission and monitoring, see GenomeShardRunner to run genome wide jobs on a single host.
+ */
 public class PipelineUtils {
 
 	static int waitTime=60000; //1 minute
@@ -0,0 +1,29 @@
+package broad.core.util;
+
+/**
+ * Derives the seeds of independent random generators, e.g. one per permutation or per block, from a run seed.
+ *
+ * @author mgarber
+ */
+public class Seeds {
+
+	private Seeds() {
+		super();
+	}
+
+	/**
+	 * Scrambles a seed (murmur3 finalizer) so that generators seeded from consecutive values are not correlated.
+	 */
+	public static long mix(long z) {
+		z = (z ^ (z >>> 33)) * 0xff51afd7ed558ccdL;
+		z = (z ^ (z >>> 33)) * 0xc4ceb9fe1a85ec53L;
+		return z ^ (z >>> 33);
+	}
+
+	/**
+	 * @return the seed of the index-th generator of a run, distinct runs get unrelated sequences of seeds.
+	 */
+	public static long derive(long runSeed, long index) {
+		return mix(mix(runSeed) + index);
+	}
+}
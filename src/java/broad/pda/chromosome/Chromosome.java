@@ -1,9 +1,11 @@
 package broad.pda.chromosome;
 
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
+import java.io.FileWriter;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -12,6 +14,11 @@ import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.Stack;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import broad.pda.assembly.AgpEntry;
 import broad.pda.assembly.AgpEntryFactory;
@@ -28,10 +35,12 @@ import broad.core.sequence.FastaSequenceIO;
 import broad.core.sequence.Sequence;
 import broad.core.sequence.SequenceRegion;
 import broad.core.sequence.WindowSlider;
+import broad.core.util.Seeds;
 import broad.pda.snp.DBSNPReader;
 import broad.pda.snp.DBSNPReader.DBSNP;
 
 public class Chromosome {
+	private static final int SHUFFLE_BLOCK_SIZE = 10000;
 	GenomicAnnotation centromere;
 	List<AgpEntry> gaps;
 	List<AgpEntry> clones;
@@ -240,6 +249,16 @@ public class Chromosome {
 	public List<? extends GenomicAnnotation> shuffleInClusters(List<? extends GenomicAnnotation> toShuffle, 
 			List<? extends GenomicAnnotation> toAvoid, 
 			int clusterMaxDistance) {
+		return shuffleInClusters(toShuffle, toAvoid, clusterMaxDistance, new Random(Math.round(Math.random()*1000000)));
+	}
+
+	/**
+	 * Same as shuffleInClusters(toShuffle, toAvoid, clusterMaxDistance) drawing cluster positions from the given generator.
+	 * @param randomizer random generator to use, pass a seeded one to get reproducible shuffles.
+	 */
+	public List<? extends GenomicAnnotation> shuffleInClusters(List<? extends GenomicAnnotation> toShuffle, 
+			List<? extends GenomicAnnotation> toAvoid, 
+			int clusterMaxDistance, Random randomizer) {
 		
 		List<GenomicAnnotation> valid = getValidRegions(toAvoid);
 		
@@ -281,33 +300,22 @@ public class Chromosome {
 			}
 		}
 		
-		//Suffle reps, but do it safely, one at time, we can optimize this later.
+		//Suffle reps, but do it safely, one at time.
+		ValidRegionSampler sampler = new ValidRegionSampler(valid);
 		Iterator<GenomicAnnotation> repIt = clusterReps.iterator();
 		Iterator<Stack<GenomicAnnotation>> clusterIt = clusterList.iterator();
 		ArrayList<GenomicAnnotation> shuffledAnnotations = new ArrayList<GenomicAnnotation>(toShuffle.size());
+		List<GenomicAnnotation> shuffled = new ArrayList<GenomicAnnotation>();
 		while(repIt.hasNext()) {
 			GenomicAnnotation rep = repIt.next();
-			List<? extends GenomicAnnotation> shuffled = shuffleWithinValid(rep, valid);
+			int containingRegionNum = 0;
 			//For simplicity, insist that the shuffle is all whithin one region.
-			while(shuffled.size() != 1) { //There should be no risk of infinite look here for annotations that are not ridiculously long.
-				shuffled = shuffle(rep, toAvoid);
-			}
+			do { //There should be no risk of infinite look here for annotations that are not ridiculously long.
+				shuffled.clear();
+				containingRegionNum = shuffleWithinValid(rep, sampler, randomizer, shuffled);
+			} while(shuffled.size() != 1);
 			GenomicAnnotation shuffledRep = shuffled.get(0);
-			
-			GenomicAnnotation containingRegion = null;
-			int containingRegionNum = 0;
-			
-			Iterator<GenomicAnnotation> validIt = valid.iterator();
-			while(validIt.hasNext()) {
-				GenomicAnnotation a = validIt.next();
-				//System.out.println("Iterating through valid regions " + a + " does it contain shuffled rep " + shuffledRep);
-				if(a.contains(shuffledRep)) {
-					//System.out.println ("\t\tYES");
-					containingRegion = a;
-					break;
-				}
-				containingRegionNum++;
-			}
+			LightweightGenomicAnnotation containingRegion = valid.get(containingRegionNum);
 			shuffledAnnotations.add(shuffledRep); 
 			int repShift = shuffledRep.getStart() - rep.getStart();
 			Stack<GenomicAnnotation> cluster = clusterIt.next();
@@ -359,52 +367,92 @@ public class Chromosome {
 	}
 
 	public List<? extends GenomicAnnotation> shuffleWithinValid(List<? extends GenomicAnnotation> toShuffle, List<? extends GenomicAnnotation> valid) {
-		ArrayList<GenomicAnnotation> randomized = new ArrayList<GenomicAnnotation>();
-		Random randomizer = new Random(Math.round(Math.random()*1000000) );
-		// The next hack attempts to simulate the trivial fact that large regions should be more likely
-		// to be drawn by adding as many copies of it as its percent of the total length covered by
-		// valid regions. The caveat is that we are rounding the percent thus we used 1000 rather than 100 
-		// to account for small but not tiny regions... This may slow things down significantly when randomizing
-		// al large list.
-		//System.out.println("Total valid regions length " + totalValidLength);
-		List<GenomicAnnotation> normalizedValid = normalizeRegionsListBySize(valid);
-		
+		return shuffleWithinValid(toShuffle, valid, new Random(Math.round(Math.random()*1000000)));
+	}
+	
+	/**
+	 * Randomizes a list of genomic annotations within the given valid regions. Start positions are drawn uniformly
+	 * from all bases covered by valid regions (thus regions are drawn proportionally to their length), annotations
+	 * that do not fit in the drawn region are continued in the next valid regions.
+	 * @param randomizer random generator to use, pass a seeded one to get reproducible shuffles.
+	 */
+	public List<? extends GenomicAnnotation> shuffleWithinValid(List<? extends GenomicAnnotation> toShuffle, List<? extends GenomicAnnotation> valid, Random randomizer) {
+		ArrayList<GenomicAnnotation> randomized = new ArrayList<GenomicAnnotation>(toShuffle.size());
+		ValidRegionSampler sampler = new ValidRegionSampler(valid);
 		Iterator<? extends GenomicAnnotation> toRandomizeIt = toShuffle.iterator();
-		
-		int normalizedValidNumber = normalizedValid.size();
-		//System.out.println("Valid num: " + validNumber + " validNumber order of magnitude " + orderOfMagnitudeValid + " normlizedValidSize " + normalizingConstant + " total normalized valid " + normalizedValidNumber);
 		while(toRandomizeIt.hasNext()) {
-			GenomicAnnotation original = toRandomizeIt.next();
-			int randomValidRegion = randomizer.nextInt(normalizedValidNumber);
-			GenomicAnnotation validReg = normalizedValid.get(randomValidRegion);
-			int randomizedStart = randomizer.nextInt(validReg.getLength()) + validReg.getStart();
-			GenomicAnnotation randomizedOriginal = new BasicGenomicAnnotation(original);
-			randomizedOriginal.setName(randomizedOriginal.getName() + "_randomized");
-			randomized.add(randomizedOriginal);
-			randomizedOriginal.setStart(randomizedStart);
-			randomizedOriginal.setEnd(Math.min(randomizedStart + original.getLength(), validReg.getEnd()));
-			GenomicAnnotation prior = randomizedOriginal;
-			
-			// Initially we got a random region from the NORMALIZED vector, from now on we work on the small valid region vector
-			randomValidRegion = valid.indexOf(validReg);
-			int i = 2;
-			int left = original.getLength() - prior.getLength();
-			while(left > 0) {
-				//System.out.print("\tPrior valid region " + randomValidRegion);
-				randomValidRegion = (randomValidRegion + 1) % valid.size();
-				//System.out.print(" new valid region " + randomValidRegion);
-				LightweightGenomicAnnotation nextValidRegion = valid.get(randomValidRegion);
-				//System.out.println(" region: " + nextValidRegion);
-				GenomicAnnotation nextRandomizedChunk = new BasicGenomicAnnotation(original);
-				nextRandomizedChunk.setName(original.getName() + "_randomized_" + i++);
-				nextRandomizedChunk.setStart(nextValidRegion.getStart());
-				nextRandomizedChunk.setEnd(Math.min(nextValidRegion.getStart() + left, nextValidRegion.getEnd()));
-				randomized.add(nextRandomizedChunk);
-				left = left - nextRandomizedChunk.getLength();
-			}
+			shuffleWithinValid(toRandomizeIt.next(), sampler, randomizer, randomized);
 		}
 		return randomized;
 	}
+	
+	/**
+	 * Shuffles a large list of annotations using several threads. The list is processed in fixed size blocks, each with a generator
+	 * seeded from the given seed and the block number, so the result does not depend on the number of threads.
+	 * The shuffled annotations are returned in the order of the original list.
+	 */
+	public List<? extends GenomicAnnotation> shuffleWithinValid(final List<? extends GenomicAnnotation> toShuffle, List<? extends GenomicAnnotation> valid, final long seed, int numThreads) 
+	throws InterruptedException, ExecutionException {
+		final ValidRegionSampler sampler = new ValidRegionSampler(valid);
+		ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+		List<Future<List<GenomicAnnotation>>> blocks = new ArrayList<Future<List<GenomicAnnotation>>>();
+		try {
+			for(int blockStart = 0; blockStart < toShuffle.size(); blockStart += SHUFFLE_BLOCK_SIZE) {
+				final int from = blockStart;
+				final int to = Math.min(toShuffle.size(), blockStart + SHUFFLE_BLOCK_SIZE);
+				blocks.add(executor.submit(new Callable<List<GenomicAnnotation>>() {
+					public List<GenomicAnnotation> call() {
+						Random randomizer = new Random(Seeds.derive(seed, from / SHUFFLE_BLOCK_SIZE));
+						List<GenomicAnnotation> randomized = new ArrayList<GenomicAnnotation>(to - from);
+						for(GenomicAnnotation original : toShuffle.subList(from, to)) {
+							shuffleWithinValid(original, sampler, randomizer, randomized);
+						}
+						return randomized;
+					}
+				}));
+			}
+			ArrayList<GenomicAnnotation> randomized = new ArrayList<GenomicAnnotation>(toShuffle.size());
+			for(Future<List<GenomicAnnotation>> block : blocks) {
+				randomized.addAll(block.get());
+			}
+			return randomized;
+		} finally {
+			executor.shutdown();
+		}
+	}
+	
+	/**
+	 * Places a randomized copy of the given annotation, adds it (and the pieces of it spilling into the next valid regions)
+	 * to the randomized list.
+	 * @return the index of the valid region where the randomized annotation starts
+	 */
+	private int shuffleWithinValid(GenomicAnnotation original, ValidRegionSampler sampler, Random randomizer, List<GenomicAnnotation> randomized) {
+		long offset = sampler.drawOffset(randomizer);
+		int randomValidRegion = sampler.getRegionIndex(offset);
+		int firstValidRegion = randomValidRegion;
+		LightweightGenomicAnnotation validReg = sampler.getRegion(randomValidRegion);
+		int randomizedStart = sampler.getPosition(randomValidRegion, offset);
+		GenomicAnnotation randomizedOriginal = new BasicGenomicAnnotation(original);
+		randomizedOriginal.setName(randomizedOriginal.getName() + "_randomized");
+		randomized.add(randomizedOriginal);
+		randomizedOriginal.setStart(randomizedStart);
+		randomizedOriginal.setEnd(Math.min(randomizedStart + original.getLength(), validReg.getEnd()));
+		GenomicAnnotation prior = randomizedOriginal;
+		
+		int i = 2;
+		int left = original.getLength() - prior.getLength();
+		while(left > 0) {
+			randomValidRegion = (randomValidRegion + 1) % sampler.getNumberOfRegions();
+			LightweightGenomicAnnotation nextValidRegion = sampler.getRegion(randomValidRegion);
+			GenomicAnnotation nextRandomizedChunk = new BasicGenomicAnnotation(original);
+			nextRandomizedChunk.setName(original.getName() + "_randomized_" + i++);
+			nextRandomizedChunk.setStart(nextValidRegion.getStart());
+			nextRandomizedChunk.setEnd(Math.min(nextValidRegion.getStart() + left, nextValidRegion.getEnd()));
+			randomized.add(nextRandomizedChunk);
+			left = left - nextRandomizedChunk.getLength();
+		}
+		return firstValidRegion;
+	}
 
 	
 	public SequenceRegion drawRandomRegion(int size) {
@@ -645,31 +693,71 @@ public class Chromosome {
 		return chunks;
 	}
 
-	private List<GenomicAnnotation> normalizeRegionsListBySize(List<? extends GenomicAnnotation> valid) {
-		Iterator<? extends GenomicAnnotation> validIt = valid.iterator();
-		int totalValidLength = 0;
-		while(validIt.hasNext()) {
-			totalValidLength += validIt.next().length();
+	/**
+	 * Writes the chunks of this chromosome to fasta files named filePrefix + start + "_" + end + ".fa" reading
+	 * the sequence file sequentially, only one chunk worth of sequence is kept in memory. Chunks have the same
+	 * boundaries and ids as those produced by loading the sequence and calling chunk.
+	 * @return number of chunks written
+	 */
+	public int writeChunks(int chunkSize, int chunkOverlap, String filePrefix) throws IOException {
+		if(chunkOverlap >= chunkSize) {
+			throw new IllegalArgumentException("Chunk overlap " + chunkOverlap + " must be smaller than chunk size " + chunkSize);
 		}
-		
-		int valids = valid.size();	
-		validIt = valid.iterator();
-		double orderOfMagnitudeValid = Math.ceil(Math.log10(valids));
-		int normalizingConstant =(int) Math.pow(10, (orderOfMagnitudeValid + 2));
-
-		List<GenomicAnnotation> normalizedValid = new ArrayList<GenomicAnnotation>(normalizingConstant);
-		while(validIt.hasNext()) { 
-			GenomicAnnotation reg = validIt.next();
-			double roundedPctCoveratge = Math.round(reg.length()/(float)totalValidLength * normalizingConstant);
-			//System.out.println("\tRegion " + reg + " is " + roundedPctCoveratge + " of total ");
-			for(int i = 0; i < roundedPctCoveratge; i++) {
-				//System.out.println("\t\tAdding region " + reg.getName() + ", total newValid size: " + newNormalizedValid.size());
-				normalizedValid.add(reg);
+		BufferedReader br = new BufferedReader(new FileReader(sequenceFile));
+		char [] window = new char[chunkSize];
+		int filled = 0;
+		int chunkStart = 0;
+		int written = 0;
+		String seqId = null;
+		try {
+			String line = null;
+			while((line = br.readLine()) != null) {
+				if(line.startsWith(">")) {
+					if(seqId != null) {
+						break;
+					}
+					seqId = line.substring(1);
+					continue;
+				}
+				int lineIdx = 0;
+				int lineLength = line.length();
+				while(lineIdx < lineLength) {
+					int toCopy = Math.min(lineLength - lineIdx, chunkSize - filled);
+					line.getChars(lineIdx, lineIdx + toCopy, window, filled);
+					filled += toCopy;
+					lineIdx += toCopy;
+					if(filled == chunkSize) {
+						writeChunk(seqId, window, filled, chunkStart, filePrefix);
+						written++;
+						System.arraycopy(window, chunkSize - chunkOverlap, window, 0, chunkOverlap);
+						filled = chunkOverlap;
+						chunkStart += chunkSize - chunkOverlap;
+					}
+				}
 			}
+		} finally {
+			br.close();
 		}
-		return normalizedValid;
+		if(filled > chunkOverlap || (written == 0 && filled > 0)) {
+			writeChunk(seqId, window, filled, chunkStart, filePrefix);
+			written++;
+		}
+		return written;
 	}
 
-
+	private static void writeChunk(String seqId, char [] bases, int length, int start, String filePrefix) throws IOException {
+		int end = start + length;
+		BufferedWriter bw = new BufferedWriter(new FileWriter(filePrefix + start + "_" + end + ".fa"));
+		try {
+			bw.write(">" + seqId + ":" + start + "-" + end);
+			bw.newLine();
+			for(int i = 0; i < length; i += FastaSequenceIO.LINE_LENGTH) {
+				bw.write(bases, i, Math.min(FastaSequenceIO.LINE_LENGTH, length - i));
+				bw.newLine();
+			}
+		} finally {
+			bw.close();
+		}
+	}
 
 }
@@ -0,0 +1,94 @@
+package broad.pda.chromosome;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs per chromosome tasks on a bounded thread pool.
+ * Each task declares an estimate of the memory it keeps resident (in bases, or any unit consistent
+ * with the budget) and does not start until that much of the budget is free, so large chromosomes
+ * are not all loaded at once no matter how many threads are available.
+ * A task whose estimate exceeds the whole budget runs alone.
+ *
+ * @author mgarber
+ */
+public class ChromosomeTaskExecutor {
+	private ExecutorService executor;
+	private long budget;
+	private long inUse;
+	private List<Future<?>> pending = new ArrayList<Future<?>>();
+
+	/**
+	 * @param numThreads maximum number of tasks running at the same time
+	 * @param budget maximum total resident estimate of running tasks, use Long.MAX_VALUE for no limit.
+	 */
+	public ChromosomeTaskExecutor(int numThreads, long budget) {
+		this.executor = Executors.newFixedThreadPool(numThreads);
+		this.budget = budget;
+	}
+
+	/**
+	 * @return a budget in bases of a quarter of the maximum heap, sequence held as 2 byte Java chars then takes at most half of the heap.
+	 */
+	public static long defaultSequenceBudget() {
+		return Runtime.getRuntime().maxMemory() / 4;
+	}
+
+	public <T> Future<T> submit(final long residentEstimate, final Callable<T> task) {
+		final long required = Math.max(0, Math.min(residentEstimate, budget));
+		Future<T> future = executor.submit(new Callable<T>() {
+			public T call() throws Exception {
+				acquire(required);
+				try {
+					return task.call();
+				} finally {
+					release(required);
+				}
+			}
+		});
+		pending.add(future);
+		return future;
+	}
+
+	private synchronized void acquire(long amount) throws InterruptedException {
+		while(inUse + amount > budget) {
+			wait();
+		}
+		inUse += amount;
+	}
+
+	private synchronized void release(long amount) {
+		inUse -= amount;
+		notifyAll();
+	}
+
+	/**
+	 * Waits for all submitted tasks and shuts the pool down. The first task failure is rethrown
+	 * after the remaining tasks are cancelled.
+	 */
+	public void awaitAll() throws Exception {
+		try {
+			for(Future<?> f : pending) {
+				try {
+					f.get();
+				} catch (ExecutionException e) {
+					for(Future<?> other : pending) {
+						other.cancel(true);
+					}
+					if(e.getCause() instanceof Exception) {
+						throw (Exception) e.getCause();
+					}
+					throw e;
+				}
+			}
+		} finally {
+			pending.clear();
+			executor.shutdown();
+		}
+	}
+}
@@ -16,6 +16,7 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Random;
 import java.util.Stack;
+import java.util.concurrent.Callable;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -34,9 +35,10 @@ public class GenomeMaintenance {
 	"\tTasks:\n" +
 	"\t1. Generate size file SEQDIR=<sequence directory >\n" +
 	"\t2. Generate agp files SEQDIR=<sequence directory for the assembly to work on\n" +
+	"\t\tTasks 2, 4 and 5 process chromosomes in parallel: [-threads <number of threads, default 1> -maxResidentBases <limit on the total size of the chromosomes held in memory at once, defaults to a quarter of the heap>]\n" +
 	"\t3. Generate artificial AGP file for a given sequence IN=<Fasta file with sequence to analyze>\n" +
 	"\t4. Chunk -org organism -chunk <chunk size> -overlap <chunk overlap> -outdir <output directory> \n" +
-	"\t\t-seqdir <sequence directory if not the standard version>]\n" +
+	"\t\t-seqdir <sequence directory if not the standard version>] [-inmemory load each chromosome instead of streaming chunks from its fasta file]\n" +
 	"\t5. Unchunk RepeatMasker chunked output -indir <chunks input directory> -chunk <chunk size> -outdir <output directory> -seqdir <org sequence directory>\n" +
 	"\t6. Introduce Rearrangements -org <Organism> \n\t\t\t" +
 		"-dups <# of duplications to introduce> -translocations <# translocations to introduce> -deletions <# deletions> -inversions <# inversions>\n\t\t\t"+
@@ -54,137 +56,154 @@ public class GenomeMaintenance {
 		} else if ("2".equals(argMap.getTask())) {
 			File  sequenceDirectory = new File(argMap.getMandatory("SEQDIR")); 
 			String [] sequenceDirList = sequenceDirectory.list();
-			FastaSequenceIO fsio = new FastaSequenceIO();
+			ChromosomeTaskExecutor executor = createExecutor(argMap);
 			for(int i = 0; i < sequenceDirList.length; i++) {
 				File f =  new File(sequenceDirectory.getAbsolutePath() + "/" + sequenceDirList[i]);
 				if(f.isDirectory()) {
 					String [] chrList = f.list();
 					for(int j = 0; j < chrList.length;  j++) {
 						if(chrList[j].endsWith(".fa")){
-							System.out.println("Doing " + f.getAbsolutePath() + "/" + chrList[j]);
-							List<AgpEntry> agp = getAGP(new File(f.getAbsolutePath() + "/" + chrList[j]));
-							Iterator<AgpEntry> it = agp.iterator();
-							String fileName = chrList[j].substring(0,chrList[j].lastIndexOf("."));
-							String agpFile = fileName + ".agp";
-							BufferedWriter agpBW = new BufferedWriter(new FileWriter(f.getAbsolutePath() + "/" + agpFile));
-							while(it.hasNext()) {
-								agpBW.write(it.next().toString());
-								agpBW.newLine();
-							}
-							agpBW.close();
+							final File fastaFile = new File(f.getAbsolutePath() + "/" + chrList[j]);
+							final String fileName = chrList[j].substring(0,chrList[j].lastIndexOf("."));
+							final File agpFile = new File(f.getAbsolutePath() + "/" + fileName + ".agp");
+							// getAGP streams the sequence, only the agp entries are kept.
+							executor.submit(0, new Callable<Object>() {
+								public Object call() throws Exception {
+									System.out.println("Doing " + fastaFile.getAbsolutePath());
+									writeAGP(getAGP(fastaFile), agpFile);
+									return null;
+								}
+							});
 						}
 					}
 				}
 			}
+			executor.awaitAll();
 		} else if("3".equals(argMap.getTask())) { 
 			String input = argMap.getInput();
 			FastaSequenceIO fsio = new FastaSequenceIO();
 			String output = CLUtil.replaceFileExtension(input, "agp");
 			
-			List<AgpEntry> agp = getAGP(new File(input));
-			Iterator<AgpEntry> it = agp.iterator();
-			BufferedWriter agpBW = new BufferedWriter(new FileWriter(output));
-			while(it.hasNext()) {
-				agpBW.write(it.next().toString());
-				agpBW.newLine();
-			}
-			agpBW.close();			
+			writeAGP(getAGP(new File(input)), new File(output));
 	    }else if("4".equals(argMap.getTask())) {
 			String org = argMap.getMandatory("org");
 			String sequenceDirectory = argMap.getMandatory("seqdir");
 			String outdir = argMap.getOutputDir();
-			int chunkSize = argMap.getInteger("chunk");
-			int chunkOverlap = argMap.getInteger("overlap");
+			final int chunkSize = argMap.getInteger("chunk");
+			final int chunkOverlap = argMap.getInteger("overlap");
+			
+			final boolean inMemory = argMap.containsKey("inmemory");
 			
 			Mammal m = new GenericOrganism(new File(sequenceDirectory));
 			
-			FastaSequenceIO fsio = new FastaSequenceIO();
+			ChromosomeTaskExecutor executor = createExecutor(argMap);
 			Iterator<Chromosome> chrIt = m.getAllChromosomes().iterator();
 			while(chrIt.hasNext()) {
-				Chromosome c = chrIt.next();
-				c.loadSequence();
-				System.out.println("Processing chromosome " + c.getSymbol());
-				File chrDir = new File(outdir + "/" + c.getSymbol());
-				if(!chrDir.exists()) {
-					chrDir.mkdir();
-				}
-				Iterator<SequenceRegion> chrChunkIt = c.chunk(chunkSize, chunkOverlap).iterator();
-				while(chrChunkIt.hasNext()) {
-					SequenceRegion chunk = chrChunkIt.next();
-					fsio.write(chunk, chrDir.getAbsolutePath() + "/chr" + c.getSymbol() + "_" + chunk.getRegionStart() +"_" + chunk.getRegionEnd() + ".fa");
-				}
-				c.unloadSequence();
+				final Chromosome c = chrIt.next();
+				final File chrDir = new File(outdir + "/" + c.getSymbol());
+				executor.submit(inMemory ? c.getSize() : chunkSize, new Callable<Object>() {
+					public Object call() throws Exception {
+						System.out.println("Processing chromosome " + c.getSymbol());
+						if(!chrDir.exists()) {
+							chrDir.mkdir();
+						}
+						String chunkPrefix = chrDir.getAbsolutePath() + "/chr" + c.getSymbol() + "_";
+						if(!inMemory) {
+							int written = c.writeChunks(chunkSize, chunkOverlap, chunkPrefix);
+							System.out.println("\tWrote " + written + " chunks for chromosome " + c.getSymbol());
+							return null;
+						}
+						FastaSequenceIO fsio = new FastaSequenceIO();
+						c.loadSequence();
+						Iterator<SequenceRegion> chrChunkIt = c.chunk(chunkSize, chunkOverlap).iterator();
+						while(chrChunkIt.hasNext()) {
+							SequenceRegion chunk = chrChunkIt.next();
+							fsio.write(chunk, chunkPrefix + chunk.getRegionStart() +"_" + chunk.getRegionEnd() + ".fa");
+						}
+						c.unloadSequence();
+						return null;
+					}
+				});
 			}
+			executor.awaitAll();
 		} else if("5".equals(argMap.getTask())) { 
-			int chunkSize = argMap.getInteger("chunksize");
+			final int chunkSize = argMap.getInteger("chunksize");
 			final String chunkExt = "fa.out";
 			final Pattern extPat = Pattern.compile("\\." + chunkExt.replace("\\.", "\\.") + "$");
-			File inDir = new File(argMap.getInputDir());
-			String outDir = argMap.getOutputDir();
+			final File inDir = new File(argMap.getInputDir());
+			final String outDir = argMap.getOutputDir();
 			Mammal m = new GenericOrganism(new File(argMap.get("seqdir")));
 
 			System.out.println("Ext matching pattern " + extPat);
 			
+			ChromosomeTaskExecutor executor = createExecutor(argMap);
 			Iterator<Chromosome> chrIt = m.getAllChromosomes().iterator(); 
 			//Iterator<Chromosome> chrIt = org.getUn().iterator();
 			while(chrIt.hasNext()) {
-				Chromosome c = chrIt.next();
-				System.out.println("processing chr" + c.getSymbol());
-				File chrDir = new File(inDir.getAbsolutePath() + "/" + c.getSymbol());
-				File [] inDirList = chrDir.listFiles(new FilenameFilter() {
+				final Chromosome c = chrIt.next();
+				// the merged repeat list of a chromosome grows with its size.
+				executor.submit(c.getSize(), new Callable<Object>() {
+					public Object call() throws Exception {
+						System.out.println("processing chr" + c.getSymbol());
+						File chrDir = new File(inDir.getAbsolutePath() + "/" + c.getSymbol());
+						File [] inDirList = chrDir.listFiles(new FilenameFilter() {
 	
-					public boolean accept(File dir, String fileName) {
-						Matcher m = extPat.matcher(fileName);
-						return m.find();
-					}
+							public boolean accept(File dir, String fileName) {
+								Matcher m = extPat.matcher(fileName);
+								return m.find();
+							}
 					
-				});
+						});
 				
-				Arrays.sort(inDirList, new Comparator<File>(){
+						Arrays.sort(inDirList, new Comparator<File>(){
 	
-					public int compare(File arg0, File arg1) {
-						String fName0 = arg0.getName().replace("."+chunkExt, "");
-						String fName1 = arg1.getName().replace("."+chunkExt, "");
+							public int compare(File arg0, File arg1) {
+								String fName0 = arg0.getName().replace("."+chunkExt, "");
+								String fName1 = arg1.getName().replace("."+chunkExt, "");
 						
-						String [] arg0Info = fName0.split("_");
-						int start0 = Integer.parseInt(arg0Info[arg0Info.length - 2]);
-						String [] arg1Info = fName1.split("_");
-						int start1 = Integer.parseInt(arg1Info[arg1Info.length - 2]);
-						return start0 - start1;
-					}
+								String [] arg0Info = fName0.split("_");
+								int start0 = Integer.parseInt(arg0Info[arg0Info.length - 2]);
+								String [] arg1Info = fName1.split("_");
+								int start1 = Integer.parseInt(arg1Info[arg1Info.length - 2]);
+								return start0 - start1;
+							}
 					
-				});
+						});
 				
-				// since we assume a naming convention we know how to get the orginal sequence name
-				if(inDirList.length == 0 ) {
-					System.err.println("No files in " + chrDir.getAbsolutePath() + " matched the given extension " + chunkExt);
-					return;
-				}
-				String seqName = inDirList[0].getName().split("_")[0];			
+						// since we assume a naming convention we know how to get the orginal sequence name
+						if(inDirList.length == 0 ) {
+							System.err.println("No files in " + chrDir.getAbsolutePath() + " matched the given extension " + chunkExt);
+							return null;
+						}
+						String seqName = inDirList[0].getName().split("_")[0];			
 				
-				RepeatMaskerReader rmr = new RepeatMaskerReader();
-				long totalSize = c.getSize();
+						RepeatMaskerReader rmr = new RepeatMaskerReader();
+						long totalSize = c.getSize();
 	
-				for(int i = 0; i < inDirList.length; i++) {
-					File file = inDirList[i];
-					String [] nameInfo = file.getName().split("_");
-					int chunkStart = Integer.parseInt(nameInfo[nameInfo.length - 2].replace("."+chunkExt, "").split("-")[0]);
-					//Lets check the chunks to make sure we are not missing any.
-					if(chunkStart != (chunkSize * i )) {
-						throw new RuntimeException("Expected chunk starting at " + (chunkSize * i) + " but got " + inDirList[i].getName() + " which starts at " + chunkStart);
-					}
-					rmr.loadRepeats(file, false, chunkStart, (int) totalSize, seqName);
-				}
+						for(int i = 0; i < inDirList.length; i++) {
+							File file = inDirList[i];
+							String [] nameInfo = file.getName().split("_");
+							int chunkStart = Integer.parseInt(nameInfo[nameInfo.length - 2].replace("."+chunkExt, "").split("-")[0]);
+							//Lets check the chunks to make sure we are not missing any.
+							if(chunkStart != (chunkSize * i )) {
+								throw new RuntimeException("Expected chunk starting at " + (chunkSize * i) + " but got " + inDirList[i].getName() + " which starts at " + chunkStart);
+							}
+							rmr.loadRepeats(file, false, chunkStart, (int) totalSize, seqName);
+						}
 				
-				File outChrDir = new File(outDir + "/" + c.getSymbol());
-				if(!outChrDir.exists()) {
-					outChrDir.mkdir();
-				}
-				BufferedWriter bw = new BufferedWriter(new FileWriter(outChrDir.getAbsolutePath() + "/chr" + c.getSymbol() + "." + chunkExt));
-				rmr.writeHeader(bw);
-				rmr.writeRepeatList(bw);
-				bw.close();
+						File outChrDir = new File(outDir + "/" + c.getSymbol());
+						if(!outChrDir.exists()) {
+							outChrDir.mkdir();
+						}
+						BufferedWriter bw = new BufferedWriter(new FileWriter(outChrDir.getAbsolutePath() + "/chr" + c.getSymbol() + "." + chunkExt));
+						rmr.writeHeader(bw);
+						rmr.writeRepeatList(bw);
+						bw.close();
+						return null;
+					}
+				});
 			}
+			executor.awaitAll();
 		}else if("6".equals(argMap.getTask())) { 
 			String org = argMap.getMandatory("org");
 			String outdir = argMap.getOutputDir();
@@ -328,6 +347,24 @@ public class GenomeMaintenance {
 		}
 	}
 	
+	private static ChromosomeTaskExecutor createExecutor(ArgumentMap argMap) {
+		int numThreads = argMap.getInteger("threads", 1);
+		long maxResidentBases = argMap.containsKey("maxResidentBases") 
+			? Long.parseLong(argMap.get("maxResidentBases")) 
+			: ChromosomeTaskExecutor.defaultSequenceBudget();
+		return new ChromosomeTaskExecutor(numThreads, maxResidentBases);
+	}
+	
+	private static void writeAGP(List<AgpEntry> agp, File agpFile) throws IOException {
+		Iterator<AgpEntry> it = agp.iterator();
+		BufferedWriter agpBW = new BufferedWriter(new FileWriter(agpFile));
+		while(it.hasNext()) {
+			agpBW.write(it.next().toString());
+			agpBW.newLine();
+		}
+		agpBW.close();
+	}
+	
 	public static List<AgpEntry> getAGP(File file) throws IOException {
 		BufferedReader br = new BufferedReader(new FileReader(file));
 		String line = br.readLine();
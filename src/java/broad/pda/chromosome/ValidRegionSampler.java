@@ -0,0 +1,70 @@
+package broad.pda.chromosome;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import broad.core.annotation.LightweightGenomicAnnotation;
+
+/**
+ * Draws positions uniformly from the bases covered by a list of regions, so that each region
+ * is chosen with probability proportional to its length.
+ * Regions are laid end to end in a prefix sum of their lengths and each draw is a binary search
+ * over it, there is no need to replicate regions in proportion to their size.
+ *
+ * @author mgarber
+ */
+public class ValidRegionSampler {
+	private List<? extends LightweightGenomicAnnotation> regions;
+	private long [] cumulativeLength;
+
+	public ValidRegionSampler(List<? extends LightweightGenomicAnnotation> regions) {
+		this.regions = regions;
+		cumulativeLength = new long[regions.size() + 1];
+		Iterator<? extends LightweightGenomicAnnotation> regionIt = regions.iterator();
+		int i = 0;
+		while(regionIt.hasNext()) {
+			cumulativeLength[i + 1] = cumulativeLength[i] + Math.max(0, regionIt.next().length());
+			i++;
+		}
+	}
+
+	public long getTotalLength() { return cumulativeLength[cumulativeLength.length - 1]; }
+
+	public int getNumberOfRegions() { return regions.size(); }
+
+	public LightweightGenomicAnnotation getRegion(int regionIdx) { return regions.get(regionIdx); }
+
+	/**
+	 * @return an offset in [0, getTotalLength()) drawn uniformly
+	 */
+	public long drawOffset(Random r) {
+		long offset = (long) (r.nextDouble() * getTotalLength());
+		return Math.min(offset, getTotalLength() - 1);
+	}
+
+	/**
+	 * @return index of the region containing the given offset (zero length regions are never returned).
+	 */
+	public int getRegionIndex(long offset) {
+		int lo = 0;
+		int hi = regions.size() - 1;
+		while(lo < hi) {
+			int mid = (lo + hi + 1) >>> 1;
+			if(cumulativeLength[mid] <= offset) {
+				lo = mid;
+			} else {
+				hi = mid - 1;
+			}
+		}
+		return lo;
+	}
+
+	/**
+	 * @return the genomic position corresponding to the given offset, which must lie in region regionIdx.
+	 */
+	public int getPosition(int regionIdx, long offset) {
+		return regions.get(regionIdx).getStart() + (int) (offset - cumulativeLength[regionIdx]);
+	}
+
+}